@@ -0,0 +1,51 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Class AcquireReleaseBenchmark
+ * A client of BlockManager that releases each block right after acquiring it,
+ * with and without the per-thread magazines.
+ *
+ * Karim Rhoualem
+ * Student 26603157
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dlog.level=OFF")
+public class AcquireReleaseBenchmark
+{
+    private static final MethodHandle RESET = DefaultPackage.staticMethod("BlockManager", "reset");
+    private static final MethodHandle ACQUIRE = DefaultPackage.staticMethod("BlockManager", "acquire");
+    private static final MethodHandle RELEASE = DefaultPackage.staticMethod("BlockManager", "release", char.class);
+
+    /**
+     * Value of -Dblockmanager.magazine for the run.
+     */
+    @Param({"0", "16"})
+    public String magazine;
+
+    @Setup(Level.Trial)
+    public void setup() throws Throwable
+    {
+        System.setProperty("blockmanager.magazine", magazine);
+        RESET.invokeExact();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public char acquireRelease() throws Throwable
+    {
+        char cBlock = (char) ACQUIRE.invokeExact();
+        RELEASE.invokeExact(cBlock);
+        return cBlock;
+    }
+}
+
+// EOF
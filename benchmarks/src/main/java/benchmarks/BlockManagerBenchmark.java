@@ -0,0 +1,47 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Class BlockManagerBenchmark
+ * The whole acquire/release/probe scenario of BlockManager, from the birth of the
+ * threads until the last one has run its phase II.
+ *
+ * Karim Rhoualem
+ * Student 26603157
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dlog.level=OFF")
+public class BlockManagerBenchmark
+{
+    private static final MethodHandle RESET = DefaultPackage.staticMethod("BlockManager", "reset");
+    private static final MethodHandle RUN_SCENARIO = DefaultPackage.staticMethod("BlockManager", "runScenario");
+
+    /**
+     * Value of -Dblockmanager.stack for the run.
+     */
+    @Param({"locked", "lockfree", "sharded"})
+    public String stack;
+
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        System.setProperty("blockmanager.stack", stack);
+    }
+
+    @Benchmark
+    public void scenario() throws Throwable
+    {
+        RESET.invokeExact();
+        RUN_SCENARIO.invokeExact();
+    }
+}
+
+// EOF
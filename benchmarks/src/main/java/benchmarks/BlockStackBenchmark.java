@@ -0,0 +1,133 @@
+package benchmarks;
+
+import common.Semaphore;
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Class BlockStackBenchmark
+ * push/pop/pick on each stack implementation, alone and shared by several threads.
+ *
+ * Karim Rhoualem
+ * Student 26603157
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dlog.level=OFF")
+public class BlockStackBenchmark
+{
+    private static final MethodHandle PUSH = DefaultPackage.method("IBlockStack", "push", void.class, char.class);
+    private static final MethodHandle POP = DefaultPackage.method("IBlockStack", "pop", char.class);
+    private static final MethodHandle PICK = DefaultPackage.method("IBlockStack", "pick", char.class);
+    private static final MethodHandle TRY_POP = DefaultPackage.method("IBlockStack", "tryPop", char.class);
+    private static final MethodHandle TRY_PUSH_NEXT = DefaultPackage.method("IBlockStack", "tryPushNext", char.class);
+    private static final MethodHandle POP_N = DefaultPackage.method("IBlockStack", "popN", int.class, char[].class, int.class, int.class);
+    private static final MethodHandle PUSH_ALL = DefaultPackage.method("IBlockStack", "pushAll", int.class, char[].class, int.class, int.class);
+    private static final MethodHandle IS_CONCURRENT = DefaultPackage.method("IBlockStack", "isConcurrent", boolean.class);
+
+    /**
+     * A stack used by one thread only.
+     */
+    @State(Scope.Thread)
+    public static class LocalStack
+    {
+        @Param({"BlockStack", "LockFreeBlockStack", "ShardedBlockStack", "LetterBlockStack"})
+        public String implementation;
+
+        Object oStack;
+
+        @Setup(Level.Iteration)
+        public void setup() throws Throwable
+        {
+            oStack = (Object) DefaultPackage.constructor(implementation).invokeExact();
+        }
+    }
+
+    /**
+     * A stack shared by all the benchmark threads, behind BlockManager's mutex when it needs one.
+     */
+    @State(Scope.Benchmark)
+    public static class SharedStack
+    {
+        @Param({"BlockStack", "LockFreeBlockStack", "ShardedBlockStack", "LetterBlockStack"})
+        public String implementation;
+
+        Object oStack;
+        boolean bConcurrent;
+        Semaphore oMutex;
+
+        @Setup(Level.Iteration)
+        public void setup() throws Throwable
+        {
+            oStack = (Object) DefaultPackage.constructor(implementation).invokeExact();
+            bConcurrent = (boolean) IS_CONCURRENT.invokeExact(oStack);
+            oMutex = new Semaphore(1);
+        }
+    }
+
+    @Benchmark
+    public char pushPop(LocalStack poState) throws Throwable
+    {
+        PUSH.invokeExact(poState.oStack, 'z');
+        return (char) POP.invokeExact(poState.oStack);
+    }
+
+    @Benchmark
+    public char pick(LocalStack poState) throws Throwable
+    {
+        return (char) PICK.invokeExact(poState.oStack);
+    }
+
+    /**
+     * Each thread's own buffer for the batch operations.
+     */
+    @State(Scope.Thread)
+    public static class Batch
+    {
+        /**
+         * Two blocks: the default stack has two free slots.
+         */
+        final char[] acBlocks = {'y', 'z'};
+    }
+
+    /**
+     * Pushes then pops two blocks in one critical section: the same work as two sharedReleaseAcquire() calls.
+     */
+    @Benchmark
+    @Threads(4)
+    public int sharedPushAllPopN(SharedStack poState, Batch poBatch) throws Throwable
+    {
+        if (!poState.bConcurrent)
+            poState.oMutex.Wait("BlockStackBenchmark", 0);
+
+        int iPushed = (int) PUSH_ALL.invokeExact(poState.oStack, poBatch.acBlocks, 0, 2);
+        int iPopped = (int) POP_N.invokeExact(poState.oStack, poBatch.acBlocks, 0, iPushed);
+
+        if (!poState.bConcurrent)
+            poState.oMutex.Signal("BlockStackBenchmark", 0);
+
+        return iPushed + iPopped;
+    }
+
+    @Benchmark
+    @Threads(4)
+    public char sharedReleaseAcquire(SharedStack poState) throws Throwable
+    {
+        if (!poState.bConcurrent)
+            poState.oMutex.Wait("BlockStackBenchmark", 0);
+
+        char cPushed = (char) TRY_PUSH_NEXT.invokeExact(poState.oStack);
+        char cPopped = (char) TRY_POP.invokeExact(poState.oStack);
+
+        if (!poState.bConcurrent)
+            poState.oMutex.Signal("BlockStackBenchmark", 0);
+
+        return (char) (cPushed ^ cPopped);
+    }
+}
+
+// EOF
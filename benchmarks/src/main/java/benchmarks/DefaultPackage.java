@@ -0,0 +1,105 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+
+/**
+ * Class DefaultPackage
+ * BlockManager and the stacks live in the default package, which no other package
+ * can import. This hands out method handles to them, typed with Object in place of
+ * the inaccessible classes, so the benchmarks can still call them directly.
+ *
+ * Karim Rhoualem
+ * Student 26603157
+ */
+final class DefaultPackage
+{
+    private DefaultPackage()
+    {
+    }
+
+    /**
+     * Loads a class without initializing it, so that BlockManager reads its settings (system properties
+     * set by a benchmark's @Setup) on first use rather than when the benchmark class is loaded.
+     */
+    private static Class<?> find(String pstrClass) throws ClassNotFoundException
+    {
+        return Class.forName(pstrClass, false, DefaultPackage.class.getClassLoader());
+    }
+
+    /**
+     * @param pstrClass Simple name of a default-package class.
+     * @return A handle of type ()Object to its no-argument constructor.
+     */
+    static MethodHandle constructor(String pstrClass)
+    {
+        try
+        {
+            Constructor<?> oConstructor = find(pstrClass).getDeclaredConstructor();
+            oConstructor.setAccessible(true);
+            return MethodHandles.lookup().unreflectConstructor(oConstructor)
+                    .asType(MethodType.methodType(Object.class));
+        }
+        catch (ReflectiveOperationException e)
+        {
+            throw new IllegalStateException("Cannot reach constructor of " + pstrClass, e);
+        }
+    }
+
+    /**
+     * @param pstrClass Simple name of a default-package class or interface.
+     * @param pstrMethod Name of an instance method.
+     * @param poReturn Return type of the method.
+     * @param paoParameters Parameter types of the method.
+     * @return A handle of type (Object, parameters)return.
+     */
+    static MethodHandle method(String pstrClass, String pstrMethod, Class<?> poReturn, Class<?>... paoParameters)
+    {
+        try
+        {
+            Method oMethod = find(pstrClass).getDeclaredMethod(pstrMethod, paoParameters);
+            oMethod.setAccessible(true);
+            return MethodHandles.lookup().unreflect(oMethod)
+                    .asType(MethodType.methodType(poReturn, Object.class, paoParameters));
+        }
+        catch (ReflectiveOperationException e)
+        {
+            throw new IllegalStateException("Cannot reach " + pstrClass + "." + pstrMethod, e);
+        }
+    }
+
+    /**
+     * @param pstrClass Simple name of a default-package class.
+     * @param pstrMethod Name of a static method without parameters.
+     * @return A handle of type ()void.
+     */
+    static MethodHandle staticMethod(String pstrClass, String pstrMethod)
+    {
+        return staticMethod(pstrClass, pstrMethod, new Class<?>[0]);
+    }
+
+    /**
+     * @param pstrClass Simple name of a default-package class.
+     * @param pstrMethod Name of a static method.
+     * @param paoParameters Parameter types of the method; the return type is taken as declared.
+     * @return A handle with the method's own type.
+     */
+    static MethodHandle staticMethod(String pstrClass, String pstrMethod, Class<?>... paoParameters)
+    {
+        try
+        {
+            Method oMethod = find(pstrClass).getDeclaredMethod(pstrMethod, paoParameters);
+            oMethod.setAccessible(true);
+            return MethodHandles.lookup().unreflect(oMethod);
+        }
+        catch (ReflectiveOperationException e)
+        {
+            throw new IllegalStateException("Cannot reach " + pstrClass + "." + pstrMethod, e);
+        }
+    }
+}
+
+// EOF
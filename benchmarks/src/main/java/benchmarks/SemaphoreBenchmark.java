@@ -0,0 +1,69 @@
+package benchmarks;
+
+import common.Semaphore;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Class SemaphoreBenchmark
+ * A Wait()/Signal() pair on a mutex semaphore, from 1 up to all available threads.
+ *
+ * Karim Rhoualem
+ * Student 26603157
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dlog.level=OFF")
+public class SemaphoreBenchmark
+{
+    @Param({"false", "true"})
+    public boolean fair;
+
+    private Semaphore oMutex;
+
+    @Setup(Level.Iteration)
+    public void setup()
+    {
+        oMutex = new Semaphore(1, fair);
+    }
+
+    private void waitSignal()
+    {
+        oMutex.Wait("SemaphoreBenchmark", 0);
+        oMutex.Signal("SemaphoreBenchmark", 0);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void waitSignal1()
+    {
+        waitSignal();
+    }
+
+    @Benchmark
+    @Threads(2)
+    public void waitSignal2()
+    {
+        waitSignal();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void waitSignal4()
+    {
+        waitSignal();
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public void waitSignalMax()
+    {
+        waitSignal();
+    }
+}
+
+// EOF
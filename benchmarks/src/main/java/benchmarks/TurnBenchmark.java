@@ -0,0 +1,52 @@
+package benchmarks;
+
+import common.BaseTask;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Class TurnBenchmark
+ * Cost of BaseTask.turnTestAndSet() when the turn is taken (including phase II)
+ * and when it is not the caller's turn yet, i.e. one iteration of a waiting loop.
+ *
+ * Karim Rhoualem
+ * Student 26603157
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dlog.level=OFF")
+public class TurnBenchmark
+{
+    /**
+     * Far away from the TIDs handed out automatically.
+     */
+    private static final int TID = 1_000_000;
+
+    private BaseTask oTask;
+
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        oTask = new BaseTask(TID);
+    }
+
+    @Benchmark
+    public boolean takeTurn()
+    {
+        BaseTask.setInitialTurn(TID);
+        return oTask.turnTestAndSet(true);
+    }
+
+    @Benchmark
+    public boolean missTurn()
+    {
+        BaseTask.setInitialTurn(TID + 1);
+        return oTask.turnTestAndSet(true);
+    }
+}
+
+// EOF
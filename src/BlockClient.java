@@ -0,0 +1,257 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Class BlockClient
+ * Client side of BlockServer's protocol (see BlockProtocol), over one blocking connection.
+ *
+ * acquire(), release(), pick() and snapshot() each make one round trip. To pipeline, queue
+ * several requests with the send methods, flush() them, then read the responses in the same
+ * order with the matching receive methods.
+ *
+ * Not thread-safe: give each thread its own client.
+ *
+ * Karim Rhoualem
+ * Student 26603157
+ */
+class BlockClient implements AutoCloseable {
+    private static final int BUFFER_LENGTH = 64 * 1024;
+
+    private final SocketChannel oChannel;
+
+    /**
+     * Requests not sent yet, in write mode
+     */
+    private final ByteBuffer oOut = ByteBuffer.allocateDirect(BUFFER_LENGTH);
+
+    /**
+     * Received bytes not read yet, in read mode
+     */
+    private final ByteBuffer oIn = ByteBuffer.allocateDirect(BUFFER_LENGTH);
+
+    private BlockClient(final SocketChannel poChannel) {
+        this.oChannel = poChannel;
+        this.oIn.flip();
+    }
+
+    /**
+     * Connects to a server over TCP.
+     *
+     * @param pstrHost Host of the server, e.g. 127.0.0.1.
+     * @param piPort Port of the server.
+     * @return The client.
+     */
+    static BlockClient connect(final String pstrHost, final int piPort) throws IOException {
+        SocketChannel oChannel = SocketChannel.open(new InetSocketAddress(pstrHost, piPort));
+        oChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        return new BlockClient(oChannel);
+    }
+
+    /**
+     * Connects to a server over a Unix domain socket (Java 16 or later).
+     *
+     * @param pstrPath Path of the server's socket file.
+     * @return The client.
+     */
+    static BlockClient connectUnix(final String pstrPath) throws IOException {
+        SocketChannel oChannel = BlockProtocol.openUnixChannel();
+        try {
+            oChannel.connect(BlockProtocol.unixAddress(pstrPath));
+        }
+        catch (IOException e) {
+            oChannel.close();
+            throw e;
+        }
+        return new BlockClient(oChannel);
+    }
+
+    /*
+     * -------------------------
+     * One request, one response
+     * -------------------------
+     */
+
+    /**
+     * Takes up to piMax blocks, only those on the stack right now.
+     *
+     * @return The number of blocks taken.
+     */
+    int acquire(final char[] pacBuffer, final int piOffset, final int piMax) throws IOException {
+        sendAcquire(piMax);
+        flush();
+        return receiveAcquire(pacBuffer, piOffset);
+    }
+
+    /**
+     * Gives blocks back, as far as the stack has room for them.
+     *
+     * @return The number of blocks pushed: the first ones of the range.
+     */
+    int release(final char[] pacBlocks, final int piOffset, final int piCount) throws IOException {
+        sendRelease(pacBlocks, piOffset, piCount);
+        flush();
+        return receiveRelease();
+    }
+
+    /**
+     * @return The top block, or IBlockStack.EMPTY_SLOT if the stack is empty.
+     */
+    char pick() throws IOException {
+        sendPick();
+        flush();
+        return receivePick();
+    }
+
+    /**
+     * Copies the stack as it was at one instant.
+     *
+     * @param pacBuffer Receives the slots; those that do not fit are left out.
+     * @return The top position.
+     */
+    int snapshot(final char[] pacBuffer) throws IOException {
+        sendSnapshot();
+        flush();
+        return receiveSnapshot(pacBuffer);
+    }
+
+    /*
+     * -----------
+     * Pipelining
+     * -----------
+     */
+
+    void sendAcquire(final int piMax) throws IOException {
+        if (piMax < 0 || piMax > BlockProtocol.MAX_BATCH)
+            throw new IllegalArgumentException("Between 0 and " + BlockProtocol.MAX_BATCH + " blocks at once: " + piMax);
+
+        room(3);
+        this.oOut.put(BlockProtocol.ACQUIRE).putShort((short) piMax);
+    }
+
+    void sendRelease(final char[] pacBlocks, final int piOffset, final int piCount) throws IOException {
+        if (piCount < 0 || piCount > BlockProtocol.MAX_BATCH)
+            throw new IllegalArgumentException("Between 0 and " + BlockProtocol.MAX_BATCH + " blocks at once: " + piCount);
+
+        room(3 + 2 * piCount);
+        this.oOut.put(BlockProtocol.RELEASE).putShort((short) piCount);
+        for (int i = 0; i < piCount; i++)
+            this.oOut.putChar(pacBlocks[piOffset + i]);
+    }
+
+    void sendPick() throws IOException {
+        room(1);
+        this.oOut.put(BlockProtocol.PICK);
+    }
+
+    void sendSnapshot() throws IOException {
+        room(1);
+        this.oOut.put(BlockProtocol.SNAPSHOT);
+    }
+
+    /**
+     * Sends the queued requests.
+     */
+    void flush() throws IOException {
+        this.oOut.flip();
+        while (this.oOut.hasRemaining())
+            this.oChannel.write(this.oOut);
+        this.oOut.clear();
+    }
+
+    /**
+     * Reads the response to an ACQUIRE.
+     * @return The number of blocks taken.
+     */
+    int receiveAcquire(final char[] pacBuffer, final int piOffset) throws IOException {
+        checkStatus();
+        fill(2);
+        int iCount = Short.toUnsignedInt(this.oIn.getShort());
+        fill(2 * iCount);
+        for (int i = 0; i < iCount; i++)
+            pacBuffer[piOffset + i] = this.oIn.getChar();
+        return iCount;
+    }
+
+    /**
+     * Reads the response to a RELEASE.
+     * @return The number of blocks pushed.
+     */
+    int receiveRelease() throws IOException {
+        checkStatus();
+        fill(2);
+        return Short.toUnsignedInt(this.oIn.getShort());
+    }
+
+    /**
+     * Reads the response to a PICK.
+     * @return The top block, or IBlockStack.EMPTY_SLOT.
+     */
+    char receivePick() throws IOException {
+        checkStatus();
+        fill(2);
+        return this.oIn.getChar();
+    }
+
+    /**
+     * Reads the response to a SNAPSHOT.
+     * @return The top position.
+     */
+    int receiveSnapshot(final char[] pacBuffer) throws IOException {
+        checkStatus();
+        fill(6);
+        int iSize = Short.toUnsignedInt(this.oIn.getShort());
+        int iTop = this.oIn.getInt();
+        fill(2 * iSize);
+        for (int i = 0; i < iSize; i++) {
+            char cSlot = this.oIn.getChar();
+            if (i < pacBuffer.length)
+                pacBuffer[i] = cSlot;
+        }
+        return iTop;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.oChannel.close();
+    }
+
+    /**
+     * Sends what is queued if the next request would not fit.
+     */
+    private void room(final int piLength) throws IOException {
+        if (this.oOut.remaining() < piLength)
+            flush();
+    }
+
+    /**
+     * Reads until at least piLength bytes are there to be read.
+     */
+    private void fill(final int piLength) throws IOException {
+        if (this.oIn.remaining() >= piLength)
+            return;
+
+        this.oIn.compact();
+        try {
+            while (this.oIn.position() < piLength) {
+                if (this.oChannel.read(this.oIn) < 0)
+                    throw new EOFException("The server closed the connection.");
+            }
+        }
+        finally {
+            this.oIn.flip();
+        }
+    }
+
+    private void checkStatus() throws IOException {
+        fill(1);
+        byte bStatus = this.oIn.get();
+        if (bStatus != BlockProtocol.OK)
+            throw new IOException("The server rejected the request (status " + bStatus + ").");
+    }
+}
+
+// EOF
@@ -0,0 +1,653 @@
+import common.AsyncLogger;
+import common.Metrics;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Class BlockJournal
+ * Append-only record of the pops and pushes done on the stack (TID, block, position, time),
+ * for auditing and to rebuild the stack after a crash.
+ *
+ * Threads append records to a buffer while they hold the mutex, so the journal has the same
+ * order as the stack, and wait for them to be durable with sync() once they let the mutex go.
+ * A single writer thread empties the buffer: everything appended while it was writing or
+ * forcing the previous batch goes out in the next write and shares the next force (group commit).
+ *
+ * The journal is a directory of segments, journal-<first sequence>.log. A segment starts with
+ * the whole stack as it was before its first record, so recover() only replays the last one;
+ * a segment that grows past its size limit is closed and a new one started. Older segments are
+ * kept for auditing.
+ *
+ * Segment header (big endian): magic "BJNL", format version, first sequence (long), stack size,
+ * top, the slots (one char each), CRC32C of all that.
+ * Record, 24 bytes: type (POP/PUSH), 0, block (char), position, TID, time in ms (long),
+ * CRC32C of the first 20 bytes.
+ *
+ * Karim Rhoualem
+ * Student 26603157
+ */
+class BlockJournal implements AutoCloseable {
+    /**
+     * What sync() waits for
+     */
+    enum Durability {
+        /**
+         * Nothing: batches are written and forced in the background every few milliseconds.
+         * A crash of the JVM or the host loses the last ones.
+         */
+        ASYNC,
+
+        /**
+         * The record is written to the file. Survives a crash of the JVM, not of the host.
+         */
+        WRITE,
+
+        /**
+         * The record is forced to the storage device.
+         */
+        FSYNC
+    }
+
+    static final byte POP = 1;
+    static final byte PUSH = 2;
+
+    private static final int MAGIC = 0x424A4E4C; // "BJNL"
+    private static final int VERSION = 1;
+
+    private static final int RECORD_LENGTH = 24;
+    private static final int CHECKED_LENGTH = 20;
+
+    /**
+     * Records the buffer holds; appenders wait for the writer once it is full.
+     */
+    private static final int BUFFER_RECORDS = 4096;
+
+    /**
+     * How long the writer lets records pile up in ASYNC mode before writing them
+     */
+    private static final long ASYNC_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private static final Metrics.Counter RECORDS = Metrics.counter("journal.records");
+    private static final Metrics.Counter BATCHES = Metrics.counter("journal.batches");
+    private static final Metrics.Counter FORCES = Metrics.counter("journal.forces");
+    private static final Metrics.Counter ROTATIONS = Metrics.counter("journal.rotations");
+
+    private final Path oDirectory;
+    private final Durability eDurability;
+    private final long lSegmentBytes;
+    private final int iSize;
+
+    /**
+     * Guards the buffer being filled and the sequences
+     */
+    private final ReentrantLock oLock = new ReentrantLock();
+
+    /**
+     * The writer waits on it for records or for close()
+     */
+    private final Condition oWork = oLock.newCondition();
+
+    /**
+     * Appenders wait on it for room in the buffer
+     */
+    private final Condition oRoom = oLock.newCondition();
+
+    /**
+     * sync() waits on it for a batch to be written or forced
+     */
+    private final Condition oSynced = oLock.newCondition();
+
+    private ByteBuffer oPending = ByteBuffer.allocate(BUFFER_RECORDS * RECORD_LENGTH);
+    private final long lFirstSequence;
+    private long lNextSequence;
+    private long lSynced;
+    private boolean bClosed = false;
+    private IOException oFailure = null;
+
+    /*
+     * Owned by the writer thread
+     */
+    private ByteBuffer oWriting = ByteBuffer.allocate(BUFFER_RECORDS * RECORD_LENGTH);
+    private final CRC32C oCrc = new CRC32C();
+    private final char[] acShadow;
+    private int iShadowTop;
+    private long lWritten;
+    private FileChannel oSegment = null;
+
+    private final Thread oWriter;
+
+    private volatile long lBatches = 0;
+    private volatile long lForces = 0;
+    private volatile int iSegments = 0;
+
+    /**
+     * Starts a new segment in the directory, after those already there, from the current state of the stack.
+     * To carry on from a crash, pass the stack returned by recover().
+     *
+     * @param poDirectory Directory of the segments; created if needed.
+     * @param peDurability What sync() waits for.
+     * @param plSegmentBytes Size after which a segment is closed and a new one started.
+     * @param poStack The stack the records will apply to.
+     * @throws UncheckedIOException if the directory or the first segment cannot be written.
+     */
+    BlockJournal(final Path poDirectory, final Durability peDurability, final long plSegmentBytes, final IBlockStack poStack) {
+        this.oDirectory = poDirectory;
+        this.eDurability = peDurability;
+        this.lSegmentBytes = plSegmentBytes;
+        this.iSize = poStack.getISize();
+        this.acShadow = new char[this.iSize];
+        this.iShadowTop = poStack.snapshot(this.acShadow);
+
+        try {
+            Files.createDirectories(poDirectory);
+            Replay oLast = replayLast(poDirectory);
+            this.lFirstSequence = (oLast == null) ? 0 : oLast.lNextSequence;
+            this.lNextSequence = this.lFirstSequence;
+            this.lSynced = this.lFirstSequence - 1;
+            this.lWritten = this.lFirstSequence - 1;
+            startSegment(this.lFirstSequence);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException("Cannot open the journal in " + poDirectory, e);
+        }
+
+        this.oWriter = new Thread(this::writeLoop, "BlockJournal");
+        this.oWriter.setDaemon(true);
+        this.oWriter.start();
+    }
+
+    /*
+     * -----------
+     * Appending
+     * -----------
+     */
+
+    /**
+     * Records a pop. Call it while holding the mutex, right after the pop.
+     * @return Sequence of the record, for sync().
+     */
+    long logPop(final int piTID, final char pcBlock, final int piPosition) {
+        return append(POP, piTID, pcBlock, piPosition);
+    }
+
+    /**
+     * Records a push. Call it while holding the mutex, right after the push.
+     * @return Sequence of the record, for sync().
+     */
+    long logPush(final int piTID, final char pcBlock, final int piPosition) {
+        return append(PUSH, piTID, pcBlock, piPosition);
+    }
+
+    private long append(final byte pbType, final int piTID, final char pcBlock, final int piPosition) {
+        if (piPosition < 0 || piPosition >= this.iSize)
+            throw new IllegalArgumentException("Position out of the stack: " + piPosition);
+
+        this.oLock.lock();
+        try {
+            while (this.oPending.remaining() < RECORD_LENGTH && this.oFailure == null && !this.bClosed) {
+                this.oWork.signal();
+                this.oRoom.awaitUninterruptibly();
+            }
+            checkOpen();
+
+            if (this.oPending.position() == 0)
+                this.oWork.signal();
+
+            // The checksum is left to the writer, outside the mutex
+            this.oPending.put(pbType).put((byte) 0).putChar(pcBlock).putInt(piPosition).putInt(piTID)
+                    .putLong(System.currentTimeMillis()).putInt(0);
+            RECORDS.increment();
+            return this.lNextSequence++;
+        }
+        finally {
+            this.oLock.unlock();
+        }
+    }
+
+    /**
+     * Waits until the record and all those before it are durable, as far as the durability level asks.
+     * Call it after letting the mutex go, so that other threads can append meanwhile and share the force.
+     *
+     * @param plSequence Sequence returned by logPop()/logPush(); negative to do nothing.
+     * @throws UncheckedIOException if the journal could not be written.
+     */
+    void sync(final long plSequence) {
+        if (plSequence < 0 || this.eDurability == Durability.ASYNC)
+            return;
+
+        this.oLock.lock();
+        try {
+            while (this.lSynced < plSequence && this.oFailure == null)
+                this.oSynced.awaitUninterruptibly();
+            if (this.lSynced < plSequence)
+                checkOpen();
+        }
+        finally {
+            this.oLock.unlock();
+        }
+    }
+
+    /**
+     * Writes out and forces whatever is left, then stops the writer.
+     * @throws UncheckedIOException if the journal could not be written.
+     */
+    @Override
+    public void close() {
+        this.oLock.lock();
+        try {
+            this.bClosed = true;
+            this.oWork.signal();
+        }
+        finally {
+            this.oLock.unlock();
+        }
+
+        boolean bInterrupted = false;
+        while (this.oWriter.isAlive()) {
+            try {
+                this.oWriter.join();
+            }
+            catch (InterruptedException e) {
+                bInterrupted = true;
+            }
+        }
+        if (bInterrupted)
+            Thread.currentThread().interrupt();
+
+        if (this.oFailure != null)
+            throw new UncheckedIOException("The journal could not be written", this.oFailure);
+    }
+
+    /**
+     * Called with the lock held
+     */
+    private void checkOpen() {
+        if (this.oFailure != null)
+            throw new UncheckedIOException("The journal could not be written", this.oFailure);
+        if (this.bClosed)
+            throw new IllegalStateException("The journal is closed.");
+    }
+
+    /*
+     * ------------
+     * The writer
+     * ------------
+     */
+
+    private void writeLoop() {
+        try {
+            while (awaitWork()) {
+                // Lets records pile up: in ASYNC mode nobody waits for them
+                if (this.eDurability == Durability.ASYNC)
+                    LockSupport.parkNanos(this, ASYNC_DELAY_NANOS);
+
+                long lLast = takeBatch();
+                writeBatch();
+                if (this.eDurability != Durability.WRITE)
+                    force();
+
+                this.oLock.lock();
+                try {
+                    this.lSynced = lLast;
+                    this.oSynced.signalAll();
+                }
+                finally {
+                    this.oLock.unlock();
+                }
+            }
+
+            force();
+            this.oSegment.close();
+        }
+        catch (IOException e) {
+            AsyncLogger.log(AsyncLogger.Level.ERROR, "[BlockJournal] Write failed: " + e, true);
+            this.oLock.lock();
+            try {
+                this.oFailure = e;
+                this.oSynced.signalAll();
+                this.oRoom.signalAll();
+            }
+            finally {
+                this.oLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * @return False once the journal is closed and everything appended was taken.
+     */
+    private boolean awaitWork() {
+        this.oLock.lock();
+        try {
+            while (this.oPending.position() == 0 && !this.bClosed)
+                this.oWork.awaitUninterruptibly();
+            return this.oPending.position() > 0;
+        }
+        finally {
+            this.oLock.unlock();
+        }
+    }
+
+    /**
+     * Swaps the buffers, so appenders carry on in the empty one.
+     * @return Sequence of the last record taken.
+     */
+    private long takeBatch() {
+        this.oLock.lock();
+        try {
+            ByteBuffer oFull = this.oPending;
+            this.oPending = this.oWriting;
+            this.oWriting = oFull;
+            this.oPending.clear();
+            this.oWriting.flip();
+            this.oRoom.signalAll();
+            return this.lNextSequence - 1;
+        }
+        finally {
+            this.oLock.unlock();
+        }
+    }
+
+    /**
+     * Checksums the records taken, follows them on the shadow stack and writes them out,
+     * in a new segment if the current one is full.
+     */
+    private void writeBatch() throws IOException {
+        byte[] abRecords = this.oWriting.array();
+        int iLength = this.oWriting.limit();
+
+        if (this.oSegment.position() + iLength > this.lSegmentBytes && this.oSegment.position() > headerLength(this.iSize)) {
+            force();
+            this.oSegment.close();
+            ROTATIONS.increment();
+            startSegment(this.lWritten + 1);
+        }
+
+        for (int iOffset = 0; iOffset < iLength; iOffset += RECORD_LENGTH) {
+            this.oCrc.reset();
+            this.oCrc.update(abRecords, iOffset, CHECKED_LENGTH);
+            this.oWriting.putInt(iOffset + CHECKED_LENGTH, (int) this.oCrc.getValue());
+
+            int iPosition = this.oWriting.getInt(iOffset + 4);
+            if (this.oWriting.get(iOffset) == PUSH) {
+                this.acShadow[iPosition] = this.oWriting.getChar(iOffset + 2);
+                this.iShadowTop = iPosition;
+            }
+            else {
+                this.acShadow[iPosition] = IBlockStack.EMPTY_SLOT;
+                this.iShadowTop = iPosition - 1;
+            }
+        }
+
+        writeFully(this.oSegment, this.oWriting);
+        this.lWritten += iLength / RECORD_LENGTH;
+        BATCHES.increment();
+        this.lBatches++;
+    }
+
+    private void force() throws IOException {
+        this.oSegment.force(false);
+        FORCES.increment();
+        this.lForces++;
+    }
+
+    /**
+     * Opens a new segment starting with the shadow stack, and forces it (file included) before any record goes in.
+     */
+    private void startSegment(final long plFirstSequence) throws IOException {
+        this.oSegment = FileChannel.open(this.oDirectory.resolve(segmentName(plFirstSequence)),
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+
+        ByteBuffer oHeader = ByteBuffer.allocate(headerLength(this.iSize));
+        oHeader.putInt(MAGIC).putInt(VERSION).putLong(plFirstSequence).putInt(this.iSize).putInt(this.iShadowTop);
+        for (char cSlot : this.acShadow)
+            oHeader.putChar(cSlot);
+        this.oCrc.reset();
+        this.oCrc.update(oHeader.array(), 0, oHeader.position());
+        oHeader.putInt((int) this.oCrc.getValue());
+        oHeader.flip();
+
+        writeFully(this.oSegment, oHeader);
+        this.oSegment.force(true);
+        this.iSegments++;
+    }
+
+    private static void writeFully(final FileChannel poChannel, final ByteBuffer poBuffer) throws IOException {
+        while (poBuffer.hasRemaining())
+            poChannel.write(poBuffer);
+    }
+
+    private static int headerLength(final int piSize) {
+        return 24 + 2 * piSize + 4;
+    }
+
+    private static String segmentName(final long plFirstSequence) {
+        return String.format("journal-%019d.log", plFirstSequence);
+    }
+
+    /**
+     * Gets the number of records appended since the journal was opened.
+     * @return The number of records.
+     */
+    long getRecordCount() {
+        this.oLock.lock();
+        try {
+            return this.lNextSequence - this.lFirstSequence;
+        }
+        finally {
+            this.oLock.unlock();
+        }
+    }
+
+    /**
+     * Gets the number of writes so far; records per write is the group commit's batch size.
+     * @return The number of writes.
+     */
+    long getBatchCount() {
+        return this.lBatches;
+    }
+
+    /**
+     * Gets the number of forces so far.
+     * @return The number of forces.
+     */
+    long getForceCount() {
+        return this.lForces;
+    }
+
+    /**
+     * Gets the number of segments started since the journal was opened.
+     * @return The number of segments.
+     */
+    int getSegmentCount() {
+        return this.iSegments;
+    }
+
+    /*
+     * ----------
+     * Recovery
+     * ----------
+     */
+
+    /**
+     * Stack state read back from a segment
+     */
+    private static final class Replay {
+        private char[] acSlots;
+        private int iTop;
+        private long lFirstSequence;
+        private long lNextSequence;
+    }
+
+    /**
+     * Receives the records of a segment as they are replayed
+     */
+    private interface RecordVisitor {
+        void visit(long plSequence, byte pbType, int piTID, char pcBlock, int piPosition, long plMillis);
+    }
+
+    /**
+     * Rebuilds the stack from the last segment of the journal: its header, then its records up to
+     * the last complete one. A torn record at the end, from a crash in the middle of a write, is ignored.
+     *
+     * @param poDirectory Directory of the segments.
+     * @return The stack, or null if there is no journal in the directory.
+     * @throws UncheckedIOException if the segments cannot be read.
+     */
+    static BlockStack recover(final Path poDirectory) {
+        long lStart = System.nanoTime();
+        try {
+            Replay oState = replayLast(poDirectory);
+            if (oState == null)
+                return null;
+
+            AsyncLogger.println("[BlockJournal] Replayed " + (oState.lNextSequence - oState.lFirstSequence) + " records from " +
+                    segmentName(oState.lFirstSequence) + " in " + (System.nanoTime() - lStart) / 1000 + " us; top = " + oState.iTop + ".");
+            return new BlockStack(oState.acSlots, oState.iTop);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException("Cannot read the journal in " + poDirectory, e);
+        }
+    }
+
+    private static List<Path> segments(final Path poDirectory) throws IOException {
+        if (!Files.isDirectory(poDirectory))
+            return List.of();
+        try (Stream<Path> oFiles = Files.list(poDirectory)) {
+            return oFiles.filter(oFile -> oFile.getFileName().toString().matches("journal-\\d{19}\\.log"))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * @return The state at the end of the last segment with a valid header, or null if there is none.
+     */
+    private static Replay replayLast(final Path poDirectory) throws IOException {
+        List<Path> aoSegments = segments(poDirectory);
+        for (int i = aoSegments.size() - 1; i >= 0; i--) {
+            Replay oState = replay(aoSegments.get(i), null);
+            if (oState != null)
+                return oState;
+            AsyncLogger.log(AsyncLogger.Level.WARN, "[BlockJournal] Skipping " + aoSegments.get(i) + ": bad header.", true);
+        }
+        return null;
+    }
+
+    /**
+     * Reads a segment: its header, then its records until the first torn, corrupt or inconsistent one.
+     *
+     * @param poVisitor Gets every valid record; may be null.
+     * @return The state at the end of the segment, or null if its header is not valid.
+     */
+    private static Replay replay(final Path poFile, final RecordVisitor poVisitor) throws IOException {
+        MappedByteBuffer oBuffer;
+        try (FileChannel oChannel = FileChannel.open(poFile, StandardOpenOption.READ)) {
+            oBuffer = oChannel.map(FileChannel.MapMode.READ_ONLY, 0, oChannel.size());
+        }
+
+        if (oBuffer.limit() < headerLength(0) || oBuffer.getInt(0) != MAGIC || oBuffer.getInt(4) != VERSION)
+            return null;
+        int iSize = oBuffer.getInt(16);
+        int iHeaderLength = headerLength(iSize);
+        if (iSize < 1 || oBuffer.limit() < iHeaderLength)
+            return null;
+
+        CRC32C oCrc = new CRC32C();
+        oCrc.update(oBuffer.duplicate().limit(iHeaderLength - 4));
+        if ((int) oCrc.getValue() != oBuffer.getInt(iHeaderLength - 4))
+            return null;
+
+        Replay oState = new Replay();
+        oState.lFirstSequence = oBuffer.getLong(8);
+        oState.iTop = oBuffer.getInt(20);
+        oState.acSlots = new char[iSize];
+        for (int i = 0; i < iSize; i++)
+            oState.acSlots[i] = oBuffer.getChar(24 + 2 * i);
+        oState.lNextSequence = oState.lFirstSequence;
+
+        for (int iOffset = iHeaderLength; iOffset + RECORD_LENGTH <= oBuffer.limit(); iOffset += RECORD_LENGTH) {
+            oCrc.reset();
+            oCrc.update(oBuffer.duplicate().position(iOffset).limit(iOffset + CHECKED_LENGTH));
+            if ((int) oCrc.getValue() != oBuffer.getInt(iOffset + CHECKED_LENGTH))
+                break;
+
+            byte bType = oBuffer.get(iOffset);
+            char cBlock = oBuffer.getChar(iOffset + 2);
+            int iPosition = oBuffer.getInt(iOffset + 4);
+            if (bType == PUSH && iPosition == oState.iTop + 1 && iPosition < iSize) {
+                oState.acSlots[iPosition] = cBlock;
+                oState.iTop = iPosition;
+            }
+            else if (bType == POP && iPosition == oState.iTop && iPosition >= 0 && oState.acSlots[iPosition] == cBlock) {
+                oState.acSlots[iPosition] = IBlockStack.EMPTY_SLOT;
+                oState.iTop = iPosition - 1;
+            }
+            else {
+                AsyncLogger.log(AsyncLogger.Level.WARN, "[BlockJournal] " + poFile + ": record " + oState.lNextSequence +
+                        " does not follow from the ones before; replay stops there.", true);
+                break;
+            }
+
+            if (poVisitor != null)
+                poVisitor.visit(oState.lNextSequence, bType, oBuffer.getInt(iOffset + 8), cBlock, iPosition, oBuffer.getLong(iOffset + 12));
+            oState.lNextSequence++;
+        }
+
+        return oState;
+    }
+
+    /**
+     * Prints the state the journal recovers to, and with --dump every record of every segment.
+     * Usage: BlockJournal <directory> [--dump]
+     */
+    public static void main(String[] argv) throws IOException {
+        if (argv.length < 1) {
+            System.err.println("Usage: BlockJournal <directory> [--dump]");
+            System.exit(1);
+        }
+        Path oDirectory = Paths.get(argv[0]);
+
+        if (argv.length > 1 && "--dump".equals(argv[1])) {
+            for (Path oSegment : segments(oDirectory)) {
+                System.out.println("[BlockJournal] " + oSegment.getFileName() + ":");
+                Replay oState = replay(oSegment, (plSequence, pbType, piTID, pcBlock, piPosition, plMillis) ->
+                        System.out.println("  " + plSequence + " " + Instant.ofEpochMilli(plMillis) + " TID=" + piTID + " " +
+                                (pbType == PUSH ? "push " : "pop  ") + pcBlock + " at " + piPosition));
+                if (oState == null)
+                    System.out.println("  (bad header)");
+            }
+        }
+
+        BlockStack oStack = recover(oDirectory);
+        AsyncLogger.flush();
+        if (oStack == null) {
+            System.out.println("[BlockJournal] No journal in " + oDirectory + ".");
+        }
+        else {
+            StringBuilder oLine = new StringBuilder("[BlockJournal] Recovered stack: ");
+            for (int s = 0; s < oStack.getISize(); s++)
+                oLine.append(s == oStack.getITop() ? "(" : "[").append(oStack.getAt(s)).append(s == oStack.getITop() ? ")" : "]");
+            System.out.println(oLine.append("."));
+        }
+    }
+}
+
+// EOF
@@ -0,0 +1,148 @@
+import common.Histogram;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Class BlockLoadGenerator
+ * Measures a BlockServer from the outside: each client thread, on its own connection, sends a
+ * pipeline of ACQUIREs, reads their responses, then sends back the blocks it got as a pipeline of
+ * RELEASEs, over and over. Reports requests and blocks per second and the round-trip time of a
+ * pipeline (from flush() to its last response).
+ *
+ * Usage: BlockLoadGenerator [--host <address>] [--port <n>] [--unix <path>] [--clients <n>]
+ *                           [--duration <seconds>] [--pipeline <n>] [--batch <n>]
+ *
+ * Karim Rhoualem
+ * Student 26603157
+ */
+class BlockLoadGenerator {
+    private String strHost = "127.0.0.1";
+    private int iPort = BlockProtocol.DEFAULT_PORT;
+    private String strUnix = null;
+    private int iClients = 4;
+    private double dDurationSeconds = 5;
+    private int iPipeline = 1;
+    private int iBatch = 1;
+
+    private final Histogram oRoundTrips = new Histogram();
+    private final LongAdder oRequests = new LongAdder();
+    private final LongAdder oBlocks = new LongAdder();
+
+    private BlockClient open() throws IOException {
+        return (this.strUnix != null) ? BlockClient.connectUnix(this.strUnix) : BlockClient.connect(this.strHost, this.iPort);
+    }
+
+    /**
+     * What each client thread does until the deadline
+     */
+    private void drive(final long plDeadline) throws IOException {
+        char[] acHeld = new char[this.iPipeline * this.iBatch];
+        try (BlockClient oClient = open()) {
+            while (System.nanoTime() < plDeadline) {
+                for (int i = 0; i < this.iPipeline; i++)
+                    oClient.sendAcquire(this.iBatch);
+                long lStart = System.nanoTime();
+                oClient.flush();
+                int iHeld = 0;
+                for (int i = 0; i < this.iPipeline; i++)
+                    iHeld += oClient.receiveAcquire(acHeld, iHeld);
+                this.oRoundTrips.record(System.nanoTime() - lStart);
+                this.oRequests.add(this.iPipeline);
+
+                if (iHeld == 0)
+                    continue;
+
+                int iSent = 0;
+                int iReleases = 0;
+                while (iSent < iHeld) {
+                    int iCount = Math.min(this.iBatch, iHeld - iSent);
+                    oClient.sendRelease(acHeld, iSent, iCount);
+                    iSent += iCount;
+                    iReleases++;
+                }
+                lStart = System.nanoTime();
+                oClient.flush();
+                int iReleased = 0;
+                for (int i = 0; i < iReleases; i++)
+                    iReleased += oClient.receiveRelease();
+                this.oRoundTrips.record(System.nanoTime() - lStart);
+                this.oRequests.add(iReleases);
+                this.oBlocks.add(iHeld + iReleased);
+
+                if (iReleased < iHeld)
+                    throw new IllegalStateException("The server had no room for " + (iHeld - iReleased) + " of the blocks given back.");
+            }
+        }
+    }
+
+    private void run() throws InterruptedException {
+        long lStart = System.nanoTime();
+        long lDeadline = lStart + (long) (this.dDurationSeconds * 1e9);
+        List<Thread> aoThreads = new ArrayList<>();
+        List<Throwable> aoFailures = new ArrayList<>();
+
+        for (int i = 0; i < this.iClients; i++) {
+            Thread oThread = new Thread(() -> {
+                try {
+                    drive(lDeadline);
+                }
+                catch (IOException | RuntimeException e) {
+                    synchronized (aoFailures) {
+                        aoFailures.add(e);
+                    }
+                }
+            }, "BlockLoadGenerator-" + i);
+            aoThreads.add(oThread);
+            oThread.start();
+        }
+        for (Thread oThread : aoThreads)
+            oThread.join();
+
+        double dSeconds = (System.nanoTime() - lStart) / 1e9;
+        for (Throwable e : aoFailures)
+            System.err.println("[BlockLoadGenerator] Client failed: " + e);
+
+        System.out.printf("[BlockLoadGenerator] %d clients, pipeline %d, batch %d: %.0f requests/s, %.0f blocks/s.%n",
+                this.iClients, this.iPipeline, this.iBatch, this.oRequests.sum() / dSeconds, this.oBlocks.sum() / dSeconds);
+        System.out.printf("[BlockLoadGenerator] Round trip of a pipeline: n=%d mean=%.1fus p50<=%.1fus p99<=%.1fus max=%.1fus.%n",
+                this.oRoundTrips.getCount(), this.oRoundTrips.getMean() / 1e3, this.oRoundTrips.getPercentile(50) / 1e3,
+                this.oRoundTrips.getPercentile(99) / 1e3, this.oRoundTrips.getMax() / 1e3);
+    }
+
+    public static void main(String[] argv) throws InterruptedException {
+        BlockLoadGenerator oGenerator = new BlockLoadGenerator();
+        try {
+            for (int i = 0; i < argv.length; i++) {
+                if (i + 1 == argv.length)
+                    throw new IllegalArgumentException("Expected an option and its value at: " + argv[i]);
+                String strValue = argv[++i];
+                switch (argv[i - 1]) {
+                    case "--host":     oGenerator.strHost = strValue; break;
+                    case "--port":     oGenerator.iPort = Integer.parseInt(strValue); break;
+                    case "--unix":     oGenerator.strUnix = strValue; break;
+                    case "--clients":  oGenerator.iClients = Integer.parseInt(strValue); break;
+                    case "--duration": oGenerator.dDurationSeconds = Double.parseDouble(strValue); break;
+                    case "--pipeline": oGenerator.iPipeline = Integer.parseInt(strValue); break;
+                    case "--batch":    oGenerator.iBatch = Integer.parseInt(strValue); break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option: " + argv[i - 1]);
+                }
+            }
+            if (oGenerator.iClients < 1 || oGenerator.iPipeline < 1 || oGenerator.iBatch < 1 || oGenerator.iBatch > BlockProtocol.MAX_BATCH)
+                throw new IllegalArgumentException("clients and pipeline must be at least 1, batch between 1 and " + BlockProtocol.MAX_BATCH + ".");
+        }
+        catch (IllegalArgumentException e) {
+            System.err.println("[BlockLoadGenerator] " + e.getMessage());
+            System.err.println("Usage: BlockLoadGenerator [--host <address>] [--port <n>] [--unix <path>] [--clients <n>]\n" +
+                    "                          [--duration <seconds>] [--pipeline <n>] [--batch <n>]");
+            System.exit(1);
+        }
+
+        oGenerator.run();
+    }
+}
+
+// EOF
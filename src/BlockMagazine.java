@@ -0,0 +1,131 @@
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Class BlockMagazine
+ * A small per-thread cache of blocks kept in front of the shared stack, like the
+ * magazines of a slab allocator. A thread that releases a block soon after acquiring
+ * one is then served from its own magazine, without the mutex or the stack.
+ *
+ * Each magazine belongs to a single thread, which holds its lock while it uses it. The lock is
+ * only ever contended by a thread about to wait for a block, which takes it to give the blocks
+ * back to the stack (see BlockManager.reclaimMagazines()). BlockManager refills the magazine
+ * from the stack, and flushes it back, one batch at a time.
+ *
+ * Karim Rhoualem
+ * Student 26603157
+ */
+class BlockMagazine {
+    /**
+     * Held by the owner while it uses the magazine, and by a thread reclaiming its blocks
+     */
+    private final ReentrantLock oLock = new ReentrantLock();
+
+    /**
+     * Cached blocks; the last one put is the first one taken.
+     */
+    private final char[] acBlocks;
+
+    /**
+     * Number of cached blocks
+     */
+    private int iCount = 0;
+
+    /**
+     * @param piCapacity Most blocks the owning thread may hoard.
+     */
+    BlockMagazine(final int piCapacity) {
+        this.acBlocks = new char[piCapacity];
+    }
+
+    void lock() {
+        this.oLock.lock();
+    }
+
+    boolean tryLock() {
+        return this.oLock.tryLock();
+    }
+
+    void unlock() {
+        this.oLock.unlock();
+    }
+
+    /**
+     * Takes a cached block.
+     * @return The block last put in.
+     */
+    char take() {
+        return this.acBlocks[--this.iCount];
+    }
+
+    /**
+     * Caches a block.
+     * @param pcBlock The block.
+     */
+    void put(final char pcBlock) {
+        this.acBlocks[this.iCount++] = pcBlock;
+    }
+
+    /**
+     * Pops up to piMax blocks from the stack straight into the magazine, in one call.
+     * @param poStack The shared stack; the caller holds its mutex if it needs one.
+     * @param piMax Most blocks to take; at most the free room of the magazine.
+     * @return The number of blocks taken.
+     */
+    int refillFrom(final IBlockStack poStack, final int piMax) {
+        int iTaken = poStack.popN(this.acBlocks, this.iCount, Math.min(piMax, this.acBlocks.length - this.iCount));
+        this.iCount += iTaken;
+        return iTaken;
+    }
+
+    /**
+     * Pushes up to piMax of the most recently cached blocks back to the stack, in one call.
+     * @param poStack The shared stack; the caller holds its mutex if it needs one.
+     * @param piMax Most blocks to give back; at most the number cached.
+     * @return The number of blocks given back.
+     */
+    int flushTo(final IBlockStack poStack, final int piMax) {
+        int iCount = Math.min(piMax, this.iCount);
+        int iPut = poStack.pushAll(this.acBlocks, this.iCount - iCount, iCount);
+
+        // Whatever did not fit stays at the bottom of the range; close the gap it leaves
+        System.arraycopy(this.acBlocks, this.iCount - iCount + iPut, this.acBlocks, this.iCount - iCount, iCount - iPut);
+        this.iCount -= iPut;
+        return iPut;
+    }
+
+    /**
+     * Returns a cached block without taking it.
+     * @param piIndex 0 for the block cached first, up to getCount() - 1 for the one take() returns next.
+     * @return The block.
+     */
+    char getAt(final int piIndex) {
+        return this.acBlocks[piIndex];
+    }
+
+    boolean isEmpty() {
+        return this.iCount == 0;
+    }
+
+    boolean isFull() {
+        return this.iCount == this.acBlocks.length;
+    }
+
+    /**
+     * Gets the number of cached blocks.
+     * @return The number of blocks.
+     */
+    int getCount() {
+        return this.iCount;
+    }
+
+    /**
+     * Gets how many blocks a refill or a flush moves at once: half the magazine, so that
+     * a thread alternating acquires and releases does not go back to the stack every time.
+     * @return The batch size.
+     */
+    int getBatchSize() {
+        return Math.max(1, this.acBlocks.length / 2);
+    }
+}
+
+// EOF
@@ -1,5 +1,13 @@
 import common.*;
 
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
 /**
  * Class BlockManager
  * Implements character block "manager" and does twists with threads.
@@ -18,164 +26,1012 @@ public class BlockManager
     public static final String ANSI_YELLOW = "\u001B[33m";
     public static final String ANSI_PURPLE = "\u001B[35m";
 
-    /**
-     * The stack itself
-     */
-    private static BlockStack soStack = new BlockStack();
+    /**
+     * Workload settings, from the command line (see BlockManagerConfig.USAGE)
+     */
+    private static BlockManagerConfig soConfig = new BlockManagerConfig();
+
+    /**
+     * The stack itself. Run with --stack lockfree (or -Dblockmanager.stack=lockfree) to use the lock-free variant,
+     * --stack sharded for per-core shards, or --stack mapped to keep it in a file across runs.
+     */
+    private static IBlockStack soStack = newStack(soConfig);
+
+    /**
+     * Journal of the pops and pushes of the workers, with --journal; null otherwise.
+     */
+    private static BlockJournal soJournal = null;
+
+    /**
+     * Number of steps they take
+     */
+    private static int siThreadSteps = soConfig.iThreadSteps;
+
+
+    /**
+     * For atomicity
+     */
+    private static Semaphore mutex = new Semaphore(1);
+
+    // -------------------------------- For synchronization --------------------------------------
+    /**
+     * Phases all the workers go through together, one party each.
+     *
+     * PHASE_I_DONE completes once every worker has finished its phase I. The AcquireBlock threads wait
+     * for it before touching the stack; the ReleaseBlock and CharStackProber threads only arrive, do their
+     * work, and wait for it before their phase II. So no phase II begins before all the phase I's are done,
+     * and the phase II's are then logged in increasing TID order (see phase2InTurn()).
+     * PHASE_II_DONE completes once every worker has finished its phase II.
+     */
+    private static final int PHASE_I_DONE = 0;
+    private static final int PHASE_II_DONE = 1;
+    private static CombiningPhaser soPhases = newPhaser();
+
+    /**
+     * Counting semaphores over the stack contents: soNotEmpty holds one permit per block on the stack
+     * and soNotFull one per free slot. A taker reserves a block (or a slot) before entering the critical
+     * section and signals the other semaphore once done, so that a waiting thread is woken exactly when
+     * there is something for it, rather than retrying. Permits are only handed out after the stack
+     * has changed, so a reservation always finds its block (or slot) there.
+     */
+    private static Semaphore soNotEmpty = new Semaphore(soStack.getITop() + 1, true);
+    private static Semaphore soNotFull = new Semaphore(soStack.getISize() - soStack.getITop() - 1, true);
+
+    /**
+     * Per-thread block caches used by acquire() and release() when --magazine is set, and all those
+     * handed out so far, including those of threads that have ended, so that their blocks can be reclaimed.
+     */
+    private static Queue<BlockMagazine> soAllMagazines = new ConcurrentLinkedQueue<>();
+    private static ThreadLocal<BlockMagazine> soMagazines = newMagazines();
+
+    /**
+     * Threads of acquire() that found no block and are about to wait, or waiting, for one on soNotEmpty.
+     * A thread counts itself in before it reclaims the magazines, and one done with its magazine checks
+     * for them after letting go of it, so that no block stays cached while one of them waits.
+     */
+    private static final AtomicInteger soBlockWaiters = new AtomicInteger();
+    // ^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^ For synchronization ^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^
+
+    // -------------------------------- For the run statistics -----------------------------------
+    /**
+     * Critical sections completed by each kind of thread.
+     */
+    private static LongAdder soAcquireOps = new LongAdder();
+    private static LongAdder soReleaseOps = new LongAdder();
+    private static LongAdder soProbeOps = new LongAdder();
+
+    /**
+     * When the workers must stop in a timed run (System.nanoTime()), and how long the last run took.
+     */
+    private static long slDeadline = 0;
+    private static long slRunNanos = 0;
+
+    /**
+     * Magazine hits and trips to the stack, and timed acquires and releases that gave up (see common.Metrics).
+     */
+    private static final Metrics.Counter soMagazineHits = Metrics.counter("magazine.hit");
+    private static final Metrics.Counter soMagazineRefills = Metrics.counter("magazine.refill");
+    private static final Metrics.Counter soMagazineFlushes = Metrics.counter("magazine.flush");
+    private static final Metrics.Counter soMagazineReclaims = Metrics.counter("magazine.reclaim");
+    private static final Metrics.Counter soAcquireTimeouts = Metrics.counter("acquire.timeout");
+    private static final Metrics.Counter soReleaseTimeouts = Metrics.counter("release.timeout");
+    // ^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^ For the run statistics ^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^
+
+
+    // The main()
+    public static void main(String[] argv)
+    {
+        try
+        {
+            try
+            {
+                soConfig = BlockManagerConfig.parse(argv);
+            }
+            catch(IllegalArgumentException e)
+            {
+                System.err.println("[Main] " + e.getMessage());
+                System.err.println(BlockManagerConfig.USAGE);
+                System.exit(1);
+            }
+            try
+            {
+                reset();
+            }
+            catch(IllegalArgumentException | IllegalStateException | UncheckedIOException e)
+            {
+                // The mapped stack's file does not fit the configuration, or could not be opened
+                System.err.println("[Main] " + e.getMessage());
+                System.exit(1);
+            }
+
+            // Some initial stats...
+            AsyncLogger.println("[Main] Main thread starts executing.");
+            AsyncLogger.println("[Main] Initial value of top = " + soStack.getITop() + ".");
+            if (!soStack.isEmpty())
+            {
+                AsyncLogger.println("[Main] Initial value of stack top = " + soStack.pick() + ".");
+            }
+            AsyncLogger.println("[Main] Main thread will now fork several threads.");
+
+            runScenario();
+
+            // Some final stats after all the child threads terminated...
+            AsyncLogger.println("[Main] System terminates normally.");
+            AsyncLogger.println("[Main] Final value of top = " + soStack.getITop() + ".");
+            if (!soStack.isEmpty())
+            {
+                AsyncLogger.println("[Main] Final value of stack top = " + soStack.pick() + ".");
+            }
+            if (soStack.getITop() > 0)
+            {
+                AsyncLogger.println("[Main] Final value of stack top-1 = " + soStack.getAt(soStack.getITop() - 1) + ".");
+            }
+            AsyncLogger.println("[Main] Stack access count = " + soStack.getStackAccessCounter());
+            if (soStack instanceof ShardedBlockStack)
+            {
+                ShardedBlockStack oSharded = (ShardedBlockStack) soStack;
+                AsyncLogger.println("[Main] Blocks moved between " + oSharded.getShardCount() + " shards = " + oSharded.getStealCount() + ".");
+            }
+            AsyncLogger.print("[Main] Final stack: ");
+
+            /*
+             * Prints the final stack contents to confirm functionality of the program.
+             * [s] - means ordinary slot of a stack
+             * (s) - current top of the stack
+             */
+            for(int s = 0; s < soStack.getISize(); s++) {
+                AsyncLogger.print
+                    (
+                            ANSI_YELLOW + (s == BlockManager.soStack.getITop() ? "(" : "[") +
+                                    BlockManager.soStack.getAt(s) +
+                                    (s == BlockManager.soStack.getITop() ? ")" : "]") + ANSI_RESET
+                    );
+            }
+            AsyncLogger.println(ANSI_YELLOW + "." + ANSI_RESET);
+
+            if (soJournal != null)
+            {
+                soJournal.close();
+                AsyncLogger.println("[Main] Journal: " + soJournal.getRecordCount() + " records in " + soJournal.getBatchCount() +
+                        " writes and " + soJournal.getForceCount() + " forces, " + soJournal.getSegmentCount() + " segment(s).");
+            }
+            if (soStack instanceof MappedBlockStack)
+            {
+                ((MappedBlockStack) soStack).force();
+                AsyncLogger.println("[Main] Stack saved to " + soConfig.strStackFile + ".");
+            }
+
+            reportThroughput();
+
+            if (Metrics.ENABLED)
+                AsyncLogger.println(Metrics.report());
+
+            // Let the logger write out whatever is still buffered
+            AsyncLogger.flush();
+            System.exit(0);
+        }
+        catch(InterruptedException e)
+        {
+            AsyncLogger.flush();
+            System.err.println("[Main] Caught InterruptedException (internal error): " + e.getMessage());
+            e.printStackTrace(System.err);
+        }
+        catch(UnsupportedOperationException e)
+        {
+            // E.g. virtual threads asked for on an older JVM
+            AsyncLogger.flush();
+            System.err.println("[Main] " + e.getMessage());
+        }
+        catch(Exception e)
+        {
+            reportException(e);
+        }
+        finally
+        {
+            System.exit(1);
+        }
+    } // main()
+
+
+    /**
+     * Forks all the AcquireBlock, ReleaseBlock and CharStackProber threads over the current
+     * stack and waits for them to terminate.
+     * Used by main() and by the benchmarks, which call reset() before each run.
+     */
+    static void runScenario() throws InterruptedException
+    {
+        /*
+         * The birth of threads, each a party of the phaser
+         */
+        BaseTask.setPhaser(soPhases);
+        AcquireBlock aAcquirers[] = new AcquireBlock[soConfig.iAcquirers];
+        for(int i = 0; i < aAcquirers.length; i++)
+            aAcquirers[i] = new AcquireBlock();
+
+        AsyncLogger.println("[Main] " + aAcquirers.length + " AcquireBlock threads have been created.");
+
+        ReleaseBlock aReleasers[] = new ReleaseBlock[soConfig.iReleasers];
+        for(int i = 0; i < aReleasers.length; i++)
+            aReleasers[i] = new ReleaseBlock();
+
+        AsyncLogger.println("[Main] " + aReleasers.length + " ReleaseBlock threads have been created.");
+
+        // Create an array object first
+        CharStackProber	aStackProbers[] = new CharStackProber[soConfig.iProbers];
+
+        // Then the CharStackProber objects
+        for(int i = 0; i < aStackProbers.length; i++)
+            aStackProbers[i] = new CharStackProber();
+
+        AsyncLogger.println("[Main] " + aStackProbers.length + " CharStackProber threads have been created.");
+
+        TaskRunner oRunner = new TaskRunner(soConfig.eMode, soConfig.iPoolSize);
+
+        long lStart = System.nanoTime();
+        slDeadline = lStart + (long) (soConfig.dDurationSeconds * 1e9);
+
+        /*
+         * Twist 'em all, taking turns between the kinds of threads
+         */
+        int iMost = Math.max(aAcquirers.length, Math.max(aReleasers.length, aStackProbers.length));
+        for(int i = 0; i < iMost; i++) {
+            if (i < aAcquirers.length)
+                oRunner.start(aAcquirers[i]);
+            if (i < aStackProbers.length)
+                oRunner.start(aStackProbers[i]);
+            if (i < aReleasers.length)
+                oRunner.start(aReleasers[i]);
+        }
+
+        AsyncLogger.println("[Main] All the threads are ready.");
+
+        /*
+         * Wait by here for all forked threads to die
+         */
+        oRunner.joinAll();
+
+        slRunNanos = System.nanoTime() - lStart;
+    }
+
+    /**
+     * Puts the stack, the semaphores, the statistics and the TIDs back in their initial state
+     * (as set by the current configuration) so that runScenario() can be run again in the same JVM.
+     */
+    static void reset()
+    {
+        // The previous journal goes out in full before the stack may be recovered from it. One that
+        // failed reports it here, but is dropped all the same so that the next configuration can start.
+        BlockJournal oJournal = soJournal;
+        soJournal = null;
+        if (oJournal != null)
+            oJournal.close();
+        soStack = newStack(soConfig);
+        soJournal = (soConfig.strJournal == null) ? null :
+                new BlockJournal(Paths.get(soConfig.strJournal), soConfig.eDurability, soConfig.iJournalSegmentKiB * 1024L, soStack);
+        siThreadSteps = soConfig.iThreadSteps;
+        mutex = new Semaphore(1);
+        soPhases = newPhaser();
+        soNotEmpty = new Semaphore(soStack.getITop() + 1, true);
+        soNotFull = new Semaphore(soStack.getISize() - soStack.getITop() - 1, true);
+        soAllMagazines = new ConcurrentLinkedQueue<>();
+        soMagazines = newMagazines();
+        registerMetrics();
+        soAcquireOps = new LongAdder();
+        soReleaseOps = new LongAdder();
+        soProbeOps = new LongAdder();
+        BaseTask.resetTIDs();
+        BaseTask.setInitialTurn(1);
+    }
+
+    /**
+     * Takes the top block off the stack, waiting for one if the stack is empty.
+     * With magazines, takes it from the calling thread's magazine, refilled from the stack when empty.
+     * @return The block.
+     */
+    static char acquire()
+    {
+        if (soConfig.iMagazine > 0)
+        {
+            BlockMagazine oMagazine = soMagazines.get();
+            char cBlock = takeCached(oMagazine);
+            if (cBlock != IBlockStack.EMPTY_SLOT)
+                return cBlock;
+
+            reserveBlock(oMagazine, false, 0);
+            return refill(oMagazine);
+        }
+
+        soNotEmpty.Wait("(NotEmpty) BlockManager", 0);
+        return popReserved();
+    }
+
+    /**
+     * Takes the top block off the stack, waiting at most the given time for one if the stack is empty.
+     * The time covers the wait for the mutex too: a request still waiting for it at the end is shed,
+     * rather than left to pile up behind the critical section.
+     * With magazines, only the wait for a block counts.
+     * @param plTimeout How long to wait at most.
+     * @param poUnit Unit of the timeout.
+     * @return The block, or IBlockStack.EMPTY_SLOT if none came in time.
+     */
+    static char acquire(long plTimeout, TimeUnit poUnit)
+    {
+        long lDeadline = Semaphore.deadline(plTimeout, poUnit);
+
+        if (soConfig.iMagazine > 0)
+        {
+            BlockMagazine oMagazine = soMagazines.get();
+            char cBlock = takeCached(oMagazine);
+            if (cBlock != IBlockStack.EMPTY_SLOT)
+                return cBlock;
+
+            if (!reserveBlock(oMagazine, true, lDeadline))
+            {
+                soAcquireTimeouts.increment();
+                return IBlockStack.EMPTY_SLOT;
+            }
+            return refill(oMagazine);
+        }
+
+        char cBlock = soNotEmpty.WaitUntil(lDeadline) ? popReserved(lDeadline) : IBlockStack.EMPTY_SLOT;
+        if (cBlock == IBlockStack.EMPTY_SLOT)
+            soAcquireTimeouts.increment();
+
+        return cBlock;
+    }
+
+    /**
+     * Puts a block back on the stack, waiting for a free slot if the stack is full.
+     * With magazines, puts it in the calling thread's magazine, flushed to the stack when full
+     * or when other threads are waiting for blocks.
+     * @param pcBlock The block.
+     */
+    static void release(char pcBlock)
+    {
+        if (soConfig.iMagazine > 0)
+        {
+            BlockMagazine oMagazine = soMagazines.get();
+            if (!putCached(oMagazine, pcBlock))
+            {
+                soNotFull.Wait("(NotFull) BlockManager", 0);
+                giveBack(oMagazine, pcBlock);
+            }
+            return;
+        }
+
+        soNotFull.Wait("(NotFull) BlockManager", 0);
+        pushReserved(pcBlock);
+    }
+
+    /**
+     * Puts a block back on the stack, waiting at most the given time for a free slot if the stack is full.
+     * As with acquire(long, TimeUnit), the time covers the wait for the mutex too, except with magazines.
+     * @param pcBlock The block.
+     * @param plTimeout How long to wait at most.
+     * @param poUnit Unit of the timeout.
+     * @return True if the block was pushed; false if the stack stayed full.
+     */
+    static boolean release(char pcBlock, long plTimeout, TimeUnit poUnit)
+    {
+        long lDeadline = Semaphore.deadline(plTimeout, poUnit);
+
+        if (soConfig.iMagazine > 0)
+        {
+            BlockMagazine oMagazine = soMagazines.get();
+            if (!putCached(oMagazine, pcBlock))
+            {
+                if (!soNotFull.WaitUntil(lDeadline))
+                {
+                    soReleaseTimeouts.increment();
+                    return false;
+                }
+                giveBack(oMagazine, pcBlock);
+            }
+            return true;
+        }
+
+        boolean bPushed = soNotFull.WaitUntil(lDeadline) && pushReserved(pcBlock, lDeadline);
+        if (!bPushed)
+            soReleaseTimeouts.increment();
+
+        return bPushed;
+    }
+
+    /**
+     * Gives the blocks cached by the calling thread back to the stack, as far as there is room for them.
+     * A thread that used acquire() and release() with magazines should call this before it ends: its
+     * blocks otherwise stay out of the stack until another thread has to wait for one and reclaims them.
+     * @return Number of blocks still cached (0 unless the stack filled up).
+     */
+    static int flushMagazine()
+    {
+        BlockMagazine oMagazine = soMagazines.get();
+        oMagazine.lock();
+        try
+        {
+            drain(oMagazine);
+            return oMagazine.getCount();
+        }
+        finally
+        {
+            oMagazine.unlock();
+        }
+    }
+
+    /**
+     * Takes up to piMax blocks off the stack in one critical section, without waiting: only those there right now.
+     * Does not go through the magazines. Used by BlockServer for its remote clients. The pops are journaled
+     * like the workers', and are as durable as --durability asks by the time this returns.
+     *
+     * @param pacBuffer Receives the blocks, top first.
+     * @param piOffset Where the first block goes in pacBuffer.
+     * @param piMax Most blocks to take.
+     * @return Number of blocks taken.
+     */
+    static int tryAcquire(char[] pacBuffer, int piOffset, int piMax)
+    {
+        int iReserved = soNotEmpty.tryWaitUpTo(piMax);
+        if (iReserved == 0)
+            return 0;
+
+        int iPopped = 0;
+        try
+        {
+            long lJournaled;
+            lockStack("BlockManager", 0);
+            try
+            {
+                iPopped = soStack.popN(pacBuffer, piOffset, iReserved);
+                lJournaled = journalPops(0, pacBuffer, piOffset, iPopped);
+            }
+            finally
+            {
+                unlockStack("BlockManager", 0);
+            }
+
+            syncJournal(lJournaled);
+            return iPopped;
+        }
+        finally
+        {
+            // Each pop frees a slot, even if the journal failed; a reservation that found nothing is handed back.
+            soNotFull.Signal("(NotFull) BlockManager", 0, iPopped);
+            soNotEmpty.Signal("(NotEmpty) BlockManager", 0, iReserved - iPopped);
+        }
+    }
+
+    /**
+     * Puts up to piCount blocks back on the stack in one critical section, without waiting: only into the slots free right now.
+     * Does not go through the magazines. Used by BlockServer for its remote clients. The pushes are journaled
+     * like the workers', and are as durable as --durability asks by the time this returns.
+     *
+     * @param pacBlocks The blocks, in push order.
+     * @param piOffset Position of the first block in pacBlocks.
+     * @param piCount Number of blocks.
+     * @return Number of blocks pushed; the first ones of the range.
+     */
+    static int tryRelease(char[] pacBlocks, int piOffset, int piCount)
+    {
+        int iReserved = soNotFull.tryWaitUpTo(piCount);
+        if (iReserved == 0)
+            return 0;
+
+        int iPushed = 0;
+        try
+        {
+            long lJournaled;
+            lockStack("BlockManager", 0);
+            try
+            {
+                iPushed = soStack.pushAll(pacBlocks, piOffset, iReserved);
+                lJournaled = journalPushes(0, pacBlocks, piOffset, iPushed);
+            }
+            finally
+            {
+                unlockStack("BlockManager", 0);
+            }
+
+            syncJournal(lJournaled);
+            return iPushed;
+        }
+        finally
+        {
+            // Each push is a block to take, even if the journal failed; the slots left over are handed back.
+            soNotEmpty.Signal("(NotEmpty) BlockManager", 0, iPushed);
+            soNotFull.Signal("(NotFull) BlockManager", 0, iReserved - iPushed);
+        }
+    }
+
+    /**
+     * Copies the stack as it was at one instant, without the mutex.
+     * @param pacBuffer Receives the slots; at least getStackSize() long.
+     * @return The top position of the copied state.
+     */
+    static int snapshot(char[] pacBuffer)
+    {
+        return soStack.snapshot(pacBuffer);
+    }
+
+    /**
+     * Brings a view of the stack up to date with the changes since it was last refreshed, without the mutex.
+     * @param poView The view, of getStackSize() slots.
+     * @return True if the view changed.
+     */
+    static boolean refresh(StackView poView)
+    {
+        return soStack.refresh(poView);
+    }
+
+    /**
+     * Gets the size of the stack.
+     * @return The number of slots.
+     */
+    static int getStackSize()
+    {
+        return soStack.getISize();
+    }
+
+    /**
+     * Replaces the configuration and puts everything back in its initial state for it, for programs
+     * that use the stack without running the scenario (e.g. BlockServer).
+     * @param poConfig The configuration.
+     */
+    static void configure(BlockManagerConfig poConfig)
+    {
+        soConfig = poConfig;
+        reset();
+    }
+
+    /**
+     * Takes a block from the calling thread's magazine, if it has one.
+     * @return The block, or IBlockStack.EMPTY_SLOT if the magazine is empty.
+     */
+    private static char takeCached(BlockMagazine poMagazine)
+    {
+        poMagazine.lock();
+        char cBlock = IBlockStack.EMPTY_SLOT;
+        if (!poMagazine.isEmpty())
+        {
+            soMagazineHits.increment();
+            cBlock = poMagazine.take();
+        }
+        unlockMagazine(poMagazine);
+        return cBlock;
+    }
+
+    /**
+     * Caches a released block in the calling thread's magazine, if it has room and no thread is waiting for blocks.
+     * @return True if the block was cached; false if it must go to the stack.
+     */
+    private static boolean putCached(BlockMagazine poMagazine, char pcBlock)
+    {
+        poMagazine.lock();
+        boolean bCached = !poMagazine.isFull() && !blocksWanted();
+        if (bCached)
+        {
+            soMagazineHits.increment();
+            poMagazine.put(pcBlock);
+        }
+        unlockMagazine(poMagazine);
+        return bCached;
+    }
+
+    /**
+     * Releases a block through the stack rather than the magazine, along with a batch of the magazine's blocks:
+     * either the magazine is full, or other threads are waiting for blocks and must not starve while this one hoards.
+     * The caller has already reserved one slot on soNotFull.
+     */
+    private static void giveBack(BlockMagazine poMagazine, char pcBlock)
+    {
+        poMagazine.lock();
+        try
+        {
+            if (poMagazine.isFull())
+            {
+                flush(poMagazine, 1);
+                poMagazine.put(pcBlock);
+            }
+            else
+            {
+                poMagazine.put(pcBlock);
+                flush(poMagazine, 1);
+            }
+        }
+        finally
+        {
+            unlockMagazine(poMagazine);
+        }
+    }
+
+    /**
+     * Reserves a block on soNotEmpty for a thread whose magazine is empty. If there is none right away,
+     * the thread first counts itself as a waiter and gives the blocks of the other magazines back to the stack,
+     * so that it does not wait for blocks that are only cached.
+     * @param pbTimed False to wait as long as it takes.
+     * @param plDeadline When to give up if pbTimed (see Semaphore.deadline()).
+     * @return True if a block was reserved; false if the deadline passed first.
+     */
+    private static boolean reserveBlock(BlockMagazine poOwn, boolean pbTimed, long plDeadline)
+    {
+        if (soNotEmpty.tryWait())
+            return true;
+
+        soBlockWaiters.incrementAndGet();
+        try
+        {
+            reclaimMagazines(poOwn);
+            if (pbTimed)
+                return soNotEmpty.WaitUntil(plDeadline);
+
+            soNotEmpty.Wait("(NotEmpty) BlockManager", 0);
+            return true;
+        }
+        finally
+        {
+            soBlockWaiters.decrementAndGet();
+        }
+    }
+
+    /**
+     * Gives the blocks cached in the other threads' magazines back to the stack, as far as there is room for them.
+     * A magazine its owner is using is skipped: the owner finds the waiter once it lets go (see unlockMagazine()).
+     */
+    private static void reclaimMagazines(BlockMagazine poOwn)
+    {
+        for (BlockMagazine oMagazine : soAllMagazines)
+        {
+            if (oMagazine == poOwn || !oMagazine.tryLock())
+                continue;
+
+            try
+            {
+                if (!oMagazine.isEmpty())
+                {
+                    soMagazineReclaims.increment();
+                    drain(oMagazine);
+                }
+            }
+            finally
+            {
+                oMagazine.unlock();
+            }
+        }
+    }
+
+    /**
+     * Lets go of the calling thread's magazine, then gives its blocks back to the stack if a thread is waiting for one.
+     * The check comes after the unlock: a waiter that counted itself in meanwhile either found the magazine free,
+     * and reclaimed what was in it, or is seen here.
+     */
+    private static void unlockMagazine(BlockMagazine poMagazine)
+    {
+        poMagazine.unlock();
+        if (!blocksWanted() || !poMagazine.tryLock())
+            return;
+
+        // Otherwise a reclaiming thread holds it, and drains it itself
+        try
+        {
+            drain(poMagazine);
+        }
+        finally
+        {
+            poMagazine.unlock();
+        }
+    }
+
+    /**
+     * Tells whether some thread is waiting for a block: one of acquire(), or any other one parked on soNotEmpty.
+     */
+    private static boolean blocksWanted()
+    {
+        return soBlockWaiters.get() > 0 || soNotEmpty.hasWaiters();
+    }
+
+    /**
+     * Gives all the blocks of a magazine back to the stack, as far as there is room for them right now.
+     * The caller holds the magazine's lock.
+     */
+    private static void drain(BlockMagazine poMagazine)
+    {
+        while (!poMagazine.isEmpty() && soNotFull.tryWait())
+            flush(poMagazine, 1);
+    }
+
+    /**
+     * Fills the calling thread's empty magazine with up to a batch of blocks in one critical section, and takes one of them.
+     * The caller has already reserved one block on soNotEmpty; more are taken only if they are there now.
+     * @return The block taken.
+     */
+    private static char refill(BlockMagazine poMagazine)
+    {
+        int iBatch = 1 + soNotEmpty.tryWaitUpTo(poMagazine.getBatchSize() - 1);
+
+        int iTaken = 0;
+
+        poMagazine.lock();
+        try
+        {
+            try
+            {
+                soMagazineRefills.increment();
+                long lJournaled = -1;
+                lockStack("BlockManager", 0);
+                try
+                {
+                    int iCached = poMagazine.getCount();
+                    iTaken = poMagazine.refillFrom(soStack, iBatch);
+                    for (int i = 0; i < iTaken; i++)
+                        lJournaled = journalPop(0, poMagazine.getAt(iCached + i), soStack.getITop() + iTaken - i);
+                }
+                finally
+                {
+                    unlockStack("BlockManager", 0);
+                }
+
+                syncJournal(lJournaled);
+            }
+            finally
+            {
+                // The slots of the blocks taken are free, even if the journal failed; reservations that found nothing go back.
+                soNotFull.Signal("(NotFull) BlockManager", 0, iTaken);
+                soNotEmpty.Signal("(NotEmpty) BlockManager", 0, iBatch - iTaken);
+            }
+
+            return poMagazine.take();
+        }
+        finally
+        {
+            // A thread that started waiting meanwhile gets the rest of the batch back, into the slots just freed
+            unlockMagazine(poMagazine);
+        }
+    }
+
+    /**
+     * Moves up to a batch of blocks from a magazine to the stack in one critical section.
+     * The caller has already reserved piReserved slots on soNotFull; more are taken only if they are free now.
+     */
+    private static void flush(BlockMagazine poMagazine, int piReserved)
+    {
+        int iMost = Math.min(poMagazine.getBatchSize(), poMagazine.getCount());
+        int iBatch = piReserved + soNotFull.tryWaitUpTo(iMost - piReserved);
+
+        int iPut = 0;
+        try
+        {
+            soMagazineFlushes.increment();
+            long lJournaled;
+            lockStack("BlockManager", 0);
+            try
+            {
+                iPut = poMagazine.flushTo(soStack, iBatch);
+                // The magazine closes up behind what it gave back, so the blocks are read back from the stack's slots.
+                lJournaled = (soJournal == null) ? -1 :
+                        journalPushes(0, soStack.getAccessCounterStack(), soStack.getITop() - iPut + 1, iPut);
+            }
+            finally
+            {
+                unlockStack("BlockManager", 0);
+            }
+
+            syncJournal(lJournaled);
+        }
+        finally
+        {
+            // Each block put back is one to take, even if the journal failed; the slots left over are handed back.
+            soNotEmpty.Signal("(NotEmpty) BlockManager", 0, iPut);
+            soNotFull.Signal("(NotFull) BlockManager", 0, iBatch - iPut);
+        }
+    }
+
+    private static ThreadLocal<BlockMagazine> newMagazines()
+    {
+        Queue<BlockMagazine> oAll = soAllMagazines;
+        return ThreadLocal.withInitial(() ->
+        {
+            BlockMagazine oMagazine = new BlockMagazine(soConfig.iMagazine);
+            oAll.add(oMagazine);
+            return oMagazine;
+        });
+    }
 
     /**
-     * Number of threads dumping stack
+     * Pops a block reserved on soNotEmpty and frees its slot on soNotFull.
      */
-    private static final int NUM_PROBERS = 4;
+    private static char popReserved()
+    {
+        lockStack("BlockManager", 0);
+        return popLocked();
+    }
 
     /**
-     * Number of steps they take
+     * Like popReserved(), unless the mutex cannot be had by the deadline.
+     * The reservation is then given back for a thread that still has time.
+     * @return The block, or IBlockStack.EMPTY_SLOT if the deadline passed first.
      */
-    private static int siThreadSteps = 5;
+    private static char popReserved(long plDeadline)
+    {
+        if (!lockStackUntil(plDeadline))
+        {
+            soNotEmpty.Signal("(NotEmpty) BlockManager", 0);
+            return IBlockStack.EMPTY_SLOT;
+        }
 
+        return popLocked();
+    }
 
     /**
-     * For atomicity
+     * Pops a block reserved on soNotEmpty, in the critical section the caller has entered, and leaves it.
+     * Whatever fails, the mutex is left and the reservation ends up on one semaphore or the other:
+     * the slot on soNotFull once the block is off the stack (journaled or not), else the block back on soNotEmpty.
      */
-    private static Semaphore mutex = new Semaphore(1);
+    private static char popLocked()
+    {
+        char cBlock = IBlockStack.EMPTY_SLOT;
+        try
+        {
+            long lJournaled;
+            try
+            {
+                cBlock = soStack.pop();
+                lJournaled = journalPop(0, cBlock, soStack.getITop() + 1);
+            }
+            finally
+            {
+                unlockStack("BlockManager", 0);
+            }
+
+            syncJournal(lJournaled);
+            return cBlock;
+        }
+        finally
+        {
+            if (cBlock != IBlockStack.EMPTY_SLOT)
+                soNotFull.Signal("(NotFull) BlockManager", 0);
+            else
+                soNotEmpty.Signal("(NotEmpty) BlockManager", 0);
+        }
+    }
 
-    // -------------------------------- For synchronization --------------------------------------
     /**
-     * s1 is to make sure phase I for all is done before any phase II begins
-     *
-     * The AcquireBlock class is waiting on s1. This means that the ReleaseBlock (3 threads created)
-     * and CharStackProber (4 threads created) classes will signal s1 7 times, bringing the s1 value
-     * from -3 to 4. Then, the AcquireBlock (3 threads created) class will be able to pass through
-     * each wait statement and proceed to the critical section and phase 2. This is what allows us
-     * to control the completion of phase 1 before any phase 2 begins.
+     * Pushes into a slot reserved on soNotFull and announces the block on soNotEmpty.
      */
-    private static Semaphore s1 = new Semaphore(-3);
+    private static void pushReserved(char pcBlock)
+    {
+        lockStack("BlockManager", 0);
+        pushLocked(pcBlock);
+    }
 
     /**
-     * s2 is for use in conjunction with Thread.turnTestAndSet() for phase II proceed
-     * in the thread creation order
-     *
-     * The s2 value is set to 0 and only signals for the first time in the AcquireBlock class.
-     * In the ReleaseBlock and CharStackProber classes, they initially wait and THEN signal s2.
-     * This allows us to synchronize with the semaphore s1 and ensure that all the phase 1's
-     * finish before any of the the phase 2's begin. this also serves as the starting point for
-     * controlling the ordered execution of the phase 2's in increasing thread ID order.
+     * Like pushReserved(char), unless the mutex cannot be had by the deadline.
+     * The reservation is then given back for a thread that still has time.
+     * @return True if the block was pushed; false if the deadline passed first.
      */
-    private static Semaphore s2 = new Semaphore(0);
-    // ^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^ For synchronization ^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^
+    private static boolean pushReserved(char pcBlock, long plDeadline)
+    {
+        if (!lockStackUntil(plDeadline))
+        {
+            soNotFull.Signal("(NotFull) BlockManager", 0);
+            return false;
+        }
 
+        pushLocked(pcBlock);
+        return true;
+    }
 
-    // The main()
-    public static void main(String[] argv)
+    /**
+     * Pushes into a slot reserved on soNotFull, in the critical section the caller has entered, and leaves it.
+     * As with popLocked(), the mutex is always left, and the block is announced on soNotEmpty once it is on
+     * the stack (journaled or not), else the slot is handed back on soNotFull.
+     */
+    private static void pushLocked(char pcBlock)
     {
+        boolean bPushed = false;
         try
         {
-            // Some initial stats...
-            System.out.println("[Main] Main thread starts executing.");
-            System.out.println("[Main] Initial value of top = " + soStack.getITop() + ".");
-            System.out.println("[Main] Initial value of stack top = " + soStack.pick() + ".");
-            System.out.println("[Main] Main thread will now fork several threads.");
-
-            /*
-             * The birth of threads
-             */
-            AcquireBlock ab1 = new AcquireBlock();
-            AcquireBlock ab2 = new AcquireBlock();
-            AcquireBlock ab3 = new AcquireBlock();
-
-            System.out.println("[Main] Three AcquireBlock threads have been created.");
-
-            ReleaseBlock rb1 = new ReleaseBlock();
-            ReleaseBlock rb2 = new ReleaseBlock();
-            ReleaseBlock rb3 = new ReleaseBlock();
-
-            System.out.println("[Main] Three ReleaseBlock threads have been created.");
-
-            // Create an array object first
-            CharStackProber	aStackProbers[] = new CharStackProber[NUM_PROBERS];
+            long lJournaled;
+            try
+            {
+                soStack.push(pcBlock);
+                bPushed = true;
+                lJournaled = journalPush(0, pcBlock, soStack.getITop());
+            }
+            finally
+            {
+                unlockStack("BlockManager", 0);
+            }
 
-            // Then the CharStackProber objects
-            for(int i = 0; i < NUM_PROBERS; i++)
-                aStackProbers[i] = new CharStackProber();
+            syncJournal(lJournaled);
+        }
+        finally
+        {
+            if (bPushed)
+                soNotEmpty.Signal("(NotEmpty) BlockManager", 0);
+            else
+                soNotFull.Signal("(NotFull) BlockManager", 0);
+        }
+    }
 
-            System.out.println("[Main] " + NUM_PROBERS + " CharStackProber threads have been created.");
+    /**
+     * Names the semaphores for the wait and hold timings of common.Metrics (a no-op when metrics are off).
+     */
+    private static void registerMetrics()
+    {
+        Metrics.register("mutex", mutex);
+        // Blocks and slots are taken by one thread and given back by another: there is no hold to time
+        Metrics.register("notEmpty", soNotEmpty, false);
+        Metrics.register("notFull", soNotFull, false);
+    }
 
-            /*
-             * Twist 'em all
-             */
-            ab1.start();
-            aStackProbers[0].start();
-            rb1.start();
-            aStackProbers[1].start();
-            ab2.start();
-            aStackProbers[2].start();
-            rb2.start();
-            ab3.start();
-            aStackProbers[3].start();
-            rb3.start();
-
-            System.out.println("[Main] All the threads are ready.");
+    /**
+     * Runs a worker's phase II: right away, with its output logged in TID order (--phase2 ordered),
+     * or once its turn comes (serial).
+     */
+    private static void phase2InTurn(BaseTask poTask)
+    {
+        if (soConfig.bOrderedPhase2)
+            poTask.phase2InOrder();
+        else
+            poTask.turnWaitAndSet(true);
+    }
 
-            /*
-             * Wait by here for all forked threads to die
-             */
-            ab1.join();
-            ab2.join();
-            ab3.join();
+    /**
+     * Tells a worker whether to go through its critical section once more.
+     * @param piDone Number of critical sections the worker has already completed.
+     * @return True while the worker has operations left, or until the deadline in a timed run.
+     */
+    private static boolean hasMoreWork(int piDone)
+    {
+        if (soConfig.dDurationSeconds > 0)
+            return piDone == 0 || System.nanoTime() - slDeadline < 0;
 
-            rb1.join();
-            rb2.join();
-            rb3.join();
+        return piDone < soConfig.iOpsPerActor;
+    }
 
-            for(int i = 0; i < NUM_PROBERS; i++) {
-                aStackProbers[i].join();
-            }
+    /**
+     * Makes the phaser for the current configuration's workers.
+     */
+    private static CombiningPhaser newPhaser()
+    {
+        return new CombiningPhaser(soConfig.getThreadCount(), PHASE_II_DONE + 1, BlockManager::phaseDone);
+    }
 
-            // Some final stats after all the child threads terminated...
-            System.out.println("[Main] System terminates normally.");
-            System.out.println("[Main] Final value of top = " + soStack.getITop() + ".");
-            System.out.println("[Main] Final value of stack top = " + soStack.pick() + ".");
-            System.out.println("[Main] Final value of stack top-1 = " + soStack.getAt(soStack.getITop() - 1) + ".");
-            System.out.println("[Main] Stack access count = " + soStack.getStackAccessCounter());
-            System.out.print("[Main] Final stack: ");
+    /**
+     * Run by the last worker to arrive in a phase: says on the console that all the workers are through it.
+     */
+    private static void phaseDone(int piPhase)
+    {
+        AsyncLogger.println(ANSI_GREEN + "---------------------------------------------------------------------------" + ANSI_RESET);
+        AsyncLogger.println(ANSI_GREEN + "[AcquireBlock] ALL THREADS HAVE COMPLETED PHASE " + (piPhase == PHASE_I_DONE ? "I." : "II.") + ANSI_RESET);
+        AsyncLogger.println(ANSI_GREEN + "---------------------------------------------------------------------------" + ANSI_RESET);
+    }
 
-            /*
-             * Prints the final stack contents to confirm functionality of the program.
-             * [s] - means ordinary slot of a stack
-             * (s) - current top of the stack
-             */
-            for(int s = 0; s < soStack.getISize(); s++) {
-                System.out.print
-                    (
-                            ANSI_YELLOW + (s == BlockManager.soStack.getITop() ? "(" : "[") +
-                                    BlockManager.soStack.getAt(s) +
-                                    (s == BlockManager.soStack.getITop() ? ")" : "]") + ANSI_RESET
-                    );
-            }
-            System.out.println(ANSI_YELLOW + "." + ANSI_RESET);
+    /**
+     * Prints the operations per second of each kind of thread and the total run time.
+     */
+    private static void reportThroughput()
+    {
+        double dSeconds = slRunNanos / 1e9;
+        AsyncLogger.println("[Main] Total run time = " + String.format("%.3f", dSeconds * 1000) + " ms.");
+        reportThroughput("AcquireBlock", soConfig.iAcquirers, soAcquireOps.sum(), dSeconds);
+        reportThroughput("ReleaseBlock", soConfig.iReleasers, soReleaseOps.sum(), dSeconds);
+        reportThroughput("CharStackProber", soConfig.iProbers, soProbeOps.sum(), dSeconds);
+    }
 
-            System.exit(0);
-        }
-        catch(InterruptedException e)
-        {
-            System.err.println("[Main] Caught InterruptedException (internal error): " + e.getMessage());
-            e.printStackTrace(System.err);
-        }
-        catch(Exception e)
-        {
-            reportException(e);
-        }
-        finally
-        {
-            System.exit(1);
-        }
-    } // main()
+    private static void reportThroughput(String pstrKind, int piThreads, long plOps, double pdSeconds)
+    {
+        AsyncLogger.println
+            (
+                    "[Main] " + pstrKind + ": " + piThreads + " threads, " + plOps + " ops, " +
+                            String.format("%.1f", pdSeconds > 0 ? plOps / pdSeconds : 0.0) + " ops/s."
+            );
+    }
 
 
     /**
      * Inner AcquireBlock thread class.
      */
-    static class AcquireBlock extends BaseThread
+    static class AcquireBlock extends BaseTask
     {
         /**
          * A copy of a block returned by pop().
@@ -183,75 +1039,118 @@ public class BlockManager
          */
         private char cCopy;
 
+        /**
+         * Blocks returned by popN() in batch mode (--batch).
+         */
+        private final char[] acBatch = new char[soConfig.iBatch];
+
+        /**
+         * Waits for a block and for the mutex ahead of the other workers.
+         */
+        @Override
+        public Semaphore.Priority getPriority()
+        {
+            return Semaphore.Priority.CRITICAL;
+        }
+
         @Override
         public void run()
         {
-            System.out.println(ANSI_GREEN + "[AcquireBlock - Starting] AcquireBlock thread [TID=" + this.iTID + "] starts executing." + ANSI_RESET);
+            AsyncLogger.println(ANSI_GREEN + "[AcquireBlock - Starting] AcquireBlock thread [TID=" + this.iTID + "] starts executing." + ANSI_RESET);
 
             // Run phase 1 in its entirety asynchronously with the other executing threads
             phase1();
 
             /*
-             * Wait for the other threads from ReleaseBlock and CharStackProber to signal so that
-             * AcquireBlock can pass.
-             */
-            s1.Wait("(S1) " + this.getClass().getSimpleName(), this.iTID);
-
-            /*
-             * Counter used to keep track of final AcquireBlock thread to execute. When this one executes,
-             * log to the console that all Phase 1's have been completed.
+             * Wait for all the other threads, ReleaseBlock and CharStackProber included, to be done with
+             * phase I so that AcquireBlock can pass. The last one to arrive logs it to the console.
              */
-            s1.IncrementCounter();
-            if (s1.getCounter() == 3) {
-                System.out.println(ANSI_GREEN + "---------------------------------------------------------------------------" + ANSI_RESET);
-                System.out.println(ANSI_GREEN + "[AcquireBlock] ALL THREADS HAVE COMPLETED PHASE I." + ANSI_RESET);
-                System.out.println(ANSI_GREEN + "---------------------------------------------------------------------------" + ANSI_RESET);
-            }
+            arriveAndAwaitPhase();
 
             try
             {
-                //----------------------------------------- CRITICAL SECTION ------------------------------------------------------
+                for(int iOp = 0; hasMoreWork(iOp); iOp++)
+                {
+                    /*
+                     * Reserve a block before entering the critical section, so that waiting for one (with --wait-ms)
+                     * never holds the mutex. Without a reservation the stack is empty and nothing is popped.
+                     */
+                    boolean bReserved = (soConfig.lWaitMillis > 0)
+                            ? soNotEmpty.Wait(soConfig.lWaitMillis, TimeUnit.MILLISECONDS, getPriority())
+                            : soNotEmpty.tryWait(getPriority());
+
+                    // In batch mode, take as many more as are there right now, up to the batch size.
+                    int iReserved = bReserved ? 1 + soNotEmpty.tryWaitUpTo(this.acBatch.length - 1, getPriority()) : 0;
+                    long lJournaled = -1;
+
+                    //----------------------------------------- CRITICAL SECTION ------------------------------------------------------
+
+                    // Use the mutex semaphore to block access to the critical section that accesses the stack.
+                    lockStack(this);
+                    CriticalSectionEvent oSection = new CriticalSectionEvent();
+                    oSection.begin();
+
+                    AsyncLogger.println(ANSI_GREEN + "[AcquireBlock - CS] AcquireBlock thread [TID=" + this.iTID + "] requests Ms block." + ANSI_RESET);
+
+                    // If the stack is empty, just print out information about stack.
+                    if (iReserved == 0) {
+                        AsyncLogger.println(ANSI_GREEN + "[AcquireBlock - CS] Stack is empty. Did not perform pop.");
+                        AsyncLogger.println
+                                (
+                                        ANSI_GREEN + "[AcquireBlock - CS] AcquireBlock thread [TID=" + this.iTID + "] has obtained Ms block " + this.cCopy +
+                                                " from position " + (soStack.getITop()) + "." + ANSI_RESET
+                                );
+                    }
+                    // In batch mode, pop all the reserved blocks in this one critical section.
+                    else if (iReserved > 1) {
+                        int iPopped = soStack.popN(this.acBatch, 0, iReserved);
+                        this.cCopy = this.acBatch[iPopped - 1];
+                        lJournaled = journalPops(this.iTID, this.acBatch, 0, iPopped);
+                        AsyncLogger.println
+                                (
+                                        ANSI_GREEN + "[AcquireBlock - CS] AcquireBlock thread [TID=" + this.iTID + "] has obtained " + iPopped + " Ms blocks " +
+                                                new String(this.acBatch, 0, iPopped) + " from positions " + (soStack.getITop() + iPopped) + " to " +
+                                                (soStack.getITop() + 1) + "." + ANSI_RESET
+                                );
+                    }
+                    // If the stack isn't empty, pop the top value from teh stack.
+                    else {
+                        this.cCopy = soStack.pop();
+                        lJournaled = journalPop(this.iTID, this.cCopy, soStack.getITop() + 1);
+                        AsyncLogger.println
+                                (
+                                        ANSI_GREEN + "[AcquireBlock - CS] AcquireBlock thread [TID=" + this.iTID + "] has obtained Ms block " + this.cCopy +
+                                                " from position " + (soStack.getITop() + 1) + "." + ANSI_RESET
+                                );
+                    }
 
-                // Use the mutex semaphore to block access to the critical section that accesses the stack.
-                mutex.Wait("(Mutex) " + this.getClass().getSimpleName(), this.iTID);
+                    // Print information about the stack after the pop operation
+                    AsyncLogger.println
+                        (
+                                ANSI_GREEN + "[AcquireBlock - CS] Acq[TID=" + this.iTID + "]: Current value of top = " +
+                                        soStack.getITop() + "." + ANSI_RESET
+                        );
+                    AsyncLogger.println
+                        (
+                                ANSI_GREEN + "[AcquireBlock - CS] Acq[TID=" + this.iTID + "]: Current value of stack top = " +
+                                        soStack.tryPick() + "." + ANSI_RESET
+                        );
 
-                System.out.println(ANSI_GREEN + "[AcquireBlock - CS] AcquireBlock thread [TID=" + this.iTID + "] requests Ms block." + ANSI_RESET);
+                    // Use the mutex semaphore to signal to the other threads that the stack can now be accessed.
+                    oSection.end();
+                    unlockStack(this);
+                    oSection.commit(this, iReserved, !soStack.isConcurrent());
 
-                // Check to see if the stack is empty. If so, do not pop anything. Just print out information about stack.
-                if (soStack.isEmpty()) {
-                    System.out.println(ANSI_GREEN + "[AcquireBlock - CS] Stack is empty. Did not perform pop.");
-                    System.out.println
-                            (
-                                    ANSI_GREEN + "[AcquireBlock - CS] AcquireBlock thread [TID=" + this.iTID + "] has obtained Ms block " + this.cCopy +
-                                            " from position " + (soStack.getITop()) + "." + ANSI_RESET
-                            );
-                }
-                // If the stack isn't empty, pop the top value from teh stack.
-                else {
-                    this.cCopy = soStack.pop();
-                    System.out.println
-                            (
-                                    ANSI_GREEN + "[AcquireBlock - CS] AcquireBlock thread [TID=" + this.iTID + "] has obtained Ms block " + this.cCopy +
-                                            " from position " + (soStack.getITop() + 1) + "." + ANSI_RESET
-                            );
-                }
+                    //^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^ CRITICAL SECTION ^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^
 
-                // Print information about the stack after the pop operation
-                System.out.println
-                    (
-                            ANSI_GREEN + "[AcquireBlock - CS] Acq[TID=" + this.iTID + "]: Current value of top = " +
-                                    soStack.getITop() + "." + ANSI_RESET
-                    );
-                System.out.println
-                    (
-                            ANSI_GREEN + "[AcquireBlock - CS] Acq[TID=" + this.iTID + "]: Current value of stack top = " +
-                                    soStack.pick() + "." + ANSI_RESET
-                    );
+                    // Out of the critical section, so that other threads append to the journal meanwhile and share the force.
+                    syncJournal(lJournaled);
 
-                // Use the mutex semaphore to signal to the other threads that the stack can now be accessed.
-                mutex.Signal("(Mutex) " + this.getClass().getSimpleName(), this.iTID);
+                    // The popped blocks' slots are free now; wakes releasers waiting for them, if any.
+                    soNotFull.Signal("(NotFull) " + this.getClass().getSimpleName(), this.iTID, iReserved);
 
-                //^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^ CRITICAL SECTION ^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^
+                    soAcquireOps.increment();
+                }
             }
             catch(Exception e)
             {
@@ -260,27 +1159,15 @@ public class BlockManager
             }
 
             /*
-             * AcquireBlock class serves as the starting point for beginning Phase 2 for each thread.
-             * The first signal will emanate from this class and let the ReleaseBlock and CharStackProber classes
-             * know that they can try to start Phase 2.
+             * Runs phase II, alongside the other threads' (--phase2 ordered) or once it is this thread's turn (serial).
+             * Either way the phase II's are logged in increasing order of thread ID, and ours is by the time this returns.
              */
-            s2.Signal(this.getClass().getSimpleName(), this.iTID);
+            phase2InTurn(this);
 
-            /*
-             * Keeps the current thread busy waiting until turnTestAndSet returns false, indicating that it is that
-             * Thread's turn to execute Phase 2 next. The threads are scheduled to proceed in increasing order
-             * according to thread ID.
-             */
-            while (!turnTestAndSet(true));
+            AsyncLogger.println(ANSI_GREEN + "[AcquireBlock - Terminating] AcquireBlock thread [TID=" + this.iTID + "] terminates." + ANSI_RESET);
 
-            System.out.println(ANSI_GREEN + "[AcquireBlock - Terminating] AcquireBlock thread [TID=" + this.iTID + "] terminates." + ANSI_RESET);
-
-            // If thread with ID = 10 (the final thread) ends up in this class, log to console that all phase 2's are completed.
-            if (this.iTID == 10) {
-                System.out.println(ANSI_GREEN + "---------------------------------------------------------------------------" + ANSI_RESET);
-                System.out.println(ANSI_GREEN + "[AcquireBlock] ALL THREADS HAVE COMPLETED PHASE II." + ANSI_RESET);
-                System.out.println(ANSI_GREEN + "---------------------------------------------------------------------------" + ANSI_RESET);
-            }
+            // If this is the final thread to finish, the phaser logs to console that all phase 2's are completed.
+            arrivePhase();
         }
     } // class AcquireBlock
 
@@ -288,7 +1175,7 @@ public class BlockManager
     /**
      * Inner class ReleaseBlock.
      */
-    static class ReleaseBlock extends BaseThread
+    static class ReleaseBlock extends BaseTask
     {
         /**
          * Block to be returned. Default is 'a' if the stack is empty.
@@ -298,57 +1185,84 @@ public class BlockManager
         @Override
         public void run()
         {
-            System.out.println(ANSI_PURPLE + "[ReleaseBlock - Starting] ReleaseBlock thread [TID=" + this.iTID + "] starts executing." + ANSI_RESET);
+            AsyncLogger.println(ANSI_PURPLE + "[ReleaseBlock - Starting] ReleaseBlock thread [TID=" + this.iTID + "] starts executing." + ANSI_RESET);
 
             // Run phase 1 in its entirety asynchronously with the other executing threads
             phase1();
 
-            // Increase s1's semaphore value so that AcquireBlock class can eventually proceed past its wait() state.
-            s1.Signal("(S1) " + this.getClass().getSimpleName(), this.iTID);
+            // Arrive at the phaser so that the AcquireBlock threads can eventually proceed, without waiting here.
+            int iPhase1 = arrivePhase();
 
             try
             {
-                //----------------------------------------- CRITICAL SECTION ------------------------------------------------------
+                for(int iOp = 0; hasMoreWork(iOp); iOp++)
+                {
+                    //----------------------------------------- CRITICAL SECTION ------------------------------------------------------
+
+                    // Reserve free slots first, up to the batch size (--batch); without one the stack is full.
+                    int iReserved = soNotFull.tryWaitUpTo(soConfig.iBatch);
+                    int iPushed = 0;
+                    long lJournaled = -1;
 
-                // Use the mutex semaphore to block access to the critical section that accesses the stack.
-                mutex.Wait("(Mutex) " + this.getClass().getSimpleName(), this.iTID);
+                    // Use the mutex semaphore to block access to the critical section that accesses the stack.
+                    lockStack(this);
+                    CriticalSectionEvent oSection = new CriticalSectionEvent();
+                    oSection.begin();
 
-                /*
-                 * If the stack is not empty, get the next char and push it to next open position.
-                 * If the stack is full, don't push anything. Log the message and just display the stack the way it was before.
-                 */
-                if(!soStack.isEmpty()) {
-                    if (soStack.isFull()) {
-                        this.cBlock = soStack.pick();
-                        System.out.println(ANSI_PURPLE + "[ReleaseBlock - CS] Stack is full. Not pushing new value to stack." + ANSI_RESET);
+                    /*
+                     * If the stack is not empty, get the next char and push it to next open position.
+                     * If the stack is full, don't push anything. Log the message and just display the stack the way it was before.
+                     */
+                    if (iReserved == 0) {
+                        char cTop = soStack.tryPick();
+                        if (cTop != IBlockStack.EMPTY_SLOT)
+                            this.cBlock = cTop;
+                        AsyncLogger.println(ANSI_PURPLE + "[ReleaseBlock - CS] Stack is full. Not pushing new value to stack." + ANSI_RESET);
                     }
                     else {
-                        this.cBlock = (char)(soStack.pick() + 1);
-                        soStack.push(this.cBlock);
+                        // Without the mutex (lock-free stack) the empty check and the push must happen in a single step.
+                        while (iPushed < iReserved) {
+                            char cPushed = soStack.tryPushNext();
+                            if (cPushed == IBlockStack.EMPTY_SLOT)
+                                break;
+                            this.cBlock = cPushed;
+                            lJournaled = journalPush(this.iTID, cPushed, soStack.getITop());
+                            iPushed++;
+                        }
                     }
-                }
-
-                // Print information about the stack after the push operation
-                System.out.println
-                    (
-                            ANSI_PURPLE + "[ReleaseBlock - CS] ReleaseBlock thread [TID=" + this.iTID + "] returns Ms block " + this.cBlock +
-                                    " to position " + (soStack.getITop()) + "." + ANSI_RESET
-                    );
-                System.out.println
-                    (
-                            ANSI_PURPLE + "[ReleaseBlock - CS] Rel[TID=" + this.iTID + "]: Current value of top = " +
-                                    soStack.getITop() + "." + ANSI_RESET
-                    );
-                System.out.println
-                    (
-                            ANSI_PURPLE + "[ReleaseBlock - CS] Rel[TID=" + this.iTID + "]: Current value of stack top = " +
-                                    soStack.pick() + "." + ANSI_RESET
-                    );
 
-                // Use the mutex semaphore to signal to the other threads that the stack can now be accessed.
-                mutex.Signal("(Mutex) " + this.getClass().getSimpleName(), this.iTID);
-
-                //^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^ CRITICAL SECTION ^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^
+                    // Print information about the stack after the push operation
+                    AsyncLogger.println
+                        (
+                                ANSI_PURPLE + "[ReleaseBlock - CS] ReleaseBlock thread [TID=" + this.iTID + "] returns " + (iPushed > 1 ? iPushed + " Ms blocks up to " : "Ms block ") + this.cBlock +
+                                        " to position " + (soStack.getITop()) + "." + ANSI_RESET
+                        );
+                    AsyncLogger.println
+                        (
+                                ANSI_PURPLE + "[ReleaseBlock - CS] Rel[TID=" + this.iTID + "]: Current value of top = " +
+                                        soStack.getITop() + "." + ANSI_RESET
+                        );
+                    AsyncLogger.println
+                        (
+                                ANSI_PURPLE + "[ReleaseBlock - CS] Rel[TID=" + this.iTID + "]: Current value of stack top = " +
+                                        soStack.tryPick() + "." + ANSI_RESET
+                        );
+
+                    // Use the mutex semaphore to signal to the other threads that the stack can now be accessed.
+                    oSection.end();
+                    unlockStack(this);
+                    oSection.commit(this, iPushed, !soStack.isConcurrent());
+
+                    //^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^ CRITICAL SECTION ^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^
+
+                    syncJournal(lJournaled);
+
+                    // Wakes acquirers waiting for blocks, and hands back the slots left over if the stack was empty.
+                    soNotEmpty.Signal("(NotEmpty) " + this.getClass().getSimpleName(), this.iTID, iPushed);
+                    soNotFull.Signal("(NotFull) " + this.getClass().getSimpleName(), this.iTID, iReserved - iPushed);
+
+                    soReleaseOps.increment();
+                }
             }
             catch(Exception e)
             {
@@ -356,31 +1270,19 @@ public class BlockManager
                 System.exit(1);
             }
 
-            /*
-             * s2 semaphore waits for its first signal to ensure that all phase 1's are completed before
-             * trying to execute any of the phase 2's. The order of the signal may be random. It will depend
-             * on the order of execution of the threads.
-             */
-            s2.Wait("(S2) " + this.getClass().getSimpleName(), this.iTID);
-
-            // Signal to the next thread waiting for s2 to be equal to 1 that it can now pass.
-            s2.Signal("(S2) " + this.getClass().getSimpleName(), this.iTID);
+            // Ensure that all phase 1's are completed before trying to execute any of the phase 2's.
+            awaitPhase(iPhase1);
 
             /*
-             * Keeps the current thread busy waiting until turnTestAndSet returns false, indicating that it is that
-             * Thread's turn to execute Phase 2 next. The threads are scheduled to proceed in increasing order
-             * according to thread ID.
+             * Runs phase II, alongside the other threads' (--phase2 ordered) or once it is this thread's turn (serial).
+             * Either way the phase II's are logged in increasing order of thread ID, and ours is by the time this returns.
              */
-            while (!turnTestAndSet(true));
+            phase2InTurn(this);
 
-            System.out.println(ANSI_PURPLE + "[ReleaseBlock - Terminating] ReleaseBlock thread [TID=" + this.iTID + "] terminates." + ANSI_RESET);
+            AsyncLogger.println(ANSI_PURPLE + "[ReleaseBlock - Terminating] ReleaseBlock thread [TID=" + this.iTID + "] terminates." + ANSI_RESET);
 
-            // If thread with ID = 10 (the final thread) ends up in this class, log to console that all phase 2's are completed.
-            if (this.iTID == 10) {
-                System.out.println(ANSI_GREEN + "---------------------------------------------------------------------------" + ANSI_RESET);
-                System.out.println(ANSI_GREEN + "[AcquireBlock] ALL THREADS HAVE COMPLETED PHASE II." + ANSI_RESET);
-                System.out.println(ANSI_GREEN + "---------------------------------------------------------------------------" + ANSI_RESET);
-            }
+            // If this is the final thread to finish, the phaser logs to console that all phase 2's are completed.
+            arrivePhase();
         }
     } // class ReleaseBlock
 
@@ -388,51 +1290,77 @@ public class BlockManager
     /**
      * Inner class CharStackProber to dump stack contents.
      */
-    static class CharStackProber extends BaseThread
+    static class CharStackProber extends BaseTask
     {
+        /**
+         * This prober's copy of the stack, brought up to date by each dump (see IBlockStack.refresh()).
+         */
+        private final StackView oView = new StackView(soStack.getISize());
+
+        /**
+         * The last dump's line, logged again as it is while the stack does not change.
+         */
+        private String strLine = null;
+
+        /**
+         * Dumps can wait; they never hold up the acquirers and releasers.
+         */
+        @Override
+        public Semaphore.Priority getPriority()
+        {
+            return Semaphore.Priority.BACKGROUND;
+        }
+
         @Override
         public void run()
         {
-            System.out.println(ANSI_YELLOW + "[CharStackProber - Starting] CharStackProber thread [TID=" + this.iTID + "] starts executing." + ANSI_RESET);
+            AsyncLogger.println(ANSI_YELLOW + "[CharStackProber - Starting] CharStackProber thread [TID=" + this.iTID + "] starts executing." + ANSI_RESET);
 
             // Run phase 1 in its entirety asynchronously with the other executing threads
             phase1();
 
-            // Increase s1's semaphore value so that AcquireBlock class can eventually proceed past its wait() state.
-            s1.Signal("(S1) " + this.getClass().getSimpleName(), this.iTID);
+            // Arrive at the phaser so that the AcquireBlock threads can eventually proceed, without waiting here.
+            int iPhase1 = arrivePhase();
 
             try
             {
-                //----------------------------------------- CRITICAL SECTION ------------------------------------------------------
-
-                // Use the mutex semaphore to block access to the critical section that accesses the stack.
-                mutex.Wait("(Mutex) " + this.getClass().getSimpleName(), this.iTID);
-
-                for(int i = 0; i < siThreadSteps; i++)
+                for(int iOp = 0; hasMoreWork(iOp); iOp++)
                 {
-                    System.out.print(ANSI_YELLOW + "[CharStackProber - CS] Stack Prober [TID=" + this.iTID + "]: Stack state: " + ANSI_RESET);
-
                     /*
-                     * Prints the stack contents to confirm functionality of the program.
-                     * [s] - means ordinary slot of a stack
-                     * (s) - current top of the stack
+                     * No critical section here: each dump works on a copy of the stack, refreshed without
+                     * the mutex, so probers run alongside the acquirers and releasers and never hold them up.
                      */
-                    for(int s = 0; s < soStack.getISize(); s++) {
-                        System.out.print
-                            (
-                                    ANSI_YELLOW + (s == BlockManager.soStack.getITop() ? "(" : "[") +
-                                            BlockManager.soStack.getAt(s) +
-                                            (s == BlockManager.soStack.getITop() ? ")" : "]") + ANSI_RESET
-                            );
+                    // Recorded as a critical section without the mutex, to compare with the others' hold times.
+                    CriticalSectionEvent oSection = new CriticalSectionEvent();
+                    oSection.begin();
+
+                    for(int i = 0; i < siThreadSteps; i++)
+                    {
+                        // Only the pushes and pops since the last dump are fetched; the line is only rebuilt if there were any.
+                        if (soStack.refresh(this.oView) || this.strLine == null)
+                        {
+                            /*
+                             * Prints the stack contents to confirm functionality of the program.
+                             * [s] - means ordinary slot of a stack
+                             * (s) - current top of the stack
+                             * The line is built first and logged at once, since other threads now log at the same time.
+                             */
+                            int iTop = this.oView.getITop();
+                            StringBuilder oLine = new StringBuilder(ANSI_YELLOW + "[CharStackProber] Stack Prober [TID=" + this.iTID + "]: Stack state: " + ANSI_RESET);
+                            for(int s = 0; s < this.oView.getISize(); s++) {
+                                oLine.append(ANSI_YELLOW).append(s == iTop ? "(" : "[")
+                                     .append(this.oView.getAt(s))
+                                     .append(s == iTop ? ")" : "]").append(ANSI_RESET);
+                            }
+                            this.strLine = oLine.append(ANSI_YELLOW).append(".").append(ANSI_RESET).toString();
+                        }
+
+                        AsyncLogger.println(this.strLine);
                     }
 
-                    System.out.println(ANSI_YELLOW + "." + ANSI_RESET);
+                    oSection.commit(this, 0, false);
+                    soProbeOps.increment();
                 }
-
-                // Use the mutex semaphore to signal to the other threads that the stack can now be accessed.
-                mutex.Signal("(Mutex) " + this.getClass().getSimpleName(), this.iTID);
-
-                //^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^ CRITICAL SECTION ^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^
             }
             catch(Exception e)
             {
@@ -440,41 +1368,165 @@ public class BlockManager
                 System.exit(1);
             }
 
-            /*
-             * s2 semaphore waits for its first signal to ensure that all phase 1's are completed before
-             * trying to execute any of the phase 2's. The order of the signal may be random. It will depend
-             * on the order of execution of the threads.
-             */
-            s2.Wait("(S2) " + this.getClass().getSimpleName(), this.iTID);
-
-            // Signal to the next thread waiting for s2 to be equal to 1 that it can now pass.
-            s2.Signal("(S2) " + this.getClass().getSimpleName(), this.iTID);
+            // Ensure that all phase 1's are completed before trying to execute any of the phase 2's.
+            awaitPhase(iPhase1);
 
             /*
-             * Keeps the current thread busy waiting until turnTestAndSet returns false, indicating that it is that
-             * Thread's turn to execute Phase 2 next. The threads are scheduled to proceed in increasing order
-             * according to thread ID.
+             * Runs phase II, alongside the other threads' (--phase2 ordered) or once it is this thread's turn (serial).
+             * Either way the phase II's are logged in increasing order of thread ID, and ours is by the time this returns.
              */
-            while (!turnTestAndSet(true));
+            phase2InTurn(this);
 
-            System.out.println(ANSI_YELLOW + "[CharStackProber - Terminating] CharStackProber thread [TID=" + this.iTID + "] terminates." + ANSI_RESET);
+            AsyncLogger.println(ANSI_YELLOW + "[CharStackProber - Terminating] CharStackProber thread [TID=" + this.iTID + "] terminates." + ANSI_RESET);
 
-            // If thread with ID = 10 (the final thread) ends up in this class, log to console that all phase 2's are completed.
-            if (this.iTID == 10) {
-                System.out.println(ANSI_GREEN + "---------------------------------------------------------------------------" + ANSI_RESET);
-                System.out.println(ANSI_GREEN + "[AcquireBlock] ALL THREADS HAVE COMPLETED PHASE II." + ANSI_RESET);
-                System.out.println(ANSI_GREEN + "---------------------------------------------------------------------------" + ANSI_RESET);
-            }
+            // If this is the final thread to finish, the phaser logs to console that all phase 2's are completed.
+            arrivePhase();
         }
     } // class CharStackProber
 
 
+    /**
+     * Creates the stack implementation to use.
+     * strStack is "lockfree" for LockFreeBlockStack, "sharded" for ShardedBlockStack, "int" for a LetterBlockStack
+     * over an IntBlockStack, "mapped" for
+     * MappedBlockStack (reopened from strStackFile if it exists), anything else for the mutex-guarded BlockStack
+     * (recovered from the journal, with --journal, if there is one).
+     * @param poConfig The configuration.
+     * @return The new stack.
+     */
+    private static IBlockStack newStack(BlockManagerConfig poConfig)
+    {
+        if ("lockfree".equals(poConfig.strStack))
+            return new LockFreeBlockStack(poConfig.iStackSize);
+
+        if ("sharded".equals(poConfig.strStack))
+            return new ShardedBlockStack(poConfig.iStackSize, poConfig.iShards);
+
+        if ("int".equals(poConfig.strStack))
+            return new LetterBlockStack(poConfig.iStackSize);
+
+        if ("mapped".equals(poConfig.strStack))
+            return new MappedBlockStack(Paths.get(poConfig.strStackFile), poConfig.iStackSize);
+
+        // Carry on from the journal, if there is one already
+        if (poConfig.strJournal != null)
+        {
+            BlockStack oRecovered = BlockJournal.recover(Paths.get(poConfig.strJournal));
+            if (oRecovered != null && oRecovered.getISize() != poConfig.iStackSize)
+                throw new IllegalArgumentException(poConfig.strJournal + " holds a stack of size " + oRecovered.getISize() +
+                        ", not " + poConfig.iStackSize + ".");
+            if (oRecovered != null)
+                return oRecovered;
+        }
+
+        return new BlockStack(poConfig.iStackSize);
+    }
+
+    /**
+     * Records a pop in the journal, if there is one. Called in the critical section, right after the pop.
+     * @return Sequence of the record for syncJournal(), or -1 without a journal.
+     */
+    private static long journalPop(int piTID, char pcBlock, int piPosition)
+    {
+        return (soJournal == null) ? -1 : soJournal.logPop(piTID, pcBlock, piPosition);
+    }
+
+    /**
+     * Records a push in the journal, if there is one. Called in the critical section, right after the push.
+     * @return Sequence of the record for syncJournal(), or -1 without a journal.
+     */
+    private static long journalPush(int piTID, char pcBlock, int piPosition)
+    {
+        return (soJournal == null) ? -1 : soJournal.logPush(piTID, pcBlock, piPosition);
+    }
+
+    /**
+     * Records the blocks of a popN(), top first, in the critical section right after it.
+     * @return Sequence of the last record for syncJournal(), or -1 if there is no journal or nothing was popped.
+     */
+    private static long journalPops(int piTID, char[] pacBlocks, int piOffset, int piCount)
+    {
+        long lSequence = -1;
+        for (int i = 0; i < piCount; i++)
+            lSequence = journalPop(piTID, pacBlocks[piOffset + i], soStack.getITop() + piCount - i);
+        return lSequence;
+    }
+
+    /**
+     * Records the blocks of a pushAll(), in push order, in the critical section right after it.
+     * @return Sequence of the last record for syncJournal(), or -1 if there is no journal or nothing was pushed.
+     */
+    private static long journalPushes(int piTID, char[] pacBlocks, int piOffset, int piCount)
+    {
+        long lSequence = -1;
+        for (int i = 0; i < piCount; i++)
+            lSequence = journalPush(piTID, pacBlocks[piOffset + i], soStack.getITop() - piCount + 1 + i);
+        return lSequence;
+    }
+
+    /**
+     * Waits for the records up to the given one to be as durable as --durability asks. Called after the critical section.
+     * @param plSequence Last record of the critical section, or -1 if it recorded nothing.
+     */
+    private static void syncJournal(long plSequence)
+    {
+        if (soJournal != null)
+            soJournal.sync(plSequence);
+    }
+
+    /**
+     * Enters the critical section over the stack, in the worker's priority class. Skipped when the stack synchronizes itself.
+     * @param poThread The calling worker, for the semaphore's debug output.
+     */
+    private static void lockStack(BaseTask poThread)
+    {
+        lockStack(poThread.getClass().getSimpleName(), poThread.getTID(), poThread.getPriority());
+    }
+
+    private static void lockStack(String pstrCaller, int piTID)
+    {
+        lockStack(pstrCaller, piTID, Semaphore.Priority.NORMAL);
+    }
+
+    private static void lockStack(String pstrCaller, int piTID, Semaphore.Priority pePriority)
+    {
+        if (!soStack.isConcurrent())
+            mutex.Wait("(Mutex) " + pstrCaller, piTID, pePriority);
+    }
+
+    /**
+     * Enters the critical section over the stack unless the deadline passes first.
+     * @param plDeadline System.nanoTime() at which to give up.
+     * @return True if entered (always, when the stack synchronizes itself).
+     */
+    private static boolean lockStackUntil(long plDeadline)
+    {
+        return soStack.isConcurrent() || mutex.WaitUntil(plDeadline);
+    }
+
+    /**
+     * Leaves the critical section over the stack.
+     * @param poThread The calling worker, for the semaphore's debug output.
+     */
+    private static void unlockStack(BaseTask poThread)
+    {
+        unlockStack(poThread.getClass().getSimpleName(), poThread.getTID());
+    }
+
+    private static void unlockStack(String pstrCaller, int piTID)
+    {
+        if (!soStack.isConcurrent())
+            mutex.Signal("(Mutex) " + pstrCaller, piTID);
+    }
+
     /**
      * Outputs exception information to STDERR
      * @param poException Exception object to dump to STDERR
      */
     private static void reportException(Exception poException)
     {
+        // Keep STDOUT and STDERR in order
+        AsyncLogger.flush();
         System.err.println("Caught exception : " + poException.getClass().getName());
         System.err.println("Message          : " + poException.getMessage());
         System.err.println("Stack Trace      : ");
@@ -0,0 +1,263 @@
+import common.TaskRunner;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Properties;
+
+/**
+ * Class BlockManagerConfig
+ * Workload settings of BlockManager: how many threads of each kind, how much work
+ * each one does, and over which stack. Read from the command line and/or a
+ * properties file; command-line options win over the file.
+ *
+ * Karim Rhoualem
+ * Student 26603157
+ */
+class BlockManagerConfig {
+    /**
+     * Command-line usage, printed on a bad option.
+     */
+    static final String USAGE =
+            "Usage: BlockManager [--config <file>] [--acquirers <n>] [--releasers <n>] [--probers <n>]\n" +
+            "                    [--ops <n>] [--steps <n>] [--stack-size <n>] [--stack locked|lockfree|sharded|int|mapped]\n" +
+            "                    [--duration <seconds>] [--mode platform|pool|virtual] [--pool-size <n>]\n" +
+            "                    [--wait-ms <n>] [--shards <n>] [--magazine <n>]\n" +
+            "                    [--batch <n>] [--stack-file <path>] [--journal <dir>]\n" +
+            "                    [--durability async|write|fsync] [--journal-segment <KiB>]\n" +
+            "                    [--phase2 ordered|serial]\n" +
+            "The config file is a properties file with the same keys, without the leading dashes.";
+
+    /**
+     * Number of AcquireBlock threads
+     */
+    int iAcquirers = 3;
+
+    /**
+     * Number of ReleaseBlock threads
+     */
+    int iReleasers = 3;
+
+    /**
+     * Number of CharStackProber threads
+     */
+    int iProbers = 4;
+
+    /**
+     * Number of critical sections each thread goes through (ignored when a duration is set)
+     */
+    int iOpsPerActor = 1;
+
+    /**
+     * Number of stack dumps a prober does in each of its critical sections
+     */
+    int iThreadSteps = 5;
+
+    /**
+     * Size of the stack
+     */
+    int iStackSize = 6;
+
+    /**
+     * Stack implementation, see BlockManager.newStack()
+     */
+    String strStack = System.getProperty("blockmanager.stack", "locked");
+
+    /**
+     * File of the mapped stack; reopened as it is if it exists, in which case stack-size must match it
+     */
+    String strStackFile = MappedBlockStack.DEFAULT_FILE;
+
+    /**
+     * How long the threads keep working, in seconds. 0 means iOpsPerActor operations each.
+     */
+    double dDurationSeconds = 0;
+
+    /**
+     * How the workers run: a platform thread each, a bounded pool or virtual threads
+     */
+    TaskRunner.Mode eMode = TaskRunner.Mode.PLATFORM;
+
+    /**
+     * Number of workers running at once in pool mode
+     */
+    int iPoolSize = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * How long an AcquireBlock thread waits for a block when the stack is empty, in milliseconds.
+     * 0 means it does not wait and skips the pop, as before.
+     */
+    long lWaitMillis = 0;
+
+    /**
+     * Number of shards of the sharded stack (at most one per slot)
+     */
+    int iShards = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Most blocks a thread may hoard in its magazine in BlockManager.acquire()/release(). 0 turns the magazines off.
+     * Only those static calls use magazines: the scenario's workers and BlockServer always go to the stack.
+     */
+    int iMagazine = Integer.getInteger("blockmanager.magazine", 0);
+
+    /**
+     * Most blocks an AcquireBlock or ReleaseBlock thread moves in one critical section
+     */
+    int iBatch = 1;
+
+    /**
+     * Directory of the journal of every pop and push of the stack; null for no journal.
+     * The locked stack is recovered from it when it is not empty.
+     */
+    String strJournal = null;
+
+    /**
+     * What a worker, or a caller of BlockManager.acquire()/release(), waits for after recording its pops or pushes in the journal
+     */
+    BlockJournal.Durability eDurability = BlockJournal.Durability.FSYNC;
+
+    /**
+     * Size after which a journal segment is closed and a new one started, in KiB
+     */
+    int iJournalSegmentKiB = 1024;
+
+    /**
+     * True to run the phase II's in parallel and log them in TID order; false to run them one at a time in TID order
+     */
+    boolean bOrderedPhase2 = true;
+
+    /**
+     * Builds the configuration from the command line.
+     *
+     * @param pastrArgs Arguments given to main().
+     * @return The configuration.
+     * @throws IllegalArgumentException on an unknown option or a bad value.
+     * @throws IOException if the config file cannot be read.
+     */
+    static BlockManagerConfig parse(final String[] pastrArgs) throws IOException {
+        Properties oArgs = new Properties();
+        for (int i = 0; i < pastrArgs.length; i++) {
+            if (!pastrArgs[i].startsWith("--") || i + 1 == pastrArgs.length)
+                throw new IllegalArgumentException("Expected an option and its value at: " + pastrArgs[i]);
+            oArgs.setProperty(pastrArgs[i].substring(2), pastrArgs[++i]);
+        }
+
+        BlockManagerConfig oConfig = new BlockManagerConfig();
+
+        String strFile = oArgs.getProperty("config");
+        if (strFile != null) {
+            Properties oFile = new Properties();
+            try (Reader oReader = new FileReader(strFile)) {
+                oFile.load(oReader);
+            }
+            oConfig.apply(oFile);
+        }
+
+        oArgs.remove("config");
+        oConfig.apply(oArgs);
+        oConfig.validate();
+
+        return oConfig;
+    }
+
+    /**
+     * Overrides the settings present in the given properties.
+     */
+    private void apply(final Properties poProperties) {
+        for (String strKey : poProperties.stringPropertyNames()) {
+            String strValue = poProperties.getProperty(strKey).trim();
+            try {
+                switch (strKey) {
+                    case "acquirers":  iAcquirers = Integer.parseInt(strValue); break;
+                    case "releasers":  iReleasers = Integer.parseInt(strValue); break;
+                    case "probers":    iProbers = Integer.parseInt(strValue); break;
+                    case "ops":        iOpsPerActor = Integer.parseInt(strValue); break;
+                    case "steps":      iThreadSteps = Integer.parseInt(strValue); break;
+                    case "stack-size": iStackSize = Integer.parseInt(strValue); break;
+                    case "stack":      strStack = strValue; break;
+                    case "stack-file": strStackFile = strValue; break;
+                    case "duration":   dDurationSeconds = Double.parseDouble(strValue); break;
+                    case "mode":       eMode = parseMode(strValue); break;
+                    case "pool-size":  iPoolSize = Integer.parseInt(strValue); break;
+                    case "wait-ms":    lWaitMillis = Long.parseLong(strValue); break;
+                    case "shards":     iShards = Integer.parseInt(strValue); break;
+                    case "magazine":   iMagazine = Integer.parseInt(strValue); break;
+                    case "batch":      iBatch = Integer.parseInt(strValue); break;
+                    case "journal":    strJournal = strValue; break;
+                    case "durability": eDurability = parseDurability(strValue); break;
+                    case "journal-segment": iJournalSegmentKiB = Integer.parseInt(strValue); break;
+                    case "phase2":     bOrderedPhase2 = parsePhase2(strValue); break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option: " + strKey);
+                }
+            }
+            catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Bad value for " + strKey + ": " + strValue);
+            }
+        }
+    }
+
+    /**
+     * Rejects settings the run cannot work with.
+     */
+    private void validate() {
+        if (iAcquirers < 0 || iReleasers < 0 || iProbers < 0)
+            throw new IllegalArgumentException("Thread counts cannot be negative.");
+        if (iOpsPerActor < 1 || iThreadSteps < 0)
+            throw new IllegalArgumentException("ops must be at least 1 and steps cannot be negative.");
+        if (iStackSize < 3)
+            throw new IllegalArgumentException("stack-size must be at least 3 (one block and two free slots).");
+        if (dDurationSeconds < 0)
+            throw new IllegalArgumentException("duration cannot be negative.");
+        if (iPoolSize < 1)
+            throw new IllegalArgumentException("pool-size must be at least 1.");
+        if (lWaitMillis < 0)
+            throw new IllegalArgumentException("wait-ms cannot be negative.");
+        if (iShards < 1)
+            throw new IllegalArgumentException("shards must be at least 1.");
+        if (iMagazine < 0)
+            throw new IllegalArgumentException("magazine cannot be negative.");
+        if (iBatch < 1)
+            throw new IllegalArgumentException("batch must be at least 1.");
+        if (strJournal != null && !"locked".equals(strStack))
+            throw new IllegalArgumentException("journal needs the locked stack, so that records follow the order of the stack.");
+        if (iJournalSegmentKiB < 1)
+            throw new IllegalArgumentException("journal-segment must be at least 1.");
+    }
+
+    private static TaskRunner.Mode parseMode(final String pstrValue) {
+        try {
+            return TaskRunner.Mode.valueOf(pstrValue.toUpperCase());
+        }
+        catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Bad value for mode: " + pstrValue);
+        }
+    }
+
+    private static boolean parsePhase2(final String pstrValue) {
+        switch (pstrValue.toLowerCase()) {
+            case "ordered": return true;
+            case "serial":  return false;
+            default:
+                throw new IllegalArgumentException("Bad value for phase2: " + pstrValue);
+        }
+    }
+
+    private static BlockJournal.Durability parseDurability(final String pstrValue) {
+        try {
+            return BlockJournal.Durability.valueOf(pstrValue.toUpperCase());
+        }
+        catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Bad value for durability: " + pstrValue);
+        }
+    }
+
+    /**
+     * Total number of worker threads.
+     */
+    int getThreadCount() {
+        return iAcquirers + iReleasers + iProbers;
+    }
+}
+
+// EOF
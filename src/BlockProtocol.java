@@ -0,0 +1,141 @@
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Class BlockProtocol
+ * The binary protocol between BlockServer and BlockClient, big endian.
+ *
+ * Requests:
+ *   ACQUIRE   op, most blocks (u16)
+ *   RELEASE   op, count (u16), the blocks (char each)
+ *   PICK      op
+ *   SNAPSHOT  op
+ *
+ * Responses, one per request and in the same order, so a client may send many requests
+ * before reading any response:
+ *   ACQUIRE   status, count (u16), the blocks, top first
+ *   RELEASE   status, count pushed (u16): the first ones of the request
+ *   PICK      status, top block or '*'
+ *   SNAPSHOT  status, stack size (u16), top (int), the slots
+ *
+ * ACQUIRE and RELEASE never wait: they move the blocks (or use the slots) there are right now.
+ * A request the server cannot parse, or a RELEASE of something other than a letter block, gets a
+ * BAD_REQUEST status and the connection is closed. So does a request the server fails to carry out
+ * (e.g. its journal cannot be written), with a SERVER_ERROR status; the other connections carry on.
+ *
+ * Karim Rhoualem
+ * Student 26603157
+ */
+final class BlockProtocol {
+    static final byte ACQUIRE = 1;
+    static final byte RELEASE = 2;
+    static final byte PICK = 3;
+    static final byte SNAPSHOT = 4;
+
+    static final byte OK = 0;
+    static final byte BAD_REQUEST = 1;
+    static final byte SERVER_ERROR = 2;
+
+    /**
+     * Most blocks in one ACQUIRE or RELEASE
+     */
+    static final int MAX_BATCH = 1024;
+
+    static final int DEFAULT_PORT = 7346;
+
+    /**
+     * Longest request and longest response (a snapshot of the largest stack is shorter than a full batch)
+     */
+    static final int MAX_REQUEST_LENGTH = 3 + 2 * MAX_BATCH;
+    static final int MAX_RESPONSE_LENGTH = 3 + 2 * MAX_BATCH;
+
+    private BlockProtocol() {
+    }
+
+    /**
+     * Gets the length of the request at the position of the buffer, without moving it.
+     *
+     * @param poIn Received bytes, in read mode.
+     * @return The length, or 0 if the request is not all there yet.
+     * @throws IllegalArgumentException if the bytes are not a request.
+     */
+    static int requestLength(final ByteBuffer poIn) {
+        int iAvailable = poIn.remaining();
+        if (iAvailable < 1)
+            return 0;
+
+        byte bOp = poIn.get(poIn.position());
+        switch (bOp) {
+            case PICK:
+            case SNAPSHOT:
+                return 1;
+            case ACQUIRE:
+            case RELEASE:
+                if (iAvailable < 3)
+                    return 0;
+                int iCount = Short.toUnsignedInt(poIn.getShort(poIn.position() + 1));
+                if (iCount > MAX_BATCH)
+                    throw new IllegalArgumentException("Batch of " + iCount + " blocks; at most " + MAX_BATCH + ".");
+                int iLength = (bOp == ACQUIRE) ? 3 : 3 + 2 * iCount;
+                if (iAvailable < iLength)
+                    return 0;
+                for (int i = 3; i < iLength; i += 2) {
+                    char cBlock = poIn.getChar(poIn.position() + i);
+                    if (cBlock < 'a' || cBlock > 'z')
+                        throw new IllegalArgumentException("Not a block: " + (int) cBlock + ".");
+                }
+                return iLength;
+            default:
+                throw new IllegalArgumentException("Unknown request " + bOp + ".");
+        }
+    }
+
+    /*
+     * Unix domain sockets came with Java 16; the sources target Java 11, so they are reached by reflection.
+     */
+
+    /**
+     * @param pstrPath Path of the socket file.
+     * @return The address of a Unix domain socket.
+     * @throws IOException if the JVM does not support them.
+     */
+    static SocketAddress unixAddress(final String pstrPath) throws IOException {
+        try {
+            return (SocketAddress) Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", String.class).invoke(null, pstrPath);
+        }
+        catch (ReflectiveOperationException e) {
+            throw new IOException("Unix domain sockets need Java 16 or later.", e);
+        }
+    }
+
+    static ServerSocketChannel openUnixServer() throws IOException {
+        return (ServerSocketChannel) openUnix(ServerSocketChannel.class);
+    }
+
+    static SocketChannel openUnixChannel() throws IOException {
+        return (SocketChannel) openUnix(SocketChannel.class);
+    }
+
+    private static Object openUnix(final Class<?> poChannelClass) throws IOException {
+        try {
+            ProtocolFamily oUnix = StandardProtocolFamily.valueOf("UNIX");
+            return poChannelClass.getMethod("open", ProtocolFamily.class).invoke(null, oUnix);
+        }
+        catch (InvocationTargetException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+        catch (IllegalArgumentException | ReflectiveOperationException e) {
+            throw new IOException("Unix domain sockets need Java 16 or later.", e);
+        }
+    }
+}
+
+// EOF
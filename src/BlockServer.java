@@ -0,0 +1,424 @@
+import common.AsyncLogger;
+import common.Metrics;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Class BlockServer
+ * Lets other processes acquire and release blocks of the stack, over TCP (loopback by default)
+ * or a Unix domain socket, with the protocol of BlockProtocol.
+ *
+ * A single thread serves every connection through a Selector. It takes whatever complete requests
+ * a read brought in and answers them all with one write; a run of consecutive ACQUIREs (or RELEASEs)
+ * on a connection goes through one critical section, so a client that pipelines its requests pays
+ * for the mutex once per run rather than once per request. When a client does not read its responses,
+ * the server stops reading its requests.
+ *
+ * Karim Rhoualem
+ * Student 26603157
+ */
+class BlockServer implements AutoCloseable {
+    /*
+     * Declaration of ANSI color codes that are used in the console logs
+     * to improve readability by assigning a color code to each class within the program.
+     */
+    public static final String ANSI_RESET = "\u001B[0m";
+    public static final String ANSI_BLUE = "\u001B[34m";
+
+    private static final int BUFFER_LENGTH = 64 * 1024;
+
+    private static final Metrics.Counter CONNECTIONS = Metrics.counter("server.connections");
+    private static final Metrics.Counter REQUESTS = Metrics.counter("server.requests");
+    private static final Metrics.Counter RUNS = Metrics.counter("server.criticalSections");
+
+    private final Selector oSelector;
+    private final ServerSocketChannel oServer;
+    private final String strUnixPath;
+
+    /**
+     * One client connection
+     */
+    private static final class Connection {
+        private final SocketChannel oChannel;
+
+        /**
+         * Received bytes not parsed yet, in write mode
+         */
+        private final ByteBuffer oIn = ByteBuffer.allocate(BUFFER_LENGTH);
+
+        /**
+         * Responses not sent yet, in write mode
+         */
+        private final ByteBuffer oOut = ByteBuffer.allocate(BUFFER_LENGTH);
+
+        /**
+         * Set after a bad request: the connection closes once its responses are out.
+         */
+        private boolean bClosing = false;
+
+        private Connection(final SocketChannel poChannel) {
+            this.oChannel = poChannel;
+        }
+    }
+
+    /*
+     * Work space of the selector thread for a run of requests
+     */
+    private final char[] acBlocks = new char[BUFFER_LENGTH / 2];
+    private final int[] aiCounts = new int[BUFFER_LENGTH / 3];
+
+    /**
+     * The stack as last seen by a PICK or SNAPSHOT, caught up with the changes since on the next one
+     */
+    private final StackView oView = new StackView(BlockManager.getStackSize());
+
+    /**
+     * Listens on a TCP address.
+     *
+     * @param poAddress Address to bind, e.g. 127.0.0.1:7346.
+     */
+    BlockServer(final InetSocketAddress poAddress) throws IOException {
+        this.oSelector = Selector.open();
+        this.oServer = ServerSocketChannel.open();
+        this.oServer.bind(poAddress);
+        this.strUnixPath = null;
+        register();
+    }
+
+    /**
+     * Listens on a Unix domain socket (Java 16 or later). A socket file left over at that path is removed first.
+     *
+     * @param pstrPath Path of the socket file.
+     */
+    BlockServer(final String pstrPath) throws IOException {
+        this.oSelector = Selector.open();
+        Files.deleteIfExists(Paths.get(pstrPath));
+        this.oServer = BlockProtocol.openUnixServer();
+        this.oServer.bind(BlockProtocol.unixAddress(pstrPath));
+        this.strUnixPath = pstrPath;
+        register();
+    }
+
+    private void register() throws IOException {
+        this.oServer.configureBlocking(false);
+        this.oServer.register(this.oSelector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * Gets the address the server listens on.
+     * @return The address.
+     */
+    SocketAddress getAddress() throws IOException {
+        return this.oServer.getLocalAddress();
+    }
+
+    /**
+     * Serves the clients until close() is called from another thread.
+     */
+    void run() throws IOException {
+        AsyncLogger.println(ANSI_BLUE + "[BlockServer] Listening on " + getAddress() + "." + ANSI_RESET);
+        try {
+            while (this.oSelector.isOpen()) {
+                this.oSelector.select();
+                Iterator<SelectionKey> oKeys = this.oSelector.selectedKeys().iterator();
+                while (oKeys.hasNext()) {
+                    SelectionKey oKey = oKeys.next();
+                    oKeys.remove();
+                    if (!oKey.isValid())
+                        continue;
+
+                    if (oKey.isAcceptable())
+                        accept();
+                    else
+                        serve(oKey);
+                }
+            }
+        }
+        catch (ClosedSelectorException e) {
+            // close() was called
+        }
+    }
+
+    /**
+     * Stops run() and closes every connection.
+     */
+    @Override
+    public void close() throws IOException {
+        List<SelectionKey> aoKeys;
+        try {
+            aoKeys = new ArrayList<>(this.oSelector.keys());
+        }
+        catch (ClosedSelectorException e) {
+            return;
+        }
+        this.oSelector.close();
+        for (SelectionKey oKey : aoKeys)
+            oKey.channel().close();
+        if (this.strUnixPath != null)
+            Files.deleteIfExists(Paths.get(this.strUnixPath));
+    }
+
+    private void accept() throws IOException {
+        SocketChannel oChannel = this.oServer.accept();
+        if (oChannel == null)
+            return;
+
+        oChannel.configureBlocking(false);
+        if (oChannel.getRemoteAddress() instanceof InetSocketAddress)
+            oChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        oChannel.register(this.oSelector, SelectionKey.OP_READ, new Connection(oChannel));
+        CONNECTIONS.increment();
+        AsyncLogger.log(AsyncLogger.Level.DEBUG, ANSI_BLUE + "[BlockServer] Client " + oChannel.getRemoteAddress() + " connected." + ANSI_RESET, true);
+    }
+
+    private void serve(final SelectionKey poKey) {
+        Connection oConnection = (Connection) poKey.attachment();
+        try {
+            if (poKey.isReadable() && oConnection.oChannel.read(oConnection.oIn) < 0) {
+                disconnect(poKey, oConnection);
+                return;
+            }
+
+            // Requests left over for lack of room in the output are answered once some was written
+            flush(oConnection);
+            process(oConnection);
+            flush(oConnection);
+
+            if (oConnection.bClosing && oConnection.oOut.position() == 0) {
+                disconnect(poKey, oConnection);
+                return;
+            }
+
+            int iInterest = 0;
+            if (oConnection.oIn.hasRemaining() && !oConnection.bClosing)
+                iInterest |= SelectionKey.OP_READ;
+            if (oConnection.oOut.position() > 0)
+                iInterest |= SelectionKey.OP_WRITE;
+            poKey.interestOps(iInterest);
+        }
+        catch (IOException e) {
+            AsyncLogger.log(AsyncLogger.Level.WARN, ANSI_BLUE + "[BlockServer] Connection lost: " + e.getMessage() + ANSI_RESET, true);
+            disconnect(poKey, oConnection);
+        }
+        catch (RuntimeException e) {
+            // Whatever goes wrong with one connection must not stop the selector thread for the others
+            AsyncLogger.log(AsyncLogger.Level.ERROR, ANSI_BLUE + "[BlockServer] Connection dropped: " + e + ANSI_RESET, true);
+            disconnect(poKey, oConnection);
+        }
+    }
+
+    private void disconnect(final SelectionKey poKey, final Connection poConnection) {
+        poKey.cancel();
+        try {
+            poConnection.oChannel.close();
+        }
+        catch (IOException e) {
+            // Nothing more to do with it
+        }
+        AsyncLogger.log(AsyncLogger.Level.DEBUG, ANSI_BLUE + "[BlockServer] Client disconnected." + ANSI_RESET, true);
+    }
+
+    private static void flush(final Connection poConnection) throws IOException {
+        ByteBuffer oOut = poConnection.oOut;
+        if (oOut.position() == 0)
+            return;
+
+        oOut.flip();
+        poConnection.oChannel.write(oOut);
+        oOut.compact();
+    }
+
+    /**
+     * Answers the complete requests received, as far as the output has room for the responses.
+     */
+    private void process(final Connection poConnection) {
+        ByteBuffer oIn = poConnection.oIn;
+        ByteBuffer oOut = poConnection.oOut;
+        oIn.flip();
+        try {
+            while (!poConnection.bClosing && oOut.remaining() >= BlockProtocol.MAX_RESPONSE_LENGTH) {
+                int iLength = BlockProtocol.requestLength(oIn);
+                if (iLength == 0)
+                    break;
+
+                switch (oIn.get(oIn.position())) {
+                    case BlockProtocol.ACQUIRE:
+                        acquireRun(oIn, oOut);
+                        break;
+                    case BlockProtocol.RELEASE:
+                        releaseRun(oIn, oOut);
+                        break;
+                    case BlockProtocol.PICK: {
+                        oIn.get();
+                        BlockManager.refresh(this.oView);
+                        int iTop = this.oView.getITop();
+                        oOut.put(BlockProtocol.OK).putChar(iTop < 0 ? IBlockStack.EMPTY_SLOT : this.oView.getAt(iTop));
+                        REQUESTS.increment();
+                        break;
+                    }
+                    default: {
+                        oIn.get();
+                        BlockManager.refresh(this.oView);
+                        oOut.put(BlockProtocol.OK).putShort((short) this.oView.getISize()).putInt(this.oView.getITop());
+                        for (int i = 0; i < this.oView.getISize(); i++)
+                            oOut.putChar(this.oView.getAt(i));
+                        REQUESTS.increment();
+                        break;
+                    }
+                }
+            }
+        }
+        catch (IllegalArgumentException e) {
+            AsyncLogger.log(AsyncLogger.Level.WARN, ANSI_BLUE + "[BlockServer] Bad request: " + e.getMessage() + ANSI_RESET, true);
+            oOut.put(BlockProtocol.BAD_REQUEST);
+            poConnection.bClosing = true;
+        }
+        catch (RuntimeException e) {
+            // E.g. the journal cannot be written: BlockManager has left the mutex, and this connection goes
+            AsyncLogger.log(AsyncLogger.Level.ERROR, ANSI_BLUE + "[BlockServer] Request failed: " + e + ANSI_RESET, true);
+            oOut.put(BlockProtocol.SERVER_ERROR);
+            poConnection.bClosing = true;
+        }
+        oIn.compact();
+    }
+
+    /**
+     * Takes the consecutive complete ACQUIREs at the position of the input whose responses fit in the output,
+     * pops the blocks for all of them at once, and hands them out in request order.
+     */
+    private void acquireRun(final ByteBuffer poIn, final ByteBuffer poOut) {
+        int iRequests = 0;
+        int iWanted = 0;
+        int iRoom = poOut.remaining();
+        while (poIn.remaining() >= 3 && poIn.get(poIn.position()) == BlockProtocol.ACQUIRE) {
+            int iCount = Short.toUnsignedInt(poIn.getShort(poIn.position() + 1));
+            if (iCount > BlockProtocol.MAX_BATCH || 3 + 2 * iCount > iRoom || iWanted + iCount > this.acBlocks.length)
+                break;
+            iRoom -= 3 + 2 * iCount;
+            iWanted += iCount;
+            this.aiCounts[iRequests++] = iCount;
+            poIn.position(poIn.position() + 3);
+        }
+
+        int iTaken = BlockManager.tryAcquire(this.acBlocks, 0, iWanted);
+        RUNS.increment();
+        REQUESTS.add(iRequests);
+
+        int iNext = 0;
+        for (int r = 0; r < iRequests; r++) {
+            int iCount = Math.min(this.aiCounts[r], iTaken - iNext);
+            poOut.put(BlockProtocol.OK).putShort((short) iCount);
+            for (int i = 0; i < iCount; i++)
+                poOut.putChar(this.acBlocks[iNext++]);
+        }
+    }
+
+    /**
+     * Takes the consecutive complete RELEASEs at the position of the input, pushes all their blocks
+     * at once, and tells each request how many of its own went in.
+     */
+    private void releaseRun(final ByteBuffer poIn, final ByteBuffer poOut) {
+        int iRequests = 0;
+        int iBlocks = 0;
+        int iRoom = poOut.remaining();
+        while (isCompleteRelease(poIn) && iRoom >= 3) {
+            int iCount = Short.toUnsignedInt(poIn.getShort(poIn.position() + 1));
+            if (iBlocks + iCount > this.acBlocks.length)
+                break;
+            poIn.position(poIn.position() + 3);
+            for (int i = 0; i < iCount; i++)
+                this.acBlocks[iBlocks++] = poIn.getChar();
+            this.aiCounts[iRequests++] = iCount;
+            iRoom -= 3;
+        }
+
+        int iPushed = BlockManager.tryRelease(this.acBlocks, 0, iBlocks);
+        RUNS.increment();
+        REQUESTS.add(iRequests);
+
+        for (int r = 0; r < iRequests; r++) {
+            int iCount = Math.min(this.aiCounts[r], iPushed);
+            iPushed -= iCount;
+            poOut.put(BlockProtocol.OK).putShort((short) iCount);
+        }
+    }
+
+    /**
+     * @return True if a complete, valid RELEASE is at the position of the input. A bad request is left for process() to reject.
+     */
+    private static boolean isCompleteRelease(final ByteBuffer poIn) {
+        try {
+            return BlockProtocol.requestLength(poIn) > 0 && poIn.get(poIn.position()) == BlockProtocol.RELEASE;
+        }
+        catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Runs a server over the stack of BlockManager.
+     * Usage: BlockServer [--host <address>] [--port <n>] [--unix <path>] [BlockManager options for the stack]
+     */
+    public static void main(String[] argv) {
+        String strHost = "127.0.0.1";
+        int iPort = BlockProtocol.DEFAULT_PORT;
+        String strUnix = null;
+        List<String> astrStackArgs = new ArrayList<>();
+
+        try {
+            for (int i = 0; i < argv.length; i++) {
+                if (i + 1 < argv.length && "--host".equals(argv[i]))
+                    strHost = argv[++i];
+                else if (i + 1 < argv.length && "--port".equals(argv[i]))
+                    iPort = Integer.parseInt(argv[++i]);
+                else if (i + 1 < argv.length && "--unix".equals(argv[i]))
+                    strUnix = argv[++i];
+                else
+                    astrStackArgs.add(argv[i]);
+            }
+            BlockManager.configure(BlockManagerConfig.parse(astrStackArgs.toArray(new String[0])));
+        }
+        catch (IllegalArgumentException | IOException e) {
+            System.err.println("[BlockServer] " + e.getMessage());
+            System.err.println("Usage: BlockServer [--host <address>] [--port <n>] [--unix <path>] [BlockManager options for the stack]");
+            System.exit(1);
+        }
+
+        try {
+            BlockServer oServer = (strUnix != null) ? new BlockServer(strUnix) : new BlockServer(new InetSocketAddress(strHost, iPort));
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    oServer.close();
+                }
+                catch (IOException e) {
+                    // Exiting anyway
+                }
+            }, "BlockServer-close"));
+
+            oServer.run();
+            oServer.close();
+        }
+        catch (IOException e) {
+            AsyncLogger.flush();
+            System.err.println("[BlockServer] " + e.getMessage());
+            System.exit(1);
+        }
+        AsyncLogger.flush();
+    }
+}
+
+// EOF
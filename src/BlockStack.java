@@ -1,3 +1,8 @@
+import common.AsyncLogger;
+
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.LongAdder;
+
 /**
  * Class BlockStack
  * Implements character block stack and operations upon it.
@@ -5,7 +10,7 @@
  * Karim Rhoualem
  * Student 26603157
  */
-class BlockStack {
+class BlockStack implements IBlockStack {
     /*
      * Declaration of ANSI color codes that are used in the console logs
      * to improve readability by assigning a color code to each class within the program.
@@ -24,6 +29,11 @@ class BlockStack {
      */
     private static final int DEFAULT_SIZE = 6;
 
+    /**
+     * Changes kept for refresh(); a view further behind than that copies the whole stack again
+     */
+    private static final int CHANGES_KEPT = 256;
+
     /**
      * Current size of the stack
      */
@@ -42,9 +52,21 @@ class BlockStack {
     private char accessCounterStack[] = new char[]{'a', 'b', 'c', 'd', '*', '*'};
 
     /**
-     * Keeps track of the amount of times that the stack is accessed.
+     * Keeps track of the amount of times that the stack is accessed. Striped, since pick() and
+     * getAt() are also called without the mutex and a plain int would lose counts.
+     */
+    private final LongAdder stackAccessCounter = new LongAdder();
+
+    /**
+     * Write version for snapshot() and refresh(): odd while push() or pop() is changing the stack,
+     * bumped to the next even value once it is done.
+     */
+    private volatile long lVersion = 0;
+
+    /**
+     * Every push and pop, appended within the write that makes it, for refresh()
      */
-    private int stackAccessCounter = 0;
+    private final StackChangeFeed oChanges = new StackChangeFeed(CHANGES_KEPT);
 
     /**
      * Default constructor
@@ -57,7 +79,7 @@ class BlockStack {
      */
     public BlockStack(final int piSize) {
         if (piSize > 28) {
-            System.out.println("Please enter a maximum stack size of 28 in order to" +
+            AsyncLogger.println("Please enter a maximum stack size of 28 in order to" +
                     " to stay within the bounds of the english alphabet.");
             System.exit(0);
         }
@@ -78,52 +100,280 @@ class BlockStack {
         }
     }
 
+    /**
+     * Stack with the given contents, e.g. as rebuilt by BlockJournal.recover()
+     *
+     * @param pacStack The slots; copied.
+     * @param piTop Top position, -1 if the stack is empty.
+     */
+    BlockStack(final char[] pacStack, final int piTop) {
+        this.accessCounterStack = pacStack.clone();
+        this.iSize = pacStack.length;
+        this.iTop = piTop;
+    }
+
     /**
      * Picks a value from the top of the stack without modifying the stack
      *
      * @return top element of the stack, char
      */
+    @Override
     public char pick() {
-        stackAccessCounter++;
+        stackAccessCounter.increment();
+        PICKS.increment();
         return this.accessCounterStack[this.iTop];
     }
 
+    /**
+     * Picks the top of the stack if there is one.
+     * Not atomic by itself: the caller must hold the mutex.
+     *
+     * @return top element of the stack, or EMPTY_SLOT if the stack is empty.
+     */
+    @Override
+    public char tryPick() {
+        return isEmpty() ? EMPTY_SLOT : pick();
+    }
+
     /**
      * Returns arbitrary value from the stack array
      *
      * @return the element, char
      */
+    @Override
     public char getAt(final int piPosition) {
-        stackAccessCounter++;
+        stackAccessCounter.increment();
+        GETS.increment();
         return this.accessCounterStack[piPosition];
     }
 
     /**
-     * Standard push operation
+     * Standard push operation. The bounds are checked before the write begins, so that
+     * a push on a full stack leaves the version even for snapshot() and refresh().
      */
+    @Override
     public void push(final char character) {
+        if (this.iTop + 1 == this.iSize)
+            throw new ArrayIndexOutOfBoundsException(this.iSize);
+
+        long lStart = beginWrite();
         this.accessCounterStack[++this.iTop] = character;
-        System.out.println(ANSI_CYAN + "[BlockStack] " + character + " has been pushed to the stack." + ANSI_RESET);
-        stackAccessCounter++;
+        this.oChanges.append(StackChangeFeed.PUSH, this.iTop, character);
+        endWrite(lStart);
+        AsyncLogger.println(ANSI_CYAN + "[BlockStack] " + character + " has been pushed to the stack." + ANSI_RESET);
+        stackAccessCounter.increment();
+        PUSHES.increment();
     }
 
     /**
-     * Standard pop operation
+     * Standard pop operation. As with push(), a pop on an empty stack throws before the write begins.
      *
      * @return ex-top element of the stack, char
      */
+    @Override
     public char pop() {
+            if (this.iTop < 0)
+                throw new ArrayIndexOutOfBoundsException(-1);
+
+            long lStart = beginWrite();
             char character = this.accessCounterStack[this.iTop];
+            this.oChanges.append(StackChangeFeed.POP, this.iTop, character);
             this.accessCounterStack[this.iTop--] = '*'; // Leave prev. value undefined
-            stackAccessCounter++;
-            System.out.println(ANSI_CYAN + "[BlockStack] " + character + " has been popped from the stack." + ANSI_RESET);
+            endWrite(lStart);
+            stackAccessCounter.increment();
+            POPS.increment();
+            AsyncLogger.println(ANSI_CYAN + "[BlockStack] " + character + " has been popped from the stack." + ANSI_RESET);
             return character;
     }
 
+    /**
+     * Pops up to piMax blocks in one go, top first, as a single change for snapshot() readers.
+     * Not atomic by itself: the caller must hold the mutex.
+     *
+     * @return The number of blocks popped.
+     */
+    @Override
+    public int popN(final char[] pacBuffer, final int piOffset, final int piMax) {
+        int iCount = Math.min(piMax, this.iTop + 1);
+        if (iCount <= 0)
+            return 0;
+
+        long lStart = beginWrite();
+        for (int i = 0; i < iCount; i++) {
+            pacBuffer[piOffset + i] = this.accessCounterStack[this.iTop];
+            this.oChanges.append(StackChangeFeed.POP, this.iTop, pacBuffer[piOffset + i]);
+            this.accessCounterStack[this.iTop--] = '*';
+        }
+        endWrite(lStart);
+        stackAccessCounter.add(iCount);
+        POPS.add(iCount);
+        POP_BATCHES.increment();
+        if (AsyncLogger.isEnabled(AsyncLogger.Level.INFO))
+            AsyncLogger.println(ANSI_CYAN + "[BlockStack] " + new String(pacBuffer, piOffset, iCount) + " have been popped from the stack." + ANSI_RESET);
+        return iCount;
+    }
+
+    /**
+     * Pushes blocks in one go, as a single change for snapshot() readers.
+     * Not atomic by itself: the caller must hold the mutex.
+     *
+     * @return The number of blocks pushed.
+     */
+    @Override
+    public int pushAll(final char[] pacBlocks, final int piOffset, final int piCount) {
+        int iCount = Math.min(piCount, this.iSize - this.iTop - 1);
+        if (iCount <= 0)
+            return 0;
+
+        long lStart = beginWrite();
+        System.arraycopy(pacBlocks, piOffset, this.accessCounterStack, this.iTop + 1, iCount);
+        for (int i = 0; i < iCount; i++)
+            this.oChanges.append(StackChangeFeed.PUSH, this.iTop + 1 + i, pacBlocks[piOffset + i]);
+        this.iTop += iCount;
+        endWrite(lStart);
+        stackAccessCounter.add(iCount);
+        PUSHES.add(iCount);
+        PUSH_BATCHES.increment();
+        if (AsyncLogger.isEnabled(AsyncLogger.Level.INFO))
+            AsyncLogger.println(ANSI_CYAN + "[BlockStack] " + new String(pacBlocks, piOffset, iCount) + " have been pushed to the stack." + ANSI_RESET);
+        return iCount;
+    }
+
+    /**
+     * Copies the whole stack without taking the mutex. Optimistic read: the copy is
+     * retried until no push() or pop() ran while it was being made, so it is always
+     * a state the stack really was in.
+     *
+     * @param pacBuffer Receives the slots; at least getISize() long.
+     * @return The top position of the copied state.
+     */
+    @Override
+    public int snapshot(final char[] pacBuffer) {
+        SNAPSHOTS.increment();
+        while (true) {
+            long lBefore = this.lVersion;
+            if ((lBefore & 1) != 0) {
+                // A writer is halfway through
+                SNAPSHOT_RETRIES.increment();
+                Thread.onSpinWait();
+                continue;
+            }
+
+            int iCopiedTop = this.iTop;
+            System.arraycopy(this.accessCounterStack, 0, pacBuffer, 0, this.iSize);
+
+            // The copy must be read before the version is checked again
+            VarHandle.loadLoadFence();
+            if (this.lVersion == lBefore)
+                return iCopiedTop;
+            SNAPSHOT_RETRIES.increment();
+        }
+    }
+
+    /**
+     * Brings a view up to date without taking the mutex. A view that has seen the stack before gets
+     * the pushes and pops made since, from the change feed; the whole stack is only copied on the
+     * first refresh, or if the view fell more than CHANGES_KEPT changes behind. Either way it is an
+     * optimistic read like snapshot(), retried if a push() or pop() ran meanwhile.
+     *
+     * @param poView The view, of a stack of the same size.
+     * @return True if the view changed. False if the stack is as the view last saw it.
+     */
+    @Override
+    public boolean refresh(final StackView poView) {
+        REFRESHES.increment();
+        while (true) {
+            long lBefore = this.lVersion;
+            if ((lBefore & 1) != 0) {
+                // A writer is halfway through
+                SNAPSHOT_RETRIES.increment();
+                Thread.onSpinWait();
+                continue;
+            }
+
+            long lSeen = poView.getVersion();
+            long lSequence = this.oChanges.getSequence();
+            if (lSeen == lSequence)
+                return false;
+
+            if (lSeen < 0 || lSequence - lSeen > this.oChanges.getCapacity()) {
+                // New or too far behind: copy the whole stack
+                SNAPSHOTS.increment();
+                char[] acSlots = poView.beginLoad();
+                int iCopiedTop = this.iTop;
+                System.arraycopy(this.accessCounterStack, 0, acSlots, 0, this.iSize);
+
+                VarHandle.loadLoadFence();
+                if (this.lVersion == lBefore) {
+                    poView.load(iCopiedTop, lSequence);
+                    return true;
+                }
+            } else {
+                int iCount = this.oChanges.read(lSeen, lSequence, poView.changeBuffer(this.oChanges.getCapacity()));
+
+                // Nothing was overwritten if no writer ran while the changes were copied
+                VarHandle.loadLoadFence();
+                if (this.lVersion == lBefore) {
+                    poView.replay(iCount, lSequence);
+                    REPLAYED.add(iCount);
+                    return true;
+                }
+            }
+            SNAPSHOT_RETRIES.increment();
+        }
+    }
+
+    /**
+     * Marks the start of a change for snapshot() readers.
+     * Only called under the mutex, so there is a single writer.
+     */
+    private long beginWrite() {
+        long lStart = this.lVersion;
+        this.lVersion = lStart + 1;
+        // The changes must not become visible before the odd version
+        VarHandle.storeStoreFence();
+        return lStart;
+    }
+
+    /**
+     * Marks the end of a change; the volatile write publishes the changes before the new version.
+     */
+    private void endWrite(final long plStart) {
+        this.lVersion = plStart + 2;
+    }
+
+    /**
+     * Pops the top of the stack if there is one.
+     * Not atomic by itself: the caller must hold the mutex.
+     *
+     * @return ex-top element of the stack, or EMPTY_SLOT if the stack was empty.
+     */
+    @Override
+    public char tryPop() {
+        return isEmpty() ? EMPTY_SLOT : pop();
+    }
+
+    /**
+     * Pushes the block following the current top if the stack is neither empty nor full.
+     * Not atomic by itself: the caller must hold the mutex.
+     *
+     * @return the pushed block, or EMPTY_SLOT if nothing was pushed.
+     */
+    @Override
+    public char tryPushNext() {
+        if (isEmpty() || isFull())
+            return EMPTY_SLOT;
+
+        char character = (char) (pick() + 1);
+        push(character);
+        return character;
+    }
+
     /**
      * Gets the current top position of the stack.
      * @return Integer for the top position of the stack.
      */
+    @Override
     public int getITop() {
         return iTop;
     }
@@ -132,6 +382,7 @@ class BlockStack {
      * Gets the size of the stack.
      * @return Integer representing the size of the stack.
      */
+    @Override
     public int getISize() {
         return iSize;
     }
@@ -140,18 +391,25 @@ class BlockStack {
      * Gets the number of times that the stack was accessed.
      * @return An integer value representing the number of stack accesses.
      */
+    @Override
     public int getStackAccessCounter() {
-        return stackAccessCounter;
+        return stackAccessCounter.intValue();
     }
 
     /**
      * Checks if the stack is currently empty.
      * @return True if the stack is empty. False if it is not.
      */
+    @Override
     public boolean isEmpty() {
         return this.iTop == -1;
     }
 
+    /**
+     * Checks if the stack is currently full.
+     * @return True if the stack is full. False if it is not.
+     */
+    @Override
     public boolean isFull() {
         return (this.iTop + 1) == this.iSize;
     }
@@ -160,9 +418,19 @@ class BlockStack {
      * Gets the current access counter stack.
      * @return The character array access counter stack.
      */
+    @Override
     public char[] getAccessCounterStack() {
         return accessCounterStack;
     }
+
+    /**
+     * This stack relies on the caller's mutex.
+     * @return Always false.
+     */
+    @Override
+    public boolean isConcurrent() {
+        return false;
+    }
 }
 
 // EOF
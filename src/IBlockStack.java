@@ -0,0 +1,167 @@
+import common.Metrics;
+
+/**
+ * Interface IBlockStack
+ * Common operations of a character block stack, so that BlockManager can work
+ * with any of its implementations.
+ *
+ * Karim Rhoualem
+ * Student 26603157
+ */
+interface IBlockStack {
+    /**
+     * Character stored in a slot that does not hold a block.
+     */
+    char EMPTY_SLOT = '*';
+
+    /*
+     * Operation counts, shared by all the implementations (see common.Metrics; free when metrics are off).
+     * Pushes and pops count blocks, including those moved by pushAll() and popN().
+     */
+    Metrics.Counter PICKS = Metrics.counter("stack.pick");
+    Metrics.Counter GETS = Metrics.counter("stack.getAt");
+    Metrics.Counter PUSHES = Metrics.counter("stack.push");
+    Metrics.Counter POPS = Metrics.counter("stack.pop");
+    Metrics.Counter PUSH_BATCHES = Metrics.counter("stack.pushAll");
+    Metrics.Counter POP_BATCHES = Metrics.counter("stack.popN");
+    Metrics.Counter SNAPSHOTS = Metrics.counter("stack.snapshot");
+    Metrics.Counter SNAPSHOT_RETRIES = Metrics.counter("stack.snapshot.retries");
+    Metrics.Counter REFRESHES = Metrics.counter("stack.refresh");
+    Metrics.Counter REPLAYED = Metrics.counter("stack.refresh.replayed");
+
+    /**
+     * Picks a value from the top of the stack without modifying the stack
+     *
+     * @return top element of the stack, char
+     */
+    char pick();
+
+    /**
+     * Picks the top of the stack if there is one, as a single atomic step.
+     *
+     * @return top element of the stack, or EMPTY_SLOT if the stack is empty.
+     */
+    char tryPick();
+
+    /**
+     * Returns arbitrary value from the stack array
+     *
+     * @return the element, char
+     */
+    char getAt(final int piPosition);
+
+    /**
+     * Standard push operation
+     */
+    void push(final char character);
+
+    /**
+     * Standard pop operation
+     *
+     * @return ex-top element of the stack, char
+     */
+    char pop();
+
+    /**
+     * Pops the top of the stack if there is one, as a single atomic step.
+     *
+     * @return ex-top element of the stack, or EMPTY_SLOT if the stack was empty.
+     */
+    char tryPop();
+
+    /**
+     * Pops up to piMax blocks in one go, top first, into a buffer supplied by the caller.
+     * Stops early if the stack runs out of blocks.
+     *
+     * @param pacBuffer Receives the blocks.
+     * @param piOffset Where the first block goes in pacBuffer.
+     * @param piMax Most blocks to pop.
+     * @return The number of blocks popped.
+     */
+    int popN(final char[] pacBuffer, final int piOffset, final int piMax);
+
+    /**
+     * Pushes blocks from a buffer in one go, in buffer order, as long as the stack has room.
+     *
+     * @param pacBlocks The blocks.
+     * @param piOffset Position of the first block in pacBlocks.
+     * @param piCount Number of blocks to push.
+     * @return The number of blocks pushed.
+     */
+    int pushAll(final char[] pacBlocks, final int piOffset, final int piCount);
+
+    /**
+     * Pushes the block following the current top (top + 1) as a single atomic step.
+     * Nothing is pushed if the stack is empty or full.
+     *
+     * @return the pushed block, or EMPTY_SLOT if nothing was pushed.
+     */
+    char tryPushNext();
+
+    /**
+     * Copies the slots of the stack as they were at one instant, without taking the mutex
+     * and without holding up push() and pop(). Not counted as a stack access.
+     *
+     * @param pacBuffer Receives the slots; at least getISize() long.
+     * @return The top position of the copied state.
+     */
+    int snapshot(final char[] pacBuffer);
+
+    /**
+     * Brings a view of the stack up to date, like snapshot() without the mutex.
+     * This default copies the whole stack every time; stacks with a change feed only hand over what changed.
+     *
+     * @param poView The view, of a stack of the same size.
+     * @return True if the view may have changed. False if the stack is as the view last saw it.
+     */
+    default boolean refresh(final StackView poView) {
+        REFRESHES.increment();
+        int iTop = snapshot(poView.beginLoad());
+        poView.load(iTop, -1);
+        return true;
+    }
+
+    /**
+     * Gets the current top position of the stack.
+     * @return Integer for the top position of the stack.
+     */
+    int getITop();
+
+    /**
+     * Gets the size of the stack.
+     * @return Integer representing the size of the stack.
+     */
+    int getISize();
+
+    /**
+     * Gets the number of times that the stack was accessed.
+     * @return An integer value representing the number of stack accesses.
+     */
+    int getStackAccessCounter();
+
+    /**
+     * Checks if the stack is currently empty.
+     * @return True if the stack is empty. False if it is not.
+     */
+    boolean isEmpty();
+
+    /**
+     * Checks if the stack is currently full.
+     * @return True if the stack is full. False if it is not.
+     */
+    boolean isFull();
+
+    /**
+     * Gets the current access counter stack.
+     * @return The character array access counter stack.
+     */
+    char[] getAccessCounterStack();
+
+    /**
+     * Tells whether the stack may be used by several threads at once without an external mutex.
+     * @return True if the implementation synchronizes itself. False if callers must hold a mutex.
+     */
+    boolean isConcurrent();
+}
+
+// EOF
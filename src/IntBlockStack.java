@@ -0,0 +1,350 @@
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Class IntBlockStack
+ * Block stack for large pools: blocks are int IDs (0 and up) in a flat int array, which
+ * doubles when it runs out of room, up to the capacity of the stack.
+ *
+ * Unlike BlockStack there is no empty-slot character: the blocks are the first getSize()
+ * entries of the array, nothing above. Misuse is reported with exceptions rather than by
+ * ending the JVM. LetterBlockStack shows a small one through the letter-based IBlockStack.
+ *
+ * Not synchronized, except for snapshot(): callers hold the mutex.
+ *
+ * Karim Rhoualem
+ * Student 26603157
+ */
+class IntBlockStack {
+    /**
+     * Returned by tryPop() and tryPeek() when the stack is empty.
+     */
+    static final int NO_BLOCK = -1;
+
+    /**
+     * Largest capacity; also the largest array the JVM reliably allocates.
+     */
+    static final int MAX_CAPACITY = Integer.MAX_VALUE - 8;
+
+    /**
+     * Length of the array before the first growth
+     */
+    private static final int INITIAL_LENGTH = 16;
+
+    /**
+     * Most blocks the stack may hold
+     */
+    private final int iCapacity;
+
+    /**
+     * The blocks, bottom first; only the first iCount entries are used.
+     */
+    private int[] aiBlocks;
+
+    /**
+     * Number of blocks
+     */
+    private int iCount = 0;
+
+    /**
+     * Keeps track of the amount of times that the stack is accessed.
+     */
+    private final LongAdder stackAccessCounter = new LongAdder();
+
+    /**
+     * Write version for snapshot(), as in BlockStack: odd while the stack is being changed.
+     */
+    private volatile long lVersion = 0;
+
+    /**
+     * Empty stack of (practically) unbounded capacity.
+     */
+    IntBlockStack() {
+        this(MAX_CAPACITY);
+    }
+
+    /**
+     * Empty stack.
+     *
+     * @param piCapacity Most blocks it may hold.
+     * @throws IllegalArgumentException if the capacity is not between 1 and MAX_CAPACITY.
+     */
+    IntBlockStack(final int piCapacity) {
+        if (piCapacity < 1 || piCapacity > MAX_CAPACITY)
+            throw new IllegalArgumentException("Capacity must be between 1 and " + MAX_CAPACITY + ": " + piCapacity);
+
+        this.iCapacity = piCapacity;
+        this.aiBlocks = new int[Math.min(piCapacity, INITIAL_LENGTH)];
+    }
+
+    /**
+     * Stack holding blocks 0 to piBlocks - 1, the last one on top: a pool none of whose blocks is in use.
+     *
+     * @param piCapacity Most blocks it may hold.
+     * @param piBlocks Number of blocks to start with.
+     * @throws IllegalArgumentException if the capacity is not between 1 and MAX_CAPACITY, or the blocks do not fit.
+     */
+    IntBlockStack(final int piCapacity, final int piBlocks) {
+        this(piCapacity);
+        if (piBlocks < 0 || piBlocks > piCapacity)
+            throw new IllegalArgumentException(piBlocks + " blocks do not fit in a capacity of " + piCapacity + ".");
+
+        this.aiBlocks = new int[Math.max(this.aiBlocks.length, piBlocks)];
+        for (int i = 0; i < piBlocks; i++)
+            this.aiBlocks[i] = i;
+        this.iCount = piBlocks;
+    }
+
+    /**
+     * Pushes a block.
+     *
+     * @param piBlock The block ID, 0 or more.
+     * @throws IllegalArgumentException if the ID is negative.
+     * @throws IllegalStateException if the stack is full.
+     */
+    void push(final int piBlock) {
+        if (!tryPush(piBlock))
+            throw new IllegalStateException("The stack is full: " + this.iCapacity + " blocks.");
+    }
+
+    /**
+     * Pushes a block if there is room.
+     *
+     * @param piBlock The block ID, 0 or more.
+     * @return False if the stack was full.
+     * @throws IllegalArgumentException if the ID is negative.
+     */
+    boolean tryPush(final int piBlock) {
+        if (piBlock < 0)
+            throw new IllegalArgumentException("Block IDs cannot be negative: " + piBlock);
+        if (this.iCount == this.iCapacity)
+            return false;
+
+        long lStart = beginWrite();
+        ensureLength(this.iCount + 1);
+        this.aiBlocks[this.iCount++] = piBlock;
+        endWrite(lStart);
+
+        stackAccessCounter.increment();
+        IBlockStack.PUSHES.increment();
+        return true;
+    }
+
+    /**
+     * Pops the top block.
+     *
+     * @return The block.
+     * @throws NoSuchElementException if the stack is empty.
+     */
+    int pop() {
+        int iBlock = tryPop();
+        if (iBlock == NO_BLOCK)
+            throw new NoSuchElementException("The stack is empty.");
+        return iBlock;
+    }
+
+    /**
+     * Pops the top block if there is one.
+     *
+     * @return The block, or NO_BLOCK if the stack was empty.
+     */
+    int tryPop() {
+        if (this.iCount == 0)
+            return NO_BLOCK;
+
+        long lStart = beginWrite();
+        int iBlock = this.aiBlocks[--this.iCount];
+        endWrite(lStart);
+
+        stackAccessCounter.increment();
+        IBlockStack.POPS.increment();
+        return iBlock;
+    }
+
+    /**
+     * Gets the top block without popping it.
+     *
+     * @return The block.
+     * @throws NoSuchElementException if the stack is empty.
+     */
+    int peek() {
+        int iBlock = tryPeek();
+        if (iBlock == NO_BLOCK)
+            throw new NoSuchElementException("The stack is empty.");
+        return iBlock;
+    }
+
+    /**
+     * Gets the top block without popping it, if there is one.
+     *
+     * @return The block, or NO_BLOCK if the stack is empty.
+     */
+    int tryPeek() {
+        stackAccessCounter.increment();
+        IBlockStack.PICKS.increment();
+        return (this.iCount == 0) ? NO_BLOCK : this.aiBlocks[this.iCount - 1];
+    }
+
+    /**
+     * Gets the block at a position, 0 being the bottom.
+     *
+     * @param piPosition The position.
+     * @return The block.
+     * @throws IndexOutOfBoundsException if there is no block there.
+     */
+    int get(final int piPosition) {
+        stackAccessCounter.increment();
+        IBlockStack.GETS.increment();
+        return this.aiBlocks[Objects.checkIndex(piPosition, this.iCount)];
+    }
+
+    /**
+     * Pops up to piMax blocks in one go, top first.
+     *
+     * @param paiBuffer Receives the blocks.
+     * @param piOffset Where the first block goes in paiBuffer.
+     * @param piMax Most blocks to pop.
+     * @return The number of blocks popped.
+     */
+    int popN(final int[] paiBuffer, final int piOffset, final int piMax) {
+        int iPopped = Math.min(piMax, this.iCount);
+        if (iPopped <= 0)
+            return 0;
+
+        long lStart = beginWrite();
+        for (int i = 0; i < iPopped; i++)
+            paiBuffer[piOffset + i] = this.aiBlocks[this.iCount - 1 - i];
+        this.iCount -= iPopped;
+        endWrite(lStart);
+
+        stackAccessCounter.add(iPopped);
+        IBlockStack.POPS.add(iPopped);
+        IBlockStack.POP_BATCHES.increment();
+        return iPopped;
+    }
+
+    /**
+     * Pushes blocks in one go, in buffer order, as long as there is room. The array grows once at most.
+     *
+     * @param paiBlocks The blocks.
+     * @param piOffset Position of the first block in paiBlocks.
+     * @param piCount Number of blocks to push.
+     * @return The number of blocks pushed.
+     * @throws IllegalArgumentException if one of the IDs is negative; nothing is pushed then.
+     */
+    int pushAll(final int[] paiBlocks, final int piOffset, final int piCount) {
+        int iPushed = Math.min(piCount, this.iCapacity - this.iCount);
+        if (iPushed <= 0)
+            return 0;
+        for (int i = 0; i < iPushed; i++) {
+            if (paiBlocks[piOffset + i] < 0)
+                throw new IllegalArgumentException("Block IDs cannot be negative: " + paiBlocks[piOffset + i]);
+        }
+
+        long lStart = beginWrite();
+        ensureLength(this.iCount + iPushed);
+        System.arraycopy(paiBlocks, piOffset, this.aiBlocks, this.iCount, iPushed);
+        this.iCount += iPushed;
+        endWrite(lStart);
+
+        stackAccessCounter.add(iPushed);
+        IBlockStack.PUSHES.add(iPushed);
+        IBlockStack.PUSH_BATCHES.increment();
+        return iPushed;
+    }
+
+    /**
+     * Copies the blocks as they were at one instant, bottom first, without the mutex.
+     *
+     * @param paiBuffer Receives the blocks; the ones that do not fit are left out.
+     * @return The number of blocks the stack held, which may be more than were copied.
+     */
+    int snapshot(final int[] paiBuffer) {
+        IBlockStack.SNAPSHOTS.increment();
+        while (true) {
+            long lBefore = this.lVersion;
+            if ((lBefore & 1) != 0) {
+                // A writer is halfway through
+                IBlockStack.SNAPSHOT_RETRIES.increment();
+                Thread.onSpinWait();
+                continue;
+            }
+
+            int iCopiedCount = this.iCount;
+            int[] aiCopied = this.aiBlocks;
+            System.arraycopy(aiCopied, 0, paiBuffer, 0, Math.min(iCopiedCount, Math.min(paiBuffer.length, aiCopied.length)));
+
+            // The copy must be read before the version is checked again
+            VarHandle.loadLoadFence();
+            if (this.lVersion == lBefore)
+                return iCopiedCount;
+            IBlockStack.SNAPSHOT_RETRIES.increment();
+        }
+    }
+
+    /**
+     * Grows the array, by doubling it, to hold at least piLength blocks. Amortized O(1) per push.
+     */
+    private void ensureLength(final int piLength) {
+        if (piLength <= this.aiBlocks.length)
+            return;
+
+        long lDoubled = 2L * this.aiBlocks.length;
+        this.aiBlocks = Arrays.copyOf(this.aiBlocks, (int) Math.min(this.iCapacity, Math.max(piLength, lDoubled)));
+    }
+
+    /**
+     * Marks the start of a change for snapshot() readers. Only called under the mutex.
+     */
+    private long beginWrite() {
+        long lStart = this.lVersion;
+        this.lVersion = lStart + 1;
+        // The changes must not become visible before the odd version
+        VarHandle.storeStoreFence();
+        return lStart;
+    }
+
+    /**
+     * Marks the end of a change; the volatile write publishes the changes before the new version.
+     */
+    private void endWrite(final long plStart) {
+        this.lVersion = plStart + 2;
+    }
+
+    /**
+     * Gets the number of blocks in the stack.
+     * @return The number of blocks.
+     */
+    int getSize() {
+        return this.iCount;
+    }
+
+    /**
+     * Gets the most blocks the stack may hold.
+     * @return The capacity.
+     */
+    int getCapacity() {
+        return this.iCapacity;
+    }
+
+    boolean isEmpty() {
+        return this.iCount == 0;
+    }
+
+    boolean isFull() {
+        return this.iCount == this.iCapacity;
+    }
+
+    /**
+     * Gets the number of times that the stack was accessed.
+     * @return The number of stack accesses.
+     */
+    long getStackAccessCounter() {
+        return stackAccessCounter.sum();
+    }
+}
+
+// EOF
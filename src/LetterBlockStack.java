@@ -0,0 +1,286 @@
+import common.AsyncLogger;
+
+/**
+ * Class LetterBlockStack
+ * The letter-based IBlockStack over an IntBlockStack, for small pools: block i is the
+ * letter 'a' + i, and the slots above the top read as EMPTY_SLOT.
+ *
+ * Not synchronized, except for snapshot(): callers hold the mutex.
+ *
+ * Karim Rhoualem
+ * Student 26603157
+ */
+class LetterBlockStack implements IBlockStack {
+    /*
+     * Declaration of ANSI color codes that are used in the console logs
+     * to improve readability by assigning a color code to each class within the program.
+     */
+    public static final String ANSI_RESET = "\u001B[0m";
+    public static final String ANSI_CYAN = "\u001B[36m";
+
+    /**
+     * # of letters in the English alphabet + 2
+     */
+    private static final int MAX_SIZE = 28;
+
+    /**
+     * Default stack size
+     */
+    private static final int DEFAULT_SIZE = 6;
+
+    /**
+     * The blocks
+     */
+    private final IntBlockStack oBlocks;
+
+    /**
+     * Block IDs on their way to or from oBlocks in popN() and pushAll(). Those run under the mutex,
+     * one at a time, so a single buffer serves them all, and the batches allocate nothing.
+     */
+    private final int[] aiScratch;
+
+    /**
+     * The same for snapshot(), which readers call without the mutex: one buffer per reader thread
+     */
+    private final ThreadLocal<int[]> oSnapshotBuffers;
+
+    /**
+     * Default constructor: a, b, c, d and two free slots, like BlockStack.
+     */
+    public LetterBlockStack() {
+        this(DEFAULT_SIZE);
+    }
+
+    /**
+     * Stack of the given size with a, b, c, ... and two free slots.
+     *
+     * @param piSize Size of the stack.
+     * @throws IllegalArgumentException if the size is out of the range the letters cover.
+     */
+    public LetterBlockStack(final int piSize) {
+        if (piSize < 3 || piSize > MAX_SIZE)
+            throw new IllegalArgumentException("Please enter a stack size between 3 and 28 in order to" +
+                    " to stay within the bounds of the english alphabet.");
+
+        this.oBlocks = new IntBlockStack(piSize, piSize - 2);
+        this.aiScratch = new int[piSize];
+        this.oSnapshotBuffers = ThreadLocal.withInitial(() -> new int[piSize]);
+    }
+
+    /**
+     * Gets the stack of block IDs behind the letters.
+     * @return The stack.
+     */
+    IntBlockStack getBlocks() {
+        return this.oBlocks;
+    }
+
+    private static char letter(final int piBlock) {
+        return (piBlock == IntBlockStack.NO_BLOCK) ? EMPTY_SLOT : (char) ('a' + piBlock);
+    }
+
+    private static int block(final char pcLetter) {
+        if (pcLetter < 'a')
+            throw new IllegalArgumentException("Not a block: " + pcLetter);
+        return pcLetter - 'a';
+    }
+
+    /**
+     * Picks a value from the top of the stack without modifying the stack
+     *
+     * @return top element of the stack, char
+     */
+    @Override
+    public char pick() {
+        return letter(this.oBlocks.peek());
+    }
+
+    /**
+     * Picks the top of the stack if there is one.
+     * Not atomic by itself: the caller must hold the mutex.
+     *
+     * @return top element of the stack, or EMPTY_SLOT if the stack is empty.
+     */
+    @Override
+    public char tryPick() {
+        return letter(this.oBlocks.tryPeek());
+    }
+
+    /**
+     * Returns arbitrary value from the stack array; EMPTY_SLOT above the top.
+     *
+     * @return the element, char
+     */
+    @Override
+    public char getAt(final int piPosition) {
+        if (piPosition < 0 || piPosition >= getISize())
+            throw new ArrayIndexOutOfBoundsException(piPosition);
+        return (piPosition < this.oBlocks.getSize()) ? letter(this.oBlocks.get(piPosition)) : EMPTY_SLOT;
+    }
+
+    /**
+     * Standard push operation
+     */
+    @Override
+    public void push(final char character) {
+        this.oBlocks.push(block(character));
+        AsyncLogger.println(ANSI_CYAN + "[BlockStack] " + character + " has been pushed to the stack." + ANSI_RESET);
+    }
+
+    /**
+     * Standard pop operation
+     *
+     * @return ex-top element of the stack, char
+     */
+    @Override
+    public char pop() {
+        char character = letter(this.oBlocks.pop());
+        AsyncLogger.println(ANSI_CYAN + "[BlockStack] " + character + " has been popped from the stack." + ANSI_RESET);
+        return character;
+    }
+
+    /**
+     * Pops the top of the stack if there is one.
+     * Not atomic by itself: the caller must hold the mutex.
+     *
+     * @return ex-top element of the stack, or EMPTY_SLOT if the stack was empty.
+     */
+    @Override
+    public char tryPop() {
+        return isEmpty() ? EMPTY_SLOT : pop();
+    }
+
+    /**
+     * Pops up to piMax blocks, top first, in one change of the stack.
+     * Not atomic by itself: the caller must hold the mutex.
+     *
+     * @return The number of blocks popped.
+     */
+    @Override
+    public int popN(final char[] pacBuffer, final int piOffset, final int piMax) {
+        int iPopped = this.oBlocks.popN(this.aiScratch, 0, Math.min(piMax, this.aiScratch.length));
+        for (int i = 0; i < iPopped; i++)
+            pacBuffer[piOffset + i] = letter(this.aiScratch[i]);
+
+        if (iPopped > 0 && AsyncLogger.isEnabled(AsyncLogger.Level.INFO))
+            AsyncLogger.println(ANSI_CYAN + "[BlockStack] " + new String(pacBuffer, piOffset, iPopped) + " have been popped from the stack." + ANSI_RESET);
+        return iPopped;
+    }
+
+    /**
+     * Pushes blocks in buffer order, in one change of the stack.
+     * Not atomic by itself: the caller must hold the mutex.
+     *
+     * @return The number of blocks pushed.
+     */
+    @Override
+    public int pushAll(final char[] pacBlocks, final int piOffset, final int piCount) {
+        // Every block is checked before any is pushed
+        int iCount = Math.max(0, Math.min(piCount, getISize() - this.oBlocks.getSize()));
+        for (int i = 0; i < iCount; i++)
+            this.aiScratch[i] = block(pacBlocks[piOffset + i]);
+        int iPushed = this.oBlocks.pushAll(this.aiScratch, 0, iCount);
+
+        if (iPushed > 0 && AsyncLogger.isEnabled(AsyncLogger.Level.INFO))
+            AsyncLogger.println(ANSI_CYAN + "[BlockStack] " + new String(pacBlocks, piOffset, iPushed) + " have been pushed to the stack." + ANSI_RESET);
+        return iPushed;
+    }
+
+    /**
+     * Pushes the block following the current top if the stack is neither empty nor full.
+     * Not atomic by itself: the caller must hold the mutex.
+     *
+     * @return the pushed block, or EMPTY_SLOT if nothing was pushed.
+     */
+    @Override
+    public char tryPushNext() {
+        if (isEmpty() || isFull())
+            return EMPTY_SLOT;
+
+        char character = (char) (pick() + 1);
+        push(character);
+        return character;
+    }
+
+    /**
+     * Copies the stack without the mutex; slots above the top read as EMPTY_SLOT.
+     *
+     * @param pacBuffer Receives the slots; at least getISize() long.
+     * @return The top position of the copied state.
+     */
+    @Override
+    public int snapshot(final char[] pacBuffer) {
+        int[] aiBlocks = this.oSnapshotBuffers.get();
+        int iCount = this.oBlocks.snapshot(aiBlocks);
+        for (int i = 0; i < aiBlocks.length; i++)
+            pacBuffer[i] = (i < iCount) ? letter(aiBlocks[i]) : EMPTY_SLOT;
+        return iCount - 1;
+    }
+
+    /**
+     * Gets the current top position of the stack.
+     * @return Integer for the top position of the stack.
+     */
+    @Override
+    public int getITop() {
+        return this.oBlocks.getSize() - 1;
+    }
+
+    /**
+     * Gets the size of the stack.
+     * @return Integer representing the size of the stack.
+     */
+    @Override
+    public int getISize() {
+        return this.oBlocks.getCapacity();
+    }
+
+    /**
+     * Gets the number of times that the stack was accessed.
+     * @return An integer value representing the number of stack accesses.
+     */
+    @Override
+    public int getStackAccessCounter() {
+        return (int) this.oBlocks.getStackAccessCounter();
+    }
+
+    /**
+     * Checks if the stack is currently empty.
+     * @return True if the stack is empty. False if it is not.
+     */
+    @Override
+    public boolean isEmpty() {
+        return this.oBlocks.isEmpty();
+    }
+
+    /**
+     * Checks if the stack is currently full.
+     * @return True if the stack is full. False if it is not.
+     */
+    @Override
+    public boolean isFull() {
+        return this.oBlocks.isFull();
+    }
+
+    /**
+     * Gets a copy of the current stack.
+     * @return The character array access counter stack.
+     */
+    @Override
+    public char[] getAccessCounterStack() {
+        char[] acStack = new char[getISize()];
+        snapshot(acStack);
+        return acStack;
+    }
+
+    /**
+     * This stack relies on the caller's mutex.
+     * @return Always false.
+     */
+    @Override
+    public boolean isConcurrent() {
+        return false;
+    }
+}
+
+// EOF
@@ -0,0 +1,514 @@
+import common.AsyncLogger;
+import common.Metrics;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Class LockFreeBlockStack
+ * Implements the character block stack without any lock, so that acquirers
+ * and releasers do not have to serialize on BlockManager's mutex.
+ *
+ * The top of the stack is a descriptor swapped with CAS. Each descriptor also carries
+ * the single slot write that goes with it; any thread that sees a descriptor finishes
+ * that write before installing the next one. Slots are stamped with a version so that
+ * a late helper can never replay an old write. When the CAS on the top keeps failing,
+ * push and pop meet in an elimination array and cancel out without touching the stack.
+ *
+ * Karim Rhoualem
+ * Student 26603157
+ */
+class LockFreeBlockStack implements IBlockStack {
+    /*
+     * Declaration of ANSI color codes that are used in the console logs
+     * to improve readability by assigning a color code to each class within the program.
+     */
+    public static final String ANSI_RESET = "\u001B[0m";
+    public static final String ANSI_CYAN = "\u001B[36m";
+
+    /**
+     * # of letters in the English alphabet + 2
+     */
+    private static final int MAX_SIZE = 28;
+
+    /**
+     * Default stack size
+     */
+    private static final int DEFAULT_SIZE = 6;
+
+    /**
+     * Number of slots in the elimination array
+     */
+    private static final int ELIMINATION_SLOTS = 4;
+
+    /**
+     * How many times a push offer is checked before it is withdrawn
+     */
+    private static final int ELIMINATION_SPINS = 64;
+
+    /**
+     * A top position together with the slot write that produced it.
+     */
+    private static final class State {
+        final int iTop;
+        final int iIndex;
+        final long lOld;
+        final long lNew;
+
+        State(final int piTop, final int piIndex, final long plOld, final long plNew) {
+            this.iTop = piTop;
+            this.iIndex = piIndex;
+            this.lOld = plOld;
+            this.lNew = plNew;
+        }
+    }
+
+    /**
+     * A pushed block waiting in the elimination array for a pop to take it.
+     */
+    private static final class Offer {
+        final char cBlock;
+
+        Offer(final char pcBlock) {
+            this.cBlock = pcBlock;
+        }
+    }
+
+    /**
+     * Size of the stack
+     */
+    private final int iSize;
+
+    /**
+     * Slots of the stack, each one packed as (version << 16) | character.
+     */
+    private final AtomicLongArray accessCounterStack;
+
+    /**
+     * Current top descriptor
+     */
+    private final AtomicReference<State> oTop;
+
+    /**
+     * Where pushes and pops meet when the top is contended
+     */
+    private final EliminationArray aoElimination = new EliminationArray(ELIMINATION_SLOTS);
+
+    /**
+     * Keeps track of the amount of times that the stack is accessed.
+     */
+    private final LongAdder stackAccessCounter = new LongAdder();
+
+    /**
+     * Failed CAS on the top, and blocks that went through the elimination array instead.
+     */
+    private static final Metrics.Counter CAS_FAILURES = Metrics.counter("stack.lockfree.casFailures");
+    private static final Metrics.Counter ELIMINATED = Metrics.counter("stack.lockfree.eliminated");
+
+    /**
+     * Default constructor: a, b, c, d and two free blocks.
+     */
+    public LockFreeBlockStack() {
+        this(DEFAULT_SIZE);
+    }
+
+    /**
+     * Supplied size for process i
+     */
+    public LockFreeBlockStack(final int piSize) {
+        if (piSize > MAX_SIZE) {
+            AsyncLogger.println("Please enter a maximum stack size of 28 in order to" +
+                    " to stay within the bounds of the english alphabet.");
+            System.exit(0);
+        }
+
+        this.iSize = piSize;
+        this.accessCounterStack = new AtomicLongArray(piSize);
+
+        // Fill in with letters of the alphabet and keep 2 free blocks
+        for (int i = 0; i < piSize - 2; i++)
+            this.accessCounterStack.set(i, 'a' + i);
+
+        this.accessCounterStack.set(piSize - 2, EMPTY_SLOT);
+        this.accessCounterStack.set(piSize - 1, EMPTY_SLOT);
+
+        this.oTop = new AtomicReference<>(new State(piSize - 3, -1, 0, 0));
+    }
+
+    /**
+     * Finishes the slot write of a descriptor. Harmless if it was already done.
+     */
+    private void help(final State poState) {
+        if (poState.iIndex >= 0)
+            this.accessCounterStack.compareAndSet(poState.iIndex, poState.lOld, poState.lNew);
+    }
+
+    /**
+     * Gets the current descriptor with its slot write completed.
+     */
+    private State current() {
+        State oState = this.oTop.get();
+        help(oState);
+        return oState;
+    }
+
+    private static char charOf(final long plSlot) {
+        return (char) (plSlot & 0xFFFF);
+    }
+
+    private static long stamp(final long plOld, final char pcNew) {
+        return ((plOld >>> 16) + 1) << 16 | pcNew;
+    }
+
+    /**
+     * Reads a slot as it is in the current descriptor.
+     */
+    private char read(final int piPosition) {
+        while (true) {
+            State oState = current();
+            char character = charOf(this.accessCounterStack.get(piPosition));
+            if (this.oTop.get() == oState)
+                return character;
+        }
+    }
+
+    /**
+     * Picks a value from the top of the stack without modifying the stack
+     *
+     * @return top element of the stack, char
+     */
+    @Override
+    public char pick() {
+        char character = tryPick();
+        if (character == EMPTY_SLOT)
+            throw new ArrayIndexOutOfBoundsException(-1);
+        return character;
+    }
+
+    /**
+     * Picks the top of the stack if there is one.
+     *
+     * @return top element of the stack, or EMPTY_SLOT if the stack is empty.
+     */
+    @Override
+    public char tryPick() {
+        stackAccessCounter.increment();
+        PICKS.increment();
+        while (true) {
+            State oState = current();
+            if (oState.iTop < 0)
+                return EMPTY_SLOT;
+
+            char character = charOf(this.accessCounterStack.get(oState.iTop));
+            if (this.oTop.get() == oState)
+                return character;
+        }
+    }
+
+    /**
+     * Returns arbitrary value from the stack array
+     *
+     * @return the element, char
+     */
+    @Override
+    public char getAt(final int piPosition) {
+        stackAccessCounter.increment();
+        GETS.increment();
+        return read(piPosition);
+    }
+
+    /**
+     * Standard push operation
+     */
+    @Override
+    public void push(final char character) {
+        if (!tryPush(character))
+            throw new ArrayIndexOutOfBoundsException(this.iSize);
+    }
+
+    /**
+     * Standard pop operation
+     *
+     * @return ex-top element of the stack, char
+     */
+    @Override
+    public char pop() {
+        char character = tryPop();
+        if (character == EMPTY_SLOT)
+            throw new ArrayIndexOutOfBoundsException(-1);
+        return character;
+    }
+
+    /**
+     * Pops the top of the stack if there is one.
+     *
+     * @return ex-top element of the stack, or EMPTY_SLOT if the stack was empty.
+     */
+    @Override
+    public char tryPop() {
+        int iRange = 1;
+        while (true) {
+            State oState = current();
+            if (oState.iTop < 0)
+                return EMPTY_SLOT;
+
+            long lOld = this.accessCounterStack.get(oState.iTop);
+            State oNext = new State(oState.iTop - 1, oState.iTop, lOld, stamp(lOld, EMPTY_SLOT));
+            if (this.oTop.compareAndSet(oState, oNext)) {
+                help(oNext);
+                return popped(charOf(lOld));
+            }
+
+            // Contended: try to take a block straight from a concurrent push
+            CAS_FAILURES.increment();
+            Offer oOffer = this.aoElimination.take(iRange);
+            if (oOffer != null) {
+                ELIMINATED.increment();
+                return popped(oOffer.cBlock);
+            }
+            iRange = Math.min(iRange << 1, ELIMINATION_SLOTS);
+        }
+    }
+
+    /**
+     * Pops up to piMax blocks, top first. Each block is its own atomic pop, so pushes
+     * and pops of other threads may come in between.
+     *
+     * @return The number of blocks popped.
+     */
+    @Override
+    public int popN(final char[] pacBuffer, final int piOffset, final int piMax) {
+        int iCount = 0;
+        while (iCount < piMax) {
+            char character = tryPop();
+            if (character == EMPTY_SLOT)
+                break;
+            pacBuffer[piOffset + iCount++] = character;
+        }
+        POP_BATCHES.increment();
+        return iCount;
+    }
+
+    /**
+     * Pushes blocks in buffer order. Each block is its own atomic push, so pushes
+     * and pops of other threads may come in between.
+     *
+     * @return The number of blocks pushed.
+     */
+    @Override
+    public int pushAll(final char[] pacBlocks, final int piOffset, final int piCount) {
+        int iCount = 0;
+        while (iCount < piCount && tryPush(pacBlocks[piOffset + iCount]))
+            iCount++;
+        PUSH_BATCHES.increment();
+        return iCount;
+    }
+
+    /**
+     * Pushes the block following the current top if the stack is neither empty nor full.
+     *
+     * @return the pushed block, or EMPTY_SLOT if nothing was pushed.
+     */
+    @Override
+    public char tryPushNext() {
+        while (true) {
+            State oState = current();
+            if (oState.iTop < 0 || oState.iTop + 1 == this.iSize)
+                return EMPTY_SLOT;
+
+            char character = (char) (charOf(this.accessCounterStack.get(oState.iTop)) + 1);
+            if (this.oTop.get() != oState)
+                continue;
+
+            // Only the CAS below decides, so the check above stays valid for this exact state
+            if (casPush(oState, character)) {
+                pushed(character);
+                return character;
+            }
+        }
+    }
+
+    /**
+     * Pushes a block, falling back to the elimination array under contention.
+     *
+     * @return false if the stack was full.
+     */
+    private boolean tryPush(final char character) {
+        int iRange = 1;
+        while (true) {
+            State oState = current();
+            if (oState.iTop + 1 == this.iSize)
+                return false;
+
+            if (casPush(oState, character)) {
+                pushed(character);
+                return true;
+            }
+
+            // An offer is only made while the stack had room, so it stands for "push then pop"
+            CAS_FAILURES.increment();
+            if (oState.iTop + 1 < this.iSize && this.aoElimination.offer(new Offer(character), iRange)) {
+                pushed(character);
+                return true;
+            }
+            iRange = Math.min(iRange << 1, ELIMINATION_SLOTS);
+        }
+    }
+
+    /**
+     * One CAS attempt to install a push on top of the given state.
+     */
+    private boolean casPush(final State poState, final char character) {
+        int iIndex = poState.iTop + 1;
+        long lOld = this.accessCounterStack.get(iIndex);
+        State oNext = new State(iIndex, iIndex, lOld, stamp(lOld, character));
+        if (!this.oTop.compareAndSet(poState, oNext))
+            return false;
+
+        help(oNext);
+        return true;
+    }
+
+    private void pushed(final char character) {
+        stackAccessCounter.increment();
+        PUSHES.increment();
+        AsyncLogger.println(ANSI_CYAN + "[BlockStack] " + character + " has been pushed to the stack." + ANSI_RESET);
+    }
+
+    private char popped(final char character) {
+        stackAccessCounter.increment();
+        POPS.increment();
+        AsyncLogger.println(ANSI_CYAN + "[BlockStack] " + character + " has been popped from the stack." + ANSI_RESET);
+        return character;
+    }
+
+    /**
+     * Gets the current top position of the stack.
+     * @return Integer for the top position of the stack.
+     */
+    @Override
+    public int getITop() {
+        return this.oTop.get().iTop;
+    }
+
+    /**
+     * Gets the size of the stack.
+     * @return Integer representing the size of the stack.
+     */
+    @Override
+    public int getISize() {
+        return this.iSize;
+    }
+
+    /**
+     * Gets the number of times that the stack was accessed.
+     * @return An integer value representing the number of stack accesses.
+     */
+    @Override
+    public int getStackAccessCounter() {
+        return stackAccessCounter.intValue();
+    }
+
+    /**
+     * Checks if the stack is currently empty.
+     * @return True if the stack is empty. False if it is not.
+     */
+    @Override
+    public boolean isEmpty() {
+        return getITop() == -1;
+    }
+
+    /**
+     * Checks if the stack is currently full.
+     * @return True if the stack is full. False if it is not.
+     */
+    @Override
+    public boolean isFull() {
+        return (getITop() + 1) == this.iSize;
+    }
+
+    /**
+     * Copies the slots of one descriptor: retried until the top did not move during the copy.
+     *
+     * @param pacBuffer Receives the slots; at least getISize() long.
+     * @return The top position of the copied state.
+     */
+    @Override
+    public int snapshot(final char[] pacBuffer) {
+        SNAPSHOTS.increment();
+        while (true) {
+            State oState = current();
+            for (int i = 0; i < this.iSize; i++)
+                pacBuffer[i] = charOf(this.accessCounterStack.get(i));
+            if (this.oTop.get() == oState)
+                return oState.iTop;
+            SNAPSHOT_RETRIES.increment();
+        }
+    }
+
+    /**
+     * Gets a copy of the current access counter stack.
+     * @return The character array access counter stack.
+     */
+    @Override
+    public char[] getAccessCounterStack() {
+        char[] acStack = new char[this.iSize];
+        snapshot(acStack);
+        return acStack;
+    }
+
+    /**
+     * This stack synchronizes itself.
+     * @return Always true.
+     */
+    @Override
+    public boolean isConcurrent() {
+        return true;
+    }
+
+    /**
+     * Elimination array: a push parks an offer in a random slot for a short while,
+     * and a pop that fails its CAS may take it instead of going through the top.
+     */
+    private static final class EliminationArray {
+        private final AtomicReferenceArray<Offer> aoSlots;
+
+        EliminationArray(final int piSlots) {
+            this.aoSlots = new AtomicReferenceArray<>(piSlots);
+        }
+
+        /**
+         * @return true if a pop took the offer.
+         */
+        boolean offer(final Offer poOffer, final int piRange) {
+            int iSlot = ThreadLocalRandom.current().nextInt(piRange);
+            if (!this.aoSlots.compareAndSet(iSlot, null, poOffer))
+                return false;
+
+            for (int i = 0; i < ELIMINATION_SPINS; i++) {
+                if (this.aoSlots.get(iSlot) != poOffer)
+                    return true;
+                Thread.onSpinWait();
+            }
+
+            // Withdraw; if that fails a pop got it in the meantime
+            return !this.aoSlots.compareAndSet(iSlot, poOffer, null);
+        }
+
+        /**
+         * @return an offer taken from a random slot, or null.
+         */
+        Offer take(final int piRange) {
+            int iSlot = ThreadLocalRandom.current().nextInt(piRange);
+            Offer oOffer = this.aoSlots.get(iSlot);
+            if (oOffer != null && this.aoSlots.compareAndSet(iSlot, oOffer, null))
+                return oOffer;
+            return null;
+        }
+    }
+}
+
+// EOF
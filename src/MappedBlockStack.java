@@ -0,0 +1,555 @@
+import common.AsyncLogger;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.VarHandle;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Class MappedBlockStack
+ * Character block stack kept in a memory-mapped file, so that the state of the blocks
+ * survives a restart and reopening a pool costs no more than mapping the file.
+ *
+ * File layout (big endian):
+ *   0   magic "BSTK"
+ *   4   format version
+ *   8   size of the stack
+ *   16  top record A: sequence (long), top (int), check (int)
+ *   32  top record B: same
+ *   64  the slots, one char each
+ *
+ * The top is written to the record not in use, sequence last, so a crash in the middle
+ * of an update leaves the other record intact; on open the valid record with the higher
+ * sequence wins. Slots are written so that every top ever published is consistent: a push
+ * writes its slot before the top moves up, and a pop moves the top down before clearing
+ * the slot. Whatever lies above the top is ignored and read as EMPTY_SLOT.
+ *
+ * The sequence also serves readers as a version, like BlockStack's: snapshot() does not
+ * need the mutex, and a read-only instance in another JVM can watch the pool while it is used.
+ *
+ * Karim Rhoualem
+ * Student 26603157
+ */
+class MappedBlockStack implements IBlockStack {
+    /*
+     * Declaration of ANSI color codes that are used in the console logs
+     * to improve readability by assigning a color code to each class within the program.
+     */
+    public static final String ANSI_RESET = "\u001B[0m";
+    public static final String ANSI_CYAN = "\u001B[36m";
+
+    /**
+     * # of letters in the English alphabet + 2
+     */
+    private static final int MAX_SIZE = 28;
+
+    /**
+     * Default stack size
+     */
+    private static final int DEFAULT_SIZE = 6;
+
+    /**
+     * Default file of the stack
+     */
+    static final String DEFAULT_FILE = "blockstack.dat";
+
+    private static final int MAGIC = 0x4253544B; // "BSTK"
+    private static final int VERSION = 1;
+
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int SIZE_OFFSET = 8;
+    private static final int RECORD_OFFSET = 16;
+    private static final int RECORD_LENGTH = 16;
+    private static final int SLOTS_OFFSET = 64;
+
+    /**
+     * The mapped file
+     */
+    private final MappedByteBuffer oBuffer;
+
+    /**
+     * Whether the file was opened for inspection only
+     */
+    private final boolean bReadOnly;
+
+    /**
+     * Size of the stack
+     */
+    private final int iSize;
+
+    /**
+     * Current top position and the sequence of the record it was read from or last written to.
+     * Only used by a writable instance, under the caller's mutex.
+     */
+    private int iTop;
+    private long lSequence;
+
+    /**
+     * Keeps track of the amount of times that the stack is accessed (not kept in the file).
+     */
+    private final LongAdder stackAccessCounter = new LongAdder();
+
+    /**
+     * Default constructor: opens or creates blockstack.dat in the working directory.
+     */
+    public MappedBlockStack() {
+        this(Paths.get(DEFAULT_FILE), DEFAULT_SIZE);
+    }
+
+    /**
+     * Opens the stack kept in the given file, or creates it with a, b, c, ... and two free blocks.
+     *
+     * @param poFile The file.
+     * @param piSize Size of the stack; must match the file if it exists.
+     * @throws IllegalArgumentException if the size is out of range or does not match the file.
+     * @throws IllegalStateException if the file is not a stack file of a supported version.
+     * @throws UncheckedIOException if the file cannot be mapped.
+     */
+    public MappedBlockStack(final Path poFile, final int piSize) {
+        if (piSize < 1 || piSize > MAX_SIZE)
+            throw new IllegalArgumentException("Please enter a maximum stack size of 28 in order to" +
+                    " to stay within the bounds of the english alphabet.");
+
+        this.bReadOnly = false;
+        try {
+            // An existing file is mapped as long as it is, so that a file which is not ours is not grown
+            boolean bNew = !Files.exists(poFile) || Files.size(poFile) == 0;
+            this.oBuffer = map(poFile, FileChannel.MapMode.READ_WRITE, bNew ? SLOTS_OFFSET + 2L * piSize : Files.size(poFile));
+            if (bNew)
+                format(piSize);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException("Cannot map " + poFile, e);
+        }
+
+        this.iSize = checkHeader(poFile);
+        if (this.iSize != piSize)
+            throw new IllegalArgumentException(poFile + " holds a stack of size " + this.iSize + ", not " + piSize + ".");
+
+        long lRecord = latestRecord();
+        this.lSequence = this.oBuffer.getLong(recordOffset(lRecord));
+        this.iTop = this.oBuffer.getInt(recordOffset(lRecord) + 8);
+    }
+
+    /**
+     * Read-only instance over an existing file, e.g. to inspect a pool another JVM is using.
+     */
+    private MappedBlockStack(final Path poFile) {
+        this.bReadOnly = true;
+        try {
+            this.oBuffer = map(poFile, FileChannel.MapMode.READ_ONLY, Files.size(poFile));
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException("Cannot map " + poFile, e);
+        }
+        this.iSize = checkHeader(poFile);
+    }
+
+    /**
+     * Opens an existing stack file for inspection only. The mutators throw UnsupportedOperationException.
+     *
+     * @param poFile The file.
+     * @return The read-only stack.
+     */
+    static MappedBlockStack openReadOnly(final Path poFile) {
+        return new MappedBlockStack(poFile);
+    }
+
+    private static MappedByteBuffer map(final Path poFile, final FileChannel.MapMode poMode, final long plLength) throws IOException {
+        StandardOpenOption[] aeOptions = (poMode == FileChannel.MapMode.READ_ONLY)
+                ? new StandardOpenOption[]{StandardOpenOption.READ}
+                : new StandardOpenOption[]{StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE};
+
+        // The mapping stays valid once the channel is closed
+        try (FileChannel oChannel = FileChannel.open(poFile, aeOptions)) {
+            return oChannel.map(poMode, 0, plLength);
+        }
+    }
+
+    /**
+     * Writes the header and the initial contents of a new file.
+     */
+    private void format(final int piSize) {
+        for (int i = 0; i < piSize; i++)
+            this.oBuffer.putChar(SLOTS_OFFSET + 2 * i, i < piSize - 2 ? (char) ('a' + i) : EMPTY_SLOT);
+
+        this.oBuffer.putInt(SIZE_OFFSET, piSize);
+        this.oBuffer.putInt(VERSION_OFFSET, VERSION);
+        writeRecord(1, piSize - 3);
+
+        // Magic last: a file cut short while being created is not taken for a stack
+        VarHandle.storeStoreFence();
+        this.oBuffer.putInt(MAGIC_OFFSET, MAGIC);
+        this.oBuffer.force();
+    }
+
+    /**
+     * @return The size of the stack in the file.
+     */
+    private int checkHeader(final Path poFile) {
+        if (this.oBuffer.capacity() < SLOTS_OFFSET || this.oBuffer.getInt(MAGIC_OFFSET) != MAGIC)
+            throw new IllegalStateException(poFile + " is not a block stack file.");
+        if (this.oBuffer.getInt(VERSION_OFFSET) != VERSION)
+            throw new IllegalStateException(poFile + " has format version " + this.oBuffer.getInt(VERSION_OFFSET) +
+                    "; only version " + VERSION + " is supported.");
+
+        int iFileSize = this.oBuffer.getInt(SIZE_OFFSET);
+        if (iFileSize < 1 || iFileSize > MAX_SIZE || this.oBuffer.capacity() < SLOTS_OFFSET + 2L * iFileSize)
+            throw new IllegalStateException(poFile + " has a bad size in its header: " + iFileSize + ".");
+        return iFileSize;
+    }
+
+    /*
+     * ------------
+     * Top records
+     * ------------
+     */
+
+    private static int recordOffset(final long plSequence) {
+        return RECORD_OFFSET + (int) (plSequence & 1) * RECORD_LENGTH;
+    }
+
+    private static int check(final long plSequence, final int piTop) {
+        return Long.hashCode((plSequence ^ MAGIC) * 0x9E3779B97F4A7C15L + piTop);
+    }
+
+    /**
+     * Publishes a new top in the record not in use. The sequence goes in last, after the
+     * top and its check, so a half-written record never looks newer than the intact one.
+     */
+    private void writeRecord(final long plSequence, final int piTop) {
+        int iOffset = recordOffset(plSequence);
+        this.oBuffer.putInt(iOffset + 8, piTop);
+        this.oBuffer.putInt(iOffset + 12, check(plSequence, piTop));
+        VarHandle.storeStoreFence();
+        this.oBuffer.putLong(iOffset, plSequence);
+    }
+
+    /**
+     * @return The sequence of the valid record with the highest sequence.
+     */
+    private long latestRecord() {
+        long lBest = -1;
+        for (int i = 0; i < 2; i++) {
+            int iOffset = RECORD_OFFSET + i * RECORD_LENGTH;
+            long lSequence = this.oBuffer.getLong(iOffset);
+            int iTop = this.oBuffer.getInt(iOffset + 8);
+            if (lSequence > lBest && (lSequence & 1) == i && iTop >= -1 && iTop < this.iSize &&
+                    this.oBuffer.getInt(iOffset + 12) == check(lSequence, iTop))
+                lBest = lSequence;
+        }
+        if (lBest < 0)
+            throw new IllegalStateException("Neither top record of the stack file is valid.");
+        return lBest;
+    }
+
+    private void publishTop(final int piTop) {
+        this.lSequence++;
+        writeRecord(this.lSequence, piTop);
+        this.iTop = piTop;
+    }
+
+    private void checkWritable() {
+        if (this.bReadOnly)
+            throw new UnsupportedOperationException("This stack was opened read-only.");
+    }
+
+    private char slot(final int piPosition) {
+        return this.oBuffer.getChar(SLOTS_OFFSET + 2 * piPosition);
+    }
+
+    /*
+     * -----------------
+     * Stack operations
+     * -----------------
+     */
+
+    /**
+     * Picks a value from the top of the stack without modifying the stack
+     *
+     * @return top element of the stack, char
+     */
+    @Override
+    public char pick() {
+        stackAccessCounter.increment();
+        PICKS.increment();
+        int iCurrentTop = getITop();
+        if (iCurrentTop < 0)
+            throw new ArrayIndexOutOfBoundsException(-1);
+        return slot(iCurrentTop);
+    }
+
+    /**
+     * Picks the top of the stack if there is one.
+     * Not atomic by itself: the caller must hold the mutex.
+     *
+     * @return top element of the stack, or EMPTY_SLOT if the stack is empty.
+     */
+    @Override
+    public char tryPick() {
+        return isEmpty() ? EMPTY_SLOT : pick();
+    }
+
+    /**
+     * Returns arbitrary value from the stack array; EMPTY_SLOT above the top.
+     *
+     * @return the element, char
+     */
+    @Override
+    public char getAt(final int piPosition) {
+        stackAccessCounter.increment();
+        GETS.increment();
+        if (piPosition < 0 || piPosition >= this.iSize)
+            throw new ArrayIndexOutOfBoundsException(piPosition);
+        return piPosition <= getITop() ? slot(piPosition) : EMPTY_SLOT;
+    }
+
+    /**
+     * Standard push operation: the slot first, then the top.
+     */
+    @Override
+    public void push(final char character) {
+        checkWritable();
+        if (this.iTop + 1 == this.iSize)
+            throw new ArrayIndexOutOfBoundsException(this.iSize);
+
+        this.oBuffer.putChar(SLOTS_OFFSET + 2 * (this.iTop + 1), character);
+        VarHandle.storeStoreFence();
+        publishTop(this.iTop + 1);
+        stackAccessCounter.increment();
+        PUSHES.increment();
+        AsyncLogger.println(ANSI_CYAN + "[BlockStack] " + character + " has been pushed to the stack." + ANSI_RESET);
+    }
+
+    /**
+     * Standard pop operation: the top first, then the slot.
+     *
+     * @return ex-top element of the stack, char
+     */
+    @Override
+    public char pop() {
+        checkWritable();
+        if (this.iTop < 0)
+            throw new ArrayIndexOutOfBoundsException(-1);
+
+        int iOldTop = this.iTop;
+        char character = slot(iOldTop);
+        publishTop(iOldTop - 1);
+        VarHandle.storeStoreFence();
+        this.oBuffer.putChar(SLOTS_OFFSET + 2 * iOldTop, EMPTY_SLOT);
+        stackAccessCounter.increment();
+        POPS.increment();
+        AsyncLogger.println(ANSI_CYAN + "[BlockStack] " + character + " has been popped from the stack." + ANSI_RESET);
+        return character;
+    }
+
+    /**
+     * Pops the top of the stack if there is one.
+     * Not atomic by itself: the caller must hold the mutex.
+     *
+     * @return ex-top element of the stack, or EMPTY_SLOT if the stack was empty.
+     */
+    @Override
+    public char tryPop() {
+        return isEmpty() ? EMPTY_SLOT : pop();
+    }
+
+    /**
+     * Pops up to piMax blocks, top first, with a single top update.
+     * Not atomic by itself: the caller must hold the mutex.
+     *
+     * @return The number of blocks popped.
+     */
+    @Override
+    public int popN(final char[] pacBuffer, final int piOffset, final int piMax) {
+        checkWritable();
+        int iCount = Math.min(piMax, this.iTop + 1);
+        if (iCount <= 0)
+            return 0;
+
+        int iOldTop = this.iTop;
+        for (int i = 0; i < iCount; i++)
+            pacBuffer[piOffset + i] = slot(iOldTop - i);
+        publishTop(iOldTop - iCount);
+        VarHandle.storeStoreFence();
+        for (int i = 0; i < iCount; i++)
+            this.oBuffer.putChar(SLOTS_OFFSET + 2 * (iOldTop - i), EMPTY_SLOT);
+
+        stackAccessCounter.add(iCount);
+        POPS.add(iCount);
+        POP_BATCHES.increment();
+        if (AsyncLogger.isEnabled(AsyncLogger.Level.INFO))
+            AsyncLogger.println(ANSI_CYAN + "[BlockStack] " + new String(pacBuffer, piOffset, iCount) + " have been popped from the stack." + ANSI_RESET);
+        return iCount;
+    }
+
+    /**
+     * Pushes blocks in buffer order, with a single top update.
+     * Not atomic by itself: the caller must hold the mutex.
+     *
+     * @return The number of blocks pushed.
+     */
+    @Override
+    public int pushAll(final char[] pacBlocks, final int piOffset, final int piCount) {
+        checkWritable();
+        int iCount = Math.min(piCount, this.iSize - this.iTop - 1);
+        if (iCount <= 0)
+            return 0;
+
+        for (int i = 0; i < iCount; i++)
+            this.oBuffer.putChar(SLOTS_OFFSET + 2 * (this.iTop + 1 + i), pacBlocks[piOffset + i]);
+        VarHandle.storeStoreFence();
+        publishTop(this.iTop + iCount);
+
+        stackAccessCounter.add(iCount);
+        PUSHES.add(iCount);
+        PUSH_BATCHES.increment();
+        if (AsyncLogger.isEnabled(AsyncLogger.Level.INFO))
+            AsyncLogger.println(ANSI_CYAN + "[BlockStack] " + new String(pacBlocks, piOffset, iCount) + " have been pushed to the stack." + ANSI_RESET);
+        return iCount;
+    }
+
+    /**
+     * Pushes the block following the current top if the stack is neither empty nor full.
+     * Not atomic by itself: the caller must hold the mutex.
+     *
+     * @return the pushed block, or EMPTY_SLOT if nothing was pushed.
+     */
+    @Override
+    public char tryPushNext() {
+        if (isEmpty() || isFull())
+            return EMPTY_SLOT;
+
+        char character = (char) (pick() + 1);
+        push(character);
+        return character;
+    }
+
+    /**
+     * Copies the stack without the mutex, also from another JVM: retried until the
+     * sequence of the top did not change during the copy. Slots above the top read as EMPTY_SLOT.
+     *
+     * @param pacBuffer Receives the slots; at least getISize() long.
+     * @return The top position of the copied state.
+     */
+    @Override
+    public int snapshot(final char[] pacBuffer) {
+        SNAPSHOTS.increment();
+        while (true) {
+            long lBefore = latestRecord();
+            int iCopiedTop = this.oBuffer.getInt(recordOffset(lBefore) + 8);
+            for (int i = 0; i < this.iSize; i++)
+                pacBuffer[i] = i <= iCopiedTop ? slot(i) : EMPTY_SLOT;
+
+            // The copy must be read before the sequence is checked again
+            VarHandle.loadLoadFence();
+            if (latestRecord() == lBefore)
+                return iCopiedTop;
+            SNAPSHOT_RETRIES.increment();
+        }
+    }
+
+    /**
+     * Writes the changes out to the storage device, for durability beyond a crash of the process.
+     */
+    void force() {
+        if (!this.bReadOnly)
+            this.oBuffer.force();
+    }
+
+    /**
+     * Gets the current top position of the stack.
+     * @return Integer for the top position of the stack.
+     */
+    @Override
+    public int getITop() {
+        if (this.bReadOnly) {
+            long lRecord = latestRecord();
+            return this.oBuffer.getInt(recordOffset(lRecord) + 8);
+        }
+        return this.iTop;
+    }
+
+    /**
+     * Gets the size of the stack.
+     * @return Integer representing the size of the stack.
+     */
+    @Override
+    public int getISize() {
+        return this.iSize;
+    }
+
+    /**
+     * Gets the number of times that the stack was accessed through this instance.
+     * @return An integer value representing the number of stack accesses.
+     */
+    @Override
+    public int getStackAccessCounter() {
+        return stackAccessCounter.intValue();
+    }
+
+    /**
+     * Checks if the stack is currently empty.
+     * @return True if the stack is empty. False if it is not.
+     */
+    @Override
+    public boolean isEmpty() {
+        return getITop() == -1;
+    }
+
+    /**
+     * Checks if the stack is currently full.
+     * @return True if the stack is full. False if it is not.
+     */
+    @Override
+    public boolean isFull() {
+        return (getITop() + 1) == this.iSize;
+    }
+
+    /**
+     * Gets a copy of the current stack.
+     * @return The character array access counter stack.
+     */
+    @Override
+    public char[] getAccessCounterStack() {
+        char[] acStack = new char[this.iSize];
+        snapshot(acStack);
+        return acStack;
+    }
+
+    /**
+     * This stack relies on the caller's mutex.
+     * @return Always false.
+     */
+    @Override
+    public boolean isConcurrent() {
+        return false;
+    }
+
+    /**
+     * Prints the state of a stack file without changing it, e.g. while BlockManager is using it.
+     * Usage: MappedBlockStack [file]
+     */
+    public static void main(String[] argv) {
+        Path oFile = Paths.get(argv.length > 0 ? argv[0] : DEFAULT_FILE);
+        MappedBlockStack oStack = openReadOnly(oFile);
+
+        char[] acStack = new char[oStack.getISize()];
+        int iTop = oStack.snapshot(acStack);
+
+        StringBuilder oLine = new StringBuilder("[MappedBlockStack] " + oFile + ": size = " + oStack.getISize() + ", top = " + iTop + ", stack: ");
+        for (int s = 0; s < acStack.length; s++)
+            oLine.append(s == iTop ? "(" : "[").append(acStack[s]).append(s == iTop ? ")" : "]");
+
+        System.out.println(oLine.append("."));
+    }
+}
+
+// EOF
@@ -0,0 +1,759 @@
+import common.AsyncLogger;
+import common.Metrics;
+
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Class ShardedBlockStack
+ * Splits the character block pool into shards, each one a small stack with its own lock,
+ * so that threads working on different shards never wait for each other.
+ *
+ * Each thread has a home shard (picked from its thread ID). It pops from and pushes to that
+ * shard, and only when the home shard is empty (or full) does it steal from (or give to) the
+ * others, trying their locks without waiting. Only if that finds nothing are all the shards
+ * locked, in order, to give an exact answer.
+ *
+ * The global view (getITop(), snapshot(), getAt()) sees the blocks of all the shards one after
+ * the other, in shard order, followed by the free slots.
+ *
+ * Karim Rhoualem
+ * Student 26603157
+ */
+class ShardedBlockStack implements IBlockStack {
+    /*
+     * Declaration of ANSI color codes that are used in the console logs
+     * to improve readability by assigning a color code to each class within the program.
+     */
+    public static final String ANSI_RESET = "\u001B[0m";
+    public static final String ANSI_CYAN = "\u001B[36m";
+
+    /**
+     * # of letters in the English alphabet + 2
+     */
+    private static final int MAX_SIZE = 28;
+
+    /**
+     * Default stack size
+     */
+    private static final int DEFAULT_SIZE = 6;
+
+    /**
+     * How many times snapshot() copies the shards optimistically before it locks them all
+     */
+    private static final int SNAPSHOT_TRIES = 8;
+
+    /**
+     * One shard: a stack of its own, guarded by its own lock.
+     */
+    private static final class Shard {
+        final ReentrantLock oLock = new ReentrantLock();
+        final char[] acSlots;
+
+        /**
+         * Number of blocks in the shard. Only changed under the lock; volatile so that
+         * the global view and the stealers can look at it without the lock.
+         */
+        volatile int iCount;
+
+        /**
+         * Write version for snapshot(), as in BlockStack: odd while push() or pop() is changing the shard.
+         */
+        volatile long lVersion = 0;
+
+        Shard(final int piCapacity) {
+            this.acSlots = new char[piCapacity];
+            Arrays.fill(this.acSlots, EMPTY_SLOT);
+        }
+
+        boolean isEmpty() {
+            return this.iCount == 0;
+        }
+
+        boolean isFull() {
+            return this.iCount == this.acSlots.length;
+        }
+
+        char top() {
+            return this.acSlots[this.iCount - 1];
+        }
+
+        void push(final char character) {
+            long lStart = this.lVersion;
+            this.lVersion = lStart + 1;
+            VarHandle.storeStoreFence();
+            this.acSlots[this.iCount] = character;
+            this.iCount = this.iCount + 1;
+            this.lVersion = lStart + 2;
+        }
+
+        char pop() {
+            long lStart = this.lVersion;
+            this.lVersion = lStart + 1;
+            VarHandle.storeStoreFence();
+            int iTop = this.iCount - 1;
+            char character = this.acSlots[iTop];
+            this.acSlots[iTop] = EMPTY_SLOT;
+            this.iCount = iTop;
+            this.lVersion = lStart + 2;
+            return character;
+        }
+
+        /**
+         * Pops up to piMax blocks as one change.
+         * @return The number of blocks popped.
+         */
+        int popN(final char[] pacBuffer, final int piOffset, final int piMax) {
+            int iTaken = Math.min(piMax, this.iCount);
+            if (iTaken <= 0)
+                return 0;
+
+            long lStart = this.lVersion;
+            this.lVersion = lStart + 1;
+            VarHandle.storeStoreFence();
+            int iTop = this.iCount;
+            for (int i = 0; i < iTaken; i++) {
+                pacBuffer[piOffset + i] = this.acSlots[--iTop];
+                this.acSlots[iTop] = EMPTY_SLOT;
+            }
+            this.iCount = iTop;
+            this.lVersion = lStart + 2;
+            return iTaken;
+        }
+
+        /**
+         * Pushes as many of the blocks as there is room for, as one change.
+         * @return The number of blocks pushed.
+         */
+        int pushAll(final char[] pacBlocks, final int piOffset, final int piCount) {
+            int iPut = Math.min(piCount, this.acSlots.length - this.iCount);
+            if (iPut <= 0)
+                return 0;
+
+            long lStart = this.lVersion;
+            this.lVersion = lStart + 1;
+            VarHandle.storeStoreFence();
+            System.arraycopy(pacBlocks, piOffset, this.acSlots, this.iCount, iPut);
+            this.iCount = this.iCount + iPut;
+            this.lVersion = lStart + 2;
+            return iPut;
+        }
+    }
+
+    /**
+     * The shards
+     */
+    private final Shard[] aoShards;
+
+    /**
+     * Size of the stack: the capacities of all the shards together
+     */
+    private final int iSize;
+
+    /**
+     * Keeps track of the amount of times that the stack is accessed, striped so that it is not a shared hot spot.
+     */
+    private final LongAdder stackAccessCounter = new LongAdder();
+
+    /**
+     * Number of blocks taken from, or put into, a shard other than the caller's home shard.
+     */
+    private final LongAdder oSteals = new LongAdder();
+
+    /**
+     * Times all the shards had to be locked for an exact answer
+     */
+    private static final Metrics.Counter LOCK_ALLS = Metrics.counter("stack.sharded.lockAll");
+
+    /**
+     * Default constructor: a, b, c, d and two free blocks, one shard per CPU.
+     */
+    public ShardedBlockStack() {
+        this(DEFAULT_SIZE, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Supplied size for process i
+     *
+     * @param piSize Size of the whole stack.
+     * @param piShards Number of shards; at most piSize, so that every shard has a slot.
+     * @throws IllegalArgumentException if the size is out of the range the letters cover.
+     */
+    public ShardedBlockStack(final int piSize, final int piShards) {
+        if (piSize < 1 || piSize > MAX_SIZE)
+            throw new IllegalArgumentException("Please enter a stack size between 1 and 28 in order to" +
+                    " to stay within the bounds of the english alphabet.");
+
+        this.iSize = piSize;
+        this.aoShards = new Shard[Math.max(1, Math.min(piShards, piSize))];
+
+        /*
+         * Same contents as BlockStack: the letters of the alphabet and 2 free blocks. The capacity is
+         * spread evenly and the free slots go to the last shards, so every shard starts with blocks
+         * (when there are enough) and the letters still read in order across the shards.
+         */
+        int iShards = this.aoShards.length;
+        int iFree = 2;
+        char cNext = 'a';
+        for (int i = 0; i < iShards; i++) {
+            int iCapacity = piSize / iShards + (i < piSize % iShards ? 1 : 0);
+            int iFreeHere = Math.min(iCapacity, Math.max(0, iFree - (iShards - 1 - i)));
+            iFree -= iFreeHere;
+
+            this.aoShards[i] = new Shard(iCapacity);
+            for (int j = 0; j < iCapacity - iFreeHere; j++)
+                this.aoShards[i].push(cNext++);
+        }
+    }
+
+    /**
+     * Index of the calling thread's home shard.
+     */
+    private int home() {
+        return (int) (Thread.currentThread().getId() % this.aoShards.length);
+    }
+
+    private Shard shardAfterHome(final int piHome, final int piOffset) {
+        return this.aoShards[(piHome + piOffset) % this.aoShards.length];
+    }
+
+    private void lockAll() {
+        LOCK_ALLS.increment();
+        for (Shard oShard : this.aoShards)
+            oShard.oLock.lock();
+    }
+
+    private void unlockAll() {
+        for (int i = this.aoShards.length - 1; i >= 0; i--)
+            this.aoShards[i].oLock.unlock();
+    }
+
+    /**
+     * Picks a value from the top of the stack without modifying the stack
+     *
+     * @return top element of the stack, char
+     */
+    @Override
+    public char pick() {
+        char character = tryPick();
+        if (character == EMPTY_SLOT)
+            throw new ArrayIndexOutOfBoundsException(-1);
+        return character;
+    }
+
+    /**
+     * Picks the top of the home shard, or of the first other shard that has a block.
+     *
+     * @return a top element, or EMPTY_SLOT if the stack is empty.
+     */
+    @Override
+    public char tryPick() {
+        stackAccessCounter.increment();
+        PICKS.increment();
+        int iHome = home();
+        for (int i = 0; i < this.aoShards.length; i++) {
+            Shard oShard = shardAfterHome(iHome, i);
+            if (oShard.isEmpty())
+                continue;
+
+            oShard.oLock.lock();
+            try {
+                if (!oShard.isEmpty())
+                    return oShard.top();
+            }
+            finally {
+                oShard.oLock.unlock();
+            }
+        }
+
+        lockAll();
+        try {
+            for (int i = 0; i < this.aoShards.length; i++) {
+                Shard oShard = shardAfterHome(iHome, i);
+                if (!oShard.isEmpty())
+                    return oShard.top();
+            }
+            return EMPTY_SLOT;
+        }
+        finally {
+            unlockAll();
+        }
+    }
+
+    /**
+     * Returns arbitrary value of the global view
+     *
+     * @return the element, char
+     */
+    @Override
+    public char getAt(final int piPosition) {
+        stackAccessCounter.increment();
+        GETS.increment();
+        char[] acStack = new char[this.iSize];
+        snapshot(acStack);
+        return acStack[piPosition];
+    }
+
+    /**
+     * Standard push operation
+     */
+    @Override
+    public void push(final char character) {
+        int iHome = home();
+        Shard oHome = this.aoShards[iHome];
+        oHome.oLock.lock();
+        try {
+            if (!oHome.isFull()) {
+                oHome.push(character);
+                pushed(character);
+                return;
+            }
+        }
+        finally {
+            oHome.oLock.unlock();
+        }
+
+        // Home is full: give the block to a shard that is not busy
+        for (int i = 1; i < this.aoShards.length; i++) {
+            Shard oShard = shardAfterHome(iHome, i);
+            if (oShard.isFull() || !oShard.oLock.tryLock())
+                continue;
+
+            try {
+                if (!oShard.isFull()) {
+                    oShard.push(character);
+                    oSteals.increment();
+                    pushed(character);
+                    return;
+                }
+            }
+            finally {
+                oShard.oLock.unlock();
+            }
+        }
+
+        lockAll();
+        try {
+            // The last pass is the home shard again, which is no steal
+            for (int i = 1; i < this.aoShards.length + 1; i++) {
+                Shard oShard = shardAfterHome(iHome, i);
+                if (!oShard.isFull()) {
+                    oShard.push(character);
+                    if (i != this.aoShards.length)
+                        oSteals.increment();
+                    pushed(character);
+                    return;
+                }
+            }
+        }
+        finally {
+            unlockAll();
+        }
+
+        throw new ArrayIndexOutOfBoundsException(this.iSize);
+    }
+
+    /**
+     * Standard pop operation
+     *
+     * @return ex-top element of the stack, char
+     */
+    @Override
+    public char pop() {
+        char character = tryPop();
+        if (character == EMPTY_SLOT)
+            throw new ArrayIndexOutOfBoundsException(-1);
+        return character;
+    }
+
+    /**
+     * Pops from the home shard, or steals from another one when the home shard is empty.
+     *
+     * @return ex-top element of a shard, or EMPTY_SLOT if the whole stack was empty.
+     */
+    @Override
+    public char tryPop() {
+        int iHome = home();
+        Shard oHome = this.aoShards[iHome];
+        oHome.oLock.lock();
+        try {
+            if (!oHome.isEmpty())
+                return popped(oHome.pop());
+        }
+        finally {
+            oHome.oLock.unlock();
+        }
+
+        // Home is empty: steal from a shard that is not busy
+        for (int i = 1; i < this.aoShards.length; i++) {
+            Shard oShard = shardAfterHome(iHome, i);
+            if (oShard.isEmpty() || !oShard.oLock.tryLock())
+                continue;
+
+            try {
+                if (!oShard.isEmpty()) {
+                    oSteals.increment();
+                    return popped(oShard.pop());
+                }
+            }
+            finally {
+                oShard.oLock.unlock();
+            }
+        }
+
+        lockAll();
+        try {
+            // The last pass is the home shard again, which is no steal
+            for (int i = 1; i < this.aoShards.length + 1; i++) {
+                Shard oShard = shardAfterHome(iHome, i);
+                if (!oShard.isEmpty()) {
+                    if (i != this.aoShards.length)
+                        oSteals.increment();
+                    return popped(oShard.pop());
+                }
+            }
+            return EMPTY_SLOT;
+        }
+        finally {
+            unlockAll();
+        }
+    }
+
+    /**
+     * Pops up to piMax blocks: as many as the home shard has under one lock, the rest stolen from the
+     * other shards. Each shard gives its blocks as one change, but the batch as a whole is not atomic.
+     *
+     * @return The number of blocks popped; fewer than piMax only if the whole stack ran out.
+     */
+    @Override
+    public int popN(final char[] pacBuffer, final int piOffset, final int piMax) {
+        int iHome = home();
+        int iCount = 0;
+        for (int i = 0; i < this.aoShards.length && iCount < piMax; i++) {
+            Shard oShard = shardAfterHome(iHome, i);
+            if (oShard.isEmpty())
+                continue;
+
+            if (i == 0)
+                oShard.oLock.lock();
+            else if (!oShard.oLock.tryLock())
+                continue;
+
+            try {
+                int iTaken = oShard.popN(pacBuffer, piOffset + iCount, piMax - iCount);
+                if (i != 0)
+                    oSteals.add(iTaken);
+                iCount += iTaken;
+            }
+            finally {
+                oShard.oLock.unlock();
+            }
+        }
+
+        if (iCount < piMax) {
+            lockAll();
+            try {
+                for (int i = 0; i < this.aoShards.length && iCount < piMax; i++) {
+                    int iTaken = shardAfterHome(iHome, i).popN(pacBuffer, piOffset + iCount, piMax - iCount);
+                    if (i != 0)
+                        oSteals.add(iTaken);
+                    iCount += iTaken;
+                }
+            }
+            finally {
+                unlockAll();
+            }
+        }
+
+        stackAccessCounter.add(iCount);
+        POPS.add(iCount);
+        POP_BATCHES.increment();
+        if (iCount > 0 && AsyncLogger.isEnabled(AsyncLogger.Level.INFO))
+            AsyncLogger.println(ANSI_CYAN + "[BlockStack] " + new String(pacBuffer, piOffset, iCount) + " have been popped from the stack." + ANSI_RESET);
+        return iCount;
+    }
+
+    /**
+     * Pushes blocks: as many as the home shard has room for under one lock, the rest given to the
+     * other shards. Each shard takes its blocks as one change, but the batch as a whole is not atomic.
+     *
+     * @return The number of blocks pushed; fewer than piCount only if the whole stack filled up.
+     */
+    @Override
+    public int pushAll(final char[] pacBlocks, final int piOffset, final int piCount) {
+        int iHome = home();
+        int iCount = 0;
+        for (int i = 0; i < this.aoShards.length && iCount < piCount; i++) {
+            Shard oShard = shardAfterHome(iHome, i);
+            if (oShard.isFull())
+                continue;
+
+            if (i == 0)
+                oShard.oLock.lock();
+            else if (!oShard.oLock.tryLock())
+                continue;
+
+            try {
+                int iPut = oShard.pushAll(pacBlocks, piOffset + iCount, piCount - iCount);
+                if (i != 0)
+                    oSteals.add(iPut);
+                iCount += iPut;
+            }
+            finally {
+                oShard.oLock.unlock();
+            }
+        }
+
+        if (iCount < piCount) {
+            lockAll();
+            try {
+                for (int i = 0; i < this.aoShards.length && iCount < piCount; i++) {
+                    int iPut = shardAfterHome(iHome, i).pushAll(pacBlocks, piOffset + iCount, piCount - iCount);
+                    if (i != 0)
+                        oSteals.add(iPut);
+                    iCount += iPut;
+                }
+            }
+            finally {
+                unlockAll();
+            }
+        }
+
+        stackAccessCounter.add(iCount);
+        PUSHES.add(iCount);
+        PUSH_BATCHES.increment();
+        if (iCount > 0 && AsyncLogger.isEnabled(AsyncLogger.Level.INFO))
+            AsyncLogger.println(ANSI_CYAN + "[BlockStack] " + new String(pacBlocks, piOffset, iCount) + " have been pushed to the stack." + ANSI_RESET);
+        return iCount;
+    }
+
+    /**
+     * Pushes the block following the top of a shard that is neither empty nor full, home shard first.
+     * If no single shard qualifies, the block following the top of one shard goes to a shard with room.
+     * Nothing is pushed if the whole stack is empty or full.
+     *
+     * @return the pushed block, or EMPTY_SLOT if nothing was pushed.
+     */
+    @Override
+    public char tryPushNext() {
+        int iHome = home();
+        for (int i = 0; i < this.aoShards.length; i++) {
+            Shard oShard = shardAfterHome(iHome, i);
+            if (oShard.isEmpty() || oShard.isFull())
+                continue;
+
+            // The home shard is worth waiting for; the others are only tried
+            if (i == 0)
+                oShard.oLock.lock();
+            else if (!oShard.oLock.tryLock())
+                continue;
+
+            try {
+                if (!oShard.isEmpty() && !oShard.isFull()) {
+                    char character = (char) (oShard.top() + 1);
+                    oShard.push(character);
+                    if (i != 0)
+                        oSteals.increment();
+                    pushed(character);
+                    return character;
+                }
+            }
+            finally {
+                oShard.oLock.unlock();
+            }
+        }
+
+        lockAll();
+        try {
+            Shard oFrom = null;
+            Shard oTo = null;
+            for (int i = 0; i < this.aoShards.length; i++) {
+                Shard oShard = shardAfterHome(iHome, i);
+                if (oFrom == null && !oShard.isEmpty())
+                    oFrom = oShard;
+                if (oTo == null && !oShard.isFull())
+                    oTo = oShard;
+            }
+            if (oFrom == null || oTo == null)
+                return EMPTY_SLOT;
+
+            char character = (char) (oFrom.top() + 1);
+            oTo.push(character);
+            if (oTo != this.aoShards[iHome])
+                oSteals.increment();
+            pushed(character);
+            return character;
+        }
+        finally {
+            unlockAll();
+        }
+    }
+
+    private void pushed(final char character) {
+        stackAccessCounter.increment();
+        PUSHES.increment();
+        AsyncLogger.println(ANSI_CYAN + "[BlockStack] " + character + " has been pushed to the stack." + ANSI_RESET);
+    }
+
+    private char popped(final char character) {
+        stackAccessCounter.increment();
+        POPS.increment();
+        AsyncLogger.println(ANSI_CYAN + "[BlockStack] " + character + " has been popped from the stack." + ANSI_RESET);
+        return character;
+    }
+
+    /**
+     * Copies the global view: the blocks of every shard in shard order, then EMPTY_SLOT for the free slots.
+     * Optimistic like BlockStack.snapshot(): the versions of all the shards are added up before and after the
+     * copy, and since versions only grow, equal sums mean no shard changed. If the shards keep changing, they
+     * are all locked for one copy instead.
+     *
+     * @param pacBuffer Receives the slots; at least getISize() long.
+     * @return The top position of the copied state.
+     */
+    @Override
+    public int snapshot(final char[] pacBuffer) {
+        SNAPSHOTS.increment();
+        for (int iTry = 0; iTry < SNAPSHOT_TRIES; iTry++) {
+            long lBefore = versionSum();
+            if (lBefore < 0) {
+                // A writer is halfway through
+                SNAPSHOT_RETRIES.increment();
+                Thread.onSpinWait();
+                continue;
+            }
+
+            int iCopied = copyShards(pacBuffer);
+
+            // The copy must be read before the versions are checked again
+            VarHandle.loadLoadFence();
+            if (versionSum() == lBefore)
+                return iCopied - 1;
+            SNAPSHOT_RETRIES.increment();
+        }
+
+        lockAll();
+        try {
+            return copyShards(pacBuffer) - 1;
+        }
+        finally {
+            unlockAll();
+        }
+    }
+
+    /**
+     * Adds up the versions of the shards, or returns -1 if one of them is being written.
+     */
+    private long versionSum() {
+        long lSum = 0;
+        for (Shard oShard : this.aoShards) {
+            long lVersion = oShard.lVersion;
+            if ((lVersion & 1) != 0)
+                return -1;
+            lSum += lVersion;
+        }
+        return lSum;
+    }
+
+    /**
+     * @return The number of blocks copied.
+     */
+    private int copyShards(final char[] pacBuffer) {
+        int iCopied = 0;
+        for (Shard oShard : this.aoShards) {
+            int iCount = Math.min(oShard.iCount, this.iSize - iCopied);
+            System.arraycopy(oShard.acSlots, 0, pacBuffer, iCopied, iCount);
+            iCopied += iCount;
+        }
+        Arrays.fill(pacBuffer, iCopied, this.iSize, EMPTY_SLOT);
+        return iCopied;
+    }
+
+    /**
+     * Gets the top position of the global view. Exact when no push or pop is running.
+     * @return Integer for the top position of the stack.
+     */
+    @Override
+    public int getITop() {
+        int iCount = 0;
+        for (Shard oShard : this.aoShards)
+            iCount += oShard.iCount;
+        return iCount - 1;
+    }
+
+    /**
+     * Gets the size of the stack.
+     * @return Integer representing the size of the stack.
+     */
+    @Override
+    public int getISize() {
+        return this.iSize;
+    }
+
+    /**
+     * Gets the number of times that the stack was accessed, over all the shards.
+     * @return An integer value representing the number of stack accesses.
+     */
+    @Override
+    public int getStackAccessCounter() {
+        return stackAccessCounter.intValue();
+    }
+
+    /**
+     * Gets the number of shards.
+     * @return The number of shards.
+     */
+    public int getShardCount() {
+        return this.aoShards.length;
+    }
+
+    /**
+     * Gets the number of blocks that went to or came from a shard other than the caller's home shard.
+     * @return The number of steals.
+     */
+    public long getStealCount() {
+        return oSteals.sum();
+    }
+
+    /**
+     * Checks if the stack is currently empty.
+     * @return True if the stack is empty. False if it is not.
+     */
+    @Override
+    public boolean isEmpty() {
+        return getITop() == -1;
+    }
+
+    /**
+     * Checks if the stack is currently full.
+     * @return True if the stack is full. False if it is not.
+     */
+    @Override
+    public boolean isFull() {
+        return (getITop() + 1) == this.iSize;
+    }
+
+    /**
+     * Gets a copy of the global view.
+     * @return The character array access counter stack.
+     */
+    @Override
+    public char[] getAccessCounterStack() {
+        char[] acStack = new char[this.iSize];
+        snapshot(acStack);
+        return acStack;
+    }
+
+    /**
+     * Every shard synchronizes itself.
+     * @return Always true.
+     */
+    @Override
+    public boolean isConcurrent() {
+        return true;
+    }
+}
+
+// EOF
@@ -0,0 +1,93 @@
+/**
+ * Class StackChangeFeed
+ * Ring of the last changes made to a stack, numbered from 0 in the order they were made.
+ *
+ * Each change is a push or a pop of one block at one position, packed in an int. The stack
+ * appends them from its single writer (the thread holding the mutex); readers copy the ones
+ * they have not seen yet, and must check afterwards that the stack did not change meanwhile
+ * (see BlockStack.refresh()), since older changes are overwritten once the ring is full.
+ *
+ * Karim Rhoualem
+ * Student 26603157
+ */
+final class StackChangeFeed {
+    /**
+     * Kinds of change. For a push, the position is the new top; for a pop, the slot it emptied.
+     */
+    static final int PUSH = 1;
+    static final int POP = 2;
+
+    /**
+     * Changes kept; a power of 2.
+     */
+    private final int iCapacity;
+
+    /**
+     * The changes, change n at index n % iCapacity
+     */
+    private final int[] aiChanges;
+
+    /**
+     * Number of changes made so far, i.e. the number of the next one
+     */
+    private volatile long lSequence = 0;
+
+    /**
+     * @param piCapacity Changes kept; rounded up to a power of 2.
+     */
+    StackChangeFeed(final int piCapacity) {
+        this.iCapacity = Integer.highestOneBit(Math.max(1, piCapacity - 1)) << 1;
+        this.aiChanges = new int[this.iCapacity];
+    }
+
+    /**
+     * Records a change. Only called by the stack's writer.
+     */
+    void append(final int piKind, final int piPosition, final char pcBlock) {
+        long lNext = this.lSequence;
+        this.aiChanges[(int) lNext & (this.iCapacity - 1)] = (piKind << 30) | (piPosition << 16) | pcBlock;
+        this.lSequence = lNext + 1;
+    }
+
+    /**
+     * Copies the changes from plFrom up to (not including) plTo, oldest first.
+     * The copy is only good if no change was appended while it was made.
+     *
+     * @param plFrom First change to copy.
+     * @param plTo One past the last change to copy; at most getCapacity() after plFrom.
+     * @param paiBuffer Receives the changes; at least plTo - plFrom long.
+     * @return The number of changes copied.
+     */
+    int read(final long plFrom, final long plTo, final int[] paiBuffer) {
+        int iCount = (int) (plTo - plFrom);
+        for (int i = 0; i < iCount; i++)
+            paiBuffer[i] = this.aiChanges[(int) (plFrom + i) & (this.iCapacity - 1)];
+        return iCount;
+    }
+
+    /**
+     * Gets the number of changes made so far: a version of the stack that only goes up.
+     * @return The sequence.
+     */
+    long getSequence() {
+        return this.lSequence;
+    }
+
+    int getCapacity() {
+        return this.iCapacity;
+    }
+
+    static int kind(final int piChange) {
+        return piChange >>> 30;
+    }
+
+    static int position(final int piChange) {
+        return (piChange >>> 16) & 0x3FFF;
+    }
+
+    static char block(final int piChange) {
+        return (char) piChange;
+    }
+}
+
+// EOF
@@ -0,0 +1,138 @@
+/**
+ * Class StackView
+ * A reader's copy of a stack, kept up to date by IBlockStack.refresh().
+ *
+ * The first refresh copies the whole stack. After that, a stack with a change feed (BlockStack)
+ * only hands over the pushes and pops made since the version the view holds, and the view replays
+ * them; it copies the whole stack again only if it fell so far behind that the feed no longer has
+ * the changes it missed. So keeping a view current costs as much as the stack changes, however
+ * large it is and however often it is looked at.
+ *
+ * A view belongs to one thread.
+ *
+ * Karim Rhoualem
+ * Student 26603157
+ */
+class StackView {
+    /**
+     * The slots and top position as of lVersion
+     */
+    private final char[] acSlots;
+    private int iTop = -1;
+
+    /**
+     * Number of changes of the stack replayed so far; -1 until the first refresh, or after one that failed.
+     */
+    private long lVersion = -1;
+
+    /**
+     * Changes handed over by the stack, before they are replayed; allocated by the first of them.
+     */
+    private int[] aiChanges = null;
+
+    /**
+     * Whole copies and replayed changes, for the run statistics
+     */
+    private long lSnapshots = 0;
+    private long lReplayed = 0;
+
+    /**
+     * @param piSize Size of the stack to follow.
+     */
+    public StackView(final int piSize) {
+        this.acSlots = new char[piSize];
+    }
+
+    /**
+     * Gets the slots to copy the whole stack into. The version is dropped until load() is called,
+     * so that a copy that has to be retried is never taken for a good one.
+     */
+    char[] beginLoad() {
+        this.lVersion = -1;
+        return this.acSlots;
+    }
+
+    /**
+     * Takes the copy made into the slots from beginLoad().
+     * @param piTop Top position of the copy.
+     * @param plVersion Version of the stack the copy is of; -1 if the stack has none.
+     */
+    void load(final int piTop, final long plVersion) {
+        this.iTop = piTop;
+        this.lVersion = plVersion;
+        this.lSnapshots++;
+    }
+
+    /**
+     * Gets a buffer for at least the given number of changes.
+     */
+    int[] changeBuffer(final int piCapacity) {
+        if (this.aiChanges == null || this.aiChanges.length < piCapacity)
+            this.aiChanges = new int[piCapacity];
+        return this.aiChanges;
+    }
+
+    /**
+     * Replays the changes copied into changeBuffer().
+     * @param piCount Number of changes.
+     * @param plVersion Version of the stack after the last of them.
+     */
+    void replay(final int piCount, final long plVersion) {
+        for (int i = 0; i < piCount; i++) {
+            int iChange = this.aiChanges[i];
+            int iPosition = StackChangeFeed.position(iChange);
+            if (StackChangeFeed.kind(iChange) == StackChangeFeed.PUSH) {
+                this.acSlots[iPosition] = StackChangeFeed.block(iChange);
+                this.iTop = iPosition;
+            } else {
+                this.acSlots[iPosition] = IBlockStack.EMPTY_SLOT;
+                this.iTop = iPosition - 1;
+            }
+        }
+        this.lVersion = plVersion;
+        this.lReplayed += piCount;
+    }
+
+    /**
+     * Returns the value of a slot as of the last refresh.
+     */
+    public char getAt(final int piPosition) {
+        return this.acSlots[piPosition];
+    }
+
+    /**
+     * Gets the top position as of the last refresh.
+     * @return The top position, -1 if the stack was empty.
+     */
+    public int getITop() {
+        return this.iTop;
+    }
+
+    public int getISize() {
+        return this.acSlots.length;
+    }
+
+    /**
+     * Gets the version of the stack the view holds.
+     * @return The number of changes made to the stack up to that point; -1 if the stack has no change feed.
+     */
+    public long getVersion() {
+        return this.lVersion;
+    }
+
+    /**
+     * Gets the number of times the whole stack was copied.
+     */
+    public long getSnapshotCount() {
+        return this.lSnapshots;
+    }
+
+    /**
+     * Gets the number of changes replayed instead of copying the stack.
+     */
+    public long getReplayedCount() {
+        return this.lReplayed;
+    }
+}
+
+// EOF
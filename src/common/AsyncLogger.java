@@ -0,0 +1,386 @@
+package common;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Class AsyncLogger
+ * Console logger that keeps the actual I/O out of the calling threads.
+ *
+ * Callers only copy a reference into a preallocated event of a bounded ring
+ * buffer; a background drain thread writes the events to the console in
+ * batches, in the order they were logged. When the buffer is full the caller
+ * spins and yields until the drain thread frees a slot, so no message is lost
+ * and no caller ever waits on the console itself.
+ *
+ * A thread can also hold its messages back (capture()) and have them logged
+ * later in one piece (publish()), e.g. to log work done out of order in order.
+ *
+ * Settings (system properties):
+ *   log.level  - DEBUG, INFO, WARN, ERROR or OFF (default INFO)
+ *   log.ansi   - false to strip the ANSI color codes (default true)
+ *   log.buffer - ring buffer size, rounded up to a power of two (default 8192)
+ *
+ * Karim Rhoualem
+ * Student 26603157
+ */
+public final class AsyncLogger
+{
+    /**
+     * Severity of a message. Messages below the configured level are dropped on the spot.
+     */
+    public enum Level { DEBUG, INFO, WARN, ERROR, OFF }
+
+    /**
+     * One slot of the ring buffer. Reused for the whole run.
+     */
+    private static final class Event
+    {
+        /**
+         * Sequence of the message held; published last, read first.
+         */
+        volatile long lSequence;
+        String strMessage;
+        boolean bNewLine;
+    }
+
+    /**
+     * Max number of events written with a single console write.
+     */
+    private static final int BATCH_SIZE = 256;
+
+    /**
+     * How long the drain thread sleeps when there is nothing to write.
+     */
+    private static final long IDLE_PARK_NANOS = 1_000_000L;
+
+    private static volatile Level seLevel = parseLevel(System.getProperty("log.level", "INFO"));
+
+    private static volatile boolean sbAnsi = !"false".equalsIgnoreCase(System.getProperty("log.ansi", "true"));
+
+    private static final int CAPACITY = Integer.highestOneBit(Math.max(2, Integer.getInteger("log.buffer", 8192) - 1)) << 1;
+
+    private static final int MASK = CAPACITY - 1;
+
+    private static final Event[] saoRing = new Event[CAPACITY];
+
+    /**
+     * Next sequence handed out to a caller.
+     */
+    private static final AtomicLong soClaimed = new AtomicLong();
+
+    /**
+     * Next sequence the drain thread will take. Every slot below it is free again.
+     */
+    private static volatile long slConsumed = 0;
+
+    /**
+     * Every message below this sequence has reached the console.
+     */
+    private static volatile long slWritten = 0;
+
+    /**
+     * True while the drain thread is parked with nothing to do.
+     */
+    private static volatile boolean sbIdle = false;
+
+    /**
+     * The console, as it was when the logger started.
+     */
+    private static final PrintStream soOut = System.out;
+
+    private static final Thread soDrainer;
+
+    /**
+     * Messages held back by the calling thread while it captures them; null when it does not.
+     */
+    private static final ThreadLocal<StringBuilder> soCaptured = new ThreadLocal<>();
+
+    static
+    {
+        for (int i = 0; i < CAPACITY; i++)
+        {
+            saoRing[i] = new Event();
+            saoRing[i].lSequence = i - CAPACITY;
+        }
+
+        soDrainer = new Thread(AsyncLogger::drain, "AsyncLogger");
+        soDrainer.setDaemon(true);
+        soDrainer.start();
+
+        Runtime.getRuntime().addShutdownHook(new Thread(AsyncLogger::flush, "AsyncLogger-flush"));
+    }
+
+    private AsyncLogger()
+    {
+    }
+
+    /*
+     * ---------------
+     * Logging methods
+     * ---------------
+     */
+
+    /**
+     * Logs a message followed by a new line, at INFO level.
+     * @param pstrMessage The message.
+     */
+    public static void println(String pstrMessage)
+    {
+        log(Level.INFO, pstrMessage, true);
+    }
+
+    /**
+     * Logs a message without a new line, at INFO level.
+     * @param pstrMessage The message.
+     */
+    public static void print(String pstrMessage)
+    {
+        log(Level.INFO, pstrMessage, false);
+    }
+
+    /**
+     * Queues a message for the drain thread. Never touches the console.
+     *
+     * @param peLevel Severity of the message.
+     * @param pstrMessage The message.
+     * @param pbNewLine true to end the message with a new line.
+     */
+    public static void log(Level peLevel, String pstrMessage, boolean pbNewLine)
+    {
+        if (peLevel.ordinal() < seLevel.ordinal() || peLevel == Level.OFF)
+        {
+            return;
+        }
+
+        StringBuilder oCaptured = soCaptured.get();
+        if (oCaptured != null)
+        {
+            oCaptured.append(pstrMessage);
+            if (pbNewLine)
+            {
+                oCaptured.append(System.lineSeparator());
+            }
+            return;
+        }
+
+        enqueue(pstrMessage, pbNewLine);
+    }
+
+    /**
+     * Holds back the calling thread's messages from now on, until release().
+     */
+    public static void capture()
+    {
+        soCaptured.set(new StringBuilder());
+    }
+
+    /**
+     * Stops holding back the calling thread's messages.
+     * @return The messages held back since capture(), to log with publish(); empty if none.
+     */
+    public static String release()
+    {
+        StringBuilder oCaptured = soCaptured.get();
+        soCaptured.remove();
+        return (oCaptured == null) ? "" : oCaptured.toString();
+    }
+
+    /**
+     * Logs messages held back by capture() as a single message, so that nothing comes in between.
+     * Their level was checked when they were captured.
+     * @param pstrMessages What release() returned.
+     */
+    public static void publish(String pstrMessages)
+    {
+        if (!pstrMessages.isEmpty())
+        {
+            enqueue(pstrMessages, false);
+        }
+    }
+
+    /**
+     * Puts a message in the ring buffer for the drain thread.
+     */
+    private static void enqueue(String pstrMessage, boolean pbNewLine)
+    {
+        long lSequence = soClaimed.getAndIncrement();
+
+        // Buffer full: wait for the drain thread to free our slot.
+        if (lSequence - slConsumed >= CAPACITY)
+        {
+            LogStallEvent oStall = new LogStallEvent();
+            oStall.begin();
+            while (lSequence - slConsumed >= CAPACITY)
+            {
+                wakeDrainer();
+                Thread.yield();
+            }
+            oStall.commit();
+        }
+
+        Event oEvent = saoRing[(int) lSequence & MASK];
+        oEvent.strMessage = pstrMessage;
+        oEvent.bNewLine = pbNewLine;
+        oEvent.lSequence = lSequence;
+
+        if (sbIdle)
+        {
+            wakeDrainer();
+        }
+    }
+
+    /**
+     * Waits until everything logged so far has been written to the console.
+     */
+    public static void flush()
+    {
+        long lTarget = soClaimed.get();
+        while (slWritten < lTarget && soDrainer.isAlive())
+        {
+            wakeDrainer();
+            LockSupport.parkNanos(100_000L);
+        }
+    }
+
+    /*
+     * --------
+     * Settings
+     * --------
+     */
+
+    /**
+     * Reads the log.level property. An unknown level is not worth failing the run for:
+     * it falls back to INFO, with a warning on the error stream (the logger itself is not up yet).
+     */
+    private static Level parseLevel(String pstrLevel)
+    {
+        try
+        {
+            return Level.valueOf(pstrLevel.trim().toUpperCase());
+        }
+        catch (IllegalArgumentException e)
+        {
+            System.err.println("[AsyncLogger] Unknown log.level " + pstrLevel + "; using INFO. Levels: " + Arrays.toString(Level.values()) + ".");
+            return Level.INFO;
+        }
+    }
+
+    public static void setLevel(Level peLevel)
+    {
+        seLevel = peLevel;
+    }
+
+    public static Level getLevel()
+    {
+        return seLevel;
+    }
+
+    /**
+     * @param pbAnsi false to strip the ANSI color codes from the output.
+     */
+    public static void setAnsi(boolean pbAnsi)
+    {
+        sbAnsi = pbAnsi;
+    }
+
+    /**
+     * Tells whether a message of the given level would be logged, so that callers
+     * can skip building it.
+     */
+    public static boolean isEnabled(Level peLevel)
+    {
+        return peLevel != Level.OFF && peLevel.ordinal() >= seLevel.ordinal();
+    }
+
+    /*
+     * ------------
+     * Drain thread
+     * ------------
+     */
+
+    private static void wakeDrainer()
+    {
+        LockSupport.unpark(soDrainer);
+    }
+
+    /**
+     * Body of the drain thread: takes the published events in order and writes them in batches.
+     */
+    private static void drain()
+    {
+        StringBuilder oBatch = new StringBuilder(BATCH_SIZE * 64);
+        long lNext = 0;
+
+        while (true)
+        {
+            int iCount = 0;
+            Event oEvent = saoRing[(int) lNext & MASK];
+            while (iCount < BATCH_SIZE && oEvent.lSequence == lNext)
+            {
+                append(oBatch, oEvent.strMessage);
+                if (oEvent.bNewLine)
+                {
+                    oBatch.append(System.lineSeparator());
+                }
+
+                oEvent.strMessage = null;
+                lNext++;
+                iCount++;
+                oEvent = saoRing[(int) lNext & MASK];
+            }
+
+            if (iCount == 0)
+            {
+                sbIdle = true;
+                if (saoRing[(int) lNext & MASK].lSequence != lNext)
+                {
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                }
+                sbIdle = false;
+                continue;
+            }
+
+            // The slots are free again as soon as their messages are copied.
+            slConsumed = lNext;
+
+            soOut.print(oBatch);
+            soOut.flush();
+            oBatch.setLength(0);
+
+            slWritten = lNext;
+        }
+    }
+
+    /**
+     * Appends a message, stripping the ANSI color codes when they are turned off.
+     */
+    private static void append(StringBuilder poBatch, String pstrMessage)
+    {
+        if (sbAnsi || pstrMessage == null || pstrMessage.indexOf('\u001B') < 0)
+        {
+            poBatch.append(pstrMessage);
+            return;
+        }
+
+        for (int i = 0; i < pstrMessage.length(); i++)
+        {
+            char c = pstrMessage.charAt(i);
+            if (c == '\u001B' && i + 1 < pstrMessage.length() && pstrMessage.charAt(i + 1) == '[')
+            {
+                // Skip up to and including the final letter of the sequence
+                i += 2;
+                while (i < pstrMessage.length() && !Character.isLetter(pstrMessage.charAt(i)))
+                {
+                    i++;
+                }
+                continue;
+            }
+            poBatch.append(c);
+        }
+    }
+}
+
+// EOF
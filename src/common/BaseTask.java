@@ -0,0 +1,425 @@
+package common;
+
+/**
+ * Class BaseTask
+ * Simply one customized base class for many of our own workers.
+ *
+ * An attempt to maintain an automatic unique TID (thread ID)
+ * among all the derivatives and allow setting your own if needed.
+ * Automatic TIDs come from a TidAllocator and are given back once the
+ * task has run (see retire()), so they stay dense however many tasks come and go.
+ * Plus some methods for the sync exercises.
+ *
+ * The worker logic is kept apart from java.lang.Thread so that the same
+ * worker can run on its own platform thread (BaseThread), in a pool or on
+ * a virtual thread (see TaskRunner).
+ *
+ * Karim Rhoualem
+ * Student 26603157
+ */
+public class BaseTask implements Runnable
+{
+    /*
+     * Declaration of ANSI color codes that are used in the console logs
+     * to improve readability by assigning a color code to each class within the program.
+     */
+    public static final String ANSI_RESET = "\u001B[0m";
+    public static final String ANSI_BLUE = "\u001B[34m";
+    public static final String ANSI_RED = "\u001B[31m";
+
+    /*
+     * ------------
+     * Data members
+     * ------------
+     */
+
+    /**
+     * Hands out the automatic TIDs, from 1 up; see resetTIDs().
+     */
+    private static volatile TidAllocator soTIDs = new TidAllocator(1);
+
+    /**
+     * Our Thread ID.
+     */
+    protected int iTID;
+
+    /**
+     * Allocator our TID came from, until it is given back; null for a user-specified TID.
+     */
+    private volatile TidAllocator oTIDs = null;
+
+    /**
+     * Holds the TID of a thread to proceed to the phase II and parks the others.
+     */
+    private static final TurnSequencer soTurns = new TurnSequencer(1);
+
+    /**
+     * Logs the phase II output of the tasks in increasing TID order; see phase2InOrder().
+     */
+    private static final ReorderBuffer<String> soPhase2Output = new ReorderBuffer<>(soTurns, true, (piTID, pstrOutput) -> AsyncLogger.publish(pstrOutput));
+
+    /**
+     * Phases the workers go through together, if any; see setPhaser().
+     */
+    private static volatile CombiningPhaser soPhaser = null;
+
+    /**
+     * Phaser in use when this task was created, and our party in it once we first arrive.
+     */
+    private final CombiningPhaser oPhaser = soPhaser;
+    private int iParty = -1;
+
+    /**
+     * Boolean value used for each instance of this class in order to minimize print statements
+     * indicating that the thread tried to run for Phase II before being allowed to.
+     * This is used in the testTurnAndSet method.
+     */
+    private boolean printedWaitMessage = false;
+
+    /*
+     * ------------
+     * Constructors
+     * ------------
+     */
+
+    /**
+     * Default
+     */
+    public BaseTask()
+    {
+        setTID();
+    }
+
+    /**
+     * Sets user-specified TID.
+     */
+    public BaseTask(final int piTID)
+    {
+        this.iTID = piTID;
+        soTurns.register(piTID);
+    }
+
+    /**
+     * The work itself. Does nothing by default, like Thread.run().
+     */
+    @Override
+    public void run()
+    {
+    }
+
+    /**
+     * Class this task waits in on a Semaphore, so that latency-sensitive workers get permits first.
+     * NORMAL unless overridden.
+     * @return The priority.
+     */
+    public Semaphore.Priority getPriority()
+    {
+        return Semaphore.Priority.NORMAL;
+    }
+
+    /**
+     * Retrieves our TID.
+     * @return TID, integer
+     */
+    public final int getTID()
+    {
+        return this.iTID;
+    }
+
+    /**
+     * Sets internal TID on contruction time, so it's private: the lowest TID not in use.
+     * Safe for tasks created concurrently.
+     */
+    private final void setTID()
+    {
+        this.oTIDs = soTIDs;
+        this.iTID = this.oTIDs.allocate();
+        soTurns.register(this.iTID);
+    }
+
+    /**
+     * Gives our TID back to be handed out to a new task. Called once the task has run;
+     * does nothing for a user-specified TID or if already retired. getTID() keeps
+     * returning the old TID, which may by then belong to another task.
+     */
+    public final void retire()
+    {
+        TidAllocator oTIDs = this.oTIDs;
+        if (oTIDs != null)
+        {
+            this.oTIDs = null;
+            oTIDs.release(this.iTID);
+        }
+    }
+
+    /**
+     * Runs the task, then retires it. What BaseThread and TaskRunner run.
+     */
+    final void runAndRetire()
+    {
+        try
+        {
+            run();
+        }
+        finally
+        {
+            retire();
+        }
+    }
+
+    /**
+     * Gets one past the highest TID handed out so far; the next TID as long as none was given back.
+     * @return The TID.
+     */
+    public static int getNextTID()
+    {
+        return soTIDs.getLimit();
+    }
+
+    /**
+     * Starts the automatic TIDs over from 1, for the tasks created from now on.
+     * Tasks still holding a TID give it back to the allocator it came from.
+     */
+    public static void resetTIDs()
+    {
+        soTIDs = new TidAllocator(1);
+    }
+
+    /**
+     * Allows setting initial turn value to something else
+     * other than the default "1" (one).
+     * @param piInitTurn new initial value of the turn.
+     */
+    public static synchronized final void setInitialTurn(int piInitTurn)
+    {
+        soTurns.setTurn(piInitTurn);
+    }
+
+    /**
+     * Sets the phaser that the tasks created from now on arrive at and wait on.
+     * @param poPhaser The phaser, with a party for each of those tasks; null for none.
+     */
+    public static void setPhaser(CombiningPhaser poPhaser)
+    {
+        soPhaser = poPhaser;
+    }
+
+    /**
+     * Arrives at the phaser without waiting for the other tasks.
+     * @return The phase arrived in, for awaitPhase().
+     */
+    protected int arrivePhase()
+    {
+        if (this.iParty < 0)
+        {
+            this.iParty = this.oPhaser.register();
+        }
+        return this.oPhaser.arrive(this.iParty);
+    }
+
+    /**
+     * Waits until every task has arrived in the given phase.
+     * @param piPhase Phase returned by arrivePhase().
+     */
+    protected void awaitPhase(int piPhase)
+    {
+        PhaseEvent oEvent = new PhaseEvent();
+        oEvent.begin();
+        this.oPhaser.awaitAdvance(this.iParty, piPhase);
+        oEvent.commit(this, PhaseEvent.BARRIER);
+    }
+
+    /**
+     * Arrives at the phaser and waits for the other tasks.
+     */
+    protected void arriveAndAwaitPhase()
+    {
+        awaitPhase(arrivePhase());
+    }
+
+    /**
+     * Just a make up for the PHASE I to make it somewhat tangeable.
+     * Only reads siTurn and the next TID. Not synchronized on the task: the logger may
+     * yield inside it, and a virtual thread must not do that while holding a monitor.
+     */
+    protected void phase1()
+    {
+        PhaseEvent oEvent = new PhaseEvent();
+        oEvent.begin();
+        int iNextTID = getNextTID();
+
+        AsyncLogger.println(ANSI_BLUE + "[BaseThread - " + this.getClass().getSimpleName() + " - PHASE 1] " + "Thread [TID=" + this.iTID + "] starts PHASE I." + ANSI_RESET);
+
+        AsyncLogger.println
+                (
+                        ANSI_BLUE + "[BaseThread - " + this.getClass().getSimpleName() + " - PHASE 1] " + "Some stats info in the PHASE I:\n" +
+                                "\t\t    iTID = " + this.iTID +
+                                ", siNextTID = " + iNextTID +
+                                ", siTurn = " + soTurns.getTurn() +
+                                ".\n\t\t    Their \"checksum\": " + (iNextTID * 100 + this.iTID * 10 + soTurns.getTurn()) + ANSI_RESET
+                );
+
+        AsyncLogger.println(ANSI_BLUE + "[BaseThread - " + this.getClass().getSimpleName() + " - PHASE 1] " + "Thread [TID=" + this.iTID + "] finishes PHASE I." + ANSI_RESET);
+
+        oEvent.commit(this, PhaseEvent.PHASE_1);
+    }
+
+    /**
+     * Just a make up for the PHASE II to make it somewhat tangeable.
+     * Only reads siTurn and the next TID. Not synchronized on the task: the logger may
+     * yield inside it, and a virtual thread must not do that while holding a monitor.
+     */
+    protected void phase2()
+    {
+        phase2(soTurns.getTurn());
+    }
+
+    /**
+     * PHASE II, showing the given value of siTurn: the one it takes once this task's turn is over,
+     * whether the turn has already moved (turnTestAndSet()) or not yet (phase2InOrder()).
+     */
+    private void phase2(int piTurn)
+    {
+        PhaseEvent oEvent = new PhaseEvent();
+        oEvent.begin();
+        int iNextTID = getNextTID();
+
+        AsyncLogger.println(ANSI_BLUE + "[BaseThread - " + this.getClass().getSimpleName() + " - PHASE 2] " + "Thread [TID=" + this.iTID + "] starts PHASE II." + ANSI_RESET);
+
+        AsyncLogger.println
+                (
+                        ANSI_BLUE + "[BaseThread - " + this.getClass().getSimpleName() + " - Phase 2] + " + "Some stats info in the PHASE II:\n" +
+                                "\t\t    iTID = " + this.iTID +
+                                ", siNextTID = " + iNextTID +
+                                ", siTurn = " + piTurn +
+                                ".\n\t\t    Their \"checksum\": " + (iNextTID * 100 + this.iTID * 10 + piTurn) + ANSI_RESET
+                );
+
+        AsyncLogger.println(ANSI_BLUE + "[BaseThread - " + this.getClass().getSimpleName() + " - PHASE 2] " + "Thread [TID=" + this.iTID + "] finishes PHASE II." + ANSI_RESET);
+
+        oEvent.commit(this, PhaseEvent.PHASE_2);
+    }
+
+    // Semaphore used to ensure that field siTurn is incremented by each thread independently.
+    private static Semaphore test = new Semaphore(1);
+
+    static
+    {
+        Metrics.register("test", test);
+    }
+
+    /**
+     * Test-and-Set for the iTurn variable.
+     *
+     * Use to proceed to the phase II in the correct order.
+     * Must be atomic, which the static test semaphore takes care of. It is not
+     * synchronized on the task itself: parking in test.Wait() while holding a
+     * monitor would pin a virtual thread to its carrier.
+     *
+     * @param pcIncreasingOrder true if TIDs are in increasing order; false otherwise
+     *
+     * @return Returns true if the turn has changed, 'false' otherwise
+     */
+    public boolean turnTestAndSet(boolean pcIncreasingOrder)
+    {
+        //----------------------------------------- CRITICAL SECTION ------------------------------------------------------
+
+        test.Wait(this.getClass().getSimpleName(), this.iTID, getPriority());
+        // test
+        if(soTurns.getTurn() == this.iTID)
+        {
+            // set siTurn = siTurn +/- 1 (or the next registered TID if there is a gap);
+            soTurns.advance(this.iTID, pcIncreasingOrder);
+            if(pcIncreasingOrder) {
+                AsyncLogger.println(ANSI_RED + "[BaseThread - " + this.getClass().getSimpleName() + " - turnTestAndSet] " +
+                        "Thread " + this.iTID + "'s turn to run Phase II." + ANSI_RESET);
+                this.phase2();
+            }
+
+        test.Signal(this.getClass().getSimpleName(), this.iTID);
+
+            // Phase II output of the next tasks may be waiting for this turn to pass.
+            soPhase2Output.drain();
+            return true;
+        }
+
+        if (!printedWaitMessage) {
+            AsyncLogger.println(ANSI_RED + "[BaseThread - " + this.getClass().getSimpleName() + " - turnTestAndSet] " +
+                    "Thread " + this.iTID + " has attempted to run Phase II but must wait its turn." + ANSI_RESET);
+
+            printedWaitMessage = true;
+        }
+
+        test.Signal(this.getClass().getSimpleName(), this.iTID);
+
+        //^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^ CRITICAL SECTION ^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^
+
+        return false;
+    }
+
+    /**
+     * Always assumes the increasing order.
+     */
+    public boolean turnTestAndSet()
+    {
+        return turnTestAndSet(true);
+    }
+
+    /**
+     * Blocking counterpart of turnTestAndSet(): parks the thread until its turn comes
+     * instead of having it retry in a loop, then takes the turn.
+     *
+     * @param pcIncreasingOrder true if TIDs are in increasing order; false otherwise
+     *
+     * @return Always true, once the turn has changed
+     */
+    public boolean turnWaitAndSet(boolean pcIncreasingOrder)
+    {
+        if (soTurns.getTurn() != this.iTID && !printedWaitMessage) {
+            AsyncLogger.println(ANSI_RED + "[BaseThread - " + this.getClass().getSimpleName() + " - turnTestAndSet] " +
+                    "Thread " + this.iTID + " has attempted to run Phase II but must wait its turn." + ANSI_RESET);
+
+            printedWaitMessage = true;
+        }
+
+        PhaseEvent oEvent = new PhaseEvent();
+        oEvent.begin();
+        soTurns.await(this.iTID);
+        oEvent.commit(this, PhaseEvent.TURN);
+
+        // Only the owner of the turn can move it, so this succeeds right away.
+        return turnTestAndSet(pcIncreasingOrder);
+    }
+
+    /**
+     * Parallel counterpart of turnWaitAndSet(true): runs phase II right away, alongside the other
+     * tasks' phase II, and only has its output logged in increasing TID order. The output is held
+     * back meanwhile and logged in one piece when the turn comes, by whichever task is committing.
+     * Returns once it has been logged and the turn has moved on.
+     *
+     * The tasks of a run should all use either this or turnWaitAndSet(), so that the output keeps its order.
+     */
+    public void phase2InOrder()
+    {
+        String strOutput;
+        AsyncLogger.capture();
+        try
+        {
+            AsyncLogger.println(ANSI_RED + "[BaseThread - " + this.getClass().getSimpleName() + " - phase2InOrder] " +
+                    "Thread " + this.iTID + "'s turn to log Phase II." + ANSI_RESET);
+            // The turn only moves on once the output is committed; show it as it will be by then, as turnTestAndSet() does.
+            this.phase2(soTurns.next(this.iTID, true));
+        }
+        finally
+        {
+            strOutput = AsyncLogger.release();
+        }
+
+        PhaseEvent oEvent = new PhaseEvent();
+        oEvent.begin();
+        soPhase2Output.publishAndAwait(this.iTID, strOutput);
+        oEvent.commit(this, PhaseEvent.TURN);
+    }
+}
+
+// EOF
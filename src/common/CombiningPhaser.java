@@ -0,0 +1,329 @@
+package common;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntConsumer;
+
+/**
+ * Class CombiningPhaser
+ * Reusable barrier for a fixed number of parties going through a fixed number of phases together.
+ *
+ * Each party arrives once per phase; the phase advances when the last one arrives. Arrivals are
+ * combined in a tree: parties count down a leaf shared with at most FAN_IN - 1 others, and only
+ * the last arrival at a node goes on to its parent. So no counter is touched by more than FAN_IN
+ * threads per phase, however many parties there are. The last arrival at the root runs the
+ * advance action, then publishes the next phase and unparks the waiters, leaf by leaf.
+ *
+ * Parties are numbered from 0 by register(). A waiter spins briefly, then parks (see Parking).
+ * After the last phase the phaser is terminated and arrivals are refused.
+ *
+ * Karim Rhoualem
+ * Student 26603157
+ */
+public class CombiningPhaser
+{
+    /**
+     * Most arrivals combined per node.
+     */
+    static final int FAN_IN = 4;
+
+    /**
+     * How long a waiter spins before parking. No spinning at all on a single CPU.
+     */
+    private static final int SPINS = Runtime.getRuntime().availableProcessors() > 1 ? 256 : 0;
+
+    /**
+     * A node of the arrival tree.
+     */
+    private static final class Node
+    {
+        /**
+         * Set while the tree is built; null for the root.
+         */
+        Node oParent = null;
+
+        /**
+         * Arrivals per phase: parties for a leaf, children for an inner node.
+         */
+        final int iExpected;
+
+        /**
+         * Arrivals still missing in the current phase.
+         */
+        final AtomicInteger oPending;
+
+        /**
+         * Threads parked at a leaf, by phase parity. A phase's queue is drained before any party
+         * can arrive in the phase after next, so the two never mix.
+         */
+        final ConcurrentLinkedQueue<Thread> oEvenWaiters = new ConcurrentLinkedQueue<>();
+        final ConcurrentLinkedQueue<Thread> oOddWaiters = new ConcurrentLinkedQueue<>();
+
+        Node(int piExpected)
+        {
+            this.iExpected = piExpected;
+            this.oPending = new AtomicInteger(piExpected);
+        }
+
+        ConcurrentLinkedQueue<Thread> waiters(int piPhase)
+        {
+            return ((piPhase & 1) == 0) ? this.oEvenWaiters : this.oOddWaiters;
+        }
+    }
+
+    private final int iParties;
+    private final int iPhases;
+
+    /**
+     * Leaf of each group of FAN_IN parties
+     */
+    private final Node[] aoLeaves;
+
+    /**
+     * Called by the last arrival of each phase, with that phase, before anybody is released; may be null.
+     */
+    private final IntConsumer oOnAdvance;
+
+    /**
+     * Current phase; iPhases once terminated.
+     */
+    private volatile int iPhase = 0;
+
+    /**
+     * Parties handed out by register()
+     */
+    private final AtomicInteger oRegistered = new AtomicInteger();
+
+    /*
+     * ------------
+     * Constructors
+     * ------------
+     */
+
+    /**
+     * @param piParties Number of parties that must arrive for a phase to advance.
+     * @param piPhases Number of phases before the phaser terminates.
+     * @param poOnAdvance Run by the last arrival of each phase with the phase that completes; may be null.
+     * @throws IllegalArgumentException if a count is negative.
+     */
+    public CombiningPhaser(int piParties, int piPhases, IntConsumer poOnAdvance)
+    {
+        if (piParties < 0 || piPhases < 0)
+        {
+            throw new IllegalArgumentException("Parties and phases cannot be negative: " + piParties + ", " + piPhases + ".");
+        }
+
+        this.iParties = piParties;
+        this.iPhases = piPhases;
+        this.oOnAdvance = poOnAdvance;
+
+        // The leaves first, FAN_IN parties each, then each level over the one below, up to a single root.
+        this.aoLeaves = level(piParties);
+        for (Node[] aoLevel = this.aoLeaves; aoLevel.length > 1; )
+        {
+            Node[] aoAbove = level(aoLevel.length);
+            for (int i = 0; i < aoLevel.length; i++)
+            {
+                aoLevel[i].oParent = aoAbove[i / FAN_IN];
+            }
+            aoLevel = aoAbove;
+        }
+    }
+
+    /**
+     * Without an advance action.
+     */
+    public CombiningPhaser(int piParties, int piPhases)
+    {
+        this(piParties, piPhases, null);
+    }
+
+    /**
+     * Makes the nodes that combine the given number of arrivals, FAN_IN per node.
+     */
+    private static Node[] level(int piArrivals)
+    {
+        Node[] aoNodes = new Node[(piArrivals + FAN_IN - 1) / FAN_IN];
+        for (int i = 0; i < aoNodes.length; i++)
+        {
+            aoNodes[i] = new Node(Math.min(FAN_IN, piArrivals - i * FAN_IN));
+        }
+        return aoNodes;
+    }
+
+    /*
+     * -----------
+     * The parties
+     * -----------
+     */
+
+    /**
+     * Hands out the next party number.
+     * @return The party, from 0 up.
+     * @throws IllegalStateException if every party is taken.
+     */
+    public int register()
+    {
+        int iParty = this.oRegistered.getAndIncrement();
+        if (iParty >= this.iParties)
+        {
+            this.oRegistered.decrementAndGet();
+            throw new IllegalStateException("All " + this.iParties + " parties of the phaser are taken.");
+        }
+        return iParty;
+    }
+
+    /**
+     * Arrives in the current phase without waiting for the others.
+     * If this is the last arrival, runs the advance action and releases the waiters.
+     *
+     * @param piParty The arriving party; it must not have arrived in this phase yet.
+     * @return The phase arrived in.
+     * @throws IllegalStateException if the phaser is terminated.
+     */
+    public int arrive(int piParty)
+    {
+        if (piParty < 0 || piParty >= this.iParties)
+        {
+            throw new IllegalArgumentException("No party " + piParty + " among " + this.iParties + ".");
+        }
+
+        int iArrived = this.iPhase;
+        if (iArrived >= this.iPhases)
+        {
+            throw new IllegalStateException("The phaser is terminated after " + this.iPhases + " phases.");
+        }
+
+        for (Node oNode = this.aoLeaves[piParty / FAN_IN]; oNode != null; oNode = oNode.oParent)
+        {
+            if (oNode.oPending.decrementAndGet() > 0)
+            {
+                return iArrived;
+            }
+
+            // Everybody under this node has arrived and none can arrive again before the phase advances.
+            oNode.oPending.set(oNode.iExpected);
+        }
+
+        advance(iArrived);
+        return iArrived;
+    }
+
+    /**
+     * Waits until the phaser is past the given phase.
+     * Interrupts do not end the wait; the interrupt status is kept.
+     *
+     * @param piParty The waiting party.
+     * @param piPhase Phase to wait the end of, as returned by arrive().
+     * @return The phase now current.
+     */
+    public int awaitAdvance(int piParty, int piPhase)
+    {
+        for (int i = 0; i < SPINS && this.iPhase == piPhase; i++)
+        {
+            Thread.onSpinWait();
+        }
+
+        if (this.iPhase == piPhase)
+        {
+            // Queue up before re-checking, so advance() either sees us or we see the new phase.
+            ConcurrentLinkedQueue<Thread> oWaiters = this.aoLeaves[piParty / FAN_IN].waiters(piPhase);
+            oWaiters.add(Thread.currentThread());
+
+            boolean bInterrupted = Parking.awaitUninterruptibly(() -> this.iPhase != piPhase, this);
+
+            oWaiters.remove(Thread.currentThread());
+            if (bInterrupted)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        return this.iPhase;
+    }
+
+    /**
+     * Arrives in the current phase and waits for the others.
+     * @param piParty The arriving party.
+     * @return The phase now current.
+     */
+    public int arriveAndAwaitAdvance(int piParty)
+    {
+        return awaitAdvance(piParty, arrive(piParty));
+    }
+
+    /**
+     * Completes the phase: runs the advance action, publishes the next phase and unparks the waiters.
+     */
+    private void advance(int piPhase)
+    {
+        try
+        {
+            if (this.oOnAdvance != null)
+            {
+                this.oOnAdvance.accept(piPhase);
+            }
+        }
+        finally
+        {
+            this.iPhase = piPhase + 1;
+
+            Thread oWaiter;
+            for (Node oLeaf : this.aoLeaves)
+            {
+                ConcurrentLinkedQueue<Thread> oWaiters = oLeaf.waiters(piPhase);
+                while ((oWaiter = oWaiters.poll()) != null)
+                {
+                    LockSupport.unpark(oWaiter);
+                }
+            }
+        }
+    }
+
+    /*
+     * -------
+     * Getters
+     * -------
+     */
+
+    /**
+     * Gets the current phase.
+     * @return The phase, from 0 up; getPhases() once terminated.
+     */
+    public int getPhase()
+    {
+        return this.iPhase;
+    }
+
+    public int getParties()
+    {
+        return this.iParties;
+    }
+
+    public int getPhases()
+    {
+        return this.iPhases;
+    }
+
+    public boolean isTerminated()
+    {
+        return this.iPhase >= this.iPhases;
+    }
+
+    /**
+     * Counts the threads queued at the leaves for the phases of the same parity as the given one.
+     * For the tests.
+     */
+    int countWaiters(int piPhase)
+    {
+        int iCount = 0;
+        for (Node oLeaf : this.aoLeaves)
+        {
+            iCount += oLeaf.waiters(piPhase).size();
+        }
+        return iCount;
+    }
+}
+
+// EOF
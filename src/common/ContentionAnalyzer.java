@@ -0,0 +1,200 @@
+package common;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedThread;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * Class ContentionAnalyzer
+ * Summarizes the COEN346 events of a Flight Recorder recording: where the workers waited (semaphores,
+ * the phaser, turns, a full log buffer), how long they held the stack, and how long the phases took.
+ *
+ * Record with e.g. -XX:StartFlightRecording=filename=run.jfr, then:
+ *   java common.ContentionAnalyzer run.jfr [--top <n>]
+ *
+ * Karim Rhoualem
+ * Student 26603157
+ */
+public final class ContentionAnalyzer
+{
+    private static final String SEMAPHORE_WAIT = "common.SemaphoreWait";
+    private static final String CRITICAL_SECTION = "common.CriticalSection";
+    private static final String PHASE = "common.Phase";
+    private static final String LOG_STALL = "common.LogStall";
+
+    /**
+     * Durations of one kind of event, e.g. waits on mutex by AcquireBlock.
+     */
+    private static final class Stats
+    {
+        final Histogram oDurations = new Histogram();
+        long lTotal = 0;
+        long lFlagged = 0;
+
+        void add(Duration poDuration, boolean pbFlagged)
+        {
+            long lNanos = poDuration.toNanos();
+            this.oDurations.record(lNanos);
+            this.lTotal += lNanos;
+            if (pbFlagged)
+            {
+                this.lFlagged++;
+            }
+        }
+    }
+
+    private final Map<String, Stats> oWaits = new TreeMap<>();
+    private final Map<String, Stats> oSections = new TreeMap<>();
+    private final Map<String, Stats> oPhases = new TreeMap<>();
+    private long lEvents = 0;
+
+    private ContentionAnalyzer()
+    {
+    }
+
+    private static Stats stats(Map<String, Stats> poMap, String pstrKey)
+    {
+        return poMap.computeIfAbsent(pstrKey, strKey -> new Stats());
+    }
+
+    /**
+     * Gets the worker an event was for: the caller's class if it said, else the thread's name without its number.
+     */
+    private static String worker(RecordedEvent poEvent, String pstrCaller)
+    {
+        if (pstrCaller != null)
+        {
+            int iLabelEnd = pstrCaller.indexOf(") ");
+            return (iLabelEnd >= 0) ? pstrCaller.substring(iLabelEnd + 2) : pstrCaller;
+        }
+
+        RecordedThread oThread = poEvent.getThread();
+        return (oThread != null && oThread.getJavaName() != null) ? oThread.getJavaName().replaceFirst("-\\d+$", "") : "?";
+    }
+
+    private void read(Path poFile) throws IOException
+    {
+        try (RecordingFile oRecording = new RecordingFile(poFile))
+        {
+            while (oRecording.hasMoreEvents())
+            {
+                RecordedEvent oEvent = oRecording.readEvent();
+                switch (oEvent.getEventType().getName())
+                {
+                    case SEMAPHORE_WAIT:
+                    {
+                        String strSemaphore = oEvent.getString("semaphore");
+                        String strKey = ((strSemaphore != null) ? strSemaphore : "?") + " by " + worker(oEvent, oEvent.getString("caller"));
+                        stats(this.oWaits, "wait on " + strKey).add(oEvent.getDuration(), oEvent.getBoolean("contended"));
+                        break;
+                    }
+                    case PHASE:
+                    {
+                        String strPhase = oEvent.getString("phase");
+                        String strKey = strPhase + " of " + oEvent.getString("worker");
+                        if (PhaseEvent.TURN.equals(strPhase) || PhaseEvent.BARRIER.equals(strPhase))
+                        {
+                            stats(this.oWaits, strKey).add(oEvent.getDuration(), false);
+                        }
+                        else
+                        {
+                            stats(this.oPhases, strKey).add(oEvent.getDuration(), false);
+                        }
+                        break;
+                    }
+                    case CRITICAL_SECTION:
+                        stats(this.oSections, oEvent.getString("worker") + (oEvent.getBoolean("locked") ? "" : " (no mutex)"))
+                                .add(oEvent.getDuration(), false);
+                        break;
+                    case LOG_STALL:
+                        stats(this.oWaits, "log buffer full by " + worker(oEvent, null)).add(oEvent.getDuration(), false);
+                        break;
+                    default:
+                        continue;
+                }
+                this.lEvents++;
+            }
+        }
+    }
+
+    private static String line(String pstrName, Stats poStats)
+    {
+        Histogram oDurations = poStats.oDurations;
+        return String.format("  %-44s n=%-7d total=%10.3f ms  mean=%9.1f us  p99<=%9.1f us  max=%9.1f us",
+                pstrName, oDurations.getCount(), poStats.lTotal / 1e6, oDurations.getMean() / 1e3,
+                oDurations.getPercentile(99) / 1e3, oDurations.getMax() / 1e3);
+    }
+
+    private static List<Map.Entry<String, Stats>> byTotal(Map<String, Stats> poMap)
+    {
+        List<Map.Entry<String, Stats>> aoEntries = new ArrayList<>(poMap.entrySet());
+        aoEntries.sort((oA, oB) -> Long.compare(oB.getValue().lTotal, oA.getValue().lTotal));
+        return aoEntries;
+    }
+
+    private void report(Path poFile, int piTop)
+    {
+        System.out.println("[ContentionAnalyzer] " + poFile + ": " + this.lEvents + " events.");
+        if (this.lEvents == 0)
+        {
+            System.out.println("[ContentionAnalyzer] No COEN346 events in this recording.");
+            return;
+        }
+
+        long lBlocked = 0;
+        for (Stats oStats : this.oWaits.values())
+        {
+            lBlocked += oStats.lTotal;
+        }
+
+        System.out.println("Hot spots (time spent blocked, most first):");
+        int iShown = 0;
+        for (Map.Entry<String, Stats> oEntry : byTotal(this.oWaits))
+        {
+            if (iShown++ == piTop)
+            {
+                break;
+            }
+            Stats oStats = oEntry.getValue();
+            System.out.println(line(oEntry.getKey(), oStats) + String.format("  %5.1f%%", lBlocked == 0 ? 0 : 100.0 * oStats.lTotal / lBlocked)
+                    + (oEntry.getKey().startsWith("wait on ") ? String.format("  contended %d/%d", oStats.lFlagged, oStats.oDurations.getCount()) : ""));
+        }
+
+        System.out.println("Critical sections (hold time):");
+        for (Map.Entry<String, Stats> oEntry : byTotal(this.oSections))
+        {
+            System.out.println(line(oEntry.getKey(), oEntry.getValue()));
+        }
+
+        System.out.println("Phases:");
+        for (Map.Entry<String, Stats> oEntry : this.oPhases.entrySet())
+        {
+            System.out.println(line(oEntry.getKey(), oEntry.getValue()));
+        }
+    }
+
+    public static void main(String[] argv) throws IOException
+    {
+        if (argv.length != 1 && !(argv.length == 3 && "--top".equals(argv[1])))
+        {
+            System.err.println("Usage: ContentionAnalyzer <recording.jfr> [--top <n>]");
+            System.exit(1);
+        }
+
+        Path oFile = Paths.get(argv[0]);
+        ContentionAnalyzer oAnalyzer = new ContentionAnalyzer();
+        oAnalyzer.read(oFile);
+        oAnalyzer.report(oFile, (argv.length == 3) ? Integer.parseInt(argv[2]) : 10);
+    }
+}
+
+// EOF
@@ -0,0 +1,61 @@
+package common;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Class CriticalSectionEvent
+ * Flight Recorder event for one critical section of a worker: from entering it to leaving it,
+ * so its duration is the hold time. Begun right after the mutex is taken and ended right before
+ * it is given back; committed once it is given back.
+ *
+ * Karim Rhoualem
+ * Student 26603157
+ */
+@Name("common.CriticalSection")
+@Label("Critical Section")
+@Category({"COEN346", "Synchronization"})
+@Description("Time a worker spent in a critical section over the stack")
+@StackTrace(false)
+public final class CriticalSectionEvent extends Event
+{
+    @Label("Worker")
+    @Description("Class of the worker, e.g. AcquireBlock")
+    String worker;
+
+    @Label("TID")
+    int tid;
+
+    @Label("Blocks")
+    @Description("Blocks popped or pushed")
+    int blocks;
+
+    @Label("Locked")
+    @Description("True if the section held the mutex; false for a stack that synchronizes itself or a prober's snapshot")
+    boolean locked;
+
+    /**
+     * Fills in and commits the event, if a recording wants it. Call after end().
+     *
+     * @param poTask The worker.
+     * @param piBlocks Blocks popped or pushed.
+     * @param pbLocked True if the mutex was held.
+     */
+    public void commit(BaseTask poTask, int piBlocks, boolean pbLocked)
+    {
+        if (shouldCommit())
+        {
+            this.worker = poTask.getClass().getSimpleName();
+            this.tid = poTask.getTID();
+            this.blocks = piBlocks;
+            this.locked = pbLocked;
+            commit();
+        }
+    }
+}
+
+// EOF
@@ -0,0 +1,130 @@
+package common;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Class Histogram
+ * Distribution of durations in nanoseconds, in power-of-two buckets.
+ *
+ * Each bucket is a striped counter, so threads recording at the same time do not
+ * fight over a cache line. Percentiles are read from the buckets and are exact to
+ * within a factor of two, which is enough to tell a 100 ns wait from a 100 us one.
+ *
+ * Karim Rhoualem
+ * Student 26603157
+ */
+public final class Histogram
+{
+    /**
+     * Bucket i counts the values in [2^i, 2^(i+1)); bucket 0 also counts 0.
+     */
+    private static final int BUCKETS = 64;
+
+    private final LongAdder[] aoBuckets = new LongAdder[BUCKETS];
+
+    private final LongAdder oSum = new LongAdder();
+
+    private final LongAccumulator oMax = new LongAccumulator(Math::max, 0);
+
+    public Histogram()
+    {
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            this.aoBuckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records one duration.
+     * @param plNanos The duration; negative values count as 0.
+     */
+    public void record(long plNanos)
+    {
+        long lValue = Math.max(0, plNanos);
+        this.aoBuckets[lValue == 0 ? 0 : 63 - Long.numberOfLeadingZeros(lValue)].increment();
+        this.oSum.add(lValue);
+        this.oMax.accumulate(lValue);
+    }
+
+    /**
+     * Gets the number of durations recorded.
+     * @return The count.
+     */
+    public long getCount()
+    {
+        long lCount = 0;
+        for (LongAdder oBucket : this.aoBuckets)
+        {
+            lCount += oBucket.sum();
+        }
+        return lCount;
+    }
+
+    /**
+     * Gets the mean of the recorded durations.
+     * @return The mean in nanoseconds, or 0 if nothing was recorded.
+     */
+    public double getMean()
+    {
+        long lCount = getCount();
+        return lCount == 0 ? 0 : (double) this.oSum.sum() / lCount;
+    }
+
+    /**
+     * Gets the longest recorded duration.
+     * @return The maximum in nanoseconds.
+     */
+    public long getMax()
+    {
+        return this.oMax.get();
+    }
+
+    /**
+     * Gets an upper bound of the given percentile: the top of the bucket it falls in, at most getMax().
+     * @param pdPercentile Between 0 and 100.
+     * @return The percentile in nanoseconds, or 0 if nothing was recorded.
+     */
+    public long getPercentile(double pdPercentile)
+    {
+        long[] alCounts = new long[BUCKETS];
+        long lCount = 0;
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            alCounts[i] = this.aoBuckets[i].sum();
+            lCount += alCounts[i];
+        }
+        if (lCount == 0)
+        {
+            return 0;
+        }
+
+        long lRank = (long) Math.ceil(lCount * pdPercentile / 100.0);
+        long lSeen = 0;
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            lSeen += alCounts[i];
+            if (lSeen >= lRank && alCounts[i] > 0)
+            {
+                long lTop = (i == 63) ? Long.MAX_VALUE : (1L << (i + 1)) - 1;
+                return Math.min(lTop, getMax());
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * Forgets everything recorded so far.
+     */
+    public void reset()
+    {
+        for (LongAdder oBucket : this.aoBuckets)
+        {
+            oBucket.reset();
+        }
+        this.oSum.reset();
+        this.oMax.reset();
+    }
+}
+
+// EOF
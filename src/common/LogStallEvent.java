@@ -0,0 +1,25 @@
+package common;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Class LogStallEvent
+ * Flight Recorder event for a caller of AsyncLogger held up because the ring buffer was full,
+ * i.e. the time console output cost a worker directly.
+ *
+ * Karim Rhoualem
+ * Student 26603157
+ */
+@Name("common.LogStall")
+@Label("Log Stall")
+@Category({"COEN346", "Console"})
+@Description("Time a thread waited for room in the AsyncLogger ring buffer")
+final class LogStallEvent extends Event
+{
+}
+
+// EOF
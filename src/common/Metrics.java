@@ -0,0 +1,322 @@
+package common;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Class Metrics
+ * Counters and timings of the hot paths: named striped counters (stack operations and
+ * the like), and for each registered semaphore the time spent in Wait(), how often a
+ * waiter had to park and how many threads are queued; for a semaphore used as a lock,
+ * also the time it was held.
+ *
+ * Everything is off unless -Dmetrics=true. The switch is a static final, so with
+ * metrics off the JIT drops the recording code altogether. When on, the numbers are
+ * shown over JMX (common:type=Metrics) and, every metrics.interval seconds if set,
+ * dumped to the console.
+ *
+ * Settings (system properties):
+ *   metrics          - true to record (default false)
+ *   metrics.interval - seconds between console dumps; 0 for none (default 0)
+ *
+ * Karim Rhoualem
+ * Student 26603157
+ */
+public final class Metrics implements MetricsMXBean
+{
+    /**
+     * Whether anything is recorded at all.
+     */
+    public static final boolean ENABLED = Boolean.getBoolean("metrics");
+
+    private static final long INTERVAL_SECONDS = Long.getLong("metrics.interval", 0);
+
+    /**
+     * Sentinel of SemaphoreStats.oHeldSince: the thread does not hold the semaphore.
+     */
+    private static final long NOT_HELD = Long.MIN_VALUE;
+
+    private static final ConcurrentSkipListMap<String, Counter> soCounters = new ConcurrentSkipListMap<>();
+
+    private static final ConcurrentSkipListMap<String, SemaphoreStats> soSemaphores = new ConcurrentSkipListMap<>();
+
+    static
+    {
+        if (ENABLED)
+        {
+            try
+            {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(new Metrics(), new ObjectName("common:type=Metrics"));
+            }
+            catch (Exception e)
+            {
+                AsyncLogger.log(AsyncLogger.Level.WARN, "[Metrics] Could not register the MBean: " + e, true);
+            }
+
+            if (INTERVAL_SECONDS > 0)
+            {
+                ScheduledExecutorService oDumper = Executors.newSingleThreadScheduledExecutor(poTask ->
+                {
+                    Thread oThread = new Thread(poTask, "Metrics");
+                    oThread.setDaemon(true);
+                    return oThread;
+                });
+                oDumper.scheduleAtFixedRate(() -> AsyncLogger.println(report()), INTERVAL_SECONDS, INTERVAL_SECONDS, TimeUnit.SECONDS);
+            }
+        }
+    }
+
+    private Metrics()
+    {
+    }
+
+    /**
+     * A named striped counter. Free to call when metrics are off.
+     */
+    public static final class Counter
+    {
+        private final LongAdder oAdder = new LongAdder();
+
+        private Counter()
+        {
+        }
+
+        public void increment()
+        {
+            if (ENABLED)
+            {
+                this.oAdder.increment();
+            }
+        }
+
+        public void add(long plValue)
+        {
+            if (ENABLED)
+            {
+                this.oAdder.add(plValue);
+            }
+        }
+
+        public long get()
+        {
+            return this.oAdder.sum();
+        }
+    }
+
+    /**
+     * What is recorded for one named semaphore. Only created when metrics are on.
+     */
+    static final class SemaphoreStats
+    {
+        private final Semaphore oSemaphore;
+
+        /**
+         * Whether the semaphore is used as a lock, so that a hold means something (see register())
+         */
+        private final boolean bTrackHold;
+        private final Histogram oWait = new Histogram();
+        private final Histogram oHold = new Histogram();
+        private final LongAdder oParks = new LongAdder();
+
+        /**
+         * When the calling thread last took a permit it has not given back yet.
+         */
+        private final ThreadLocal<long[]> oHeldSince = ThreadLocal.withInitial(() -> new long[]{NOT_HELD});
+
+        SemaphoreStats(Semaphore poSemaphore, boolean pbTrackHold)
+        {
+            this.oSemaphore = poSemaphore;
+            this.bTrackHold = pbTrackHold;
+        }
+
+        /**
+         * A Wait() that started at plStart has just taken a permit.
+         */
+        void acquired(long plStart)
+        {
+            long lNow = System.nanoTime();
+            this.oWait.record(lNow - plStart);
+            if (!this.bTrackHold)
+            {
+                return;
+            }
+
+            long[] alHeldSince = this.oHeldSince.get();
+            if (alHeldSince[0] == NOT_HELD)
+            {
+                alHeldSince[0] = lNow;
+            }
+        }
+
+        /**
+         * The calling thread gives a permit back; a hold is recorded if it took one before.
+         */
+        void released()
+        {
+            if (!this.bTrackHold)
+            {
+                return;
+            }
+
+            long[] alHeldSince = this.oHeldSince.get();
+            if (alHeldSince[0] != NOT_HELD)
+            {
+                this.oHold.record(System.nanoTime() - alHeldSince[0]);
+                alHeldSince[0] = NOT_HELD;
+            }
+        }
+
+        void parked()
+        {
+            this.oParks.increment();
+        }
+    }
+
+    /**
+     * Gets the counter of the given name, creating it the first time.
+     * @param pstrName Dotted name, e.g. "stack.push".
+     * @return The counter.
+     */
+    public static Counter counter(String pstrName)
+    {
+        return soCounters.computeIfAbsent(pstrName, strName -> new Counter());
+    }
+
+    /**
+     * Starts recording the wait and hold times of a semaphore used as a lock under the given name.
+     * A semaphore registered again under the same name replaces the previous one.
+     * When metrics are off, only names the semaphore for the Flight Recorder events.
+     *
+     * @param pstrName Name shown in the reports, e.g. "mutex".
+     * @param poSemaphore The semaphore.
+     */
+    public static void register(String pstrName, Semaphore poSemaphore)
+    {
+        register(pstrName, poSemaphore, true);
+    }
+
+    /**
+     * Like register(String, Semaphore), with hold times only if pbTrackHold. A hold runs from a thread's
+     * Wait() to its own next Signal(), which only measures something for a lock: one permit, given back
+     * by the thread that took it. A counting semaphore whose permits one thread takes and another gives
+     * back (e.g. the blocks of the stack) gets its wait times only.
+     *
+     * @param pstrName Name shown in the reports.
+     * @param poSemaphore The semaphore.
+     * @param pbTrackHold True if the semaphore is used as a lock.
+     */
+    public static void register(String pstrName, Semaphore poSemaphore, boolean pbTrackHold)
+    {
+        poSemaphore.setName(pstrName);
+        if (ENABLED)
+        {
+            SemaphoreStats oStats = new SemaphoreStats(poSemaphore, pbTrackHold);
+            poSemaphore.setStats(oStats);
+            soSemaphores.put(pstrName, oStats);
+        }
+    }
+
+    /**
+     * Builds the text dump: one line per counter, then one line per semaphore.
+     * @return The report.
+     */
+    public static String report()
+    {
+        StringBuilder oReport = new StringBuilder("[Metrics] ------------------------------------------------------------");
+        for (Map.Entry<String, Counter> oEntry : soCounters.entrySet())
+        {
+            oReport.append("\n[Metrics] ").append(oEntry.getKey()).append(" = ").append(oEntry.getValue().get());
+        }
+        for (Map.Entry<String, SemaphoreStats> oEntry : soSemaphores.entrySet())
+        {
+            SemaphoreStats oStats = oEntry.getValue();
+            oReport.append("\n[Metrics] ").append(oEntry.getKey())
+                   .append(": queue=").append(oStats.oSemaphore.getQueueLength())
+                   .append(", parked=").append(oStats.oParks.sum())
+                   .append(", wait ").append(describe(oStats.oWait));
+            if (oStats.bTrackHold)
+            {
+                oReport.append(", hold ").append(describe(oStats.oHold));
+            }
+        }
+        return oReport.toString();
+    }
+
+    private static String describe(Histogram poHistogram)
+    {
+        return String.format("n=%d mean=%.0fns p50<=%dns p99<=%dns max=%dns",
+                poHistogram.getCount(), poHistogram.getMean(), poHistogram.getPercentile(50),
+                poHistogram.getPercentile(99), poHistogram.getMax());
+    }
+
+    /*
+     * ----------------------------
+     * MetricsMXBean implementation
+     * ----------------------------
+     */
+
+    @Override
+    public Map<String, Long> getOperationCounts()
+    {
+        Map<String, Long> oCounts = new TreeMap<>();
+        soCounters.forEach((strName, oCounter) -> oCounts.put(strName, oCounter.get()));
+        return oCounts;
+    }
+
+    @Override
+    public Map<String, Integer> getQueueDepths()
+    {
+        Map<String, Integer> oDepths = new TreeMap<>();
+        soSemaphores.forEach((strName, oStats) -> oDepths.put(strName, oStats.oSemaphore.getQueueLength()));
+        return oDepths;
+    }
+
+    @Override
+    public Map<String, Timing> getWaitTimes()
+    {
+        Map<String, Timing> oTimes = new TreeMap<>();
+        soSemaphores.forEach((strName, oStats) -> oTimes.put(strName, new Timing(oStats.oWait)));
+        return oTimes;
+    }
+
+    @Override
+    public Map<String, Timing> getHoldTimes()
+    {
+        Map<String, Timing> oTimes = new TreeMap<>();
+        soSemaphores.forEach((strName, oStats) ->
+        {
+            if (oStats.bTrackHold)
+            {
+                oTimes.put(strName, new Timing(oStats.oHold));
+            }
+        });
+        return oTimes;
+    }
+
+    @Override
+    public String getReport()
+    {
+        return report();
+    }
+
+    @Override
+    public void reset()
+    {
+        soCounters.values().forEach(oCounter -> oCounter.oAdder.reset());
+        soSemaphores.values().forEach(oStats ->
+        {
+            oStats.oWait.reset();
+            oStats.oHold.reset();
+            oStats.oParks.reset();
+        });
+    }
+}
+
+// EOF
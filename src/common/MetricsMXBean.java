@@ -0,0 +1,91 @@
+package common;
+
+import java.util.Map;
+
+/**
+ * Interface MetricsMXBean
+ * What Metrics shows over JMX, under the name common:type=Metrics.
+ *
+ * Karim Rhoualem
+ * Student 26603157
+ */
+public interface MetricsMXBean
+{
+    /**
+     * Summary of a Histogram, as one row of the JMX tables.
+     */
+    final class Timing
+    {
+        private final long lCount;
+        private final double dMeanNanos;
+        private final long lP50Nanos;
+        private final long lP99Nanos;
+        private final long lMaxNanos;
+
+        Timing(Histogram poHistogram)
+        {
+            this.lCount = poHistogram.getCount();
+            this.dMeanNanos = poHistogram.getMean();
+            this.lP50Nanos = poHistogram.getPercentile(50);
+            this.lP99Nanos = poHistogram.getPercentile(99);
+            this.lMaxNanos = poHistogram.getMax();
+        }
+
+        public long getCount()
+        {
+            return this.lCount;
+        }
+
+        public double getMeanNanos()
+        {
+            return this.dMeanNanos;
+        }
+
+        public long getP50Nanos()
+        {
+            return this.lP50Nanos;
+        }
+
+        public long getP99Nanos()
+        {
+            return this.lP99Nanos;
+        }
+
+        public long getMaxNanos()
+        {
+            return this.lMaxNanos;
+        }
+    }
+
+    /**
+     * @return Every counter, by name (e.g. "stack.push").
+     */
+    Map<String, Long> getOperationCounts();
+
+    /**
+     * @return Number of threads queued on each named semaphore right now.
+     */
+    Map<String, Integer> getQueueDepths();
+
+    /**
+     * @return How long Wait() took on each named semaphore.
+     */
+    Map<String, Timing> getWaitTimes();
+
+    /**
+     * @return How long each named semaphore used as a lock was held, from Wait() to Signal() by the same thread.
+     */
+    Map<String, Timing> getHoldTimes();
+
+    /**
+     * @return The same text as the periodic dump.
+     */
+    String getReport();
+
+    /**
+     * Sets every counter and histogram back to zero.
+     */
+    void reset();
+}
+
+// EOF
@@ -0,0 +1,194 @@
+package common;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Class Parking
+ * The one place where our synchronization classes put a thread to sleep.
+ *
+ * Platform and virtual threads simply park; a virtual thread gives its carrier
+ * back while parked. A worker of a ForkJoinPool (TaskRunner's pool mode) parks
+ * through ForkJoinPool.managedBlock(), so that the pool can start a spare worker
+ * and the tasks that would wake this one still get to run.
+ *
+ * Karim Rhoualem
+ * Student 26603157
+ */
+final class Parking
+{
+    private Parking()
+    {
+    }
+
+    /**
+     * Blocks until the condition holds. Interrupts do not end the wait.
+     *
+     * @param poCondition Becomes true once whoever changes it has unparked us.
+     * @param poBlocker Object reported by thread dumps as the cause of the wait.
+     * @return True if the thread was interrupted while waiting; the interrupt status is then cleared.
+     */
+    static boolean awaitUninterruptibly(BooleanSupplier poCondition, Object poBlocker)
+    {
+        if (Thread.currentThread() instanceof ForkJoinWorkerThread)
+        {
+            Blocker oBlocker = new Blocker(poCondition, poBlocker, false, 0, false);
+            while (true)
+            {
+                try
+                {
+                    ForkJoinPool.managedBlock(oBlocker);
+                    return oBlocker.bInterrupted;
+                }
+                catch (InterruptedException e)
+                {
+                    oBlocker.bInterrupted = true;
+                }
+            }
+        }
+
+        boolean bInterrupted = false;
+        while (!poCondition.getAsBoolean())
+        {
+            LockSupport.park(poBlocker);
+            bInterrupted |= Thread.interrupted();
+        }
+
+        return bInterrupted;
+    }
+
+    /**
+     * Blocks until the condition holds or the deadline passes. Interrupts do not end the wait.
+     *
+     * @param poCondition Becomes true once whoever changes it has unparked us.
+     * @param poBlocker Object reported by thread dumps as the cause of the wait.
+     * @param plDeadline System.nanoTime() after which to give up.
+     * @return True if the thread was interrupted while waiting; the interrupt status is then cleared.
+     */
+    static boolean awaitUninterruptiblyUntil(BooleanSupplier poCondition, Object poBlocker, long plDeadline)
+    {
+        if (Thread.currentThread() instanceof ForkJoinWorkerThread)
+        {
+            Blocker oBlocker = new Blocker(poCondition, poBlocker, true, plDeadline, false);
+            while (true)
+            {
+                try
+                {
+                    ForkJoinPool.managedBlock(oBlocker);
+                    return oBlocker.bInterrupted;
+                }
+                catch (InterruptedException e)
+                {
+                    oBlocker.bInterrupted = true;
+                }
+            }
+        }
+
+        boolean bInterrupted = false;
+        long lRemaining;
+        while (!poCondition.getAsBoolean() && (lRemaining = plDeadline - System.nanoTime()) > 0)
+        {
+            LockSupport.parkNanos(poBlocker, lRemaining);
+            bInterrupted |= Thread.interrupted();
+        }
+
+        return bInterrupted;
+    }
+
+    /**
+     * Blocks until the condition holds, the deadline passes if any, or the thread is interrupted.
+     *
+     * @param poCondition Becomes true once whoever changes it has unparked us.
+     * @param poBlocker Object reported by thread dumps as the cause of the wait.
+     * @param pbTimed false to wait with no deadline.
+     * @param plDeadline System.nanoTime() after which to give up, if timed.
+     * @return True if the wait ended on an interrupt; the interrupt status is then cleared.
+     */
+    static boolean awaitInterruptibly(BooleanSupplier poCondition, Object poBlocker, boolean pbTimed, long plDeadline)
+    {
+        if (Thread.currentThread() instanceof ForkJoinWorkerThread)
+        {
+            Blocker oBlocker = new Blocker(poCondition, poBlocker, pbTimed, plDeadline, true);
+            try
+            {
+                ForkJoinPool.managedBlock(oBlocker);
+                return oBlocker.bInterrupted;
+            }
+            catch (InterruptedException e)
+            {
+                return true;
+            }
+        }
+
+        long lRemaining = 0;
+        while (!poCondition.getAsBoolean() && (!pbTimed || (lRemaining = plDeadline - System.nanoTime()) > 0))
+        {
+            if (pbTimed)
+            {
+                LockSupport.parkNanos(poBlocker, lRemaining);
+            }
+            else
+            {
+                LockSupport.park(poBlocker);
+            }
+
+            if (Thread.interrupted())
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Adapter for ForkJoinPool.managedBlock().
+     */
+    private static final class Blocker implements ForkJoinPool.ManagedBlocker
+    {
+        private final BooleanSupplier oCondition;
+        private final Object oBlocker;
+        private final boolean bTimed;
+        private final long lDeadline;
+        private final boolean bInterruptible;
+        boolean bInterrupted = false;
+
+        Blocker(BooleanSupplier poCondition, Object poBlocker, boolean pbTimed, long plDeadline, boolean pbInterruptible)
+        {
+            this.oCondition = poCondition;
+            this.oBlocker = poBlocker;
+            this.bTimed = pbTimed;
+            this.lDeadline = plDeadline;
+            this.bInterruptible = pbInterruptible;
+        }
+
+        @Override
+        public boolean block()
+        {
+            if (!isReleasable())
+            {
+                if (this.bTimed)
+                {
+                    LockSupport.parkNanos(this.oBlocker, this.lDeadline - System.nanoTime());
+                }
+                else
+                {
+                    LockSupport.park(this.oBlocker);
+                }
+                this.bInterrupted |= Thread.interrupted();
+            }
+            return isReleasable();
+        }
+
+        @Override
+        public boolean isReleasable()
+        {
+            return this.oCondition.getAsBoolean() || (this.bTimed && this.lDeadline - System.nanoTime() <= 0)
+                    || (this.bInterruptible && this.bInterrupted);
+        }
+    }
+}
+
+// EOF
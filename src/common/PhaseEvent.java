@@ -0,0 +1,52 @@
+package common;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Class PhaseEvent
+ * Flight Recorder event for phase1(), phase2(), the wait for the turn to run phase II and the
+ * waits at the phaser.
+ *
+ * Karim Rhoualem
+ * Student 26603157
+ */
+@Name("common.Phase")
+@Label("Phase")
+@Category({"COEN346", "Phases"})
+@Description("Time a worker spent in a phase, waiting for its turn to run phase II, or waiting at the phaser")
+@StackTrace(false)
+final class PhaseEvent extends Event
+{
+    static final String PHASE_1 = "PHASE I";
+    static final String PHASE_2 = "PHASE II";
+    static final String TURN = "turn wait";
+    static final String BARRIER = "phaser wait";
+
+    @Label("Phase")
+    @Description("PHASE I, PHASE II, turn wait or phaser wait")
+    String phase;
+
+    @Label("Worker")
+    String worker;
+
+    @Label("TID")
+    int tid;
+
+    void commit(BaseTask poTask, String pstrPhase)
+    {
+        if (shouldCommit())
+        {
+            this.phase = pstrPhase;
+            this.worker = poTask.getClass().getSimpleName();
+            this.tid = poTask.getTID();
+            commit();
+        }
+    }
+}
+
+// EOF
@@ -0,0 +1,168 @@
+package common;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Class ReorderBuffer
+ * Commits results produced in any order in the order of the turns of a TurnSequencer.
+ *
+ * A thread publishes its result under its TID and goes on. Whoever publishes the
+ * result of the current turn commits it, advances the turn, and goes on with the
+ * results of the turns after it that are already there. Only one thread commits at
+ * a time; the others leave their results to it. So the results are committed in TID
+ * order while the work behind them runs in parallel.
+ *
+ * The turns may also be taken by threads that do not go through the buffer
+ * (TurnSequencer.await() and advance()), as long as they call drain() after advancing.
+ *
+ * Karim Rhoualem
+ * Student 26603157
+ */
+public class ReorderBuffer<T>
+{
+    /**
+     * What is done with each result, in turn order.
+     */
+    @FunctionalInterface
+    public interface Committer<T>
+    {
+        void commit(int piTID, T poResult);
+    }
+
+    /**
+     * A published result waiting for its turn.
+     */
+    private static final class Entry<T>
+    {
+        final T oResult;
+        final Thread oOwner = Thread.currentThread();
+        volatile boolean bCommitted = false;
+
+        Entry(T poResult)
+        {
+            this.oResult = poResult;
+        }
+    }
+
+    private final TurnSequencer oTurns;
+    private final boolean bIncreasingOrder;
+    private final Committer<T> oCommitter;
+
+    /**
+     * Results published ahead of their turn, by TID.
+     */
+    private final ConcurrentHashMap<Integer, Entry<T>> oPending = new ConcurrentHashMap<>();
+
+    /**
+     * Number of drain() requests not served yet; the thread that brings it up from 0 commits.
+     */
+    private final AtomicInteger oDrains = new AtomicInteger();
+
+    /**
+     * @param poTurns Turns to commit in.
+     * @param pbIncreasingOrder true if TIDs take their turns in increasing order; false otherwise.
+     * @param poCommitter Called with each result in turn; it runs on whichever thread commits.
+     */
+    public ReorderBuffer(TurnSequencer poTurns, boolean pbIncreasingOrder, Committer<T> poCommitter)
+    {
+        this.oTurns = poTurns;
+        this.bIncreasingOrder = pbIncreasingOrder;
+        this.oCommitter = poCommitter;
+    }
+
+    /**
+     * Hands in the result of a TID, committed once its turn comes, maybe by another thread.
+     * @param piTID The TID, whose turn must not have passed.
+     * @param poResult The result.
+     */
+    public void publish(int piTID, T poResult)
+    {
+        publishEntry(piTID, poResult);
+    }
+
+    /**
+     * Hands in the result of a TID and waits until it is committed.
+     * Interrupts do not end the wait; the interrupt status is kept.
+     *
+     * @param piTID The TID, whose turn must not have passed.
+     * @param poResult The result.
+     */
+    public void publishAndAwait(int piTID, T poResult)
+    {
+        Entry<T> oEntry = publishEntry(piTID, poResult);
+
+        if (!oEntry.bCommitted && Parking.awaitUninterruptibly(() -> oEntry.bCommitted, this))
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private Entry<T> publishEntry(int piTID, T poResult)
+    {
+        Entry<T> oEntry = new Entry<>(poResult);
+        if (this.oPending.putIfAbsent(piTID, oEntry) != null)
+        {
+            throw new IllegalStateException("TID " + piTID + " already has a result waiting.");
+        }
+
+        drain();
+        return oEntry;
+    }
+
+    /**
+     * Commits the results that are up, in turn order. Does nothing if another thread is at it:
+     * that one goes around once more for us.
+     */
+    public void drain()
+    {
+        if (this.oDrains.getAndIncrement() != 0)
+        {
+            return;
+        }
+
+        // A committer that fails does not hold up the turns after it; the first failure is thrown at the end.
+        RuntimeException oFailure = null;
+        int iMissed = 1;
+        do
+        {
+            int iTurn;
+            Entry<T> oEntry;
+            while ((oEntry = this.oPending.remove(iTurn = this.oTurns.getTurn())) != null)
+            {
+                try
+                {
+                    this.oCommitter.commit(iTurn, oEntry.oResult);
+                }
+                catch (RuntimeException e)
+                {
+                    oFailure = (oFailure == null) ? e : oFailure;
+                }
+
+                this.oTurns.advance(iTurn, this.bIncreasingOrder);
+                oEntry.bCommitted = true;
+                LockSupport.unpark(oEntry.oOwner);
+            }
+
+            iMissed = this.oDrains.addAndGet(-iMissed);
+        }
+        while (iMissed != 0);
+
+        if (oFailure != null)
+        {
+            throw oFailure;
+        }
+    }
+
+    /**
+     * Gets the number of results waiting for their turn.
+     * @return The count.
+     */
+    public int getPending()
+    {
+        return this.oPending.size();
+    }
+}
+
+// EOF
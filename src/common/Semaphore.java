@@ -1,24 +1,165 @@
 package common;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
 /**
  * Class Semaphore
  * Implements artificial semaphore built on top of Java's sync primitives.
  *
+ * The value lives in an atomic integer, so an uncontended Wait() or Signal() is a
+ * single CAS and never touches a lock. A thread that finds no permit spins for a
+ * short, self-adjusting while, then queues up and parks. Signal() hands permits
+ * straight to queued threads in arrival order. In the default (barging) mode a
+ * newcomer may still grab a permit ahead of parked threads; in fair mode it may not.
+ *
+ * Each waiter declares a Priority, NORMAL unless given. Permits go to the highest
+ * class queued first, and a newcomer does not barge ahead of a higher class. A
+ * queued thread moves up a class for every aging period it has waited (see
+ * setAging()), and once it has moved up, no newcomer of the class it reached or
+ * a lower one barges ahead of it. So the lower classes are served eventually
+ * however busy the higher ones are.
+ *
+ * Wait(n) and Signal(n) move n permits at once. A Signal(n) grants as many
+ * queued threads as the permits cover in one pass over the queue. A thread
+ * waiting for several permits is not passed by smaller requests: while it
+ * waits, the ones behind it wait too and newcomers do not barge.
+ *
  * Karim Rhoualem
  * Student 26603157
  */
 public class Semaphore
 {
+    /**
+     * Upper bound of the spin before parking. No spinning at all on a single CPU.
+     */
+    private static final int MAX_SPINS = Runtime.getRuntime().availableProcessors() > 1 ? 512 : 0;
+
+    /**
+     * Lower bound the adaptive spin shrinks to.
+     */
+    private static final int MIN_SPINS = Math.min(16, MAX_SPINS);
+
+    /**
+     * Default time a queued thread waits before it moves up a class.
+     */
+    private static final long DEFAULT_AGING_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+    /**
+     * Classes of waiters, served highest first.
+     */
+    public enum Priority
+    {
+        /**
+         * Latency-sensitive, e.g. an AcquireBlock thread.
+         */
+        CRITICAL,
+
+        /**
+         * What Wait() uses when no class is given.
+         */
+        NORMAL,
+
+        /**
+         * Bulk work that can wait, e.g. a long dump.
+         */
+        BACKGROUND
+    }
+
+    private static final Priority[] PRIORITIES = Priority.values();
+
+    /**
+     * A parked thread waiting for a permit.
+     */
+    private static final class Waiter
+    {
+        final Thread oThread = Thread.currentThread();
+        final Priority ePriority;
+        final int iPermits;
+        final long lQueued = System.nanoTime();
+        volatile boolean bGranted = false;
+
+        Waiter(Priority pePriority, int piPermits)
+        {
+            this.ePriority = pePriority;
+            this.iPermits = piPermits;
+        }
+    }
+
     /**
      * Current semaphore's value
      */
-    private int iValue;
+    private final AtomicInteger iValue;
+
+    /**
+     * True if permits must go to queued threads in arrival order.
+     */
+    private final boolean bFair;
+
+    /**
+     * Current spin length, grown when spinning pays off and shrunk when it does not.
+     */
+    private volatile int iSpins = MAX_SPINS / 4;
+
+    /**
+     * Number of threads that are about to queue or are queued. Signal() only
+     * takes the queue lock when this is non-zero.
+     */
+    private final AtomicInteger iWaiters = new AtomicInteger();
+
+    /**
+     * Guards oQueues. Only used on the slow path.
+     */
+    private final ReentrantLock oQueueLock = new ReentrantLock();
+
+    /**
+     * Parked threads of each class, by Priority ordinal, oldest first.
+     */
+    private final List<ArrayDeque<Waiter>> oQueues = new ArrayList<>(PRIORITIES.length);
+
+    /**
+     * Ordinal of the highest class with a parked thread; PRIORITIES.length if none. Written under oQueueLock.
+     */
+    private volatile int iBestQueued = PRIORITIES.length;
+
+    /**
+     * Oldest parked thread of each class, by Priority ordinal; null if none. Written under oQueueLock,
+     * read without it by mayBarge() to tell how far the queued threads have aged.
+     */
+    private final AtomicReferenceArray<Waiter> oHeads = new AtomicReferenceArray<>(PRIORITIES.length);
+
+    /**
+     * Number of parked threads waiting for more than one permit; newcomers do not barge while there are some.
+     * Written under oQueueLock.
+     */
+    private volatile int iQueuedMulti = 0;
+
+    /**
+     * How long a queued thread waits before it moves up a class.
+     */
+    private volatile long lAgingNanos = DEFAULT_AGING_NANOS;
 
     /**
      * Counter used to control the output message indicating that phase 1 is complete.
      */
     private int counter = 0;
 
+    /**
+     * Wait and hold timings, once registered with Metrics under a name; null otherwise.
+     */
+    private Metrics.SemaphoreStats oStats = null;
+
+    /**
+     * Name given by Metrics.register(), for the Flight Recorder events; null if unregistered.
+     */
+    private volatile String strName = null;
+
     /*
      * ------------
      * Constructors
@@ -38,7 +179,24 @@ public class Semaphore
      */
     public Semaphore(int piValue)
     {
-        this.iValue = piValue;
+        this(piValue, false);
+    }
+
+    /**
+     * With value and fairness.
+     *
+     * @param piValue Initial value of the semaphore to set (may be negative, see above).
+     * @param pbFair true to hand permits out strictly in arrival order; false to let newcomers barge.
+     */
+    public Semaphore(int piValue, boolean pbFair)
+    {
+        this.iValue = new AtomicInteger(piValue);
+        this.bFair = pbFair;
+
+        for (int i = 0; i < PRIORITIES.length; i++)
+        {
+            this.oQueues.add(new ArrayDeque<>());
+        }
     }
 
     /**
@@ -53,9 +211,9 @@ public class Semaphore
      * Returns true if locking condition is true.
      * Usually used in PA3-4.
      */
-    public synchronized boolean isLocked()
+    public boolean isLocked()
     {
-        return (this.iValue <= 0);
+        return (this.iValue.get() <= 0);
     }
 
     /*
@@ -68,51 +226,655 @@ public class Semaphore
      * Puts thread asleep if semamphore's values is less than or equal to zero.
      *
      * NOTE: This implementation as-is does not allow semaphore's value
-     * to become negative.
+     * to become negative. An interrupt does not abort the wait; the thread's
+     * interrupt status is restored once the permit is acquired. See
+     * WaitInterruptibly() for a wait that an interrupt ends, and WaitUntil()
+     * for one with a deadline.
      * @param callingClassName
      * @param iTID
      */
-    public synchronized void Wait(String callingClassName, int iTID) //TODO: For debugging purposes only. Remove parameters
+    public void Wait(String callingClassName, int iTID) //TODO: For debugging purposes only. Remove parameters
     {
-        try
+        Wait(callingClassName, iTID, Priority.NORMAL);
+    }
+
+    /**
+     * Like Wait(), for a waiter of the given class.
+     *
+     * @param callingClassName
+     * @param iTID
+     * @param pePriority Class of the waiter.
+     */
+    public void Wait(String callingClassName, int iTID, Priority pePriority)
+    {
+        acquire(callingClassName, iTID, 1, pePriority, false, false, 0);
+
+        //TODO: For debugging purposes. Comment out when done
+        //System.out.println("[Semaphore - " + callingClassName + " (TID = " + iTID + ") - Wait] iValue = " + this.iValue);
+    }
+
+    /**
+     * Takes a permit only if one is available right away.
+     * @return true if a permit was taken.
+     */
+    public boolean tryWait()
+    {
+        return tryWait(Priority.NORMAL);
+    }
+
+    /**
+     * Takes a permit only if one is available right away and no higher class is waiting for it.
+     * @param pePriority Class of the caller.
+     * @return true if a permit was taken.
+     */
+    public boolean tryWait(Priority pePriority)
+    {
+        long lStart = Metrics.ENABLED ? System.nanoTime() : 0;
+
+        if (!tryAcquire(pePriority, 1))
         {
-            while(this.iValue <= 0)
-            {
-                wait();
-            }
+            return false;
+        }
+
+        if (Metrics.ENABLED && this.oStats != null)
+        {
+            this.oStats.acquired(lStart);
+        }
+        return true;
+    }
+
+    /**
+     * Like Wait(), but gives up once the timeout has elapsed.
+     *
+     * @param plTimeout How long to wait at most.
+     * @param poUnit Unit of the timeout.
+     * @return true if a permit was taken; false if the timeout elapsed first.
+     */
+    public boolean Wait(long plTimeout, TimeUnit poUnit)
+    {
+        return Wait(plTimeout, poUnit, Priority.NORMAL);
+    }
+
+    /**
+     * Like Wait(long, TimeUnit), for a waiter of the given class.
+     *
+     * @param plTimeout How long to wait at most.
+     * @param poUnit Unit of the timeout.
+     * @param pePriority Class of the waiter.
+     * @return true if a permit was taken; false if the timeout elapsed first.
+     */
+    public boolean Wait(long plTimeout, TimeUnit poUnit, Priority pePriority)
+    {
+        return WaitUntil(deadline(plTimeout, poUnit), pePriority);
+    }
+
+    /**
+     * Like Wait(), but gives up at a deadline. Meant for a budget shared by several waits:
+     * once the deadline has passed, this only takes a permit that is there right away.
+     *
+     * @param plDeadline System.nanoTime() at which to give up; see deadline().
+     * @return true if a permit was taken; false if the deadline passed first.
+     */
+    public boolean WaitUntil(long plDeadline)
+    {
+        return WaitUntil(plDeadline, Priority.NORMAL);
+    }
+
+    /**
+     * Like WaitUntil(long), for a waiter of the given class.
+     *
+     * @param plDeadline System.nanoTime() at which to give up.
+     * @param pePriority Class of the waiter.
+     * @return true if a permit was taken; false if the deadline passed first.
+     */
+    public boolean WaitUntil(long plDeadline, Priority pePriority)
+    {
+        return acquire(null, -1, 1, pePriority, false, true, plDeadline);
+    }
+
+    /**
+     * Like Wait(), but an interrupt ends the wait without a permit.
+     * If the permit is granted just as the interrupt comes, the permit is kept and so is the interrupt status.
+     *
+     * @param callingClassName
+     * @param iTID
+     * @throws InterruptedException if the thread was interrupted before it got a permit; the interrupt status is cleared.
+     */
+    public void WaitInterruptibly(String callingClassName, int iTID) throws InterruptedException
+    {
+        WaitInterruptibly(callingClassName, iTID, Priority.NORMAL);
+    }
+
+    /**
+     * Like WaitInterruptibly(String, int), for a waiter of the given class.
+     *
+     * @param callingClassName
+     * @param iTID
+     * @param pePriority Class of the waiter.
+     * @throws InterruptedException if the thread was interrupted before it got a permit; the interrupt status is cleared.
+     */
+    public void WaitInterruptibly(String callingClassName, int iTID, Priority pePriority) throws InterruptedException
+    {
+        if (Thread.interrupted())
+        {
+            throw new InterruptedException();
+        }
+
+        // Untimed, so only an interrupt ends the wait without a permit.
+        if (!acquire(callingClassName, iTID, 1, pePriority, true, false, 0))
+        {
+            Thread.interrupted();
+            throw new InterruptedException();
+        }
+    }
+
+    /**
+     * Like WaitUntil(long, Priority), but an interrupt ends the wait without a permit.
+     *
+     * @param plDeadline System.nanoTime() at which to give up.
+     * @param pePriority Class of the waiter.
+     * @return true if a permit was taken; false if the deadline passed first.
+     * @throws InterruptedException if the thread was interrupted before it got a permit; the interrupt status is cleared.
+     */
+    public boolean WaitInterruptiblyUntil(long plDeadline, Priority pePriority) throws InterruptedException
+    {
+        if (Thread.interrupted())
+        {
+            throw new InterruptedException();
+        }
+
+        boolean bAcquired = acquire(null, -1, 1, pePriority, true, true, plDeadline);
+        if (!bAcquired && Thread.interrupted())
+        {
+            throw new InterruptedException();
+        }
+        return bAcquired;
+    }
+
+    /**
+     * Turns a timeout into a deadline for WaitUntil(), from now.
+     *
+     * @param plTimeout How long to wait at most; a huge timeout is capped at about 146 years.
+     * @param poUnit Unit of the timeout.
+     * @return The deadline, in System.nanoTime() terms.
+     */
+    public static long deadline(long plTimeout, TimeUnit poUnit)
+    {
+        return System.nanoTime() + Math.min(poUnit.toNanos(plTimeout), Long.MAX_VALUE >> 1);
+    }
+
+    /**
+     * All the Wait()s: the fast path, then the spin, then the queue.
+     *
+     * @param piPermits Number of permits to take at once.
+     * @param pbInterruptible true to give up when interrupted, with the interrupt status set.
+     * @param pbTimed true to give up at the deadline.
+     * @param plDeadline System.nanoTime() at which to give up, if timed.
+     * @return true if a permit was taken.
+     */
+    private boolean acquire(String pstrCaller, int piTID, int piPermits, Priority pePriority, boolean pbInterruptible, boolean pbTimed, long plDeadline)
+    {
+        long lStart = Metrics.ENABLED ? System.nanoTime() : 0;
+        SemaphoreWaitEvent oEvent = new SemaphoreWaitEvent();
+        oEvent.begin();
 
-            this.iValue--;
+        boolean bContended = !tryAcquire(pePriority, piPermits);
+        boolean bAcquired = !bContended || spin(pePriority, piPermits) || park(pePriority, piPermits, pbInterruptible, pbTimed, plDeadline);
 
-            //TODO: For debugging purposes. Comment out when done
-            //System.out.println("[Semaphore - " + callingClassName + " (TID = " + iTID + ") - Wait] iValue = " + this.iValue);
+        if (Metrics.ENABLED && bAcquired && this.oStats != null)
+        {
+            this.oStats.acquired(lStart);
         }
-        catch(InterruptedException e)
+        commit(oEvent, pstrCaller, piTID, pePriority, bContended, bAcquired);
+        return bAcquired;
+    }
+
+    /**
+     * Fills in and commits a wait event, if a Flight Recorder recording wants it.
+     */
+    private void commit(SemaphoreWaitEvent poEvent, String pstrCaller, int piTID, Priority pePriority, boolean pbContended, boolean pbAcquired)
+    {
+        if (poEvent.shouldCommit())
         {
-            System.out.println
-                (
-                        "[Semaphore - " + callingClassName + " (TID = " + iTID + ") - Wait] Caught InterruptedException: " +
-                                e.getMessage()
-                );
+            poEvent.semaphore = this.strName;
+            poEvent.caller = pstrCaller;
+            poEvent.tid = piTID;
+            poEvent.priority = pePriority.name();
+            poEvent.contended = pbContended;
+            poEvent.acquired = pbAcquired;
+            poEvent.commit();
+        }
+    }
 
-            e.printStackTrace();
+    /**
+     * Increments semaphore's value and hands the permit to a parked thread, if any:
+     * the oldest of the highest class, counting the classes gained by aging.
+     *
+     * NOTES: Only one thread is woken up per permit, and only when somebody is
+     * actually queued; otherwise this is a single atomic increment.
+     */
+    public void Signal(String callingClassName, int iTID) //TODO: For debugging purposes only. Remove parameters
+    {
+        Signal(callingClassName, iTID, 1);
+    }
+
+    /*
+     * -----------------------
+     * Multi-permit operations
+     * -----------------------
+     */
+
+    /**
+     * Like Wait(), but takes several permits at once: none until all of them are there.
+     *
+     * @param callingClassName
+     * @param iTID
+     * @param piPermits Number of permits; 0 returns right away.
+     * @throws IllegalArgumentException if it is negative.
+     */
+    public void Wait(String callingClassName, int iTID, int piPermits)
+    {
+        Wait(callingClassName, iTID, piPermits, Priority.NORMAL);
+    }
+
+    /**
+     * Like Wait(String, int, int), for a waiter of the given class.
+     */
+    public void Wait(String callingClassName, int iTID, int piPermits, Priority pePriority)
+    {
+        if (checkPermits(piPermits))
+        {
+            acquire(callingClassName, iTID, piPermits, pePriority, false, false, 0);
         }
     }
 
     /**
-     * Increments semaphore's value and notifies another (single) thread of the change.
+     * Like WaitUntil(long, Priority), but takes several permits at once: none unless all of them came in time.
+     *
+     * @param piPermits Number of permits; 0 returns true right away.
+     * @param plDeadline System.nanoTime() at which to give up.
+     * @param pePriority Class of the waiter.
+     * @return true if the permits were taken; false if the deadline passed first.
+     * @throws IllegalArgumentException if the number of permits is negative.
+     */
+    public boolean WaitUntil(int piPermits, long plDeadline, Priority pePriority)
+    {
+        return !checkPermits(piPermits) || acquire(null, -1, piPermits, pePriority, false, true, plDeadline);
+    }
+
+    /**
+     * Takes as many permits as are available right away, up to the given number, in a single step.
+     * Follows the same rules as tryWait() for threads already waiting.
      *
-     * NOTES: By waking up any arbitrary thread using notify() and not notify
-     * all are simply being a little more efficient: we don't really care which
-     * thread is this, any would do just fine.
+     * @param piMost Most permits to take.
+     * @return Number of permits taken, 0 if none.
      */
-    public synchronized void Signal(String callingClassName, int iTID) //TODO: For debugging purposes only. Remove parameters
+    public int tryWaitUpTo(int piMost)
     {
-        ++this.iValue;
+        return tryWaitUpTo(piMost, Priority.NORMAL);
+    }
+
+    /**
+     * Like tryWaitUpTo(int), for a caller of the given class.
+     */
+    public int tryWaitUpTo(int piMost, Priority pePriority)
+    {
+        long lStart = Metrics.ENABLED ? System.nanoTime() : 0;
+
+        int iTaken = mayBarge(pePriority) ? takeUpTo(piMost) : 0;
+
+        if (Metrics.ENABLED && iTaken > 0 && this.oStats != null)
+        {
+            this.oStats.acquired(lStart);
+        }
+        return iTaken;
+    }
+
+    /**
+     * Gives back several permits at once and grants as many parked threads as they cover,
+     * under a single acquisition of the queue lock.
+     *
+     * @param callingClassName
+     * @param iTID
+     * @param piPermits Number of permits; 0 does nothing.
+     * @throws IllegalArgumentException if it is negative.
+     */
+    public void Signal(String callingClassName, int iTID, int piPermits)
+    {
+        if (!checkPermits(piPermits))
+        {
+            return;
+        }
+
+        if (Metrics.ENABLED && this.oStats != null)
+        {
+            this.oStats.released();
+        }
+
+        this.iValue.addAndGet(piPermits);
 
         //TODO: For debugging purposes. Comment out when done
         //System.out.println("[Semaphore - " + callingClassName + " (TID = " + iTID + ") - Signal] iValue = " + this.iValue);
 
-        notify();
+        if (this.iWaiters.get() > 0)
+        {
+            dispatch();
+        }
+    }
+
+    /*
+     * ---------------
+     * Acquire helpers
+     * ---------------
+     */
+
+    /**
+     * @return true if the number of permits is positive; false for 0.
+     * @throws IllegalArgumentException if it is negative.
+     */
+    private static boolean checkPermits(int piPermits)
+    {
+        if (piPermits < 0)
+        {
+            throw new IllegalArgumentException("The number of permits cannot be negative: " + piPermits + ".");
+        }
+        return piPermits > 0;
+    }
+
+    /**
+     * Tells whether a newcomer may take permits ahead of the parked threads. In fair mode not
+     * if anybody is waiting; otherwise not ahead of a higher class, of a thread that has aged
+     * up to the newcomer's class, or of a multi-permit request.
+     * @param pePriority Class of the caller.
+     */
+    private boolean mayBarge(Priority pePriority)
+    {
+        if (this.bFair)
+        {
+            return this.iWaiters.get() == 0;
+        }
+
+        int iClass = pePriority.ordinal();
+        if (iClass > this.iBestQueued || this.iQueuedMulti != 0)
+        {
+            return false;
+        }
+
+        // The oldest of each class has aged the most; the time is only needed if somebody is queued.
+        long lNow = 0;
+        for (int i = this.iBestQueued; i < PRIORITIES.length; i++)
+        {
+            Waiter oHead = this.oHeads.get(i);
+            if (oHead == null)
+            {
+                continue;
+            }
+
+            lNow = (lNow == 0) ? System.nanoTime() : lNow;
+            long lPeriods = (lNow - oHead.lQueued) / this.lAgingNanos;
+            if (lPeriods > 0 && i - lPeriods <= iClass)
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Fast path: takes the permits with a CAS, if the caller may barge (see mayBarge()).
+     * @param pePriority Class of the caller.
+     * @param piPermits Number of permits.
+     * @return true if the permits were taken.
+     */
+    private boolean tryAcquire(Priority pePriority, int piPermits)
+    {
+        return mayBarge(pePriority) && take(piPermits);
+    }
+
+    /**
+     * Takes permits with a CAS if there are enough, whoever is waiting.
+     * @return true if the permits were taken.
+     */
+    private boolean take(int piPermits)
+    {
+        for (int iCurrent = this.iValue.get(); iCurrent >= piPermits; iCurrent = this.iValue.get())
+        {
+            if (this.iValue.compareAndSet(iCurrent, iCurrent - piPermits))
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Takes as many permits as there are, up to piMost, with a CAS, whoever is waiting.
+     * @return Number of permits taken.
+     */
+    private int takeUpTo(int piMost)
+    {
+        for (int iCurrent = this.iValue.get(); iCurrent > 0 && piMost > 0; iCurrent = this.iValue.get())
+        {
+            int iTaken = Math.min(iCurrent, piMost);
+            if (this.iValue.compareAndSet(iCurrent, iCurrent - iTaken))
+            {
+                return iTaken;
+            }
+        }
+
+        return 0;
+    }
+
+    /**
+     * Spins for a while hoping for a permit to show up, and adjusts the next spin length.
+     * @return true if a permit was taken.
+     */
+    private boolean spin(Priority pePriority, int piPermits)
+    {
+        int iLimit = this.iSpins;
+        for (int i = 0; i < iLimit; i++)
+        {
+            Thread.onSpinWait();
+            if (tryAcquire(pePriority, piPermits))
+            {
+                this.iSpins = Math.min(MAX_SPINS, iLimit * 2);
+                return true;
+            }
+        }
+
+        this.iSpins = Math.max(MIN_SPINS, iLimit / 2);
+        return false;
+    }
+
+    /**
+     * Slow path: queues the current thread and parks it until Signal() grants it a permit.
+     *
+     * @param pePriority Class of the caller.
+     * @param piPermits Number of permits.
+     * @param pbInterruptible true to give up when interrupted; the interrupt status is then set.
+     * @param pbTimed true to give up at the deadline.
+     * @param plDeadline System.nanoTime() at which to give up, if timed.
+     * @return true if a permit was taken.
+     */
+    private boolean park(Priority pePriority, int piPermits, boolean pbInterruptible, boolean pbTimed, long plDeadline)
+    {
+        Waiter oWaiter = new Waiter(pePriority, piPermits);
+
+        // Announce first, so that a concurrent Signal() either sees us or leaves us its permit.
+        this.iWaiters.incrementAndGet();
+        this.oQueueLock.lock();
+        try
+        {
+            if ((this.bFair ? this.iBestQueued == PRIORITIES.length : mayBarge(pePriority)) && take(piPermits))
+            {
+                this.iWaiters.decrementAndGet();
+                return true;
+            }
+
+            if (pbTimed && plDeadline - System.nanoTime() <= 0)
+            {
+                this.iWaiters.decrementAndGet();
+                return false;
+            }
+
+            this.oQueues.get(pePriority.ordinal()).addLast(oWaiter);
+            this.oHeads.compareAndSet(pePriority.ordinal(), null, oWaiter);
+            this.iBestQueued = Math.min(this.iBestQueued, pePriority.ordinal());
+            if (piPermits > 1)
+            {
+                this.iQueuedMulti++;
+            }
+        }
+        finally
+        {
+            this.oQueueLock.unlock();
+        }
+
+        if (Metrics.ENABLED && this.oStats != null)
+        {
+            this.oStats.parked();
+        }
+
+        boolean bInterrupted = pbInterruptible
+                ? Parking.awaitInterruptibly(() -> oWaiter.bGranted, this, pbTimed, plDeadline)
+                : pbTimed
+                ? Parking.awaitUninterruptiblyUntil(() -> oWaiter.bGranted, this, plDeadline)
+                : Parking.awaitUninterruptibly(() -> oWaiter.bGranted, this);
+
+        // A permit granted as we gave up is kept: the waiter can no longer be found to hand it on.
+        boolean bAcquired = oWaiter.bGranted || !cancel(oWaiter);
+
+        if (bInterrupted)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        return bAcquired;
+    }
+
+    /**
+     * Takes a waiter that gave up out of the queue.
+     * @return true if it was removed; false if a permit was granted to it in the meantime.
+     */
+    private boolean cancel(Waiter poWaiter)
+    {
+        this.oQueueLock.lock();
+        try
+        {
+            if (poWaiter.bGranted)
+            {
+                return false;
+            }
+
+            this.oQueues.get(poWaiter.ePriority.ordinal()).remove(poWaiter);
+            this.iWaiters.decrementAndGet();
+            dequeued(poWaiter);
+        }
+        finally
+        {
+            this.oQueueLock.unlock();
+        }
+
+        // The ones behind may have been held back only by us: all of them in fair mode, lower classes otherwise.
+        if (this.iValue.get() > 0 && this.iWaiters.get() > 0)
+        {
+            dispatch();
+        }
+
+        return true;
+    }
+
+    /**
+     * Hands available permits to queued threads, highest class first. Stops at the first thread
+     * that needs more permits than there are, so that it is not passed by smaller requests.
+     */
+    private void dispatch()
+    {
+        this.oQueueLock.lock();
+        try
+        {
+            Waiter oWaiter;
+            while ((oWaiter = next()) != null && take(oWaiter.iPermits))
+            {
+                this.oQueues.get(oWaiter.ePriority.ordinal()).pollFirst();
+                this.iWaiters.decrementAndGet();
+                dequeued(oWaiter);
+                oWaiter.bGranted = true;
+                LockSupport.unpark(oWaiter.oThread);
+            }
+        }
+        finally
+        {
+            this.oQueueLock.unlock();
+        }
+    }
+
+    /**
+     * Picks the queued thread to grant the next permit to: among the oldest of each class, the one
+     * of the highest class once aging is counted, the older one on a tie. Called under oQueueLock.
+     * @return The waiter, still queued; null if none.
+     */
+    private Waiter next()
+    {
+        Waiter oBest = null;
+        long lNow = 0;
+        for (int i = this.iBestQueued; i < PRIORITIES.length; i++)
+        {
+            Waiter oHead = this.oQueues.get(i).peekFirst();
+            if (oHead == null)
+            {
+                continue;
+            }
+
+            if (oBest == null)
+            {
+                // Nothing to compare with yet, so no need for the time.
+                oBest = oHead;
+                lNow = System.nanoTime();
+            }
+            else if (rank(oHead, lNow) < rank(oBest, lNow))
+            {
+                oBest = oHead;
+            }
+        }
+
+        return oBest;
+    }
+
+    /**
+     * Class of a queued thread once aging is counted, as an ordinal: lower is served first.
+     * Older threads rank first within a class.
+     */
+    private long rank(Waiter poWaiter, long plNow)
+    {
+        long lAge = plNow - poWaiter.lQueued;
+        long lClass = Math.max(0, poWaiter.ePriority.ordinal() - lAge / this.lAgingNanos);
+
+        // The class in the upper bits, then the age: 2^54 ns is over 200 days.
+        return (lClass << 54) - Math.min(lAge, (1L << 54) - 1);
+    }
+
+    /**
+     * Updates oHeads, iBestQueued and iQueuedMulti after a thread left the queues. Called under oQueueLock.
+     */
+    private void dequeued(Waiter poWaiter)
+    {
+        if (poWaiter.iPermits > 1)
+        {
+            this.iQueuedMulti--;
+        }
+
+        int iClass = poWaiter.ePriority.ordinal();
+        this.oHeads.set(iClass, this.oQueues.get(iClass).peekFirst());
+
+        int i = this.iBestQueued;
+        while (i < PRIORITIES.length && this.oQueues.get(i).isEmpty())
+        {
+            i++;
+        }
+        this.iBestQueued = i;
     }
 
 //    /**
@@ -136,7 +898,61 @@ public class Semaphore
      * @return The integer value of the semaphore.
      */
     public int getiValue() {
-        return iValue;
+        return iValue.get();
+    }
+
+    /**
+     * Tells whether permits are handed out strictly in arrival order.
+     * @return true for a fair semaphore.
+     */
+    public boolean isFair() {
+        return bFair;
+    }
+
+    /**
+     * Sets how long a queued thread waits before it moves up a class, so that the lower classes
+     * do not starve. A CRITICAL thread queued after a BACKGROUND one has waited twice this long
+     * is served after it.
+     *
+     * @param plAging The aging period; must be positive.
+     * @param poUnit Unit of the period.
+     */
+    public void setAging(long plAging, TimeUnit poUnit) {
+        long lNanos = poUnit.toNanos(plAging);
+        if (lNanos <= 0) {
+            throw new IllegalArgumentException("The aging period must be positive: " + plAging + " " + poUnit + ".");
+        }
+        this.lAgingNanos = lNanos;
+    }
+
+    /**
+     * Tells whether some thread is parked in Wait() for a permit.
+     * @return true if a thread is queued.
+     */
+    public boolean hasWaiters() {
+        return this.iWaiters.get() > 0;
+    }
+
+    /**
+     * Gets the number of threads queued for a permit, give or take one that is just coming or going.
+     * @return The queue depth.
+     */
+    public int getQueueLength() {
+        return this.iWaiters.get();
+    }
+
+    /**
+     * Called by Metrics.register().
+     */
+    void setStats(Metrics.SemaphoreStats poStats) {
+        this.oStats = poStats;
+    }
+
+    /**
+     * Called by Metrics.register(), with metrics on or off.
+     */
+    void setName(String pstrName) {
+        this.strName = pstrName;
     }
 
     /**
@@ -0,0 +1,50 @@
+package common;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Class SemaphoreWaitEvent
+ * Flight Recorder event for one Semaphore.Wait(): how long the caller waited for its permit.
+ *
+ * Like every JFR event, it costs next to nothing while no recording asks for it.
+ *
+ * Karim Rhoualem
+ * Student 26603157
+ */
+@Name("common.SemaphoreWait")
+@Label("Semaphore Wait")
+@Category({"COEN346", "Synchronization"})
+@Description("Time a thread spent in Semaphore.Wait()")
+@StackTrace(false)
+final class SemaphoreWaitEvent extends Event
+{
+    @Label("Semaphore")
+    @Description("Name the semaphore was registered under with Metrics, e.g. mutex")
+    String semaphore;
+
+    @Label("Caller")
+    @Description("What the caller passed to Wait(), e.g. (Mutex) AcquireBlock")
+    String caller;
+
+    @Label("TID")
+    int tid;
+
+    @Label("Priority")
+    @Description("Class the caller waited in: CRITICAL, NORMAL or BACKGROUND")
+    String priority;
+
+    @Label("Contended")
+    @Description("True if no permit was there right away, so the thread spun or parked")
+    boolean contended;
+
+    @Label("Acquired")
+    @Description("False if a timed wait gave up")
+    boolean acquired;
+}
+
+// EOF
@@ -0,0 +1,139 @@
+package common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Class TaskRunner
+ * Starts BaseTask workers in one of three ways and waits for them:
+ *
+ *   PLATFORM - one BaseThread (platform thread) per worker, as before;
+ *   POOL     - a ForkJoinPool with a bounded number of running workers. A worker
+ *              that blocks in Semaphore.Wait() or on its turn is compensated by a
+ *              spare thread (see Parking), so blocked workers cannot starve the
+ *              ones that would release them;
+ *   VIRTUAL  - one virtual thread per worker (Java 21 or later).
+ *
+ * Karim Rhoualem
+ * Student 26603157
+ */
+public class TaskRunner
+{
+    /**
+     * How the workers are run.
+     */
+    public enum Mode { PLATFORM, POOL, VIRTUAL }
+
+    /**
+     * Most threads the pool may have once spares are added (ForkJoinPool's own limit).
+     */
+    private static final int MAX_POOL_THREADS = 0x7fff;
+
+    private final Mode eMode;
+
+    /**
+     * Threads started in PLATFORM mode.
+     */
+    private final List<BaseThread> oThreads = new ArrayList<>();
+
+    /**
+     * Executor and submitted workers in POOL and VIRTUAL modes.
+     */
+    private final ExecutorService oExecutor;
+    private final List<Future<?>> oFutures = new ArrayList<>();
+
+    /**
+     * @param peMode How to run the workers.
+     * @param piPoolSize Number of workers running at once in POOL mode; ignored otherwise.
+     * @throws UnsupportedOperationException if VIRTUAL is asked for on a JVM without virtual threads.
+     */
+    public TaskRunner(Mode peMode, int piPoolSize)
+    {
+        this.eMode = peMode;
+
+        switch (peMode)
+        {
+            case POOL:
+                this.oExecutor = new ForkJoinPool(
+                        piPoolSize, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, false,
+                        0, MAX_POOL_THREADS, 1, null, 60, TimeUnit.SECONDS);
+                break;
+            case VIRTUAL:
+                this.oExecutor = newVirtualThreadExecutor();
+                break;
+            default:
+                this.oExecutor = null;
+        }
+    }
+
+    /**
+     * Starts a worker.
+     * @param poTask The worker.
+     */
+    public void start(BaseTask poTask)
+    {
+        if (this.eMode == Mode.PLATFORM)
+        {
+            BaseThread oThread = new BaseThread(poTask);
+            this.oThreads.add(oThread);
+            oThread.start();
+        }
+        else
+        {
+            this.oFutures.add(this.oExecutor.submit(poTask::runAndRetire));
+        }
+    }
+
+    /**
+     * Waits by here for all the started workers to finish, then releases the executor.
+     */
+    public void joinAll() throws InterruptedException
+    {
+        for (BaseThread oThread : this.oThreads)
+        {
+            oThread.join();
+        }
+
+        for (Future<?> oFuture : this.oFutures)
+        {
+            try
+            {
+                oFuture.get();
+            }
+            catch (ExecutionException e)
+            {
+                throw new IllegalStateException("A worker failed", e.getCause());
+            }
+        }
+
+        if (this.oExecutor != null)
+        {
+            this.oExecutor.shutdown();
+        }
+    }
+
+    /**
+     * Gets Executors.newVirtualThreadPerTaskExecutor() where it exists. Looked up by name
+     * so that the sources still build for Java 11.
+     */
+    private static ExecutorService newVirtualThreadExecutor()
+    {
+        try
+        {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        }
+        catch (ReflectiveOperationException e)
+        {
+            throw new UnsupportedOperationException("Virtual threads need Java 21 or later; this is Java " +
+                    System.getProperty("java.version") + ".", e);
+        }
+    }
+}
+
+// EOF
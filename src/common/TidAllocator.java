@@ -0,0 +1,224 @@
+package common;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Class TidAllocator
+ * Hands out thread IDs and takes them back for reuse, without locks.
+ *
+ * One bit per TID, set while it is in use. allocate() takes the lowest clear bit it finds with a
+ * CAS on its 64-bit word, so TIDs stay dense: a freed TID is handed out again before any new one.
+ * The bitmap comes in chunks of CHUNK_WORDS words, added as the TIDs in use grow and never removed.
+ *
+ * The search starts from a hint below which every TID is taken, give or take the allocations and
+ * releases in progress. The hint carries a version in its upper half so that an allocation can
+ * only move it up if no release moved it down in the meantime.
+ *
+ * Karim Rhoualem
+ * Student 26603157
+ */
+public final class TidAllocator
+{
+    /**
+     * Words per chunk of the bitmap: 4096 TIDs.
+     */
+    private static final int CHUNK_SHIFT = 6;
+    private static final int CHUNK_WORDS = 1 << CHUNK_SHIFT;
+
+    /**
+     * TID of bit 0
+     */
+    private final int iFirst;
+
+    /**
+     * Most TIDs in use at once, so that none goes past Integer.MAX_VALUE
+     */
+    private final long lCapacity;
+
+    /**
+     * The chunks of the bitmap; null past the ones in use so far. Replaced by a longer copy to grow.
+     */
+    private final AtomicReference<AtomicLongArray[]> oChunks = new AtomicReference<>(new AtomicLongArray[1]);
+
+    /**
+     * Version (upper 32 bits) and index (lower 32 bits) of the first bit that may be clear.
+     */
+    private final AtomicLong oHint = new AtomicLong();
+
+    /**
+     * One past the highest index ever handed out
+     */
+    private final AtomicInteger oLimit = new AtomicInteger();
+
+    /**
+     * @param piFirst The lowest TID, e.g. 1.
+     * @throws IllegalArgumentException if it is negative.
+     */
+    public TidAllocator(int piFirst)
+    {
+        if (piFirst < 0)
+        {
+            throw new IllegalArgumentException("TIDs cannot be negative: " + piFirst);
+        }
+
+        this.iFirst = piFirst;
+        this.lCapacity = (long) Integer.MAX_VALUE - piFirst + 1;
+    }
+
+    /**
+     * Takes the lowest free TID.
+     * @return The TID.
+     * @throws IllegalStateException if every TID up to Integer.MAX_VALUE is in use.
+     */
+    public int allocate()
+    {
+        long lHint = this.oHint.get();
+        for (long lWord = index(lHint) >>> 6; lWord << 6 < this.lCapacity; lWord++)
+        {
+            AtomicLongArray oChunk = chunk((int) (lWord >>> CHUNK_SHIFT));
+            int iSlot = (int) lWord & (CHUNK_WORDS - 1);
+
+            for (long lBits = oChunk.get(iSlot); lBits != -1L; lBits = oChunk.get(iSlot))
+            {
+                int iBit = Long.numberOfTrailingZeros(~lBits);
+                long lIndex = (lWord << 6) | iBit;
+                if (lIndex >= this.lCapacity)
+                {
+                    break;
+                }
+
+                if (oChunk.compareAndSet(iSlot, lBits, lBits | (1L << iBit)))
+                {
+                    this.oHint.compareAndSet(lHint, stamp(lHint, lIndex + 1));
+                    raiseLimit((int) lIndex + 1);
+                    return this.iFirst + (int) lIndex;
+                }
+            }
+        }
+
+        throw new IllegalStateException("Every TID from " + this.iFirst + " up is in use.");
+    }
+
+    /**
+     * Gives a TID back, to be handed out again.
+     * @param piTID A TID returned by allocate() and not released since.
+     * @throws IllegalArgumentException if the TID is not in use.
+     */
+    public void release(int piTID)
+    {
+        long lIndex = (long) piTID - this.iFirst;
+        AtomicLongArray oChunk = (lIndex < 0 || lIndex >= this.oLimit.get()) ? null : chunk((int) (lIndex >>> (6 + CHUNK_SHIFT)));
+        int iSlot = (int) (lIndex >>> 6) & (CHUNK_WORDS - 1);
+        long lMask = 1L << lIndex;
+
+        while (true)
+        {
+            long lBits = (oChunk == null) ? 0 : oChunk.get(iSlot);
+            if ((lBits & lMask) == 0)
+            {
+                throw new IllegalArgumentException("TID " + piTID + " is not in use.");
+            }
+            if (oChunk.compareAndSet(iSlot, lBits, lBits & ~lMask))
+            {
+                break;
+            }
+        }
+
+        // Bring the hint down to us; a new version tells allocations in progress not to move it back up.
+        long lHint;
+        do
+        {
+            lHint = this.oHint.get();
+        }
+        while (!this.oHint.compareAndSet(lHint, stamp(lHint, Math.min(index(lHint), lIndex))));
+    }
+
+    /**
+     * Tells whether a TID is in use.
+     */
+    public boolean isAllocated(int piTID)
+    {
+        long lIndex = (long) piTID - this.iFirst;
+        if (lIndex < 0 || lIndex >= this.oLimit.get())
+        {
+            return false;
+        }
+
+        AtomicLongArray oChunk = chunk((int) (lIndex >>> (6 + CHUNK_SHIFT)));
+        return (oChunk.get((int) (lIndex >>> 6) & (CHUNK_WORDS - 1)) & (1L << lIndex)) != 0;
+    }
+
+    /**
+     * Gets one past the highest TID ever handed out, i.e. the next TID as long as none was released.
+     * @return The limit.
+     */
+    public int getLimit()
+    {
+        return this.iFirst + this.oLimit.get();
+    }
+
+    /**
+     * Counts the TIDs in use, give or take the allocations and releases in progress.
+     * @return The count.
+     */
+    public int getCount()
+    {
+        int iCount = 0;
+        for (AtomicLongArray oChunk : this.oChunks.get())
+        {
+            for (int i = 0; oChunk != null && i < CHUNK_WORDS; i++)
+            {
+                iCount += Long.bitCount(oChunk.get(i));
+            }
+        }
+        return iCount;
+    }
+
+    private static long index(long plHint)
+    {
+        return plHint & 0xFFFFFFFFL;
+    }
+
+    /**
+     * @return The hint with the given index and the next version.
+     */
+    private static long stamp(long plHint, long plIndex)
+    {
+        return ((plHint >>> 32) + 1) << 32 | plIndex;
+    }
+
+    private void raiseLimit(int piLimit)
+    {
+        int iLimit;
+        while ((iLimit = this.oLimit.get()) < piLimit && !this.oLimit.compareAndSet(iLimit, piLimit))
+        {
+            Thread.onSpinWait();
+        }
+    }
+
+    /**
+     * Gets a chunk of the bitmap, adding it if it is not there yet.
+     */
+    private AtomicLongArray chunk(int piChunk)
+    {
+        while (true)
+        {
+            AtomicLongArray[] aoChunks = this.oChunks.get();
+            if (piChunk < aoChunks.length && aoChunks[piChunk] != null)
+            {
+                return aoChunks[piChunk];
+            }
+
+            // Chunks are only ever added, so the copy that wins keeps every chunk already in use.
+            AtomicLongArray[] aoGrown = Arrays.copyOf(aoChunks, Math.max(aoChunks.length * 2, piChunk + 1));
+            aoGrown[piChunk] = new AtomicLongArray(CHUNK_WORDS);
+            this.oChunks.compareAndSet(aoChunks, aoGrown);
+        }
+    }
+}
+
+// EOF
@@ -0,0 +1,142 @@
+package common;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Class TurnSequencer
+ * Lets threads take turns in the order of their TIDs without busy waiting.
+ *
+ * A thread that is not up yet parks under its TID. Advancing the turn moves it to
+ * the next registered TID (in increasing or decreasing order), so gaps in the TID
+ * sequence are skipped, and unparks only the thread that owns that TID.
+ *
+ * Karim Rhoualem
+ * Student 26603157
+ */
+public class TurnSequencer
+{
+    /**
+     * TID whose turn it is.
+     */
+    private volatile int iTurn;
+
+    /**
+     * TIDs that still have to take their turn.
+     */
+    private final ConcurrentSkipListSet<Integer> oParticipants = new ConcurrentSkipListSet<>();
+
+    /**
+     * Threads parked until their turn comes, by TID.
+     */
+    private final ConcurrentHashMap<Integer, Thread> oParked = new ConcurrentHashMap<>();
+
+    /**
+     * @param piInitialTurn TID that goes first.
+     */
+    public TurnSequencer(int piInitialTurn)
+    {
+        this.iTurn = piInitialTurn;
+    }
+
+    /**
+     * Declares a TID that will take a turn, so that advancing can skip over missing TIDs.
+     * @param piTID The TID to register.
+     */
+    public void register(int piTID)
+    {
+        this.oParticipants.add(piTID);
+    }
+
+    /**
+     * Gets the TID whose turn it is.
+     * @return The current turn.
+     */
+    public int getTurn()
+    {
+        return this.iTurn;
+    }
+
+    /**
+     * Forces the turn to the given TID and wakes its thread if it is parked.
+     * @param piTurn The new turn.
+     */
+    public void setTurn(int piTurn)
+    {
+        this.iTurn = piTurn;
+        wake(piTurn);
+    }
+
+    /**
+     * Parks the calling thread until it is the turn of the given TID.
+     * Interrupts do not end the wait; the interrupt status is kept.
+     * @param piTID The caller's TID.
+     */
+    public void await(int piTID)
+    {
+        if (this.iTurn == piTID)
+        {
+            return;
+        }
+
+        // Publish ourselves before re-checking, so advance() either sees us or we see its turn.
+        this.oParked.put(piTID, Thread.currentThread());
+
+        boolean bInterrupted = Parking.awaitUninterruptibly(() -> this.iTurn == piTID, this);
+
+        this.oParked.remove(piTID);
+
+        if (bInterrupted)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Ends the turn of the given TID and passes it to the next registered TID.
+     * If there is none, the turn goes to TID +/- 1 as before.
+     *
+     * @param piTID TID whose turn ends.
+     * @param pbIncreasingOrder true if TIDs are in increasing order; false otherwise
+     * @return The new turn.
+     */
+    public int advance(int piTID, boolean pbIncreasingOrder)
+    {
+        this.oParticipants.remove(piTID);
+
+        int iNext = next(piTID, pbIncreasingOrder);
+        this.iTurn = iNext;
+        wake(iNext);
+
+        return iNext;
+    }
+
+    /**
+     * Tells which TID gets the turn when the given one ends it, as advance() would, without advancing.
+     * Exact as long as no TID between the two registers meanwhile.
+     *
+     * @param piTID TID whose turn would end.
+     * @param pbIncreasingOrder true if TIDs are in increasing order; false otherwise
+     * @return The turn after piTID's.
+     */
+    public int next(int piTID, boolean pbIncreasingOrder)
+    {
+        Integer oNext = pbIncreasingOrder ? this.oParticipants.higher(piTID) : this.oParticipants.lower(piTID);
+        return (oNext != null) ? oNext : (pbIncreasingOrder ? piTID + 1 : piTID - 1);
+    }
+
+    /**
+     * Unparks the thread waiting for the given TID, if any.
+     */
+    private void wake(int piTID)
+    {
+        Thread oThread = this.oParked.get(piTID);
+        if (oThread != null)
+        {
+            LockSupport.unpark(oThread);
+        }
+    }
+}
+
+// EOF
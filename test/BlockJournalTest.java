@@ -0,0 +1,199 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Class BlockJournalTest
+ * Recovery of the stack from the journal, and journaling of every BlockManager path that changes the stack.
+ *
+ * Karim Rhoualem
+ * Student 26603157
+ */
+class BlockJournalTest {
+    @TempDir
+    Path oDirectory;
+
+    /**
+     * Leaves BlockManager without a journal, so that the next test starts from a fresh stack.
+     */
+    @AfterEach
+    void closeJournal() throws IOException {
+        BlockManager.configure(BlockManagerConfig.parse(new String[0]));
+    }
+
+    /**
+     * Appends over several segments, recovers, then tears the last record off and recovers the state before it.
+     */
+    @Test
+    void recoversAcrossRotationAndIgnoresTornTail() throws IOException {
+        BlockStack oStack = new BlockStack(10);
+        String strBeforeLast = null;
+        BlockJournal oJournal = new BlockJournal(this.oDirectory, BlockJournal.Durability.WRITE, 1024, oStack);
+        try {
+            Random oRandom = new Random(346);
+            for (int i = 0; i < 300; i++) {
+                strBeforeLast = state(oStack);
+                long lSequence;
+                if (oStack.isFull() || (!oStack.isEmpty() && oRandom.nextBoolean())) {
+                    char cBlock = oStack.pop();
+                    lSequence = oJournal.logPop(i, cBlock, oStack.getITop() + 1);
+                }
+                else {
+                    char cBlock = (char) ('a' + oRandom.nextInt(26));
+                    oStack.push(cBlock);
+                    lSequence = oJournal.logPush(i, cBlock, oStack.getITop());
+                }
+                // One record per batch, so that the segments fill up record by record
+                oJournal.sync(lSequence);
+            }
+            assertTrue(oJournal.getSegmentCount() > 1, "No rotation in " + oJournal.getSegmentCount() + " segment(s)");
+        }
+        finally {
+            oJournal.close();
+        }
+
+        assertEquals(state(oStack), state(BlockJournal.recover(this.oDirectory)));
+
+        // A crash in the middle of the last write
+        Path oLast = segments().get(segments().size() - 1);
+        try (FileChannel oChannel = FileChannel.open(oLast, StandardOpenOption.WRITE)) {
+            oChannel.truncate(oChannel.size() - 5);
+        }
+        assertNotEquals(strBeforeLast, state(oStack));
+        assertEquals(strBeforeLast, state(BlockJournal.recover(this.oDirectory)));
+    }
+
+    @Test
+    void emptyDirectoryRecoversNothing() {
+        assertNull(BlockJournal.recover(this.oDirectory));
+    }
+
+    /**
+     * A journal of one stack size is not picked up by a run with another.
+     */
+    @Test
+    void rejectsJournalOfAnotherSize() throws IOException {
+        BlockManager.configure(config("--stack-size", "10"));
+        BlockManager.acquire();
+        BlockManager.configure(BlockManagerConfig.parse(new String[0]));
+
+        assertThrows(IllegalArgumentException.class, () -> BlockManager.configure(config("--stack-size", "8")));
+    }
+
+    /**
+     * acquire(), release(), their magazines and the BlockServer calls are all journaled: the stack
+     * recovered from the journal is the one they left, with the magazines and then without.
+     */
+    @Test
+    void journalsEveryBlockManagerPath() throws IOException {
+        char[] acBlocks = new char[4];
+
+        BlockManager.configure(config("--stack-size", "10", "--magazine", "3"));
+        for (int i = 0; i < 4; i++)
+            acBlocks[i] = BlockManager.acquire();
+        for (int i = 0; i < 4; i++)
+            BlockManager.release(acBlocks[i]);
+        char cBlock = BlockManager.acquire(1, TimeUnit.SECONDS);
+        BlockManager.acquire();
+        assertTrue(BlockManager.release(cBlock, 1, TimeUnit.SECONDS));
+        assertEquals(0, BlockManager.flushMagazine());
+        String strWithMagazines = snapshot();
+
+        BlockManager.configure(config("--stack-size", "10"));
+        assertEquals(strWithMagazines, snapshot(), "Recovered stack differs from the one the magazines left");
+
+        assertEquals(3, BlockManager.tryAcquire(acBlocks, 0, 3));
+        BlockManager.release(acBlocks[2]);
+        assertEquals(2, BlockManager.tryRelease(acBlocks, 0, 2));
+        BlockManager.acquire();
+        assertNotEquals(IBlockStack.EMPTY_SLOT, BlockManager.acquire(1, TimeUnit.SECONDS));
+        assertTrue(BlockManager.release('q', 1, TimeUnit.SECONDS));
+        String strWithout = snapshot();
+
+        BlockManager.configure(config("--stack-size", "10"));
+        assertEquals(strWithout, snapshot(), "Recovered stack differs from the one the calls left");
+    }
+
+    /**
+     * Once the journal cannot be written, the calls throw, but leave the mutex free and every reservation
+     * accounted for: the blocks popped free their slots and those pushed can be taken.
+     */
+    @Test
+    void failedJournalLeavesMutexAndPermits() throws IOException {
+        Path oJournal = this.oDirectory.resolve("journal");
+        BlockManager.configure(BlockManagerConfig.parse(new String[] {"--stack-size", "10", "--journal", oJournal.toString(),
+                "--durability", "write", "--journal-segment", "1"}));
+
+        // The open segment can still be written; the next one cannot be created
+        try (Stream<Path> oFiles = Files.walk(oJournal)) {
+            for (Path oFile : oFiles.sorted(Comparator.reverseOrder()).collect(Collectors.toList()))
+                Files.delete(oFile);
+        }
+        assertThrows(UncheckedIOException.class, () -> {
+            for (int i = 0; i < 10000; i++)
+                assertTrue(BlockManager.release(BlockManager.acquire(1, TimeUnit.SECONDS), 1, TimeUnit.SECONDS));
+        });
+
+        char[] acBlocks = new char[10];
+        assertTrue(BlockManager.snapshot(acBlocks) >= 0);
+        assertTimeoutPreemptively(Duration.ofSeconds(5), () -> {
+            assertThrows(UncheckedIOException.class, () -> BlockManager.tryAcquire(acBlocks, 0, 10));
+            assertEquals(-1, BlockManager.snapshot(new char[10]));
+
+            Arrays.fill(acBlocks, 'x');
+            assertThrows(UncheckedIOException.class, () -> BlockManager.tryRelease(acBlocks, 0, 10));
+            assertEquals(9, BlockManager.snapshot(new char[10]), "Slots were lost with the failed calls");
+        });
+
+        // Closing reports the failure, and lets the next configuration start afresh
+        assertThrows(UncheckedIOException.class, () -> BlockManager.configure(BlockManagerConfig.parse(new String[0])));
+    }
+
+    private BlockManagerConfig config(String... pastrArgs) throws IOException {
+        String[] astrArgs = Stream.concat(Stream.of(pastrArgs),
+                Stream.of("--journal", this.oDirectory.toString(), "--durability", "write")).toArray(String[]::new);
+        return BlockManagerConfig.parse(astrArgs);
+    }
+
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> oFiles = Files.list(this.oDirectory)) {
+            return oFiles.sorted().collect(Collectors.toList());
+        }
+    }
+
+    private static String snapshot() {
+        char[] acSlots = new char[BlockManager.getStackSize()];
+        int iTop = BlockManager.snapshot(acSlots);
+        return iTop + ":" + new String(acSlots);
+    }
+
+    private static String state(IBlockStack poStack) {
+        char[] acSlots = new char[poStack.getISize()];
+        int iTop = poStack.snapshot(acSlots);
+        return iTop + ":" + new String(acSlots);
+    }
+}
+
+// EOF
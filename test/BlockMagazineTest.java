@@ -0,0 +1,67 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Class BlockMagazineTest
+ * Blocks cached in the magazines of BlockManager.acquire()/release() go back to a thread waiting for one.
+ *
+ * Karim Rhoualem
+ * Student 26603157
+ */
+class BlockMagazineTest {
+    @AfterEach
+    void resetManager() throws IOException {
+        BlockManager.configure(BlockManagerConfig.parse(new String[0]));
+    }
+
+    /**
+     * A thread caches every block, then goes on with something else without calling release() or flushMagazine()
+     * again: a thread that needs a block reclaims them rather than waiting for it.
+     */
+    @Test
+    void waiterReclaimsBlocksOfAnIdleMagazine() throws IOException, InterruptedException {
+        BlockManager.configure(BlockManagerConfig.parse(new String[] {"--stack-size", "6", "--magazine", "4"}));
+        CountDownLatch oCached = new CountDownLatch(1);
+        CountDownLatch oDone = new CountDownLatch(1);
+        int[] aiLeft = new int[1];
+
+        Thread oHoarder = new Thread(() -> {
+            char[] acBlocks = new char[4];
+            for (int i = 0; i < acBlocks.length; i++)
+                acBlocks[i] = BlockManager.acquire();
+            for (char cBlock : acBlocks)
+                BlockManager.release(cBlock);
+            oCached.countDown();
+            try {
+                oDone.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            aiLeft[0] = BlockManager.flushMagazine();
+        });
+        oHoarder.start();
+        assertTrue(oCached.await(5, TimeUnit.SECONDS));
+
+        char[] acSlots = new char[BlockManager.getStackSize()];
+        assertEquals(-1, BlockManager.snapshot(acSlots), "The blocks are not all cached");
+        char cBlock = BlockManager.acquire(2, TimeUnit.SECONDS);
+
+        oDone.countDown();
+        oHoarder.join();
+        assertNotEquals(IBlockStack.EMPTY_SLOT, cBlock, "Timed out while the blocks sat in the other magazine");
+        assertEquals(0, aiLeft[0]);
+        BlockManager.release(cBlock);
+        assertEquals(0, BlockManager.flushMagazine());
+        assertEquals(3, BlockManager.snapshot(acSlots), "Blocks went missing");
+    }
+}
+
+// EOF
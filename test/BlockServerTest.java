@@ -0,0 +1,88 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Class BlockServerTest
+ * A request the server fails to carry out closes its own connection, not the server.
+ *
+ * Karim Rhoualem
+ * Student 26603157
+ */
+class BlockServerTest {
+    @TempDir
+    Path oDirectory;
+
+    @AfterEach
+    void resetManager() throws IOException {
+        BlockManager.configure(BlockManagerConfig.parse(new String[0]));
+    }
+
+    @Test
+    void failedJournalAnswersServerErrorAndServesOthers() throws Exception {
+        Path oJournal = this.oDirectory.resolve("journal");
+        BlockManager.configure(BlockManagerConfig.parse(new String[] {"--stack-size", "10", "--journal", oJournal.toString(),
+                "--durability", "write", "--journal-segment", "1"}));
+
+        BlockServer oServer = new BlockServer(new InetSocketAddress("127.0.0.1", 0));
+        Thread oServing = new Thread(() -> {
+            try {
+                oServer.run();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        oServing.start();
+        int iPort = ((InetSocketAddress) oServer.getAddress()).getPort();
+
+        try {
+            assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+                // The open segment can still be written; the next one cannot be created
+                try (Stream<Path> oFiles = Files.walk(oJournal)) {
+                    List<Path> aoFiles = oFiles.sorted(Comparator.reverseOrder()).collect(Collectors.toList());
+                    for (Path oFile : aoFiles)
+                        Files.delete(oFile);
+                }
+
+                char[] acBlocks = new char[4];
+                try (BlockClient oClient = BlockClient.connect("127.0.0.1", iPort)) {
+                    IOException oFailure = assertThrows(IOException.class, () -> {
+                        for (int i = 0; i < 10000; i++)
+                            oClient.release(acBlocks, 0, oClient.acquire(acBlocks, 0, acBlocks.length));
+                    });
+                    assertTrue(oFailure.getMessage().contains("status " + BlockProtocol.SERVER_ERROR), oFailure.getMessage());
+                }
+
+                try (BlockClient oClient = BlockClient.connect("127.0.0.1", iPort)) {
+                    char[] acSlots = new char[10];
+                    assertEquals(BlockManager.snapshot(new char[10]), oClient.snapshot(acSlots));
+                }
+            });
+        }
+        finally {
+            oServer.close();
+            oServing.join();
+        }
+
+        // The journal's failure is reported once more as it is closed
+        assertThrows(UncheckedIOException.class, () -> BlockManager.configure(BlockManagerConfig.parse(new String[0])));
+    }
+}
+
+// EOF
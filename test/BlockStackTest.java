@@ -0,0 +1,52 @@
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Class BlockStackTest
+ * A push on a full stack or a pop on an empty one throws and leaves the stack readable.
+ *
+ * Karim Rhoualem
+ * Student 26603157
+ */
+class BlockStackTest {
+    @Test
+    void popOnEmptyStackLeavesItReadable() {
+        BlockStack oStack = new BlockStack(new char[] {'*', '*', '*'}, -1);
+        assertThrows(ArrayIndexOutOfBoundsException.class, oStack::pop);
+
+        assertEquals(-1, oStack.getITop());
+        assertReadable(oStack, "-1:***");
+    }
+
+    @Test
+    void pushOnFullStackLeavesItReadable() {
+        BlockStack oStack = new BlockStack(new char[] {'a', 'b', 'c'}, 2);
+        assertThrows(ArrayIndexOutOfBoundsException.class, () -> oStack.push('d'));
+
+        assertEquals(2, oStack.getITop());
+        assertReadable(oStack, "2:abc");
+    }
+
+    /**
+     * snapshot() and refresh() return at once, and later writes go through.
+     */
+    private static void assertReadable(BlockStack poStack, String pstrState) {
+        assertTimeoutPreemptively(Duration.ofSeconds(2), () -> {
+            char[] acSlots = new char[poStack.getISize()];
+            int iTop = poStack.snapshot(acSlots);
+            assertEquals(pstrState, iTop + ":" + new String(acSlots));
+
+            StackView oView = new StackView(poStack.getISize());
+            assertTrue(poStack.refresh(oView));
+            assertEquals(iTop, oView.getITop());
+        });
+    }
+}
+
+// EOF
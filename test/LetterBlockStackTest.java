@@ -0,0 +1,68 @@
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Class LetterBlockStackTest
+ * The letters over an IntBlockStack: batches and snapshots map them both ways without allocating.
+ *
+ * Karim Rhoualem
+ * Student 26603157
+ */
+class LetterBlockStackTest {
+    @Test
+    void batchesAndSnapshotMapLetters() {
+        LetterBlockStack oStack = new LetterBlockStack(6);
+        char[] acBlocks = new char[6];
+        char[] acSlots = new char[6];
+
+        assertEquals(3, oStack.popN(acBlocks, 1, 3));
+        assertEquals("dcb", new String(acBlocks, 1, 3));
+        assertEquals(0, oStack.snapshot(acSlots));
+        assertEquals("a*****", new String(acSlots));
+
+        assertEquals(5, oStack.pushAll("xdcbzz".toCharArray(), 1, 9));
+        assertEquals(5, oStack.snapshot(acSlots));
+        assertEquals("adcbzz", new String(acSlots));
+    }
+
+    @Test
+    void pushAllOfANonLetterPushesNothing() {
+        LetterBlockStack oStack = new LetterBlockStack(6);
+        assertThrows(IllegalArgumentException.class, () -> oStack.pushAll(new char[] {'e', '*'}, 0, 2));
+        assertEquals(3, oStack.getITop());
+    }
+
+    /**
+     * Once each thread has its buffers, popN(), pushAll() and snapshot() allocate nothing.
+     */
+    @Test
+    void batchesAndSnapshotDoNotAllocate() {
+        com.sun.management.ThreadMXBean oThreads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        LetterBlockStack oStack = new LetterBlockStack(28);
+        char[] acBlocks = new char[28];
+        char[] acSlots = new char[28];
+
+        roundTrips(oStack, acBlocks, acSlots, 1000);
+        long lThread = Thread.currentThread().getId();
+        long lBefore = oThreads.getThreadAllocatedBytes(lThread);
+        roundTrips(oStack, acBlocks, acSlots, 10000);
+        long lAllocated = oThreads.getThreadAllocatedBytes(lThread) - lBefore;
+
+        assertTrue(lAllocated < 10000, lAllocated + " bytes allocated by 10000 round trips");
+    }
+
+    private static void roundTrips(LetterBlockStack poStack, char[] pacBlocks, char[] pacSlots, int piCount) {
+        for (int i = 0; i < piCount; i++) {
+            int iPopped = poStack.popN(pacBlocks, 0, 20);
+            poStack.snapshot(pacSlots);
+            assertEquals(iPopped, poStack.pushAll(pacBlocks, 0, iPopped));
+        }
+    }
+}
+
+// EOF
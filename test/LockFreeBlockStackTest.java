@@ -0,0 +1,46 @@
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Class LockFreeBlockStackTest
+ * The lock-free stack under concurrent pushes and pops: no block is lost or duplicated,
+ * and snapshot() only returns states the stack was in.
+ *
+ * Karim Rhoualem
+ * Student 26603157
+ */
+class LockFreeBlockStackTest {
+    @Test
+    void singleThreadBehavesLikeAStack() {
+        LockFreeBlockStack oStack = new LockFreeBlockStack(6);
+        char[] acBlocks = new char[6];
+
+        assertEquals(4, oStack.popN(acBlocks, 0, 6));
+        assertEquals("dcba", new String(acBlocks, 0, 4));
+        assertTrue(oStack.isEmpty());
+        assertThrows(ArrayIndexOutOfBoundsException.class, oStack::pop);
+
+        assertEquals(6, oStack.pushAll("abcdef".toCharArray(), 0, 6));
+        assertTrue(oStack.isFull());
+        assertThrows(ArrayIndexOutOfBoundsException.class, () -> oStack.push('g'));
+        assertEquals('f', oStack.pop());
+        assertEquals('e', oStack.pick());
+    }
+
+    @Test
+    void churnConservesBlocksAndSnapshotsAreWellFormed() throws InterruptedException {
+        LockFreeBlockStack oStack = new LockFreeBlockStack(28);
+        assertTrue(StackStress.churn(oStack, 4, 1000) > 0);
+        assertEquals(25, oStack.getITop());
+    }
+
+    @Test
+    void snapshotsAreStatesTheStackPassedThrough() throws InterruptedException {
+        assertTrue(StackStress.snapshotsAreWriterStates(new LockFreeBlockStack(10), 2, 20000) > 1);
+    }
+}
+
+// EOF
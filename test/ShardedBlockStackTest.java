@@ -0,0 +1,103 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Class ShardedBlockStackTest
+ * The sharded stack: its sizes, steals and snapshots.
+ *
+ * Karim Rhoualem
+ * Student 26603157
+ */
+class ShardedBlockStackTest {
+    @Test
+    void rejectsSizesOutsideTheAlphabet() {
+        assertThrows(IllegalArgumentException.class, () -> new ShardedBlockStack(0, 2));
+        assertThrows(IllegalArgumentException.class, () -> new ShardedBlockStack(29, 2));
+
+        ShardedBlockStack oStack = new ShardedBlockStack(28, 4);
+        assertEquals(28, oStack.getISize());
+        assertEquals(25, oStack.getITop());
+    }
+
+    @Test
+    void countsTheBlocksTakenFromOrGivenToOtherShards() {
+        // Two shards of 4: a, b, c and a free slot; d, e, f and a free slot
+        ShardedBlockStack oStack = new ShardedBlockStack(8, 2);
+        char[] acBlocks = new char[8];
+
+        // The home shard's blocks first, then the other's
+        for (int i = 0; i < 6; i++)
+            acBlocks[i] = oStack.pop();
+        long lSteals = 3;
+        assertEquals(lSteals, oStack.getStealCount());
+        assertEquals(IBlockStack.EMPTY_SLOT, oStack.tryPop());
+        assertEquals(lSteals, oStack.getStealCount());
+
+        // The home shard fills up, the other one gets the rest
+        assertEquals(6, oStack.pushAll(acBlocks, 0, 6));
+        assertEquals(lSteals += 2, oStack.getStealCount());
+        assertEquals(6, oStack.popN(acBlocks, 0, 8));
+        assertEquals(lSteals += 2, oStack.getStealCount());
+        for (int i = 0; i < 6; i++)
+            oStack.push(acBlocks[i]);
+        assertEquals(lSteals += 2, oStack.getStealCount());
+
+        oStack.push('g');
+        oStack.push('h');
+        assertEquals(lSteals += 2, oStack.getStealCount());
+        assertThrows(ArrayIndexOutOfBoundsException.class, () -> oStack.push('i'));
+        assertEquals(lSteals, oStack.getStealCount());
+        assertEquals("abcdefgh", StackStress.blocks(oStack));
+    }
+
+    /**
+     * With a single shard, every block comes from and goes to the home shard, even when the shard only
+     * has a block (or room) again by the time all the shards are locked. Threads pass a single block
+     * around, so most of them find the shard empty and go on to lock them all.
+     */
+    @Test
+    void aSingleShardNeverSteals() throws InterruptedException {
+        ShardedBlockStack oStack = new ShardedBlockStack(3, 1);
+        AtomicBoolean oStop = new AtomicBoolean();
+        List<Thread> aoThreads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            aoThreads.add(new Thread(() -> {
+                while (!oStop.get()) {
+                    char cBlock = oStack.tryPop();
+                    if (cBlock != IBlockStack.EMPTY_SLOT)
+                        oStack.push(cBlock);
+                }
+            }));
+        }
+        for (Thread oThread : aoThreads)
+            oThread.start();
+        Thread.sleep(1000);
+        oStop.set(true);
+        for (Thread oThread : aoThreads)
+            oThread.join();
+
+        assertEquals("a", StackStress.blocks(oStack));
+        assertEquals(0, oStack.getStealCount());
+    }
+
+    @Test
+    void churnConservesBlocksAndSnapshotsAreWellFormed() throws InterruptedException {
+        ShardedBlockStack oStack = new ShardedBlockStack(28, 3);
+        assertTrue(StackStress.churn(oStack, 4, 1000) > 0);
+        assertEquals(25, oStack.getITop());
+    }
+
+    @Test
+    void snapshotsAreStatesTheStackPassedThrough() throws InterruptedException {
+        assertTrue(StackStress.snapshotsAreWriterStates(new ShardedBlockStack(10, 3), 2, 20000) > 1);
+    }
+}
+
+// EOF
@@ -0,0 +1,207 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+/**
+ * Class StackStress
+ * Drives a stack that synchronizes itself (IBlockStack.isConcurrent()) from several threads at once,
+ * for the stress tests of the lock-free and sharded stacks. The threads only push blocks they popped,
+ * so every block stays unique and the stack must end up with the blocks it started with.
+ *
+ * Karim Rhoualem
+ * Student 26603157
+ */
+final class StackStress {
+    private StackStress() {
+    }
+
+    /**
+     * Runs piThreads threads of random push(), tryPop(), popN() and pushAll() for plMillis, next to a reader
+     * that checks that every snapshot() is well formed. Then puts back the blocks the threads still hold,
+     * and checks that the stack has the blocks it started with.
+     *
+     * @return The number of snapshots checked.
+     */
+    static long churn(IBlockStack poStack, int piThreads, long plMillis) throws InterruptedException {
+        String strBlocks = blocks(poStack);
+        AtomicBoolean oStop = new AtomicBoolean();
+        AtomicReference<Throwable> oFailure = new AtomicReference<>();
+        AtomicLong oSnapshots = new AtomicLong();
+        char[][] aacHeld = new char[piThreads][poStack.getISize()];
+        int[] aiHeld = new int[piThreads];
+
+        List<Thread> aoThreads = new ArrayList<>();
+        for (int t = 0; t < piThreads; t++) {
+            int iThread = t;
+            aoThreads.add(new Thread(() -> {
+                char[] acHeld = aacHeld[iThread];
+                ThreadLocalRandom oRandom = ThreadLocalRandom.current();
+                int iHeld = 0;
+                try {
+                    while (!oStop.get()) {
+                        int iCount = 1 + oRandom.nextInt(4);
+                        switch (oRandom.nextInt(4)) {
+                            case 0: {
+                                char cBlock = poStack.tryPop();
+                                if (cBlock != IBlockStack.EMPTY_SLOT)
+                                    acHeld[iHeld++] = cBlock;
+                                break;
+                            }
+                            case 1:
+                                if (iHeld > 0)
+                                    poStack.push(acHeld[--iHeld]);
+                                break;
+                            case 2:
+                                iHeld += poStack.popN(acHeld, iHeld, Math.min(iCount, acHeld.length - iHeld));
+                                break;
+                            default:
+                                // The blocks are fewer than the slots: there is always room for them
+                                iCount = Math.min(iCount, iHeld);
+                                assertEquals(iCount, poStack.pushAll(acHeld, iHeld - iCount, iCount));
+                                iHeld -= iCount;
+                                break;
+                        }
+                    }
+                }
+                catch (Throwable e) {
+                    oFailure.compareAndSet(null, e);
+                }
+                aiHeld[iThread] = iHeld;
+            }));
+        }
+        aoThreads.add(new Thread(() -> {
+            char[] acSlots = new char[poStack.getISize()];
+            try {
+                while (!oStop.get()) {
+                    assertWellFormed(acSlots, poStack.snapshot(acSlots), strBlocks);
+                    oSnapshots.incrementAndGet();
+                }
+            }
+            catch (Throwable e) {
+                oFailure.compareAndSet(null, e);
+            }
+        }));
+
+        runFor(aoThreads, oStop, plMillis);
+        if (oFailure.get() != null)
+            fail("A thread failed", oFailure.get());
+
+        for (int t = 0; t < piThreads; t++)
+            assertEquals(aiHeld[t], poStack.pushAll(aacHeld[t], 0, aiHeld[t]));
+        assertEquals(strBlocks, blocks(poStack), "Blocks were lost or duplicated");
+        return oSnapshots.get();
+    }
+
+    /**
+     * One writer makes piOps random single pushes and pops, and records the state after each of them;
+     * meanwhile piReaders threads take snapshots. Every snapshot must be one of the recorded states.
+     *
+     * @return The number of distinct states the readers saw.
+     */
+    static int snapshotsAreWriterStates(IBlockStack poStack, int piReaders, int piOps) throws InterruptedException {
+        Set<String> oWritten = new HashSet<>();
+        oWritten.add(state(poStack));
+        AtomicBoolean oStop = new AtomicBoolean();
+        AtomicReference<Throwable> oFailure = new AtomicReference<>();
+        List<Set<String>> aoSeen = new ArrayList<>();
+
+        List<Thread> aoThreads = new ArrayList<>();
+        for (int r = 0; r < piReaders; r++) {
+            Set<String> oSeen = new HashSet<>();
+            aoSeen.add(oSeen);
+            aoThreads.add(new Thread(() -> {
+                while (!oStop.get())
+                    oSeen.add(state(poStack));
+            }));
+        }
+        for (Thread oThread : aoThreads)
+            oThread.start();
+
+        Random oRandom = new Random(1001);
+        char[] acHeld = new char[poStack.getISize()];
+        int iHeld = 0;
+        try {
+            for (int i = 0; i < piOps; i++) {
+                if (iHeld > 0 && (poStack.isEmpty() || oRandom.nextBoolean()))
+                    poStack.push(acHeld[--iHeld]);
+                else
+                    acHeld[iHeld++] = poStack.pop();
+                oWritten.add(state(poStack));
+            }
+        }
+        catch (Throwable e) {
+            oFailure.set(e);
+        }
+        oStop.set(true);
+        for (Thread oThread : aoThreads)
+            oThread.join();
+        if (oFailure.get() != null)
+            fail("The writer failed", oFailure.get());
+
+        Set<String> oAllSeen = new HashSet<>();
+        for (Set<String> oSeen : aoSeen)
+            oAllSeen.addAll(oSeen);
+        for (String strState : oAllSeen)
+            assertTrue(oWritten.contains(strState), "Snapshot of a state the stack never was in: " + strState);
+        return oAllSeen.size();
+    }
+
+    /**
+     * Checks that a snapshot holds each block at most once, from slot 0 up to the top, and free slots above it.
+     */
+    static void assertWellFormed(char[] pacSlots, int piTop, String pstrBlocks) {
+        boolean[] abSeen = new boolean[Character.MAX_VALUE + 1];
+        for (int i = 0; i < pacSlots.length; i++) {
+            char cSlot = pacSlots[i];
+            if (i > piTop) {
+                assertEquals(IBlockStack.EMPTY_SLOT, cSlot, "Block above the top in " + piTop + ":" + new String(pacSlots));
+                continue;
+            }
+            assertNotEquals(IBlockStack.EMPTY_SLOT, cSlot, "Hole below the top in " + piTop + ":" + new String(pacSlots));
+            assertTrue(pstrBlocks.indexOf(cSlot) >= 0, "Unknown block in " + piTop + ":" + new String(pacSlots));
+            assertFalse(abSeen[cSlot], "Block twice in " + piTop + ":" + new String(pacSlots));
+            abSeen[cSlot] = true;
+        }
+    }
+
+    /**
+     * Gets the blocks on the stack, sorted.
+     */
+    static String blocks(IBlockStack poStack) {
+        char[] acSlots = new char[poStack.getISize()];
+        int iTop = poStack.snapshot(acSlots);
+        char[] acBlocks = Arrays.copyOf(acSlots, iTop + 1);
+        Arrays.sort(acBlocks);
+        return new String(acBlocks);
+    }
+
+    private static String state(IBlockStack poStack) {
+        char[] acSlots = new char[poStack.getISize()];
+        int iTop = poStack.snapshot(acSlots);
+        return iTop + ":" + new String(acSlots);
+    }
+
+    private static void runFor(List<Thread> paoThreads, AtomicBoolean poStop, long plMillis) throws InterruptedException {
+        for (Thread oThread : paoThreads)
+            oThread.start();
+        Thread.sleep(plMillis);
+        poStop.set(true);
+        for (Thread oThread : paoThreads)
+            oThread.join();
+    }
+}
+
+// EOF
@@ -0,0 +1,123 @@
+package common;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+/**
+ * Class CombiningPhaserTest
+ * Parties going through several phases of the CombiningPhaser, in counts that leave the arrival tree's
+ * nodes partly filled: nobody gets past a phase early, and no waiter is left queued behind.
+ *
+ * Karim Rhoualem
+ * Student 26603157
+ */
+class CombiningPhaserTest
+{
+    private static final int PHASES = 50;
+
+    @Test
+    void partialLeavesHoldEveryoneUntilTheLastArrival() throws InterruptedException
+    {
+        // One leaf of 2 behind a full one; then a last leaf of 1
+        runPhases(6);
+        runPhases(13);
+    }
+
+    @Test
+    void partialInnerNodesHoldEveryoneUntilTheLastArrival() throws InterruptedException
+    {
+        // Five leaves, so two nodes above them, the second with a single child, under the root
+        runPhases(18);
+    }
+
+    @Test
+    void terminatesAfterTheLastPhase()
+    {
+        CombiningPhaser oPhaser = new CombiningPhaser(1, 2);
+        int iParty = oPhaser.register();
+        assertThrows(IllegalStateException.class, oPhaser::register);
+
+        assertEquals(1, oPhaser.arriveAndAwaitAdvance(iParty));
+        assertEquals(2, oPhaser.arriveAndAwaitAdvance(iParty));
+        assertTrue(oPhaser.isTerminated());
+        assertThrows(IllegalStateException.class, () -> oPhaser.arrive(iParty));
+    }
+
+    /**
+     * Runs piParties threads through PHASES phases. Each party counts its arrival in a phase and, once
+     * released, checks that all of them have arrived. The advance action checks that it runs once per
+     * phase, in order, and that no thread is queued for the phase to come: the queue of that parity was
+     * drained two phases ago, and nobody can arrive in the next phase before this one ends.
+     */
+    private static void runPhases(int piParties) throws InterruptedException
+    {
+        AtomicIntegerArray oArrivals = new AtomicIntegerArray(PHASES);
+        AtomicInteger oAdvances = new AtomicInteger();
+        AtomicReference<Throwable> oFailure = new AtomicReference<>();
+        CombiningPhaser[] aoPhaser = new CombiningPhaser[1];
+
+        aoPhaser[0] = new CombiningPhaser(piParties, PHASES, iPhase -> {
+            assertEquals(oAdvances.getAndIncrement(), iPhase, "Phases advanced out of order");
+            assertEquals(piParties, oArrivals.get(iPhase), "Phase " + iPhase + " advanced before everyone arrived");
+            assertEquals(0, aoPhaser[0].countWaiters(iPhase + 1), "Waiters left over from phase " + (iPhase - 1));
+        });
+        CombiningPhaser oPhaser = aoPhaser[0];
+
+        List<Thread> aoThreads = new ArrayList<>();
+        for (int t = 0; t < piParties; t++)
+        {
+            int iParty = oPhaser.register();
+            aoThreads.add(new Thread(() -> {
+                try
+                {
+                    for (int iPhase = 0; iPhase < PHASES; iPhase++)
+                    {
+                        oArrivals.incrementAndGet(iPhase);
+                        assertEquals(iPhase + 1, oPhaser.arriveAndAwaitAdvance(iParty));
+                        assertEquals(piParties, oArrivals.get(iPhase), "Party " + iParty + " got past phase " + iPhase + " early");
+                    }
+                }
+                catch (Throwable e)
+                {
+                    oFailure.compareAndSet(null, e);
+                }
+            }));
+        }
+        for (Thread oThread : aoThreads)
+        {
+            oThread.start();
+        }
+        long lDeadline = System.currentTimeMillis() + 10_000;
+        for (Thread oThread : aoThreads)
+        {
+            oThread.join(Math.max(1, lDeadline - System.currentTimeMillis()));
+        }
+        // A party that failed leaves the others stuck in the next phase
+        if (oFailure.get() != null)
+        {
+            fail(piParties + " parties failed", oFailure.get());
+        }
+        for (Thread oThread : aoThreads)
+        {
+            assertFalse(oThread.isAlive(), piParties + " parties stuck in phase " + oPhaser.getPhase());
+        }
+
+        assertEquals(PHASES, oAdvances.get());
+        assertTrue(oPhaser.isTerminated());
+        assertEquals(0, oPhaser.countWaiters(0));
+        assertEquals(0, oPhaser.countWaiters(1));
+    }
+}
+
+// EOF
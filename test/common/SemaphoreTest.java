@@ -0,0 +1,79 @@
+package common;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Class SemaphoreTest
+ * Priority classes and aging of the barging Semaphore.
+ *
+ * Karim Rhoualem
+ * Student 26603157
+ */
+class SemaphoreTest
+{
+    /**
+     * CRITICAL threads taking the permit back as soon as they give it must not keep an aged
+     * BACKGROUND thread out: it gets through within a few aging periods.
+     */
+    @Test
+    void backgroundWaiterGetsThroughContinuousCriticalLoad() throws InterruptedException
+    {
+        Semaphore oMutex = new Semaphore(1);
+        oMutex.setAging(1, TimeUnit.MILLISECONDS);
+
+        AtomicBoolean oStop = new AtomicBoolean();
+        AtomicLong oCriticalOps = new AtomicLong();
+        Thread[] aoLoad = new Thread[4];
+        for (int i = 0; i < aoLoad.length; i++)
+        {
+            aoLoad[i] = new Thread(() -> {
+                while (!oStop.get())
+                {
+                    oMutex.Wait("Critical", 0, Semaphore.Priority.CRITICAL);
+                    oCriticalOps.incrementAndGet();
+                    oMutex.Signal("Critical", 0);
+                }
+            });
+            aoLoad[i].start();
+        }
+
+        try
+        {
+            // Let the load get going first
+            while (oCriticalOps.get() < 10_000)
+            {
+                Thread.onSpinWait();
+            }
+
+            long lStart = System.nanoTime();
+            boolean bAcquired = oMutex.WaitUntil(Semaphore.deadline(5, TimeUnit.SECONDS), Semaphore.Priority.BACKGROUND);
+            long lWaited = System.nanoTime() - lStart;
+            long lOpsWhileHeld = oCriticalOps.get();
+
+            assertTrue(bAcquired, "BACKGROUND waiter starved by the CRITICAL load");
+            assertEquals(lOpsWhileHeld, oCriticalOps.get(), "A CRITICAL thread got in while the BACKGROUND one held the permit");
+            oMutex.Signal("Background", 0);
+
+            assertTrue(lWaited < TimeUnit.SECONDS.toNanos(1), "BACKGROUND waiter took " + lWaited / 1_000_000 + " ms");
+        }
+        finally
+        {
+            oStop.set(true);
+            for (Thread oThread : aoLoad)
+            {
+                oThread.join();
+            }
+        }
+
+        assertEquals(1, oMutex.getiValue());
+    }
+}
+
+// EOF
@@ -0,0 +1,144 @@
+package common;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+/**
+ * Class TidAllocatorTest
+ * TIDs handed out by the lock-free TidAllocator: never to two owners at once, and reused once given back.
+ *
+ * Karim Rhoualem
+ * Student 26603157
+ */
+class TidAllocatorTest
+{
+    @Test
+    void releasedTidsComeBackLowestFirst()
+    {
+        TidAllocator oTids = new TidAllocator(1);
+        for (int i = 1; i <= 100; i++)
+        {
+            assertEquals(i, oTids.allocate());
+        }
+
+        oTids.release(70);
+        oTids.release(5);
+        assertFalse(oTids.isAllocated(5));
+        assertEquals(98, oTids.getCount());
+        assertEquals(5, oTids.allocate());
+        assertEquals(70, oTids.allocate());
+        assertEquals(101, oTids.allocate());
+        assertEquals(102, oTids.getLimit());
+
+        assertThrows(IllegalArgumentException.class, () -> oTids.release(0));
+        assertThrows(IllegalArgumentException.class, () -> oTids.release(500));
+        oTids.release(42);
+        assertThrows(IllegalArgumentException.class, () -> oTids.release(42));
+    }
+
+    /**
+     * Threads take and give back batches of TIDs, together past the first chunk of the bitmap. Each TID is
+     * claimed in an ownership table when handed out and cleared before it is released, so a TID handed to
+     * two threads at once fails the claim. Reuse keeps the limit near the most TIDs ever in use together.
+     */
+    @Test
+    void concurrentAllocationsNeverShareATidAndReuseReleasedOnes() throws InterruptedException
+    {
+        final int iThreads = 8;
+        final int iMaxHeld = 700;
+        TidAllocator oTids = new TidAllocator(1);
+        AtomicIntegerArray oOwners = new AtomicIntegerArray(1 << 16);
+        AtomicInteger oInUse = new AtomicInteger();
+        AtomicInteger oPeak = new AtomicInteger();
+        AtomicInteger oAllocations = new AtomicInteger();
+        AtomicReference<Throwable> oFailure = new AtomicReference<>();
+        CyclicBarrier oFilled = new CyclicBarrier(iThreads);
+
+        List<Thread> aoThreads = new ArrayList<>();
+        for (int t = 0; t < iThreads; t++)
+        {
+            int iOwner = t + 1;
+            aoThreads.add(new Thread(() -> {
+                ThreadLocalRandom oRandom = ThreadLocalRandom.current();
+                int[] aiHeld = new int[iMaxHeld];
+                int iHeld = 0;
+                try
+                {
+                    for (int iRound = 0; iRound < 200; iRound++)
+                    {
+                        for (int iTarget = (iRound == 0) ? iMaxHeld : oRandom.nextInt(iMaxHeld + 1); iHeld < iTarget; iHeld++)
+                        {
+                            oPeak.accumulateAndGet(oInUse.incrementAndGet(), Math::max);
+                            int iTid = oTids.allocate();
+                            oAllocations.incrementAndGet();
+                            assertTrue(iTid >= 1 && iTid < oOwners.length(), "TID out of range: " + iTid);
+                            int iOther = oOwners.get(iTid);
+                            assertTrue(oOwners.compareAndSet(iTid, 0, iOwner), "TID " + iTid + " live twice, also in thread " + iOther);
+                            aiHeld[iHeld] = iTid;
+                        }
+                        if (iRound == 0)
+                        {
+                            // Everyone full at once: more TIDs in use than the first chunk holds
+                            oFilled.await(10, TimeUnit.SECONDS);
+                        }
+                        for (int iTarget = oRandom.nextInt(iHeld + 1); iHeld > iTarget; )
+                        {
+                            int iPick = oRandom.nextInt(iHeld);
+                            int iTid = aiHeld[iPick];
+                            aiHeld[iPick] = aiHeld[--iHeld];
+                            assertTrue(oOwners.compareAndSet(iTid, iOwner, 0), "TID " + iTid + " taken from its owner");
+                            oTids.release(iTid);
+                            oInUse.decrementAndGet();
+                        }
+                    }
+                    while (iHeld > 0)
+                    {
+                        int iTid = aiHeld[--iHeld];
+                        assertTrue(oOwners.compareAndSet(iTid, iOwner, 0), "TID " + iTid + " taken from its owner");
+                        oTids.release(iTid);
+                        oInUse.decrementAndGet();
+                    }
+                }
+                catch (Throwable e)
+                {
+                    oFailure.compareAndSet(null, e);
+                }
+            }));
+        }
+        for (Thread oThread : aoThreads)
+        {
+            oThread.start();
+        }
+        for (Thread oThread : aoThreads)
+        {
+            oThread.join();
+        }
+        if (oFailure.get() != null)
+        {
+            fail("A thread failed", oFailure.get());
+        }
+
+        assertEquals(0, oTids.getCount());
+        assertEquals(iThreads * iMaxHeld, oPeak.get());
+        // A scan can pass a word just before a TID in it is released, so allow each thread a word of slack
+        assertTrue(oTids.getLimit() - 1 <= oPeak.get() + iThreads * 64,
+                "Limit " + oTids.getLimit() + " for at most " + oPeak.get() + " TIDs in use after " + oAllocations.get() + " allocations");
+        assertEquals(1, oTids.allocate());
+    }
+}
+
+// EOF